@@ -0,0 +1,138 @@
+package com.pictech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64 的两端：
+ *   读图编码  原 readFileAsBase64 (整文件读入 + 编码为 String) 与 PicTechBase64Source.ofFile (分块流式编码)
+ *   响应解码  原 saveResultImage (完整响应字符串中截取 Base64 再解码写盘) 与 PicTechBase64FileHandler (边接收边解码)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PicTechBase64Benchmark {
+
+    /** 响应按 HttpClient 的典型分片大小交给订阅者 */
+    private static final int RESPONSE_CHUNK = 16 * 1024;
+
+    @Param({"102400", "1048576", "6291456"})
+    public int imageBytes;
+
+    private Path image;
+    private Path target;
+    private byte[] response;
+    private String responseString;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] data = PicTechBenchPayloads.randomBytes(imageBytes);
+        image = PicTechBenchPayloads.tempFile(data, ".jpeg");
+        target = Files.createTempFile("pictech-bench-", ".out");
+        response = PicTechBenchPayloads.toolResponse(data);
+        responseString = new String(response, StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(image);
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public int legacyReadFileAsBase64() throws IOException {
+        return PicTechLegacy.readFileAsBase64(image.toString()).length();
+    }
+
+    @Benchmark
+    public long streamingReadFile() throws IOException {
+        PicTechBase64Source source = PicTechBase64Source.ofFile(image, PicTechBase64Source.guessMimeType(image.toString()));
+        return PicTechBenchPayloads.drain(source.openEncodedStream(), buffer);
+    }
+
+    /**
+     * 原实现需要先把响应体整个读成 String (BodyHandlers.ofString)，这一步也计入
+     */
+    @Benchmark
+    public void legacySaveResultImage() throws IOException {
+        PicTechLegacy.saveResultImage(new String(response, StandardCharsets.UTF_8), target.toString());
+    }
+
+    /**
+     * 只计截取与解码写盘 (响应字符串已就绪)
+     */
+    @Benchmark
+    public void legacySaveResultImageFromString() throws IOException {
+        PicTechLegacy.saveResultImage(responseString, target.toString());
+    }
+
+    @Benchmark
+    public long streamingDecode() {
+        HttpResponse.BodySubscriber<PicTechBase64FileHandler.Result> subscriber = new PicTechBase64FileHandler(target).apply(OK);
+        subscriber.onSubscribe(NO_OP);
+        for (int offset = 0; offset < response.length; offset += RESPONSE_CHUNK) {
+            int length = Math.min(RESPONSE_CHUNK, response.length - offset);
+            List<ByteBuffer> items = new ArrayList<>(1);
+            items.add(ByteBuffer.wrap(response, offset, length));
+            subscriber.onNext(items);
+        }
+        subscriber.onComplete();
+        return subscriber.getBody().toCompletableFuture().join().decodedBytes();
+    }
+
+    private static final Flow.Subscription NO_OP = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private static final HttpResponse.ResponseInfo OK = new HttpResponse.ResponseInfo() {
+        @Override
+        public int statusCode() {
+            return 200;
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return HttpHeaders.of(Map.of(), (k, v) -> true);
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return HttpClient.Version.HTTP_2;
+        }
+    };
+}
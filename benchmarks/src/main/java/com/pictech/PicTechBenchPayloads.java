@@ -0,0 +1,137 @@
+package com.pictech;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * 基准测试用的数据构造与消费工具
+ *
+ * 负载大小与实际场景一致：100KB (缩略图)、1MB (手机照片)、6MB (README 建议的上限)。
+ * 所有随机数据使用固定种子，每次运行内容相同。
+ */
+final class PicTechBenchPayloads {
+
+    static final String SECRET_KEY = "bench_SECRET_KEY";
+
+    private PicTechBenchPayloads() {
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    static Path tempFile(byte[] data, String suffix) throws IOException {
+        Path file = Files.createTempFile("pictech-bench-", suffix);
+        file.toFile().deleteOnExit();
+        Files.write(file, data);
+        return file;
+    }
+
+    /**
+     * /tools/* 的典型参数 (不含图片)
+     */
+    static Map<String, Object> toolParams() {
+        Map<String, Object> params = new TreeMap<>();
+        params.put("AccountId", "pic_BENCH_ID");
+        params.put("Image", "https://pictech.top/pctccloud/test/source_Chinese.jpeg");
+        params.put("TemplateKey", "pattern_diagonal_da");
+        params.put("Text", "绝密资料 禁止外传");
+        params.put("OutputFormat", "JPEG");
+        params.put("Quality", 90);
+        params.put("Timestamp", "1769184000000");
+        return params;
+    }
+
+    /**
+     * 服务端返回的 /tools/* 响应：{"Code":200,...,"Data":{"Width":..,"Height":..,"Base64":"data:image/jpeg;base64,..."}}
+     */
+    static byte[] toolResponse(byte[] image) {
+        String json = "{\"Code\":200,\"RequestId\":\"bench\",\"Data\":{\"Width\":1920,\"Height\":1080,\"Base64\":\"data:image/jpeg;base64,"
+                + Base64.getEncoder().encodeToString(image) + "\"}}";
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 约 size 字节的 OCR 响应，文字以 \\uXXXX 转义 (与服务端一致)，每个区域带四点坐标
+     */
+    static byte[] ocrResponse(int size) {
+        StringBuilder sb = new StringBuilder(size + 256).append("{\"Code\":200,\"RequestId\":\"bench\",\"TemplateJson\":[");
+        Random random = new Random(size);
+        int index = 0;
+        while (sb.length() < size) {
+            if (index > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"text\":\"");
+            int chars = 4 + random.nextInt(20);
+            for (int i = 0; i < chars; i++) {
+                sb.append(String.format("\\u%04x", 0x4e00 + random.nextInt(0x5000)));
+            }
+            int x = random.nextInt(2000);
+            int y = index * 24;
+            sb.append("\",\"points\":[[").append(x).append(',').append(y).append("],[").append(x + 200).append(',').append(y)
+                    .append("],[").append(x + 200).append(',').append(y + 20).append("],[").append(x).append(',').append(y + 20)
+                    .append("]]}");
+            index++;
+        }
+        return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读完整个流，返回字节数 (避免被 JIT 消除)
+     */
+    static long drain(InputStream in, byte[] buffer) throws IOException {
+        long total = 0;
+        try (in) {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                total += n + (n > 0 ? buffer[0] : 0);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 订阅请求体并读完全部字节 (等同于 HttpClient 发送时的消费方式)
+     */
+    static long drain(HttpRequest.BodyPublisher publisher) {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            private long total;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                total += item.remaining();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(total);
+            }
+        });
+        return done.join();
+    }
+}
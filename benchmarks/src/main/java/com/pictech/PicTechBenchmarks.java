@@ -0,0 +1,36 @@
+package com.pictech;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * benchmarks.jar 的入口
+ *
+ * 与 JMH 自带的 Main 相同，接受全部 JMH 命令行参数 (如 "Signature" 只跑签名、-p imageBytes=1048576 只测 1MB)，
+ * 但默认挂上 GC 分析器，结果中同时给出 gc.alloc.rate.norm (每次操作分配的字节数)：
+ *   java -jar benchmarks/target/benchmarks.jar
+ *   java -jar benchmarks/target/benchmarks.jar Json -p imageBytes=6291456 -rf json -rff after.json
+ */
+public final class PicTechBenchmarks {
+
+    private PicTechBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp() || cli.shouldList() || cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cli);
+        if (cli.getProfilers().isEmpty()) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,93 @@
+package com.pictech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求体构建：三份原 buildJson / buildJsonRequest、流式的 PicTechJsonBodyPublisher 与二进制上传的 PicTechMultipartBodyPublisher
+ *
+ * 每个方法都把请求体完整地交给订阅者读完，与 HttpClient 发送时一致；
+ * 原实现的 Base64 字符串在 setup 中预先生成，流式实现的 Base64 编码计入本次耗时。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PicTechJsonBenchmark {
+
+    @Param({"102400", "1048576", "6291456"})
+    public int imageBytes;
+
+    private Map<String, Object> legacyParams;
+    private Map<String, String> legacyInpaintParams;
+    private Map<String, Object> params;
+
+    @Setup
+    public void setup() {
+        byte[] image = PicTechBenchPayloads.randomBytes(imageBytes);
+        String encoded = Base64.getEncoder().encodeToString(image);
+
+        legacyParams = PicTechBenchPayloads.toolParams();
+        legacyParams.put("ImageBase64", "data:image/jpeg;base64," + encoded);
+
+        legacyInpaintParams = new TreeMap<>();
+        legacyInpaintParams.put("AccountId", "pic_BENCH_ID");
+        legacyInpaintParams.put("Timestamp", "1769184000");
+        legacyInpaintParams.put("image", encoded);
+        legacyInpaintParams.put("mask", encoded);
+
+        params = PicTechBenchPayloads.toolParams();
+        params.put("ImageBase64", PicTechBase64Source.ofBytes(image, "image/jpeg"));
+    }
+
+    /** PicTechApiTest.buildJson + BodyPublishers.ofString */
+    @Benchmark
+    public long legacyApiBuildJson() {
+        return PicTechBenchPayloads.drain(HttpRequest.BodyPublishers.ofString(
+                PicTechLegacy.buildJson(legacyParams), StandardCharsets.UTF_8));
+    }
+
+    /** PicTechOcrTest.buildJsonRequest + BodyPublishers.ofString */
+    @Benchmark
+    public long legacyOcrBuildJsonRequest() {
+        return PicTechBenchPayloads.drain(HttpRequest.BodyPublishers.ofString(
+                PicTechLegacy.buildJsonRequest(legacyParams), StandardCharsets.UTF_8));
+    }
+
+    /** PicTechInpaintTest.buildJsonRequest (image + mask) + BodyPublishers.ofString */
+    @Benchmark
+    public long legacyInpaintBuildJsonRequest() {
+        return PicTechBenchPayloads.drain(HttpRequest.BodyPublishers.ofString(
+                PicTechLegacy.buildInpaintJson(legacyInpaintParams), StandardCharsets.UTF_8));
+    }
+
+    /** 当前实现：静态片段 + 发送时边读边编码的 Base64 */
+    @Benchmark
+    public long streamingPublisher() {
+        return PicTechBenchPayloads.drain(PicTechJsonBodyPublisher.of(params));
+    }
+
+    /** 二进制上传：multipart 请求体，图片按原始字节输出，不做 Base64 编码 */
+    @Benchmark
+    public long multipartPublisher() {
+        return PicTechBenchPayloads.drain(PicTechMultipartBodyPublisher.of(params));
+    }
+}
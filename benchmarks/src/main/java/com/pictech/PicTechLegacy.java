@@ -0,0 +1,193 @@
+package com.pictech;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 优化前的实现 (摘自最初版本的示例代码，仅去掉打印)，作为基准测试的对照组
+ */
+final class PicTechLegacy {
+
+    private PicTechLegacy() {
+    }
+
+    /**
+     * PicTechApiTest.generateSignature：每次新建 Mac，拼接完整的签名字符串
+     */
+    static String generateSignature(Map<String, Object> params, String secretKey) throws Exception {
+        String paramString = params.entrySet().stream()
+                .filter(e -> e.getValue() != null && !e.getValue().toString().isEmpty())
+                .map(e -> e.getKey() + "=" + e.getValue())
+                .collect(Collectors.joining("&"));
+        String signString = paramString + "&SecretKey=" + secretKey;
+        Mac hmacSha256 = Mac.getInstance("HmacSHA256");
+        hmacSha256.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        byte[] hash = hmacSha256.doFinal(signString.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(hash);
+    }
+
+    /**
+     * PicTechApiTest.buildJson
+     */
+    static String buildJson(Map<String, Object> map) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object val = entry.getValue();
+            sb.append("\"").append(entry.getKey()).append("\":");
+            if (val instanceof Number || val instanceof Boolean) {
+                sb.append(val);
+            } else {
+                String strVal = String.valueOf(val)
+                        .replace("\\", "\\\\")
+                        .replace("\"", "\\\"");
+                sb.append("\"").append(strVal).append("\"");
+            }
+            sb.append(",");
+        }
+        if (sb.length() > 1) sb.setLength(sb.length() - 1);
+        sb.append("}");
+        return sb.toString();
+    }
+
+    /**
+     * PicTechOcrTest.buildJsonRequest
+     */
+    static String buildJsonRequest(Map<String, Object> params) {
+        StringBuilder json = new StringBuilder("{");
+        boolean first = true;
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            if (!first) {
+                json.append(",");
+            }
+            first = false;
+            Object value = entry.getValue();
+            json.append("\"").append(entry.getKey()).append("\":");
+            if (value instanceof String) {
+                String escaped = ((String) value)
+                        .replace("\\", "\\\\")
+                        .replace("\"", "\\\"")
+                        .replace("\n", "\\n")
+                        .replace("\r", "\\r")
+                        .replace("\t", "\\t");
+                json.append("\"").append(escaped).append("\"");
+            } else if (value instanceof Number) {
+                json.append(value);
+            } else {
+                json.append("\"").append(value.toString()).append("\"");
+            }
+        }
+        json.append("}");
+        return json.toString();
+    }
+
+    /**
+     * PicTechInpaintTest.buildJsonRequest
+     */
+    static String buildInpaintJson(Map<String, String> params) {
+        StringBuilder sb = new StringBuilder("{");
+        boolean first = true;
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            if (!first) sb.append(",");
+            sb.append("\"").append(entry.getKey()).append("\":\"");
+            sb.append(entry.getValue().replace("\"", "\\\"").replace("\n", ""));
+            sb.append("\"");
+            first = false;
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+
+    /**
+     * PicTechOcrTest.readFileAsBase64：整个文件读入内存后编码为带 data 前缀的字符串
+     */
+    static String readFileAsBase64(String path) throws IOException {
+        byte[] bytes = Files.readAllBytes(Path.of(path));
+        String lowerPath = path.toLowerCase();
+        String mimeType = "image/jpeg";
+        if (lowerPath.endsWith(".png")) {
+            mimeType = "image/png";
+        } else if (lowerPath.endsWith(".bmp")) {
+            mimeType = "image/bmp";
+        } else if (lowerPath.endsWith(".gif")) {
+            mimeType = "image/gif";
+        } else if (lowerPath.endsWith(".tiff") || lowerPath.endsWith(".tif")) {
+            mimeType = "image/tiff";
+        }
+        String base64 = Base64.getEncoder().encodeToString(bytes);
+        return "data:" + mimeType + ";base64," + base64;
+    }
+
+    /**
+     * PicTechApiTest.saveResultImage：在完整的响应字符串中查找 Base64 字段，解码后写入文件
+     */
+    static void saveResultImage(String jsonResponse, String filename) throws IOException {
+        String searchKey = "\"Base64\"";
+        int idx = jsonResponse.indexOf(searchKey);
+        if (idx == -1) {
+            throw new IOException("返回数据中没有Base64");
+        }
+        int startQuote = jsonResponse.indexOf("\"", idx + searchKey.length() + 1);
+        int endQuote = jsonResponse.indexOf("\"", startQuote + 1);
+        String b64Str = jsonResponse.substring(startQuote + 1, endQuote);
+        if (b64Str.contains(",")) {
+            b64Str = b64Str.split(",")[1];
+        }
+        byte[] imgData = Base64.getDecoder().decode(b64Str);
+        try (FileOutputStream fos = new FileOutputStream(filename)) {
+            fos.write(imgData);
+        }
+    }
+
+    /**
+     * PicTechOcrTest.printFormattedResult 中提取 text 字段的部分
+     */
+    static List<String> extractTexts(String jsonResponse) {
+        List<String> texts = new ArrayList<>();
+        if (!jsonResponse.contains("\"Code\":200") || !jsonResponse.contains("TemplateJson")) {
+            return texts;
+        }
+        String[] parts = jsonResponse.split("\"text\":\"");
+        for (int i = 1; i < parts.length; i++) {
+            int endIndex = parts[i].indexOf("\"");
+            if (endIndex > 0) {
+                texts.add(convertUnicodeToChinese(parts[i].substring(0, endIndex)));
+            }
+        }
+        return texts;
+    }
+
+    /**
+     * PicTechOcrTest.convertUnicodeToChinese
+     */
+    static String convertUnicodeToChinese(String unicodeText) {
+        StringBuilder result = new StringBuilder();
+        int i = 0;
+        while (i < unicodeText.length()) {
+            if (unicodeText.charAt(i) == '\\' && i + 1 < unicodeText.length() && unicodeText.charAt(i + 1) == 'u') {
+                String hex = unicodeText.substring(i + 2, i + 6);
+                try {
+                    int codePoint = Integer.parseInt(hex, 16);
+                    result.append((char) codePoint);
+                    i += 6;
+                } catch (Exception e) {
+                    result.append(unicodeText.charAt(i));
+                    i++;
+                }
+            } else {
+                result.append(unicodeText.charAt(i));
+                i++;
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package com.pictech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OCR 响应：
+ *   解析  原 printFormattedResult 的 split 提取 + convertUnicodeToChinese 与 PicTechOcrResult.parse (单次拉取解析)
+ *   反转义  原 convertUnicodeToChinese 与 PicTechJsonReader.unescape (当前 PicTechOcrTest.convertUnicodeToChinese)
+ *
+ * 响应大小 100KB / 1MB / 6MB，对应几百到几万个文字区域的长文档。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PicTechOcrBenchmark {
+
+    @Param({"102400", "1048576", "6291456"})
+    public int responseBytes;
+
+    private byte[] response;
+    private String escapedText;
+
+    @Setup
+    public void setup() {
+        response = PicTechBenchPayloads.ocrResponse(responseBytes);
+        // 一段与响应等长、只含 \\uXXXX 转义和 ASCII 的文本
+        String json = new String(response, StandardCharsets.UTF_8);
+        escapedText = json.replace("\"", "");
+    }
+
+    /**
+     * 原实现先把响应体读成 String (BodyHandlers.ofString)，这一步也计入
+     */
+    @Benchmark
+    public List<String> legacyExtractTexts() {
+        return PicTechLegacy.extractTexts(new String(response, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public PicTechOcrResult pullParser() {
+        return PicTechOcrResult.parse(response);
+    }
+
+    @Benchmark
+    public String legacyConvertUnicodeToChinese() {
+        return PicTechLegacy.convertUnicodeToChinese(escapedText);
+    }
+
+    @Benchmark
+    public String convertUnicodeToChinese() {
+        return PicTechOcrTest.convertUnicodeToChinese(escapedText);
+    }
+}
@@ -0,0 +1,72 @@
+package com.pictech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 签名：原 generateSignature (每次新建 Mac、拼接完整字符串) 与 PicTechSigner (复用 Mac、增量更新)
+ *
+ * imageBytes = 0 为只有普通参数的 /tools/* 请求，其余为带 ImageBase64 的 OCR 请求。
+ * signerBinary 为二进制上传的签名 (图片按原始字节的 SHA-256 参与，每次新建来源，不命中摘要缓存)。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PicTechSignatureBenchmark {
+
+    @Param({"0", "102400", "1048576", "6291456"})
+    public int imageBytes;
+
+    private Map<String, Object> legacyParams;
+    private Map<String, Object> params;
+    private byte[] image;
+    private PicTechSigner signer;
+
+    @Setup
+    public void setup() {
+        legacyParams = PicTechBenchPayloads.toolParams();
+        params = new TreeMap<>(legacyParams);
+        if (imageBytes > 0) {
+            image = PicTechBenchPayloads.randomBytes(imageBytes);
+            // 原实现持有完整的 data URI 字符串，新实现持有原始字节并在签名时流式编码
+            legacyParams.put("ImageBase64", "data:image/jpeg;base64," + Base64.getEncoder().encodeToString(image));
+            params.put("ImageBase64", PicTechBase64Source.ofBytes(image, "image/jpeg"));
+        }
+        signer = PicTechSigner.forSecret(PicTechBenchPayloads.SECRET_KEY);
+    }
+
+    @Benchmark
+    public String legacy() throws Exception {
+        return PicTechLegacy.generateSignature(legacyParams, PicTechBenchPayloads.SECRET_KEY);
+    }
+
+    @Benchmark
+    public String signer() {
+        return signer.sign(params);
+    }
+
+    @Benchmark
+    public String signerBinary() {
+        if (image != null) {
+            params.put("ImageBase64", PicTechBase64Source.ofBytes(image, "image/jpeg"));
+        }
+        return signer.signBinary(params);
+    }
+}
@@ -0,0 +1,216 @@
+package com.pictech;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按接口自适应的并发限制器 (AIMD + 延迟梯度)
+ *
+ * 每个接口 (resize / crop / watermark / OCR / inpaint) 维护一个独立的在途请求窗口：
+ *   - 短期平滑 RTT 不超过长期 RTT 基线的 tolerance 倍：窗口加性增长 (每个 RTT 约 +1)
+ *   - 短期 RTT 明显高于基线 (排队)：窗口按 RTT 梯度缓慢收缩
+ *   - 429 / 503 / 5xx / 网络异常：窗口乘性减少 (每个 RTT 最多减少一次，避免过度收缩)
+ * 这样窗口会自动贴近接口能承受的最大吞吐，而不需要为每个接口手工调一个固定并发数。
+ *
+ * 可通过系统属性调整：
+ *   -Dpictech.limiter.initial=8  初始窗口
+ *   -Dpictech.limiter.max=256    窗口上限
+ */
+public final class PicTechAdaptiveLimiter {
+
+    private static final ConcurrentHashMap<String, PicTechAdaptiveLimiter> REGISTRY = new ConcurrentHashMap<>();
+
+    /** 乘性减少系数 */
+    private static final double BACKOFF_RATIO = 0.7;
+    /** 短期 RTT 超过基线 * TOLERANCE 视为开始排队 */
+    private static final double TOLERANCE = 2.0;
+    /** 短期 RTT 平滑系数：单个长尾请求不足以触发收缩，持续变慢才会 */
+    private static final double SHORT_SMOOTHING = 0.1;
+    /** 长期 RTT 基线平滑系数 (约最近 50 个请求)，服务端处理耗时整体变化时基线随之移动 */
+    private static final double LONG_SMOOTHING = 0.02;
+
+    private final String endpoint;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final ArrayDeque<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private long lastRtt;
+    private double shortRtt;
+    private double longRtt;
+    private long lastDecrease;
+
+    public PicTechAdaptiveLimiter(String endpoint, int initialLimit, int minLimit, int maxLimit) {
+        this.endpoint = endpoint;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    /**
+     * 获取某个接口的全局限制器
+     */
+    public static PicTechAdaptiveLimiter forEndpoint(String endpoint) {
+        return REGISTRY.computeIfAbsent(endpoint, name -> new PicTechAdaptiveLimiter(name,
+                Integer.getInteger("pictech.limiter.initial", 8), 1,
+                Integer.getInteger("pictech.limiter.max", 256)));
+    }
+
+    /**
+     * 当前所有接口的并发上限 (指标输出用)
+     */
+    public static Map<String, Integer> limits() {
+        Map<String, Integer> result = new TreeMap<>();
+        REGISTRY.forEach((name, limiter) -> result.put(name, limiter.getLimit()));
+        return result;
+    }
+
+    static Map<String, PicTechAdaptiveLimiter> registry() {
+        return REGISTRY;
+    }
+
+    /**
+     * 申请一个在途名额；窗口已满时返回的 Future 会在有名额释放后完成
+     */
+    public CompletableFuture<Permit> acquire() {
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(new Permit());
+            }
+            CompletableFuture<Permit> waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            return waiter;
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return waiters.size();
+    }
+
+    public String endpoint() {
+        return endpoint;
+    }
+
+    /**
+     * 一个在途名额，请求结束时必须调用 release 归还 (重复调用只生效一次)
+     */
+    public final class Permit {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit() {
+        }
+
+        /**
+         * @param statusCode HTTP 状态码；网络异常 / 超时传 -1
+         * @param rttNanos   从发出请求到收完响应的耗时
+         */
+        public void release(int statusCode, long rttNanos) {
+            if (released.compareAndSet(false, true)) {
+                onComplete(statusCode, rttNanos);
+            }
+        }
+
+        /**
+         * 请求未真正发出 (例如被取消)，归还名额但不参与窗口调整
+         */
+        public void cancel() {
+            if (released.compareAndSet(false, true)) {
+                onComplete(0, 0);
+            }
+        }
+    }
+
+    private void onComplete(int statusCode, long rttNanos) {
+        List<CompletableFuture<Permit>> granted;
+        synchronized (this) {
+            inFlight--;
+            if (rttNanos > 0) {
+                adjust(statusCode, rttNanos);
+            }
+            granted = drain();
+        }
+        for (CompletableFuture<Permit> waiter : granted) {
+            if (!waiter.complete(new Permit())) {
+                // 等待者已被取消，名额退回
+                onComplete(0, 0);
+            }
+        }
+    }
+
+    /**
+     * 根据一次请求的结果调整窗口 (调用方持有锁)
+     */
+    private void adjust(int statusCode, long rttNanos) {
+        long now = System.nanoTime();
+        boolean throttled = statusCode == 429 || statusCode >= 500 || statusCode < 0;
+        if (throttled) {
+            decrease(now, BACKOFF_RATIO);
+            return;
+        }
+        if (statusCode >= 400) {
+            // 参数 / 鉴权错误与负载无关，不参与调整
+            return;
+        }
+
+        lastRtt = rttNanos;
+        shortRtt = shortRtt == 0 ? rttNanos : shortRtt + (rttNanos - shortRtt) * SHORT_SMOOTHING;
+        longRtt = longRtt == 0 ? rttNanos : longRtt + (rttNanos - longRtt) * LONG_SMOOTHING;
+
+        if (shortRtt > longRtt * TOLERANCE) {
+            // 延迟梯度：短期 RTT 越接近基线 * TOLERANCE 收缩越少
+            double gradient = Math.max(0.5, longRtt * TOLERANCE / shortRtt);
+            decrease(now, 0.5 + gradient / 2);
+        } else if (inFlight + 1 >= limit / 2) {
+            // 只有窗口确实被用到一半以上时才增长，避免空闲时窗口无限膨胀
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    private void decrease(long now, double ratio) {
+        // 同一个 RTT 内只收缩一次
+        if (now - lastDecrease < Math.max(lastRtt, TimeUnit.MILLISECONDS.toNanos(10))) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * ratio);
+    }
+
+    /**
+     * 在窗口允许的范围内唤醒等待者 (调用方持有锁)
+     */
+    private List<CompletableFuture<Permit>> drain() {
+        List<CompletableFuture<Permit>> granted = new ArrayList<>();
+        while (!waiters.isEmpty() && inFlight < (int) limit) {
+            CompletableFuture<Permit> waiter = waiters.poll();
+            if (waiter.isDone()) {
+                continue;
+            }
+            inFlight++;
+            granted.add(waiter);
+        }
+        return granted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s[limit=%d, inFlight=%d, queued=%d, rtt=%.1fms]", endpoint, (int) limit, inFlight,
+                waiters.size(), longRtt / 1e6);
+    }
+}
@@ -1,24 +1,18 @@
 package com.pictech;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
-import java.util.Base64;
+import java.nio.file.Path;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PicTechApiTest {
 
     // ================= 配置区域 =================
-    private static final String API_HOST = "https://www.pictech.top/pictech/commonapi";
+    private static final String API_HOST = System.getProperty("pictech.api.host", "https://www.pictech.top/pictech/commonapi");
     // 使用一张公网图片作为测试源
     private static final String TEST_IMAGE_URL = "https://pictech.top/pctccloud/pictechcc-translate/1769184000000/atlas50696a9ea89e4456898a0c6d3393792f/bac35d1fe8904961a0c7478d36fa8eb6_source_Chinese.jpeg";
 
@@ -26,10 +20,13 @@ public class PicTechApiTest {
     private static final String ACCOUNT_ID = "your_ACCOUNT_ID";
     private static final String SECRET_KEY = "your_SECRET_KEY";
     // ===========================================
-    // 全局 HTTP 客户端
-    private static final HttpClient client = HttpClient.newBuilder()
-            .connectTimeout(Duration.ofSeconds(15))
-            .build();
+    // 全局共享的 HTTP 引擎 (连接池 / HTTP/2 复用)
+    private static final PicTechHttpEngine engine = PicTechHttpEngine.shared();
+    private static final PicTechResilience resilience = PicTechResilience.defaults();
+    // 相同源图 + 参数的结果缓存 (-Dpictech.resultCache.enabled=false 关闭)
+    private static final PicTechResultCache resultCache = PicTechResultCache.shared();
+    // resize / crop 的本地执行引擎
+    private static final PicTechLocalTools localTools = PicTechLocalTools.shared();
 
     public static void main(String[] args) {
         System.out.println("开始执行 Java 版 API 测试用例...\n");
@@ -41,6 +38,14 @@ public class PicTechApiTest {
         testCropCenter();         // 用例 5: 裁剪图片
         testWatermarkCorners();   // 用例 6: 四角水印
         testResizeWidthOnly();    // 用例 7: 仅指定宽度缩放
+        testPipeline();           // 用例 8: 缩放 -> 水印 -> 裁剪 流水线
+
+        if (resultCache != null) {
+            System.out.println("\n结果缓存: " + resultCache.stats());
+        }
+        System.out.println("请求合并: " + PicTechResultCache.inFlight());
+        System.out.println("本地执行: " + localTools);
+        System.out.print("接口指标:\n" + PicTechMetrics.snapshot());
     }
 
     // ==========================================
@@ -171,6 +176,28 @@ public class PicTechApiTest {
     }
 
 
+    // ==========================================
+    // 测试用例 8: 多步流水线 (Resize -> Watermark -> Crop)
+    // ==========================================
+    public static void testPipeline() {
+        System.out.println("\n--- 测试用例 8: 缩放 50% -> 右下角水印 -> 裁剪 300x200 (流水线) ---");
+        try {
+            // 每一步按 -Dpictech.tools.mode 决定本地还是服务端执行 (默认全部走服务端)；
+            // 本地执行的相邻缩放 / 裁剪合并执行，中间结果留在内存中，只在调用服务端和最后保存时编码
+            PicTechPipeline.Report report = PicTechPipeline.from(TEST_IMAGE_URL)
+                    .resize("Scale", 0.5)
+                    .watermark("TemplateKey", "single_subtle_light", "Text", "PicTech © 2026")
+                    .crop("X", 0, "Y", 0, "Width", 300, "Height", 200)
+                    .save(Path.of("result_8_pipeline.jpg"), "JPEG", 90);
+            report.print();
+            System.out.println("✅ [result_8_pipeline.jpg] 图片已保存 ("
+                    + report.image().getWidth() + "x" + report.image().getHeight() + ")");
+        } catch (Exception e) {
+            System.out.println("请求失败: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
     // =================================================================
     // 核心辅助方法
     // =================================================================
@@ -180,19 +207,22 @@ public class PicTechApiTest {
      */
     private static void sendRequestAndSave(String url, Map<String, Object> payload, String filename) {
         try {
-            // 1. 生成签名
-            String signature = generateSignature(payload, SECRET_KEY);
-            payload.put("Signature", signature);
-
-            // 2. 发送 POST 请求
-            HttpResponse<String> response = postJsonWithResponse(url, payload);
-            System.out.println("状态码: " + response.statusCode());
-
-            if (response.statusCode() == 200) {
-                // 3. 保存结果
-                saveResultImage(response.body(), filename);
+            // 1. 签名并发送 POST 请求 (失败自动重试，每次尝试重新签名；响应中的 Base64 边接收边解码写入文件)
+            //    相同源图 + 参数的结果直接从本地结果缓存写出，并发的相同请求只发送一次
+            //    -Dpictech.tools.mode=auto / local 时 resize / crop 优先在本地执行，不经过网络 (默认走服务端)
+            String endpoint = url.substring(API_HOST.length() + 1);
+            PicTechResultCache.Loader loader = () -> localTools.run(endpoint, payload, Path.of(filename),
+                    () -> postJsonToFile(url, payload, Path.of(filename)));
+            PicTechBase64FileHandler.Result result = resultCache == null
+                    ? PicTechResultCache.coalesce(endpoint, payload, Path.of(filename), loader)
+                    : resultCache.fetch(endpoint, payload, Path.of(filename), loader);
+            System.out.println("状态码: " + result.statusCode());
+
+            if (result.statusCode() == 200) {
+                // 2. 保存结果
+                saveResultImage(result, filename);
             } else {
-                System.out.println("错误: " + response.body());
+                System.out.println("错误: " + result.envelope());
             }
 
         } catch (Exception e) {
@@ -202,101 +232,82 @@ public class PicTechApiTest {
     }
 
     /**
-     * 生成 API 请求签名 (HMAC-SHA256)
-     * 逻辑对应 Python 的 generate_signature
+     * 调用 /tools/* 接口并把结果图片写入 target (供批量任务等复用，不经过结果缓存)
+     *
+     * @param endpoint "tools/resize" / "tools/crop" / "tools/watermark"
      */
-    private static String generateSignature(Map<String, Object> params, String secretKey) throws Exception {
-        // 1. 过滤空值 (Python代码中: if v is not None and v != '')
-        // TreeMap 已自动按 Key 升序排列
-        String paramString = params.entrySet().stream()
-                .filter(e -> e.getValue() != null && !e.getValue().toString().isEmpty())
-                .map(e -> e.getKey() + "=" + e.getValue())
-                .collect(Collectors.joining("&"));
-
-        // 2. 拼接 SecretKey
-        String signString = paramString + "&SecretKey=" + secretKey;
-
-        // 3. 计算 HMAC-SHA256
-        Mac hmacSha256 = Mac.getInstance("HmacSHA256");
-        hmacSha256.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
-        byte[] hash = hmacSha256.doFinal(signString.getBytes(StandardCharsets.UTF_8));
-
-        // 4. Base64 编码
-        return Base64.getEncoder().encodeToString(hash);
+    public static PicTechBase64FileHandler.Result callTool(String endpoint, Map<String, Object> payload, Path target)
+            throws IOException, InterruptedException {
+        payload.putIfAbsent("AccountId", ACCOUNT_ID);
+        payload.putIfAbsent("Timestamp", String.valueOf(System.currentTimeMillis()));
+        return postJsonToFile(API_HOST + "/" + endpoint, payload, target);
     }
 
     /**
-     * 将返回的 Base64 保存为图片
-     * 逻辑对应 Python 的 save_result_image
+     * 生成 API 请求签名 (HMAC-SHA256)，同时刷新 Timestamp
+     * 逻辑对应 Python 的 generate_signature
      */
-    private static void saveResultImage(String jsonResponse, String filename) {
-        try {
-            // 简易解析 JSON 获取 Base64 字段 (为了不依赖 Gson/Jackson)
-            // 查找 "Base64":"..."
-            String searchKey = "\"Base64\"";
-            int idx = jsonResponse.indexOf(searchKey);
-
-            if (idx == -1) {
-                System.out.println("❌ [" + filename + "] 保存失败: 返回数据中没有Base64");
-                return;
-            }
-
-            // 定位 value 的引号位置
-            int startQuote = jsonResponse.indexOf("\"", idx + searchKey.length() + 1);
-            int endQuote = jsonResponse.indexOf("\"", startQuote + 1);
-
-            if (startQuote == -1 || endQuote == -1) {
-                System.out.println("❌ [" + filename + "] 保存失败: 解析错误");
-                return;
-            }
-
-            String b64Str = jsonResponse.substring(startQuote + 1, endQuote);
-
-            // 去掉 data:image/jpeg;base64, 前缀 (如果存在)
-            if (b64Str.contains(",")) {
-                b64Str = b64Str.split(",")[1];
-            }
-
-            // 解码并保存文件
-            byte[] imgData = Base64.getDecoder().decode(b64Str);
-            try (FileOutputStream fos = new FileOutputStream(filename)) {
-                fos.write(imgData);
-            }
-
-            // 尝试获取宽高用于打印 (简单字符串截取)
-            String info = "(尺寸未知)";
-            if (jsonResponse.contains("\"Width\"") && jsonResponse.contains("\"Height\"")) {
-                // 仅作演示，实际请用 JSON 库解析
-                info = "(图片已生成)";
-            }
+    private static void signRequest(Map<String, Object> params, String secretKey) {
+        PicTechSigner.forSecret(secretKey).refresh(params);
+    }
 
-            System.out.println("✅ [" + filename + "] 图片已保存 " + info);
+    /**
+     * 输出图片保存结果
+     * Base64 已在接收响应时由 PicTechBase64FileHandler 解码并原子写入文件，
+     * 这里只根据剩余的 JSON 字段打印信息
+     */
+    private static void saveResultImage(PicTechBase64FileHandler.Result result, String filename) {
+        if (!result.saved()) {
+            System.out.println("❌ [" + filename + "] 保存失败: 返回数据中没有Base64");
+            return;
+        }
 
-        } catch (Exception e) {
-            System.out.println("❌ [" + filename + "] 保存异常: " + e.getMessage());
+        // 从剩余的 JSON 字段中解析宽高用于打印
+        PicTechToolResult meta = PicTechToolResult.parse(result.envelope());
+        String info = "(尺寸未知)";
+        if (meta.width() > 0 && meta.height() > 0) {
+            info = "(" + meta.width() + "x" + meta.height() + ")";
         }
+
+        System.out.println("✅ [" + filename + "] 图片已保存 " + info);
     }
 
     /**
      * 发送 POST 请求并返回响应体字符串
      */
     private static String postJson(String url, Map<String, Object> payload) throws IOException, InterruptedException {
-        return postJsonWithResponse(url, payload).body();
+        return postJsonWithResponse(url, payload, HttpResponse.BodyHandlers.ofString()).body();
     }
 
     /**
-     * 发送 POST 请求并返回完整响应对象
+     * 签名并发送 POST 请求，响应中的 Base64 图片写入 target
+     * 对冲时两份响应各自写临时文件，只有被采用的那份替换 target
      */
-    private static HttpResponse<String> postJsonWithResponse(String url, Map<String, Object> payload) throws IOException, InterruptedException {
-        String jsonBody = buildJson(payload);
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonBody, StandardCharsets.UTF_8))
-                .build();
+    private static PicTechBase64FileHandler.Result postJsonToFile(String url, Map<String, Object> payload, Path target)
+            throws IOException, InterruptedException {
+        try (PicTechBase64FileHandler.Pending pending = postJsonWithResponse(url, payload, PicTechBase64FileHandler.deferred(target)).body()) {
+            return pending.commit();
+        }
+    }
 
-        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    /**
+     * 签名并发送 POST 请求，返回完整响应对象
+     * /tools/* 接口是幂等的：失败按退避重试，慢请求可对冲，每次尝试都刷新 Timestamp 并重新签名
+     * 每次尝试签名一份独立的参数副本：对冲请求在调度线程上构造，不能改动调用方的 payload
+     */
+    private static <T> HttpResponse<T> postJsonWithResponse(String url, Map<String, Object> payload,
+                                                            HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        AtomicReference<Map<String, Object>> previous = new AtomicReference<>(payload);
+        return resilience.send(url.substring(API_HOST.length() + 1), PicTechResilience.Kind.HEDGEABLE, attempt -> {
+            // 从上一次尝试的副本复制，Timestamp 在其基础上递增
+            Map<String, Object> params = new TreeMap<>(previous.get());
+            signRequest(params, SECRET_KEY);
+            previous.set(params);
+            return engine.newRequest(url)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(buildJson(params), StandardCharsets.UTF_8))
+                    .build();
+        }, bodyHandler);
     }
 
     /**
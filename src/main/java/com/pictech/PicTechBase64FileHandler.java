@@ -0,0 +1,584 @@
+package com.pictech;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * 流式响应解析：边接收边把 JSON 中的 "Base64" 字段解码写入磁盘
+ *
+ * 响应字节到达时逐字节扫描，找到 "Base64" 的值后去掉 data:...; 前缀，
+ * 按 4 字符一组增量解码并写入同目录下的临时文件，完成后原子重命名为目标文件。
+ * 图片数据不会完整驻留在堆上，磁盘写入与网络传输同时进行。
+ * 其余 JSON 字段 (Code / Width / Height / RequestId 等) 保留在 envelope 中，Base64 的值被替换为空字符串。
+ *
+ * 对冲 / 重试时同一个目标文件可能有多份响应在接收，这时使用 deferred(target)：
+ * 每份响应各写各的临时文件，只有被采用的那份 commit() 到目标文件，落败方被丢弃时删除临时文件。
+ */
+public final class PicTechBase64FileHandler implements HttpResponse.BodyHandler<PicTechBase64FileHandler.Result> {
+
+    /** envelope 最多保留的字节数，防止异常响应撑爆内存 */
+    private static final int MAX_ENVELOPE = 256 * 1024;
+    /** 解码缓冲区大小 (必须是 4 的倍数) */
+    private static final int DECODE_CHUNK = 64 * 1024;
+
+    private static final byte[] DECODE_TABLE = new byte[256];
+
+    static {
+        Arrays.fill(DECODE_TABLE, (byte) -1);
+        byte[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < alphabet.length; i++) {
+            DECODE_TABLE[alphabet[i]] = (byte) i;
+        }
+        // 同时兼容 URL 安全字符集
+        DECODE_TABLE['-'] = 62;
+        DECODE_TABLE['_'] = 63;
+    }
+
+    private final Path target;
+    private final String fieldName;
+    private final boolean deferred;
+
+    public PicTechBase64FileHandler(Path target) {
+        this(target, "Base64");
+    }
+
+    public PicTechBase64FileHandler(Path target, String fieldName) {
+        this(target, fieldName, false);
+    }
+
+    private PicTechBase64FileHandler(Path target, String fieldName, boolean deferred) {
+        this.target = target;
+        this.fieldName = fieldName;
+        this.deferred = deferred;
+    }
+
+    /**
+     * 图片留在临时文件中、由调用方 commit() 到 target 的处理器 (用于可能对冲的请求)
+     * 每次发送使用一个新的处理器：其中一份结果提交后，同一处理器的其余结果 (包括之后才收完的) 都被删除
+     */
+    public static HttpResponse.BodyHandler<Pending> deferred(Path target) {
+        return new Deferred(new PicTechBase64FileHandler(target, "Base64", true), target);
+    }
+
+    /**
+     * 记录同一次发送的所有结果：落败的响应可能在被取消的同时收完，结果没有交付给任何人，只能在这里清理
+     */
+    private static final class Deferred implements HttpResponse.BodyHandler<Pending> {
+        private final PicTechBase64FileHandler handler;
+        private final Path target;
+        private final List<Pending> results = new ArrayList<>(2);
+        private boolean committed;
+
+        Deferred(PicTechBase64FileHandler handler, Path target) {
+            this.handler = handler;
+            this.target = target;
+        }
+
+        @Override
+        public HttpResponse.BodySubscriber<Pending> apply(HttpResponse.ResponseInfo responseInfo) {
+            return HttpResponse.BodySubscribers.mapping(handler.apply(responseInfo), result -> {
+                Pending pending = new Pending(result, target, this);
+                boolean late;
+                synchronized (this) {
+                    late = committed;
+                    if (!late) {
+                        results.add(pending);
+                    }
+                }
+                if (late) {
+                    pending.closeQuietly();
+                }
+                return pending;
+            });
+        }
+
+        void committed(Pending winner) {
+            List<Pending> losers;
+            synchronized (this) {
+                committed = true;
+                losers = new ArrayList<>(results);
+                results.clear();
+            }
+            for (Pending pending : losers) {
+                if (pending != winner) {
+                    pending.closeQuietly();
+                }
+            }
+        }
+    }
+
+    @Override
+    public HttpResponse.BodySubscriber<Result> apply(HttpResponse.ResponseInfo responseInfo) {
+        int status = responseInfo.statusCode();
+        if (status != 200) {
+            // 错误响应通常很小，直接按字符串读取
+            return HttpResponse.BodySubscribers.mapping(
+                    HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8),
+                    body -> new Result(status, null, 0, body));
+        }
+        return new DecodingSubscriber(status, target, fieldName.getBytes(StandardCharsets.UTF_8), deferred);
+    }
+
+    /**
+     * 解析结果
+     *
+     * @param statusCode   HTTP 状态码
+     * @param file         已保存的文件；响应中没有 Base64 字段时为 null
+     * @param decodedBytes 写入磁盘的字节数
+     * @param envelope     除 Base64 值以外的 JSON 文本
+     */
+    public record Result(int statusCode, Path file, long decodedBytes, String envelope) {
+
+        public boolean saved() {
+            return file != null;
+        }
+    }
+
+    /**
+     * 尚未提交的结果：图片在临时文件中 (result().file())，commit() 后才替换目标文件
+     * 未提交就 close() (如被 PicTechResilience 丢弃的对冲落败方) 时删除临时文件
+     */
+    public static final class Pending implements AutoCloseable {
+        private final Result result;
+        private final Path target;
+        private final Deferred owner;
+        private boolean committed;
+
+        private Pending(Result result, Path target, Deferred owner) {
+            this.result = result;
+            this.target = target;
+            this.owner = owner;
+        }
+
+        public Result result() {
+            return result;
+        }
+
+        /**
+         * 把临时文件原子替换为目标文件，返回指向目标文件的结果
+         */
+        public synchronized Result commit() throws IOException {
+            if (!result.saved()) {
+                return result;
+            }
+            if (!committed) {
+                moveAtomically(result.file(), target);
+                committed = true;
+                owner.committed(this);
+            }
+            return new Result(result.statusCode(), target, result.decodedBytes(), result.envelope());
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (result.saved() && !committed) {
+                Files.deleteIfExists(result.file());
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException ignored) {
+                // 删除失败只留下一个 .part 文件，不影响结果
+            }
+        }
+    }
+
+    // ================= 扫描状态机 =================
+
+    private static final int SCAN = 0;            // 普通 JSON 内容
+    private static final int SCAN_STRING = 1;     // 普通字符串内部
+    private static final int SCAN_ESCAPE = 2;     // 普通字符串内的转义
+    private static final int AFTER_KEY = 3;       // 刚读完 "Base64"，等待冒号
+    private static final int AFTER_COLON = 4;     // 等待值的起始引号
+    private static final int VALUE = 5;           // Base64 值内部
+    private static final int VALUE_ESCAPE = 6;    // Base64 值内的转义
+    private static final int VALUE_UNICODE = 7;   // Base64 值内的 \\uXXXX
+    private static final int VALUE_PREFIX = 8;    // 跳过 data:...; 前缀直到逗号
+
+    private static final class DecodingSubscriber implements HttpResponse.BodySubscriber<Result> {
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+        private final int status;
+        private final Path target;
+        private final byte[] key;
+        /** 完成时不移动到 target，结果指向临时文件 */
+        private final boolean deferred;
+
+        private final ByteArrayOutputStream envelope = new ByteArrayOutputStream();
+        private final byte[] keyProbe;
+        private int keyProbeLen;
+        private boolean keyProbeOverflow;
+
+        private final byte[] quads = new byte[DECODE_CHUNK];
+        private final byte[] decoded = new byte[DECODE_CHUNK / 4 * 3];
+        private int quadLen;
+        private final byte[] lookahead = new byte[5];
+        private int lookaheadLen;
+        private int unicodeValue;
+        private int unicodeDigits;
+
+        private int state = SCAN;
+        private boolean valueDone;
+        private Flow.Subscription subscription;
+        private Path tempFile;
+        private FileChannel channel;
+        private long written;
+        /** 写盘累计耗时，用于从解析耗时中扣除 */
+        private long writeNanos;
+
+        DecodingSubscriber(int status, Path target, byte[] key, boolean deferred) {
+            this.status = status;
+            this.target = target;
+            this.key = key;
+            this.deferred = deferred;
+            this.keyProbe = new byte[key.length];
+        }
+
+        @Override
+        public CompletionStage<Result> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            PicTechFlightRecorder.Trace trace = PicTechFlightRecorder.current();
+            long start = trace == null ? 0 : System.nanoTime();
+            long writesBefore = writeNanos;
+            try {
+                for (ByteBuffer item : items) {
+                    while (item.hasRemaining()) {
+                        accept(item.get());
+                    }
+                }
+                if (trace != null) {
+                    long writes = writeNanos - writesBefore;
+                    trace.writeNanos += writes;
+                    trace.decodeNanos += System.nanoTime() - start - writes;
+                }
+                subscription.request(1);
+            } catch (IOException | RuntimeException e) {
+                subscription.cancel();
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            fail(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            try {
+                if (state == VALUE || state == VALUE_ESCAPE || state == VALUE_UNICODE || state == VALUE_PREFIX) {
+                    throw new IOException("响应在 Base64 字段中途结束");
+                }
+                Path saved = null;
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                    if (deferred) {
+                        saved = tempFile;
+                    } else {
+                        moveAtomically(tempFile, target);
+                        saved = target;
+                    }
+                }
+                result.complete(new Result(status, saved, written, envelope.toString(StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Throwable t) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                if (tempFile != null) {
+                    Files.deleteIfExists(tempFile);
+                }
+            } catch (IOException ignored) {
+                // 清理失败不覆盖原始异常
+            }
+            result.completeExceptionally(t);
+        }
+
+        /**
+         * 处理单个字节
+         */
+        private void accept(byte b) throws IOException {
+            switch (state) {
+                case SCAN:
+                    record(b);
+                    if (b == '"') {
+                        keyProbeLen = 0;
+                        keyProbeOverflow = false;
+                        state = SCAN_STRING;
+                    }
+                    break;
+                case AFTER_KEY:
+                    record(b);
+                    if (b == ':') {
+                        state = AFTER_COLON;
+                    } else if (!isWhitespace(b)) {
+                        state = SCAN;
+                    }
+                    break;
+                case AFTER_COLON:
+                    record(b);
+                    if (b == '"') {
+                        openValue();
+                    } else if (!isWhitespace(b)) {
+                        // 值不是字符串 (例如 null)，按普通内容继续扫描
+                        state = SCAN;
+                    }
+                    break;
+                case VALUE:
+                    acceptValue(b);
+                    break;
+                case VALUE_ESCAPE:
+                    if (b == 'u') {
+                        unicodeValue = 0;
+                        unicodeDigits = 0;
+                        state = VALUE_UNICODE;
+                    } else {
+                        state = VALUE;
+                        if (b == '/' || b == '\\') {
+                            acceptValueChar(b);
+                        }
+                        // \n \r \t 等换行转义直接忽略
+                    }
+                    break;
+                case VALUE_UNICODE:
+                    unicodeValue = unicodeValue << 4 | Character.digit(b, 16);
+                    if (++unicodeDigits == 4) {
+                        state = VALUE;
+                        if (unicodeValue < 0x80) {
+                            acceptValueChar((byte) unicodeValue);
+                        }
+                    }
+                    break;
+                case VALUE_PREFIX:
+                    if (b == ',') {
+                        state = VALUE;
+                    } else if (b == '"') {
+                        closeValue();
+                    }
+                    break;
+                default:
+                    acceptScanString(b);
+            }
+        }
+
+        /**
+         * 普通字符串内部：记录内容并探测是否为目标 key
+         */
+        private void acceptScanString(byte b) {
+            record(b);
+            if (state == SCAN_ESCAPE) {
+                keyProbeOverflow = true; // 带转义的字符串不可能是目标 key
+                state = SCAN_STRING;
+                return;
+            }
+            if (b == '\\') {
+                state = SCAN_ESCAPE;
+            } else if (b == '"') {
+                // 只解码第一次出现的目标字段
+                boolean isKey = !valueDone && !keyProbeOverflow && keyProbeLen == key.length
+                        && Arrays.equals(keyProbe, 0, keyProbeLen, key, 0, key.length);
+                state = isKey ? AFTER_KEY : SCAN;
+            } else if (keyProbeLen < keyProbe.length) {
+                keyProbe[keyProbeLen++] = b;
+            } else {
+                keyProbeOverflow = true;
+            }
+        }
+
+        private void openValue() throws IOException {
+            state = VALUE;
+            lookaheadLen = 0;
+            quadLen = 0;
+            tempFile = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", ".part");
+            channel = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        private void closeValue() throws IOException {
+            // 值太短 (不足 5 个字符) 时，预读的字符还没有送入解码器
+            if (lookaheadLen > 0 && lookaheadLen < lookahead.length) {
+                for (int i = 0; i < lookaheadLen; i++) {
+                    pushQuad(lookahead[i]);
+                }
+                lookaheadLen = lookahead.length;
+            }
+            flushQuads(true);
+            record((byte) '"');
+            valueDone = true;
+            state = SCAN;
+        }
+
+        private void acceptValue(byte b) throws IOException {
+            if (b == '"') {
+                closeValue();
+            } else if (b == '\\') {
+                state = VALUE_ESCAPE;
+            } else {
+                acceptValueChar(b);
+            }
+        }
+
+        /**
+         * 值中的有效字符：前 5 个字符用于识别 data: 前缀，其后直接送入解码器
+         */
+        private void acceptValueChar(byte b) throws IOException {
+            if (lookaheadLen < lookahead.length) {
+                lookahead[lookaheadLen++] = b;
+                if (lookaheadLen == lookahead.length) {
+                    if (lookahead[0] == 'd' && lookahead[1] == 'a' && lookahead[2] == 't' && lookahead[3] == 'a' && lookahead[4] == ':') {
+                        state = VALUE_PREFIX;
+                    } else {
+                        for (byte c : lookahead) {
+                            pushQuad(c);
+                        }
+                    }
+                }
+                return;
+            }
+            pushQuad(b);
+        }
+
+        private void pushQuad(byte c) throws IOException {
+            if (isWhitespace(c)) {
+                return;
+            }
+            quads[quadLen++] = c;
+            if (quadLen == quads.length) {
+                flushQuads(false);
+            }
+        }
+
+        /**
+         * 解码缓冲区中的完整 4 字符组并写入文件
+         */
+        private void flushQuads(boolean last) throws IOException {
+            int out = 0;
+            int i = 0;
+            while (i + 4 <= quadLen) {
+                int c0 = decode(quads[i]);
+                int c1 = decode(quads[i + 1]);
+                int bits = c0 << 18 | c1 << 12;
+                if (quads[i + 2] == '=') {
+                    decoded[out++] = (byte) (bits >> 16);
+                    i = quadLen;
+                    break;
+                }
+                bits |= decode(quads[i + 2]) << 6;
+                if (quads[i + 3] == '=') {
+                    decoded[out++] = (byte) (bits >> 16);
+                    decoded[out++] = (byte) (bits >> 8);
+                    i = quadLen;
+                    break;
+                }
+                bits |= decode(quads[i + 3]);
+                decoded[out++] = (byte) (bits >> 16);
+                decoded[out++] = (byte) (bits >> 8);
+                decoded[out++] = (byte) bits;
+                i += 4;
+            }
+            int tail = quadLen - i;
+            if (last && tail > 0) {
+                // 末尾省略了 '=' 填充的情况
+                if (tail == 1) {
+                    throw new IOException("Base64 数据长度不合法");
+                }
+                int bits = decode(quads[i]) << 18 | decode(quads[i + 1]) << 12;
+                decoded[out++] = (byte) (bits >> 16);
+                if (tail == 3) {
+                    bits |= decode(quads[i + 2]) << 6;
+                    decoded[out++] = (byte) (bits >> 8);
+                }
+                tail = 0;
+            }
+            long writeStart = System.nanoTime();
+            ByteBuffer buffer = ByteBuffer.wrap(decoded, 0, out);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            writeNanos += System.nanoTime() - writeStart;
+            written += out;
+            if (tail > 0) {
+                System.arraycopy(quads, quadLen - tail, quads, 0, tail);
+            }
+            quadLen = tail;
+        }
+
+        private static int decode(byte c) throws IOException {
+            int v = DECODE_TABLE[c & 0xff];
+            if (v < 0) {
+                throw new IOException("非法的 Base64 字符: " + (char) (c & 0xff));
+            }
+            return v;
+        }
+
+        private void record(byte b) {
+            if (envelope.size() < MAX_ENVELOPE) {
+                envelope.write(b);
+            }
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * 把已保存的结果复制到另一个文件 (先写临时文件再原子替换)
+     * 用于合并后的请求：一次响应对应多个调用方各自的输出文件
+     */
+    public static Result copyTo(Result result, Path target) throws IOException {
+        if (!result.saved() || result.file().toAbsolutePath().equals(target.toAbsolutePath())) {
+            return result;
+        }
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", ".part");
+        try {
+            Files.copy(result.file(), temp, StandardCopyOption.REPLACE_EXISTING);
+            moveAtomically(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return new Result(result.statusCode(), target, result.decodedBytes(), result.envelope());
+    }
+
+    /**
+     * 原子重命名；文件系统不支持时退化为普通替换
+     */
+    static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
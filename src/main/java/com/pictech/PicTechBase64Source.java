@@ -0,0 +1,535 @@
+package com.pictech;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可流式读取的 Base64 参数值 (例如 OCR 的 ImageBase64、修复接口的 image / mask)
+ *
+ * 与直接持有 Base64 字符串不同，这里只记录原始数据的来源 (文件 / 字节数组)，
+ * 在写入请求体时边读边编码，每个请求只占用固定大小的缓冲区。
+ * 可选的 MIME 类型会生成 data:{mime};base64, 前缀。
+ */
+public abstract class PicTechBase64Source {
+
+    /** 每次读取的原始字节数 (必须是 3 的倍数，保证分块编码结果可直接拼接) */
+    static final int RAW_CHUNK = 48 * 1024;
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /** 进程内唯一的编号，供 PicTechSingleFlight 按对象合并 (不会像 identityHashCode 那样重复) */
+    private final long id = SEQUENCE.incrementAndGet();
+    private final String mimeType;
+    private final byte[] prefix;
+
+    private PicTechBase64Source(String mimeType) {
+        this.mimeType = mimeType;
+        this.prefix = mimeType == null
+                ? new byte[0]
+                : ("data:" + mimeType + ";base64,").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 以文件为来源 (mimeType 为 null 时输出纯 Base64，不带 data 前缀)
+     */
+    public static PicTechBase64Source ofFile(Path path, String mimeType) {
+        return new FileSource(path, mimeType);
+    }
+
+    /**
+     * 以内存中的原始字节为来源
+     */
+    public static PicTechBase64Source ofBytes(byte[] raw, String mimeType) {
+        return new BytesSource(raw, mimeType);
+    }
+
+    /**
+     * 以内存映射的文件区域 (或任意 ByteBuffer) 为来源，每次读取使用独立的视图，可并发复用
+     */
+    public static PicTechBase64Source ofBuffer(ByteBuffer raw, String mimeType) {
+        return new BufferSource(raw, mimeType);
+    }
+
+    /**
+     * 已编码好的 ASCII Base64 (不含前缀)，发送时直接输出，不再编码
+     */
+    static PicTechBase64Source ofPreEncoded(byte[] ascii, String mimeType) {
+        return new PreEncodedSource(ascii, mimeType);
+    }
+
+    /**
+     * 兼容旧接口：调用方已经持有 Base64 字符串 (可能已包含 data 前缀)
+     */
+    public static PicTechBase64Source ofEncoded(String base64) {
+        return new EncodedSource(base64);
+    }
+
+    /**
+     * 根据文件扩展名推断 MIME 类型
+     */
+    public static String guessMimeType(String path) {
+        String lowerPath = path.toLowerCase();
+        if (lowerPath.endsWith(".png")) {
+            return "image/png";
+        } else if (lowerPath.endsWith(".bmp")) {
+            return "image/bmp";
+        } else if (lowerPath.endsWith(".gif")) {
+            return "image/gif";
+        } else if (lowerPath.endsWith(".tiff") || lowerPath.endsWith(".tif")) {
+            return "image/tiff";
+        } else if (lowerPath.endsWith(".webp")) {
+            return "image/webp";
+        }
+        return "image/jpeg";
+    }
+
+    long id() {
+        return id;
+    }
+
+    /**
+     * 原始 (未编码) 数据的字节数
+     */
+    public abstract long rawLength();
+
+    /**
+     * 编码后的总长度 (含 data 前缀)，用于计算 Content-Length
+     */
+    public long encodedLength() {
+        return prefix.length + (rawLength() + 2) / 3 * 4;
+    }
+
+    byte[] prefixBytes() {
+        return prefix;
+    }
+
+    /**
+     * MIME 类型，未指定时为 null
+     */
+    String mimeType() {
+        return mimeType;
+    }
+
+    /**
+     * 是否持有原始字节 (已编码的字符串来源没有)，只有持有原始字节的来源 (RawSource) 才能以二进制上传或在本地解码
+     */
+    final boolean hasRaw() {
+        return this instanceof RawSource;
+    }
+
+    public boolean isEmpty() {
+        return encodedLength() == 0;
+    }
+
+    /**
+     * 打开一个边读边编码的 ASCII 输入流
+     */
+    public abstract InputStream openEncodedStream() throws IOException;
+
+    /**
+     * 编码结果的分块接收者
+     */
+    interface ChunkSink {
+        void accept(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * 使用调用方提供的缓冲区逐块输出编码结果 (含 data 前缀)，不产生额外的大对象
+     * rawBuffer 长度必须是 3 的倍数，encodedBuffer 长度至少为 rawBuffer 的 4/3
+     */
+    abstract void forEachEncodedChunk(byte[] rawBuffer, byte[] encodedBuffer, ChunkSink sink) throws IOException;
+
+    /**
+     * 完整物化为字符串 (会产生整份 Base64 拷贝，仅用于兼容需要 String 的旧代码)
+     */
+    @Override
+    public String toString() {
+        try (InputStream in = openEncodedStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 将 src[off, off+len) 编码为 Base64 写入 dst，返回写入的字节数
+     * 只有最后一块允许 len 不是 3 的倍数 (会补 '=')
+     */
+    static int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int sp = off;
+        int dp = dstOff;
+        int end = off + len - len % 3;
+        while (sp < end) {
+            int bits = (src[sp++] & 0xff) << 16 | (src[sp++] & 0xff) << 8 | (src[sp++] & 0xff);
+            dst[dp++] = ALPHABET[(bits >>> 18) & 0x3f];
+            dst[dp++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[dp++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[dp++] = ALPHABET[bits & 0x3f];
+        }
+        int remaining = off + len - sp;
+        if (remaining > 0) {
+            int b0 = src[sp++] & 0xff;
+            dst[dp++] = ALPHABET[b0 >> 2];
+            if (remaining == 1) {
+                dst[dp++] = ALPHABET[(b0 << 4) & 0x3f];
+                dst[dp++] = '=';
+            } else {
+                int b1 = src[sp] & 0xff;
+                dst[dp++] = ALPHABET[(b0 << 4) & 0x3f | (b1 >> 4)];
+                dst[dp++] = ALPHABET[(b1 << 2) & 0x3f];
+            }
+            dst[dp++] = '=';
+        }
+        return dp - dstOff;
+    }
+
+    // ================= 具体来源 =================
+
+    /**
+     * 持有原始字节的来源 (文件 / 字节数组 / ByteBuffer)：只有这类来源才能打开原始数据通道
+     */
+    abstract static class RawSource extends PicTechBase64Source {
+        /** 原始数据的 SHA-256 (Base64)，首次使用时计算；来源内容在请求期间视为不变 */
+        private volatile String digest;
+
+        private RawSource(String mimeType) {
+            super(mimeType);
+        }
+
+        /**
+         * 打开原始数据通道
+         */
+        abstract ReadableByteChannel openRaw() throws IOException;
+
+        /**
+         * 原始数据的 SHA-256 摘要 (Base64)，二进制上传时代替 Base64 文本参与签名
+         * buffer 为调用方提供的读缓冲区
+         */
+        String sha256(byte[] buffer) throws IOException {
+            String value = digest;
+            if (value == null) {
+                MessageDigest md;
+                try {
+                    md = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+                try (ReadableByteChannel channel = openRaw()) {
+                    ByteBuffer raw = ByteBuffer.wrap(buffer);
+                    while (channel.read(raw.clear()) >= 0) {
+                        md.update(buffer, 0, raw.position());
+                    }
+                }
+                value = Base64.getEncoder().encodeToString(md.digest());
+                digest = value;
+            }
+            return value;
+        }
+
+        @Override
+        public InputStream openEncodedStream() throws IOException {
+            return new EncodingInputStream(prefixBytes(), openRaw());
+        }
+
+        @Override
+        void forEachEncodedChunk(byte[] rawBuffer, byte[] encodedBuffer, ChunkSink sink) throws IOException {
+            byte[] prefix = prefixBytes();
+            if (prefix.length > 0) {
+                sink.accept(prefix, 0, prefix.length);
+            }
+            try (ReadableByteChannel channel = openRaw()) {
+                ByteBuffer raw = ByteBuffer.wrap(rawBuffer);
+                boolean eof = false;
+                while (!eof) {
+                    raw.clear();
+                    while (raw.hasRemaining()) {
+                        if (channel.read(raw) < 0) {
+                            eof = true;
+                            break;
+                        }
+                    }
+                    int n = encode(rawBuffer, 0, raw.position(), encodedBuffer, 0);
+                    if (n > 0) {
+                        sink.accept(encodedBuffer, 0, n);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class FileSource extends RawSource {
+        private final Path path;
+
+        FileSource(Path path, String mimeType) {
+            super(mimeType);
+            this.path = path;
+        }
+
+        @Override
+        public long rawLength() {
+            try {
+                return Files.size(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        ReadableByteChannel openRaw() throws IOException {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+    }
+
+    private static final class BytesSource extends RawSource {
+        private final byte[] raw;
+
+        BytesSource(byte[] raw, String mimeType) {
+            super(mimeType);
+            this.raw = raw;
+        }
+
+        @Override
+        public long rawLength() {
+            return raw.length;
+        }
+
+        @Override
+        ReadableByteChannel openRaw() {
+            return Channels.newChannel(new ByteArrayInputStream(raw));
+        }
+    }
+
+    private static final class BufferSource extends RawSource {
+        private final ByteBuffer raw;
+
+        BufferSource(ByteBuffer raw, String mimeType) {
+            super(mimeType);
+            this.raw = raw.asReadOnlyBuffer();
+        }
+
+        @Override
+        public long rawLength() {
+            return raw.remaining();
+        }
+
+        @Override
+        ReadableByteChannel openRaw() {
+            ByteBuffer view = raw.duplicate();
+            return new ReadableByteChannel() {
+                private boolean open = true;
+
+                @Override
+                public int read(ByteBuffer dst) {
+                    if (!view.hasRemaining()) {
+                        return -1;
+                    }
+                    int n = Math.min(dst.remaining(), view.remaining());
+                    ByteBuffer slice = view.slice();
+                    slice.limit(n);
+                    dst.put(slice);
+                    view.position(view.position() + n);
+                    return n;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return open;
+                }
+
+                @Override
+                public void close() {
+                    open = false;
+                }
+            };
+        }
+    }
+
+    /**
+     * 预先编码好的 ASCII 字节：只在前面补上 data 前缀
+     */
+    private static final class PreEncodedSource extends PicTechBase64Source {
+        private final byte[] ascii;
+
+        PreEncodedSource(byte[] ascii, String mimeType) {
+            super(mimeType);
+            this.ascii = ascii;
+        }
+
+        @Override
+        public long rawLength() {
+            int padding = 0;
+            while (padding < 2 && ascii.length > padding && ascii[ascii.length - 1 - padding] == '=') {
+                padding++;
+            }
+            return ascii.length / 4 * 3 - padding;
+        }
+
+        @Override
+        public long encodedLength() {
+            return prefixBytes().length + ascii.length;
+        }
+
+        @Override
+        public InputStream openEncodedStream() {
+            return new SequenceInputStream(new ByteArrayInputStream(prefixBytes()), new ByteArrayInputStream(ascii));
+        }
+
+        @Override
+        void forEachEncodedChunk(byte[] rawBuffer, byte[] encodedBuffer, ChunkSink sink) {
+            byte[] prefix = prefixBytes();
+            if (prefix.length > 0) {
+                sink.accept(prefix, 0, prefix.length);
+            }
+            if (ascii.length > 0) {
+                sink.accept(ascii, 0, ascii.length);
+            }
+        }
+    }
+
+    /**
+     * 已编码的字符串：原样输出，不再二次编码
+     */
+    private static final class EncodedSource extends PicTechBase64Source {
+        private final String encoded;
+
+        EncodedSource(String encoded) {
+            super(null);
+            this.encoded = encoded;
+        }
+
+        @Override
+        public long rawLength() {
+            // 跳过可能存在的 data 前缀，按 4 字符 3 字节计算并减去补位的 '='
+            int start = encoded.startsWith("data:") ? encoded.indexOf(',') + 1 : 0;
+            int padding = 0;
+            while (padding < 2 && encoded.length() - start > padding && encoded.charAt(encoded.length() - 1 - padding) == '=') {
+                padding++;
+            }
+            return (encoded.length() - start) / 4 * 3 - padding;
+        }
+
+        @Override
+        public long encodedLength() {
+            return encoded.length();
+        }
+
+        @Override
+        public InputStream openEncodedStream() {
+            return new ByteArrayInputStream(encoded.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        void forEachEncodedChunk(byte[] rawBuffer, byte[] encodedBuffer, ChunkSink sink) {
+            // Base64 字符都是 ASCII，逐字符拷贝到缓冲区即可
+            int n = 0;
+            for (int i = 0; i < encoded.length(); i++) {
+                encodedBuffer[n++] = (byte) encoded.charAt(i);
+                if (n == encodedBuffer.length) {
+                    sink.accept(encodedBuffer, 0, n);
+                    n = 0;
+                }
+            }
+            if (n > 0) {
+                sink.accept(encodedBuffer, 0, n);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return encoded;
+        }
+    }
+
+    // ================= 边读边编码的输入流 =================
+
+    private static final class EncodingInputStream extends InputStream {
+        private final byte[] prefix;
+        private final ReadableByteChannel channel;
+        private final ByteBuffer raw = ByteBuffer.allocate(RAW_CHUNK);
+        private final byte[] encoded = new byte[RAW_CHUNK / 3 * 4];
+        private int prefixPos;
+        private int encodedPos;
+        private int encodedLimit;
+        private boolean eof;
+
+        EncodingInputStream(byte[] prefix, ReadableByteChannel channel) {
+            this.prefix = prefix;
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            // 1. 先输出 data 前缀
+            if (prefixPos < prefix.length) {
+                int n = Math.min(len, prefix.length - prefixPos);
+                System.arraycopy(prefix, prefixPos, b, off, n);
+                prefixPos += n;
+                return n;
+            }
+            // 2. 缓冲区耗尽时读取下一块原始数据并编码
+            if (encodedPos == encodedLimit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, encodedLimit - encodedPos);
+            System.arraycopy(encoded, encodedPos, b, off, n);
+            encodedPos += n;
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            // 读满一整块 (3 的倍数)，只有最后一块允许不足
+            PicTechFlightRecorder.Trace trace = PicTechFlightRecorder.current();
+            long readStart = trace == null ? 0 : System.nanoTime();
+            raw.clear();
+            while (raw.hasRemaining()) {
+                if (channel.read(raw) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            long encodeStart = trace == null ? 0 : System.nanoTime();
+            encodedPos = 0;
+            encodedLimit = encode(raw.array(), 0, raw.position(), encoded, 0);
+            if (trace != null) {
+                trace.readNanos += encodeStart - readStart;
+                trace.encodeNanos += System.nanoTime() - encodeStart;
+            }
+            return encodedLimit > 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
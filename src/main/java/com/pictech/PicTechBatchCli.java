@@ -0,0 +1,416 @@
+package com.pictech;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * 目录级批量处理命令行
+ *
+ * 用法:
+ *   java com.pictech.PicTechBatchCli <ocr|inpaint|watermark|resize|crop> <输入目录|清单文件> <输出目录>
+ *        [--concurrency N] [--rate 每秒请求数] [--mask 蒙版路径或URL] [Key=Value ...]
+ *
+ * 示例:
+ *   ... PicTechBatchCli resize ./photos ./thumbs Width=300 Mode=lfit --concurrency 16
+ *   ... PicTechBatchCli watermark urls.txt ./marked TemplateKey=pattern_diagonal_da Text=PicTech --rate 20
+ *   ... PicTechBatchCli inpaint ./scans ./clean --mask ./mask.png
+ *
+ * 输入为目录时递归处理其中的图片，输出按相对路径放在输出目录下；
+ * 输入为清单文件时每行一个本地路径或 URL (inpaint 可用 Tab 分隔第二列给出每张图的蒙版)，
+ * 输出以行号为前缀命名。OCR 的输出为同名 .json，inpaint 的输出为 .png。
+ *
+ * 每张图的结果追加到输出目录下的 manifest.ndjson (见 PicTechBatchJournal)，
+ * 中断后用同样的命令重新运行会跳过已成功的图片，只处理剩余和失败的部分。
+ * 任务边遍历边提交，同时在途的任务数不超过并发数的两倍，百万级目录也不会把任务全部堆在内存中。
+ */
+public final class PicTechBatchCli {
+
+    private static final Set<String> OPERATIONS = Set.of("ocr", "inpaint", "watermark", "resize", "crop");
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("jpg", "jpeg", "png", "bmp", "gif", "webp");
+    /** 延迟直方图: 1ms 一格，最长 10 分钟，超出的计入最后一格 */
+    private static final int HISTOGRAM_BUCKETS = 600_000;
+
+    private final String operation;
+    private final Path input;
+    private final Path outputDir;
+    private final int concurrency;
+    private final PicTechRateLimiter rateLimiter;
+    private final String mask;
+    private final Map<String, Object> params;
+
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS + 1);
+    private final LongAdder totalMillis = new LongAdder();
+
+    /**
+     * 单个待处理项
+     *
+     * @param key    写入清单的输入标识 (相对路径或清单中的原始行)
+     * @param source 本地路径或 URL
+     * @param mask   该项的蒙版 (可为 null)
+     * @param output 输出文件
+     */
+    record Item(String key, String source, String mask, Path output) {
+    }
+
+    PicTechBatchCli(String operation, Path input, Path outputDir, int concurrency, double requestsPerSecond,
+                    String mask, Map<String, Object> params) {
+        this.operation = operation;
+        this.input = input;
+        this.outputDir = outputDir;
+        this.concurrency = Math.max(1, concurrency);
+        this.rateLimiter = new PicTechRateLimiter(requestsPerSecond);
+        this.mask = mask;
+        this.params = params;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || !OPERATIONS.contains(args[0])) {
+            System.out.println("用法: PicTechBatchCli <ocr|inpaint|watermark|resize|crop> <输入目录|清单文件> <输出目录>");
+            System.out.println("      [--concurrency N] [--rate 每秒请求数] [--mask 蒙版] [Key=Value ...]");
+            System.exit(2);
+        }
+        int concurrency = Runtime.getRuntime().availableProcessors() * 2;
+        double rate = 0;
+        String mask = null;
+        Map<String, Object> params = new TreeMap<>();
+        for (int i = 3; i < args.length; i++) {
+            switch (args[i]) {
+                case "--concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                case "--rate" -> rate = Double.parseDouble(args[++i]);
+                case "--mask" -> mask = args[++i];
+                default -> {
+                    int eq = args[i].indexOf('=');
+                    if (eq <= 0) {
+                        System.out.println("无法识别的参数: " + args[i]);
+                        System.exit(2);
+                    }
+                    params.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+                }
+            }
+        }
+        if (args[0].equals("inpaint") && mask == null && Files.isDirectory(Path.of(args[1]))) {
+            System.out.println("inpaint 需要 --mask，或在清单文件中用 Tab 分隔给出每张图的蒙版");
+            System.exit(2);
+        }
+        PicTechBatchCli cli = new PicTechBatchCli(args[0], Path.of(args[1]), Path.of(args[2]), concurrency, rate, mask, params);
+        System.exit(cli.run() == 0 ? 0 : 1);
+    }
+
+    /**
+     * 执行整批任务，返回失败数
+     */
+    long run() throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+        long total = count();
+        PicTechBatchJournal journal = new PicTechBatchJournal(outputDir.resolve("manifest.ndjson"), 1024, 200);
+        if (journal.previousLines() > 0) {
+            System.out.printf("📒 续跑: 清单中已有 %d 条记录，%d 张已成功%n", journal.previousLines(), journal.completedCount());
+        }
+        // Ctrl+C 时也把已完成的记录写入清单
+        Thread flushOnExit = new Thread(() -> closeQuietly(journal));
+        Runtime.getRuntime().addShutdownHook(flushOnExit);
+
+        AtomicInteger index = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "pictech-batch-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore inFlight = new Semaphore(concurrency * 2);
+        long start = System.nanoTime();
+        Thread progress = startProgress(total, start);
+
+        try (Stream<Item> items = items()) {
+            Iterator<Item> it = items.iterator();
+            while (it.hasNext()) {
+                Item item = it.next();
+                if (journal.isCompleted(item.key())) {
+                    skipped.increment();
+                    continue;
+                }
+                inFlight.acquire();
+                rateLimiter.acquire();
+                executor.execute(() -> {
+                    try {
+                        process(item, journal);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        inFlight.acquire(concurrency * 2);
+        executor.shutdown();
+        progress.interrupt();
+        progress.join();
+        printProgress(total, start);
+        System.out.println();
+
+        journal.close();
+        Runtime.getRuntime().removeShutdownHook(flushOnExit);
+        printSummary(start, journal);
+        return failed.sum();
+    }
+
+    // ================= 单项处理 =================
+
+    private void process(Item item, PicTechBatchJournal journal) {
+        long t0 = System.nanoTime();
+        Throwable error = null;
+        try {
+            Files.createDirectories(item.output().toAbsolutePath().getParent());
+            switch (operation) {
+                case "ocr" -> ocr(item);
+                case "inpaint" -> inpaint(item);
+                default -> tool(item);
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+        double millis = (System.nanoTime() - t0) / 1_000_000.0;
+        try {
+            if (error == null) {
+                journal.recordSuccess(item.key(), outputDir.relativize(item.output()).toString(), millis);
+                succeeded.increment();
+                histogram.incrementAndGet((int) Math.min(HISTOGRAM_BUCKETS, (long) millis));
+                totalMillis.add((long) millis);
+            } else {
+                journal.recordFailure(item.key(), millis, error);
+                failed.increment();
+            }
+        } catch (IOException e) {
+            failed.increment();
+        }
+    }
+
+    /**
+     * resize / crop / watermark: 按 pictech.tools.mode 本地执行，否则调用服务端
+     */
+    private void tool(Item item) throws Exception {
+        String endpoint = "tools/" + operation;
+        Map<String, Object> payload = new TreeMap<>(params);
+        payload.put("Image", item.source());
+        PicTechBase64FileHandler.Result result = PicTechLocalTools.shared().run(endpoint, payload, item.output(),
+                () -> PicTechApiTest.callTool(endpoint, payload, item.output()));
+        if (result.statusCode() != 200 || !result.saved()) {
+            throw new IOException("HTTP " + result.statusCode() + " " + result.envelope());
+        }
+    }
+
+    private void ocr(Item item) throws Exception {
+        PicTechBase64Source source = base64(item.source(), PicTechBase64Source.guessMimeType(item.source()));
+        if (PicTechTiledOcr.shared().enabled()) {
+            // 分块模式：大图分块并行识别，输出合并后的规范化 JSON
+            PicTechOcrResult result = PicTechTiledOcr.shared().recognize(source);
+            if (!result.success()) {
+                throw new IOException("Code " + result.code() + " " + result.message());
+            }
+            writeAtomically(item.output(), result.toJson().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        // 超过 -Dpictech.downscale.* 上限的大图先缩小再上传
+        PicTechDownscaler.Scaled image = PicTechDownscaler.shared().prepare(source);
+        byte[] json = PicTechOcrTest.performOcr(image.source());
+        PicTechOcrResult result = PicTechOcrResult.parse(json);
+        if (!result.success()) {
+            throw new IOException("Code " + result.code() + " " + result.message());
+        }
+        // 缩小过的图片输出坐标映射回原图后的规范化 JSON，否则原样保存服务端响应
+        writeAtomically(item.output(), image.scaled()
+                ? image.restore(result).toJson().getBytes(StandardCharsets.UTF_8) : json);
+    }
+
+    private void inpaint(Item item) throws Exception {
+        String itemMask = item.mask() != null ? item.mask() : mask;
+        if (itemMask == null) {
+            throw new IllegalArgumentException("缺少蒙版");
+        }
+        // 修复接口要求纯 Base64，不带 data 前缀；结果从池化的直接内存直接写入临时文件
+        PicTechBase64Source source = base64(item.source(), null);
+        PicTechBase64Source maskSource = base64(itemMask, null);
+        writeAtomically(item.output(), temp -> PicTechInpaintTest.inpaintImageSync(source, maskSource, temp));
+    }
+
+    private static PicTechBase64Source base64(String source, String mimeType) throws IOException, InterruptedException {
+        if (source.startsWith("http://") || source.startsWith("https://")) {
+            return PicTechContentCache.shared().base64(source, mimeType);
+        }
+        return PicTechBase64Source.ofFile(Path.of(source), mimeType);
+    }
+
+    private static void writeAtomically(Path target, byte[] data) throws Exception {
+        writeAtomically(target, temp -> Files.write(temp, data));
+    }
+
+    /**
+     * 先写入同目录下的临时文件，完成后原子替换 target
+     */
+    private static void writeAtomically(Path target, TempWriter writer) throws Exception {
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", ".part");
+        try {
+            writer.write(temp);
+            PicTechBase64FileHandler.moveAtomically(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private interface TempWriter {
+        void write(Path temp) throws Exception;
+    }
+
+    // ================= 输入遍历 =================
+
+    private long count() throws IOException {
+        try (Stream<Item> items = items()) {
+            return items.count();
+        }
+    }
+
+    /**
+     * 按遍历顺序惰性产生待处理项 (调用方负责关闭)
+     */
+    private Stream<Item> items() throws IOException {
+        if (Files.isDirectory(input)) {
+            Path outputAbs = outputDir.toAbsolutePath().normalize();
+            return Files.walk(input)
+                    .filter(p -> !p.toAbsolutePath().normalize().startsWith(outputAbs))
+                    .filter(p -> IMAGE_EXTENSIONS.contains(extension(p.getFileName().toString())))
+                    .filter(Files::isRegularFile)
+                    .map(p -> {
+                        String relative = input.relativize(p).toString().replace('\\', '/');
+                        return new Item(relative, p.toString(), null, outputDir.resolve(outputName(relative)));
+                    });
+        }
+        BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+        AtomicInteger line = new AtomicInteger();
+        return reader.lines()
+                .onClose(() -> closeQuietly(reader))
+                .map(String::strip)
+                .filter(s -> !s.isEmpty() && !s.startsWith("#"))
+                .map(s -> {
+                    int tab = s.indexOf('\t');
+                    String source = tab < 0 ? s : s.substring(0, tab).strip();
+                    String itemMask = tab < 0 ? null : s.substring(tab + 1).strip();
+                    String name = source.substring(source.lastIndexOf('/') + 1);
+                    int query = name.indexOf('?');
+                    if (query >= 0) {
+                        name = name.substring(0, query);
+                    }
+                    String prefixed = String.format("%08d_%s", line.incrementAndGet(), name.isEmpty() ? "image" : name);
+                    return new Item(s, source, itemMask, outputDir.resolve(outputName(prefixed)));
+                });
+    }
+
+    private String outputName(String name) {
+        return switch (operation) {
+            case "ocr" -> stripExtension(name) + ".json";
+            case "inpaint" -> stripExtension(name) + ".png";
+            default -> name;
+        };
+    }
+
+    private static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot <= name.lastIndexOf('/') ? name : name.substring(0, dot);
+    }
+
+    // ================= 进度与统计 =================
+
+    private Thread startProgress(long total, long start) {
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    TimeUnit.SECONDS.sleep(1);
+                    printProgress(total, start);
+                }
+            } catch (InterruptedException e) {
+                // 结束
+            }
+        }, "pictech-batch-progress");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private void printProgress(long total, long start) {
+        long ok = succeeded.sum();
+        long bad = failed.sum();
+        long skip = skipped.sum();
+        long done = ok + bad + skip;
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        // 吞吐只计本次实际处理的图片，跳过的不算
+        double rate = (ok + bad) / seconds;
+        String eta = rate > 0 && done < total ? formatDuration((long) ((total - done) / rate)) : "--:--";
+        System.out.printf("\r%d/%d (%.1f%%) 成功 %d 失败 %d 跳过 %d | %.1f 张/秒 | 已用 %s | 剩余 %s   ",
+                done, total, total == 0 ? 100.0 : done * 100.0 / total, ok, bad, skip, rate,
+                formatDuration((long) seconds), eta);
+    }
+
+    private void printSummary(long start, PicTechBatchJournal journal) {
+        long ok = succeeded.sum();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%n📊 %s 完成: 成功 %d, 失败 %d, 跳过 %d, 耗时 %.1fs, 吞吐 %.1f 张/秒%n",
+                operation, ok, failed.sum(), skipped.sum(), seconds, (ok + failed.sum()) / Math.max(1e-9, seconds));
+        if (ok > 0) {
+            System.out.printf("   单张耗时 (成功): 平均 %.0fms  p50 %dms  p90 %dms  p99 %dms  p99.9 %dms  max %dms%n",
+                    (double) totalMillis.sum() / ok, percentile(0.50), percentile(0.90), percentile(0.99),
+                    percentile(0.999), percentile(1.0));
+        }
+        System.out.println("   清单: " + outputDir.resolve("manifest.ndjson") + " (fsync " + journal.syncCount() + " 次)");
+    }
+
+    /**
+     * 直方图中的分位数 (毫秒，精度 1ms)
+     */
+    long percentile(double q) {
+        long count = succeeded.sum();
+        long rank = Math.max(1, (long) Math.ceil(q * count));
+        long seen = 0;
+        for (int i = 0; i <= HISTOGRAM_BUCKETS; i++) {
+            seen += histogram.get(i);
+            if (seen >= rank) {
+                return i;
+            }
+        }
+        return HISTOGRAM_BUCKETS;
+    }
+
+    private static String formatDuration(long seconds) {
+        return seconds >= 3600
+                ? String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)
+                : String.format("%02d:%02d", seconds / 60, seconds % 60);
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // 忽略
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.pictech;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量任务的 NDJSON 结果清单，同时作为断点续跑的进度日志
+ *
+ * 每完成一张图追加一行：
+ *   {"input":"a/b.jpg","status":"ok","output":"out/a/b.jpg","millis":123.4}
+ *   {"input":"a/c.jpg","status":"failed","millis":5.0,"error":"..."}
+ *
+ * 写入由后台线程批量完成：攒够 batchSize 行或等待 flushInterval 后一次写入并 fsync (组提交)，
+ * 每张图不再单独 fsync。进程崩溃最多丢失最后一批尚未 fsync 的记录，这些图片在续跑时重新处理
+ * (输出文件都是原子替换，重做是安全的)。
+ *
+ * 续跑时扫描已有清单，status 为 ok 的 input 记入 64 位哈希集合 (两百万张约 32MB)，
+ * 末尾不完整的一行 (写入中途崩溃) 会被截掉。
+ */
+public final class PicTechBatchJournal implements Closeable {
+
+    private static final String POISON = "";
+
+    private final FileChannel channel;
+    private final LongSet completed;
+    private final int previousLines;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Thread writer;
+    private volatile IOException failure;
+    private volatile long syncs;
+
+    /**
+     * 打开 (或续写) 清单
+     *
+     * @param batchSize       每批最多写入的行数
+     * @param flushIntervalMs 一批最长等待时间
+     */
+    public PicTechBatchJournal(Path file, int batchSize, long flushIntervalMs) throws IOException {
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs));
+        this.completed = new LongSet(1 << 16);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.previousLines = load();
+        this.writer = new Thread(this::writeLoop, "pictech-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * 该输入在之前的运行中是否已成功处理
+     */
+    public boolean isCompleted(String input) {
+        return completed.contains(hash(input));
+    }
+
+    /** 已成功处理的输入数 (含续跑前) */
+    public int completedCount() {
+        return completed.size();
+    }
+
+    /** 打开时清单中已有的行数 */
+    public int previousLines() {
+        return previousLines;
+    }
+
+    /** 已执行的 fsync 次数 */
+    public long syncCount() {
+        return syncs;
+    }
+
+    public void recordSuccess(String input, String output, double millis) throws IOException {
+        StringBuilder sb = new StringBuilder(128).append("{\"input\":\"");
+        PicTechJsonBodyPublisher.appendEscaped(sb, input);
+        sb.append("\",\"status\":\"ok\",\"output\":\"");
+        PicTechJsonBodyPublisher.appendEscaped(sb, output);
+        sb.append("\",\"millis\":").append(String.format(Locale.ROOT, "%.1f", millis)).append("}\n");
+        append(sb.toString());
+        completed.add(hash(input));
+    }
+
+    public void recordFailure(String input, double millis, Throwable error) throws IOException {
+        StringBuilder sb = new StringBuilder(128).append("{\"input\":\"");
+        PicTechJsonBodyPublisher.appendEscaped(sb, input);
+        sb.append("\",\"status\":\"failed\",\"millis\":").append(String.format(Locale.ROOT, "%.1f", millis)).append(",\"error\":\"");
+        PicTechJsonBodyPublisher.appendEscaped(sb, String.valueOf(error));
+        append(sb.append("\"}\n").toString());
+    }
+
+    /**
+     * 写出剩余记录、fsync 并关闭
+     */
+    @Override
+    public void close() throws IOException {
+        queue.add(POISON);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void append(String line) throws IOException {
+        if (failure != null) {
+            throw new IOException("清单写入失败", failure);
+        }
+        queue.add(line);
+    }
+
+    // ================= 后台组提交 =================
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>(batchSize);
+        boolean closing = false;
+        try {
+            while (!closing) {
+                String first = queue.take();
+                if (first == POISON) {
+                    break;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    String next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == POISON) {
+                        closing = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeBatch(batch);
+                batch.clear();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBatch(List<String> batch) throws IOException {
+        StringBuilder sb = new StringBuilder(batch.size() * 128);
+        for (String line : batch) {
+            sb.append(line);
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(sb.toString());
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        channel.force(false);
+        syncs++;
+    }
+
+    // ================= 续跑 =================
+
+    /**
+     * 扫描已有清单，返回完整的行数；截掉末尾不完整的行
+     */
+    private int load() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        int lines = 0;
+        long lastNewline = -1;
+        byte[] line = new byte[1024];
+        int length = 0;
+        long offset = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        while (offset < size) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            byte[] chunk = buffer.array();
+            for (int i = 0; i < read; i++) {
+                byte b = chunk[i];
+                if (b == '\n') {
+                    lines++;
+                    lastNewline = offset + i;
+                    parseLine(line, length);
+                    length = 0;
+                } else {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = b;
+                }
+            }
+            offset += read;
+        }
+        if (lastNewline + 1 < size) {
+            channel.truncate(lastNewline + 1);
+        }
+        return lines;
+    }
+
+    private void parseLine(byte[] line, int length) {
+        PicTechJsonReader reader = new PicTechJsonReader(line, 0, length);
+        String input = null;
+        boolean ok = false;
+        try {
+            PicTechJsonReader.Token token;
+            while ((token = reader.next()) != PicTechJsonReader.Token.END_DOCUMENT) {
+                if (token != PicTechJsonReader.Token.NAME || reader.depth() != 1) {
+                    continue;
+                }
+                if (reader.nameEquals(INPUT)) {
+                    reader.next();
+                    input = reader.stringValue();
+                } else if (reader.nameEquals(STATUS)) {
+                    reader.next();
+                    ok = "ok".equals(reader.stringValue());
+                }
+            }
+        } catch (RuntimeException e) {
+            // 损坏的行视为未完成
+            return;
+        }
+        if (ok && input != null) {
+            completed.add(hash(input));
+        }
+    }
+
+    private static final byte[] INPUT = "input".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATUS = "status".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * 64 位 FNV-1a；两百万个输入的碰撞概率约 1e-7
+     */
+    static long hash(String input) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : input.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * 开放寻址的 long 集合 (0 表示空槽)
+     */
+    private static final class LongSet {
+        private long[] slots;
+        private int size;
+
+        LongSet(int capacity) {
+            slots = new long[Integer.highestOneBit(Math.max(16, capacity) - 1) << 1];
+        }
+
+        synchronized boolean contains(long value) {
+            int mask = slots.length - 1;
+            for (int i = mix(value) & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == value) {
+                    return true;
+                }
+                if (slots[i] == 0) {
+                    return false;
+                }
+            }
+        }
+
+        synchronized void add(long value) {
+            if ((size + 1) * 2 > slots.length) {
+                long[] old = slots;
+                slots = new long[old.length * 2];
+                size = 0;
+                for (long v : old) {
+                    if (v != 0) {
+                        insert(v);
+                    }
+                }
+            }
+            insert(value);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private void insert(long value) {
+            int mask = slots.length - 1;
+            for (int i = mix(value) & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == value) {
+                    return;
+                }
+                if (slots[i] == 0) {
+                    slots[i] = value;
+                    size++;
+                    return;
+                }
+            }
+        }
+
+        private static int mix(long value) {
+            long h = value * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.pictech;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 批量任务执行器
+ *
+ * 以有界并发执行一组任务 (例如 runSingleTest 风格的模板测试)，
+ * 使用令牌桶按「每秒请求数」限流，结果按完成顺序逐个回调到调用线程，
+ * 结束后给出总耗时、吞吐量以及每个任务的耗时。
+ */
+public final class PicTechBatchRunner {
+
+    private final int concurrency;
+    private final PicTechRateLimiter rateLimiter;
+
+    /**
+     * @param concurrency       最大并发数
+     * @param requestsPerSecond 每秒最多启动的任务数，<= 0 表示不限流
+     */
+    public PicTechBatchRunner(int concurrency, double requestsPerSecond) {
+        this.concurrency = Math.max(1, concurrency);
+        this.rateLimiter = new PicTechRateLimiter(requestsPerSecond);
+    }
+
+    /**
+     * 单个任务
+     */
+    public record Job<T>(String name, Callable<T> task) {
+    }
+
+    /**
+     * 单个任务的执行结果
+     *
+     * @param latencyNanos 任务本身的执行耗时 (不含排队及限流等待)
+     */
+    public record JobResult<T>(String name, T value, Throwable error, long latencyNanos) {
+
+        public boolean success() {
+            return error == null;
+        }
+
+        public double latencyMillis() {
+            return latencyNanos / 1_000_000.0;
+        }
+    }
+
+    /**
+     * 整批任务的汇总报告
+     */
+    public record Report(int total, int failed, long wallNanos, List<JobResult<?>> results) {
+
+        public double wallSeconds() {
+            return wallNanos / 1_000_000_000.0;
+        }
+
+        public double throughput() {
+            return wallNanos == 0 ? 0 : total / wallSeconds();
+        }
+
+        /**
+         * 打印汇总信息及每个任务的耗时
+         */
+        public void print() {
+            System.out.println("\n========== 批量执行报告 ==========");
+            System.out.printf("任务数: %d | 失败: %d | 总耗时: %.2fs | 吞吐: %.2f req/s%n",
+                    total, failed, wallSeconds(), throughput());
+            List<JobResult<?>> sorted = new ArrayList<>(results);
+            sorted.sort(Comparator.comparingLong(JobResult::latencyNanos));
+            if (!sorted.isEmpty()) {
+                System.out.printf("耗时: min %.0fms | p50 %.0fms | max %.0fms%n",
+                        sorted.get(0).latencyMillis(),
+                        sorted.get(sorted.size() / 2).latencyMillis(),
+                        sorted.get(sorted.size() - 1).latencyMillis());
+            }
+            System.out.println("----------------------------------------");
+            for (JobResult<?> result : results) {
+                System.out.printf("%-28s %8.0fms  %s%n", result.name(), result.latencyMillis(),
+                        result.success() ? "✅" : "❌ " + result.error());
+            }
+            System.out.println("========================================");
+        }
+    }
+
+    /**
+     * 执行全部任务并阻塞等待结束
+     *
+     * @param onResult 每完成一个任务就在调用线程中回调一次 (按完成顺序)，可为 null
+     */
+    public <T> Report run(List<Job<T>> jobs, Consumer<JobResult<T>> onResult) throws InterruptedException {
+        BlockingQueue<JobResult<T>> completed = new LinkedBlockingQueue<>();
+        AtomicInteger seq = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(concurrency, Math.max(1, jobs.size())), r -> {
+            Thread t = new Thread(r, "pictech-batch-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        long start = System.nanoTime();
+        try {
+            for (Job<T> job : jobs) {
+                workers.execute(() -> completed.add(execute(job)));
+            }
+
+            List<JobResult<?>> results = new ArrayList<>(jobs.size());
+            int failed = 0;
+            for (int i = 0; i < jobs.size(); i++) {
+                JobResult<T> result = completed.take();
+                results.add(result);
+                if (!result.success()) {
+                    failed++;
+                }
+                if (onResult != null) {
+                    onResult.accept(result);
+                }
+            }
+            return new Report(jobs.size(), failed, System.nanoTime() - start, Collections.unmodifiableList(results));
+        } finally {
+            workers.shutdownNow();
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private <T> JobResult<T> execute(Job<T> job) {
+        try {
+            rateLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new JobResult<>(job.name(), null, e, 0);
+        }
+        long begin = System.nanoTime();
+        try {
+            T value = job.task().call();
+            return new JobResult<>(job.name(), value, null, System.nanoTime() - begin);
+        } catch (Throwable e) {
+            // Error (如 OOM、断言失败) 也要记为失败，否则 run() 会一直等待这个任务的结果
+            return new JobResult<>(job.name(), null, e, System.nanoTime() - begin);
+        }
+    }
+}
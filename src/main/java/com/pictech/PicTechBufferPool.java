@@ -0,0 +1,108 @@
+package com.pictech;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 直接内存分片池 (固定 64KB 一片)
+ *
+ * 大响应体 (修复结果 PNG、OCR JSON) 按分片存放在池化的直接内存中 (见 PicTechPooledBody)，
+ * 而不是每个请求在堆上新建一个与响应一样大的数组；分片归还后由下一个请求复用，
+ * 堆的占用因此与并发数 / 批量大小无关，也不会因为大数组直接进入老年代而触发 Full GC。
+ *
+ * 空闲分片的总量有上限，超出的分片不再入池，随 GC 释放：
+ *   -Dpictech.bufferPool.maxBytes=67108864  空闲分片上限 (默认 64MB)
+ */
+public final class PicTechBufferPool {
+
+    /** 分片大小 */
+    public static final int CHUNK = 64 * 1024;
+
+    private static final PicTechBufferPool SHARED = new PicTechBufferPool(Long.getLong("pictech.bufferPool.maxBytes", 64L << 20));
+
+    static {
+        PicTechMetrics.registerCache("buffer_pool", SHARED.reused::sum, SHARED.allocated::sum);
+    }
+
+    private final int maxIdle;
+    private final ConcurrentLinkedDeque<ByteBuffer> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    /**
+     * @param maxIdleBytes 空闲分片的总字节数上限
+     */
+    public PicTechBufferPool(long maxIdleBytes) {
+        this.maxIdle = (int) Math.min(Integer.MAX_VALUE, Math.max(0, maxIdleBytes / CHUNK));
+    }
+
+    public static PicTechBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * 取一个已清空的分片 (position = 0, limit = CHUNK)，用完必须 release
+     */
+    public ByteBuffer acquire() {
+        outstanding.incrementAndGet();
+        ByteBuffer buffer = idle.pollFirst();
+        if (buffer != null) {
+            idleCount.decrementAndGet();
+            reused.increment();
+            return buffer.clear();
+        }
+        allocated.increment();
+        return ByteBuffer.allocateDirect(CHUNK);
+    }
+
+    /**
+     * 归还分片；归还后调用方不得再访问
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != CHUNK) {
+            return;
+        }
+        outstanding.decrementAndGet();
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            // 后进先出：最近用过的分片更可能还在 CPU 缓存 / TLB 中
+            idle.offerFirst(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 已借出尚未归还的分片数
+     */
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * 池中空闲的字节数
+     */
+    public long idleBytes() {
+        return (long) idleCount.get() * CHUNK;
+    }
+
+    /**
+     * 新分配的分片数 (复用不足时增长)
+     */
+    public long allocatedCount() {
+        return allocated.sum();
+    }
+
+    public long reusedCount() {
+        return reused.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("分片池: 借出 %d, 空闲 %.1fMB, 新分配 %d, 复用 %d", outstanding(), idleBytes() / 1048576.0,
+                allocated.sum(), reused.sum());
+    }
+}
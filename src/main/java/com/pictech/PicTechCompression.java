@@ -0,0 +1,492 @@
+package com.pictech;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 传输压缩：请求体 Content-Encoding: gzip，响应 Accept-Encoding: gzip
+ *
+ *   - 请求：请求体长度不小于该接口的阈值时，在发送过程中边读边压缩 (请求体不会被完整缓存两份)，
+ *     长度未知，改为分块传输；签名基于参数而不是请求体字节，压缩不影响签名
+ *   - 响应：声明 Accept-Encoding: gzip，服务端返回 Content-Encoding: gzip 时边接收边解压，
+ *     原有的响应处理器 (如 PicTechBase64FileHandler) 看到的仍是解压后的字节
+ *   - 压缩前后的字节数与压缩 / 解压耗时记录在 PicTechMetrics，可据此调整阈值
+ *
+ * 可通过系统属性调整：
+ *   -Dpictech.gzip.threshold=-1                    请求体压缩阈值 (字节)，-1 表示不压缩请求体
+ *   -Dpictech.gzip.threshold.image_ocr_sync=32768  单个接口的阈值 (接口名中的 / 换成 .，如 tools.watermark)
+ *   -Dpictech.gzip.level=1                         压缩级别 (1 最快；Base64 数据提高级别收益很小)
+ *   -Dpictech.gzip.accept=true                     是否声明接受 gzip 响应
+ */
+public final class PicTechCompression {
+
+    private static final int CHUNK = 64 * 1024;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final ConcurrentHashMap<String, Long> THRESHOLDS = new ConcurrentHashMap<>();
+
+    private PicTechCompression() {
+    }
+
+    /**
+     * 某个接口的请求体压缩阈值 (字节)，小于 0 表示不压缩
+     */
+    public static long requestThreshold(String endpoint) {
+        return THRESHOLDS.computeIfAbsent(endpoint, name -> Long.getLong("pictech.gzip.threshold." + name.replace('/', '.'),
+                Long.getLong("pictech.gzip.threshold", -1L)));
+    }
+
+    /**
+     * 运行时调整某个接口的阈值 (例如压测时比较不同阈值)
+     */
+    public static void requestThreshold(String endpoint, long bytes) {
+        THRESHOLDS.put(endpoint, bytes);
+    }
+
+    static boolean acceptsGzip() {
+        return Boolean.parseBoolean(System.getProperty("pictech.gzip.accept", "true"));
+    }
+
+    /**
+     * 按接口配置处理请求：请求体达到阈值时改为 gzip 流，并声明接受 gzip 响应
+     */
+    static HttpRequest apply(String endpoint, HttpRequest request, PicTechMetrics.Endpoint metrics) {
+        HttpRequest.BodyPublisher body = request.bodyPublisher().orElse(null);
+        long threshold = requestThreshold(endpoint);
+        boolean compress = body != null && threshold >= 0 && body.contentLength() >= threshold
+                && request.headers().firstValue("Content-Encoding").isEmpty();
+        boolean accept = acceptsGzip() && request.headers().firstValue("Accept-Encoding").isEmpty();
+        if (!compress && !accept) {
+            return request;
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true);
+        if (accept) {
+            builder.header("Accept-Encoding", "gzip");
+        }
+        if (compress) {
+            builder.header("Content-Encoding", "gzip")
+                    .method(request.method(), new GzipPublisher(body, level(), metrics));
+        }
+        return builder.build();
+    }
+
+    /**
+     * 包装响应处理器：Content-Encoding 为 gzip 时先解压再交给原处理器
+     */
+    static <T> HttpResponse.BodyHandler<T> decoding(HttpResponse.BodyHandler<T> handler, PicTechMetrics.Endpoint metrics) {
+        return info -> {
+            HttpResponse.BodySubscriber<T> subscriber = handler.apply(info);
+            boolean gzip = info.headers().firstValue("Content-Encoding").map(value -> value.trim().equalsIgnoreCase("gzip")).orElse(false);
+            return gzip ? new GunzipSubscriber<>(subscriber, metrics) : subscriber;
+        };
+    }
+
+    private static int level() {
+        return Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, Integer.getInteger("pictech.gzip.level", 1)));
+    }
+
+    // ================= 请求体压缩 =================
+
+    /**
+     * 把上游请求体压缩为 gzip 流：上游每给一块就压缩一块，按下游需求交付，不预读整个请求体
+     */
+    private static final class GzipPublisher implements HttpRequest.BodyPublisher {
+        private final HttpRequest.BodyPublisher delegate;
+        private final int level;
+        private final PicTechMetrics.Endpoint metrics;
+
+        GzipPublisher(HttpRequest.BodyPublisher delegate, int level, PicTechMetrics.Endpoint metrics) {
+            this.delegate = delegate;
+            this.level = level;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            delegate.subscribe(new GzipStream(subscriber, level, metrics));
+        }
+    }
+
+    private static final class GzipStream implements Flow.Subscriber<ByteBuffer>, Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> downstream;
+        private final PicTechMetrics.Endpoint metrics;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final ArrayDeque<ByteBuffer> ready = new ArrayDeque<>();
+        /** 串行化 drain：只有一个线程在交付，重入的调用只登记一次额外循环 */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private Flow.Subscription upstream;
+        private ByteBuffer pending = ByteBuffer.allocate(CHUNK);
+        private long demand;
+        private boolean upstreamRequested;
+        private boolean upstreamDone;
+        private boolean terminated;
+        private Throwable error;
+        private long rawBytes;
+        private long wireBytes;
+        private long nanos;
+
+        GzipStream(Flow.Subscriber<? super ByteBuffer> downstream, int level, PicTechMetrics.Endpoint metrics) {
+            this.downstream = downstream;
+            this.metrics = metrics;
+            this.deflater = new Deflater(level, true);
+            pending.put(GZIP_HEADER);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                terminated = true;
+                ready.clear();
+                deflater.end();
+            }
+            upstream.cancel();
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            synchronized (this) {
+                upstreamRequested = false;
+                if (!terminated) {
+                    long start = System.nanoTime();
+                    rawBytes += item.remaining();
+                    crc.update(item.duplicate());
+                    deflater.setInput(item);
+                    while (!deflater.needsInput()) {
+                        deflateInto(Deflater.NO_FLUSH);
+                    }
+                    nanos += System.nanoTime() - start;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            synchronized (this) {
+                error = throwable;
+                upstreamDone = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                if (!terminated) {
+                    long start = System.nanoTime();
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        deflateInto(Deflater.NO_FLUSH);
+                    }
+                    writeTrailer();
+                    pending.flip();
+                    ready.add(pending);
+                    pending = null;
+                    nanos += System.nanoTime() - start;
+                }
+                upstreamDone = true;
+            }
+            drain();
+        }
+
+        /**
+         * 压缩输出写入 pending，写满一块就放入待交付队列
+         */
+        private void deflateInto(int flush) {
+            if (!pending.hasRemaining()) {
+                pending.flip();
+                ready.add(pending);
+                pending = ByteBuffer.allocate(CHUNK);
+            }
+            deflater.deflate(pending, flush);
+        }
+
+        private void writeTrailer() {
+            long crcValue = crc.getValue();
+            int size = (int) deflater.getBytesRead();
+            if (pending.remaining() < 8) {
+                pending.flip();
+                ready.add(pending);
+                pending = ByteBuffer.allocate(8);
+            }
+            for (int i = 0; i < 4; i++) {
+                pending.put((byte) (crcValue >>> (8 * i)));
+            }
+            for (int i = 0; i < 4; i++) {
+                pending.put((byte) (size >>> (8 * i)));
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (true) {
+                    ByteBuffer next = null;
+                    boolean complete = false;
+                    Throwable failure = null;
+                    boolean pull = false;
+                    synchronized (this) {
+                        if (terminated && error == null) {
+                            break;
+                        }
+                        if (error != null) {
+                            if (!terminated) {
+                                terminated = true;
+                                failure = error;
+                                deflater.end();
+                            }
+                        } else if (demand > 0 && !ready.isEmpty()) {
+                            next = ready.poll();
+                            demand--;
+                            wireBytes += next.remaining();
+                        } else if (ready.isEmpty() && upstreamDone) {
+                            terminated = true;
+                            complete = true;
+                            deflater.end();
+                        } else if (demand > 0 && !upstreamRequested && !upstreamDone) {
+                            upstreamRequested = true;
+                            pull = true;
+                        }
+                    }
+                    if (failure != null) {
+                        downstream.onError(failure);
+                        break;
+                    } else if (next != null) {
+                        downstream.onNext(next);
+                    } else if (complete) {
+                        metrics.onRequestCompressed(rawBytes, wireBytes, nanos);
+                        downstream.onComplete();
+                        break;
+                    } else if (pull) {
+                        // 同步的上游 (如 ofInputStream) 会在 request 中直接回调 onNext
+                        upstream.request(1);
+                    } else {
+                        break;
+                    }
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+    }
+
+    // ================= 响应解压 =================
+
+    /**
+     * 边接收边解压 gzip 响应体，解压后的数据交给原订阅者
+     */
+    private static final class GunzipSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private static final int HEADER = 0;
+        private static final int BODY = 1;
+        private static final int TRAILER = 2;
+        private static final int DONE = 3;
+
+        private final HttpResponse.BodySubscriber<T> delegate;
+        private final PicTechMetrics.Endpoint metrics;
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] header = new byte[10];
+        private final byte[] trailer = new byte[8];
+        private Flow.Subscription subscription;
+        private int state = HEADER;
+        private int headerLen;
+        private int flags;
+        /** 可选头部字段的剩余字节 (FEXTRA 内容 / FHCRC)；与 extraLenBytes 都为 0 时表示正在读以 0 结尾的字段 */
+        private int skip;
+        private int extraLenBytes;
+        private int trailerLen;
+        private long wireBytes;
+        private long rawBytes;
+        private long nanos;
+
+        GunzipSubscriber(HttpResponse.BodySubscriber<T> delegate, PicTechMetrics.Endpoint metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return delegate.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            List<ByteBuffer> output = new ArrayList<>();
+            long start = System.nanoTime();
+            try {
+                for (int i = 0, n = items.size(); i < n; i++) {
+                    ByteBuffer item = items.get(i);
+                    wireBytes += item.remaining();
+                    inflate(item, output);
+                }
+            } catch (IOException e) {
+                subscription.cancel();
+                inflater.end();
+                delegate.onError(e);
+                return;
+            }
+            nanos += System.nanoTime() - start;
+            if (output.isEmpty()) {
+                // 这一块只有头部 / 尾部，原订阅者没有收到数据也就不会再请求，由这里代为请求
+                subscription.request(1);
+            } else {
+                delegate.onNext(output);
+            }
+        }
+
+        private void inflate(ByteBuffer item, List<ByteBuffer> output) throws IOException {
+            while (item.hasRemaining()) {
+                switch (state) {
+                    case HEADER -> readHeader(item);
+                    case BODY -> {
+                        inflater.setInput(item);
+                        while (!inflater.finished() && !inflater.needsInput()) {
+                            ByteBuffer out = ByteBuffer.allocate(CHUNK);
+                            try {
+                                inflater.inflate(out);
+                            } catch (DataFormatException e) {
+                                throw new IOException("gzip 响应数据损坏", e);
+                            }
+                            out.flip();
+                            if (out.hasRemaining()) {
+                                crc.update(out.duplicate());
+                                rawBytes += out.remaining();
+                                output.add(out);
+                            } else if (inflater.needsDictionary()) {
+                                throw new IOException("gzip 响应数据损坏");
+                            }
+                        }
+                        if (inflater.finished()) {
+                            state = TRAILER;
+                        }
+                    }
+                    case TRAILER -> {
+                        trailer[trailerLen++] = item.get();
+                        if (trailerLen == trailer.length) {
+                            checkTrailer();
+                            state = DONE;
+                        }
+                    }
+                    default -> item.position(item.limit()); // 尾部之后的多余字节忽略
+                }
+            }
+        }
+
+        /**
+         * 解析 10 字节固定头及 FEXTRA / FNAME / FCOMMENT / FHCRC 可选字段
+         */
+        private void readHeader(ByteBuffer item) throws IOException {
+            while (item.hasRemaining() && state == HEADER) {
+                if (headerLen < header.length) {
+                    header[headerLen++] = item.get();
+                    if (headerLen == header.length) {
+                        if (header[0] != 0x1f || header[1] != (byte) 0x8b || header[2] != Deflater.DEFLATED) {
+                            throw new IOException("不是 gzip 数据");
+                        }
+                        flags = header[3];
+                        nextHeaderField();
+                    }
+                } else if (skip > 0) {
+                    item.get();
+                    skip--;
+                    if (skip == 0) {
+                        nextHeaderField();
+                    }
+                } else if (extraLenBytes > 0) {
+                    skip |= (item.get() & 0xff) << (8 * (2 - extraLenBytes));
+                    if (--extraLenBytes == 0 && skip == 0) {
+                        nextHeaderField();
+                    }
+                } else if (item.get() == 0) {
+                    // 以 0 结尾的 FNAME / FCOMMENT 结束
+                    nextHeaderField();
+                }
+            }
+        }
+
+        private void nextHeaderField() {
+            if ((flags & 0x04) != 0) {
+                flags &= ~0x04;
+                extraLenBytes = 2;
+            } else if ((flags & 0x08) != 0) {
+                flags &= ~0x08;
+            } else if ((flags & 0x10) != 0) {
+                flags &= ~0x10;
+            } else if ((flags & 0x02) != 0) {
+                flags &= ~0x02;
+                skip = 2;
+            } else {
+                state = BODY;
+            }
+        }
+
+        private void checkTrailer() throws IOException {
+            long expectedCrc = 0;
+            long expectedSize = 0;
+            for (int i = 3; i >= 0; i--) {
+                expectedCrc = expectedCrc << 8 | (trailer[i] & 0xff);
+                expectedSize = expectedSize << 8 | (trailer[i + 4] & 0xff);
+            }
+            if (expectedCrc != crc.getValue() || expectedSize != (rawBytes & 0xffffffffL)) {
+                throw new IOException("gzip 响应校验失败");
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            inflater.end();
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            inflater.end();
+            if (state != DONE) {
+                delegate.onError(new IOException("gzip 响应不完整"));
+                return;
+            }
+            metrics.onResponseDecompressed(wireBytes, rawBytes, nanos);
+            delegate.onComplete();
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package com.pictech;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按内容寻址的本地下载缓存 (源图 / 蒙版等 URL 资源)
+ *
+ *   - 原始字节按 SHA-256 存放在 {dir}/blobs/ab/abcdef...，不同 URL 的相同内容只存一份
+ *   - URL 索引记录 ETag / Last-Modified / 过期时间：仍在 max-age 内直接命中，
+ *     否则带 If-None-Match / If-Modified-Since 重新验证，304 时不再传输图片
+ *   - 读取时内存映射文件，不拷贝到堆上
+ *   - 超过磁盘预算时按最近最少使用 (LRU) 淘汰
+ *   - 被重复使用的条目在内存中保留一份预编码的 Base64 (热层)，同样有字节预算
+ *
+ * 默认实例可通过系统属性调整：
+ *   -Dpictech.cache.dir=...             缓存目录 (默认 ${java.io.tmpdir}/pictech-cache)
+ *   -Dpictech.cache.maxBytes=536870912  磁盘预算
+ *   -Dpictech.cache.hotBytes=33554432   Base64 热层预算
+ *   -Dpictech.cache.ttlSeconds=0        服务端未给出 max-age 时的默认新鲜期
+ */
+public final class PicTechContentCache {
+
+    private static final String INDEX_FILE = "index.tsv";
+    /** 第几次使用起进入 Base64 热层 */
+    private static final int HOT_THRESHOLD = 2;
+
+    private static volatile PicTechContentCache shared;
+
+    private final Path dir;
+    private final Path blobs;
+    private final long maxBytes;
+    private final long hotMaxBytes;
+    private final long defaultTtlMillis;
+    private final PicTechResilience resilience;
+
+    /** URL -> 条目，按访问顺序排列 (最久未使用的在前) */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /** blob 引用计数：多个 URL 可以指向同一份内容 */
+    private final Map<String, Integer> blobRefs = new HashMap<>();
+    private long diskBytes;
+
+    /** SHA-256 -> 预编码的 Base64 (ASCII，不含前缀) */
+    private final LinkedHashMap<String, byte[]> hot = new LinkedHashMap<>(16, 0.75f, true);
+    private long hotBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder hotHits = new LongAdder();
+
+    public PicTechContentCache(Path dir, long maxBytes, long hotMaxBytes, long defaultTtlMillis, PicTechResilience resilience) throws IOException {
+        this.dir = dir;
+        this.blobs = dir.resolve("blobs");
+        this.maxBytes = maxBytes;
+        this.hotMaxBytes = hotMaxBytes;
+        this.defaultTtlMillis = defaultTtlMillis;
+        this.resilience = resilience;
+        Files.createDirectories(blobs);
+        loadIndex();
+    }
+
+    /**
+     * 获取按系统属性配置的全局缓存，进程退出时保存索引
+     */
+    public static PicTechContentCache shared() {
+        PicTechContentCache cache = shared;
+        if (cache == null) {
+            synchronized (PicTechContentCache.class) {
+                cache = shared;
+                if (cache == null) {
+                    Path dir = Path.of(System.getProperty("pictech.cache.dir",
+                            Path.of(System.getProperty("java.io.tmpdir"), "pictech-cache").toString()));
+                    try {
+                        cache = new PicTechContentCache(dir,
+                                Long.getLong("pictech.cache.maxBytes", 512L * 1024 * 1024),
+                                Long.getLong("pictech.cache.hotBytes", 32L * 1024 * 1024),
+                                TimeUnit.SECONDS.toMillis(Long.getLong("pictech.cache.ttlSeconds", 0L)),
+                                PicTechResilience.defaults());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("无法初始化下载缓存: " + dir, e);
+                    }
+                    PicTechContentCache created = cache;
+                    Runtime.getRuntime().addShutdownHook(new Thread(created::flushQuietly, "pictech-cache-flush"));
+                    PicTechMetrics.registerCache("download", () -> created.hits.sum() + created.revalidations.sum(),
+                            created.misses::sum);
+                    shared = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * 缓存中的一份内容
+     */
+    public record Blob(String sha256, Path file, long size) {
+
+        /**
+         * 只读内存映射
+         */
+        public ByteBuffer map() throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+    }
+
+    /**
+     * 缓存统计
+     *
+     * @param hits          新鲜期内直接命中 (没有网络请求)
+     * @param revalidations 304 重新验证命中
+     * @param misses        完整下载
+     * @param evictions     因超出磁盘预算被淘汰的 URL 条目
+     * @param hotHits       Base64 热层命中
+     */
+    public record Stats(long hits, long revalidations, long misses, long evictions, long hotHits,
+                        int entries, long diskBytes, long hotBytes) {
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d, revalidations=%d, misses=%d, evictions=%d, hotHits=%d, entries=%d, disk=%.1fMB, hot=%.1fMB",
+                    hits, revalidations, misses, evictions, hotHits, entries, diskBytes / 1048576.0, hotBytes / 1048576.0);
+        }
+    }
+
+    public Stats stats() {
+        synchronized (this) {
+            return new Stats(hits.sum(), revalidations.sum(), misses.sum(), evictions.sum(), hotHits.sum(),
+                    entries.size(), diskBytes, hotBytes);
+        }
+    }
+
+    /**
+     * 以流式 Base64 来源的形式获取 URL 内容
+     * 热层命中时直接输出预编码数据，否则从内存映射的文件边读边编码
+     *
+     * @param mimeType 为 null 时不带 data 前缀
+     */
+    public PicTechBase64Source base64(String url, String mimeType) throws IOException, InterruptedException {
+        Blob blob = get(url);
+        byte[] encoded;
+        boolean promote;
+        synchronized (this) {
+            encoded = hot.get(blob.sha256());
+            Entry entry = entries.get(url);
+            promote = encoded == null && entry != null && entry.uses >= HOT_THRESHOLD
+                    && (blob.size() + 2) / 3 * 4 <= hotMaxBytes / 4;
+        }
+        if (encoded != null) {
+            hotHits.increment();
+            return PicTechBase64Source.ofPreEncoded(encoded, mimeType);
+        }
+        ByteBuffer mapped = blob.map();
+        if (promote) {
+            encoded = encode(mapped);
+            putHot(blob.sha256(), encoded);
+            return PicTechBase64Source.ofPreEncoded(encoded, mimeType);
+        }
+        return PicTechBase64Source.ofBuffer(mapped, mimeType);
+    }
+
+    /**
+     * 获取 URL 内容：新鲜期内直接返回，否则重新验证或下载
+     */
+    public Blob get(String url) throws IOException, InterruptedException {
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(url);
+            if (cached != null && !Files.isRegularFile(blobPath(cached.sha256))) {
+                // blob 被外部删除，丢弃这条记录
+                removeEntry(url);
+                cached = null;
+            }
+            if (cached != null && System.currentTimeMillis() < cached.expiresAt) {
+                cached.uses++;
+                hits.increment();
+                return toBlob(cached);
+            }
+        }
+
+        String etag = cached == null ? null : cached.etag;
+        String lastModified = cached == null ? null : cached.lastModified;
+        Path temp = Files.createTempFile(dir, "download-", ".part");
+        try {
+            HttpResponse<Path> response = resilience.send("download", PicTechResilience.Kind.IDEMPOTENT, attempt -> {
+                HttpRequest.Builder builder = PicTechHttpEngine.shared().newRequest(url).GET();
+                if (etag != null) {
+                    builder.header("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    builder.header("If-Modified-Since", lastModified);
+                }
+                return builder.build();
+            }, HttpResponse.BodyHandlers.ofFile(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+
+            int status = response.statusCode();
+            if (status == 304 && cached != null) {
+                Blob revalidated = revalidate(url, cached, response.headers());
+                if (revalidated != null) {
+                    return revalidated;
+                }
+                // 重新验证期间内容已被淘汰，退回完整下载
+                return get(url);
+            }
+            if (status != 200) {
+                throw new IOException("下载失败，状态码: " + status + " (" + url + ")");
+            }
+
+            misses.increment();
+            long size = Files.size(temp);
+            String sha256 = sha256(temp, size);
+            Path blob = blobPath(sha256);
+            Files.createDirectories(blob.getParent());
+
+            synchronized (this) {
+                // 在锁内判断，避免同一份内容的最后一个引用恰好在这期间被淘汰删除
+                if (!Files.exists(blob)) {
+                    PicTechBase64FileHandler.moveAtomically(temp, blob);
+                }
+                Entry entry = new Entry(sha256, size);
+                entry.uses = cached == null ? 1 : cached.uses + 1;
+                applyHeaders(entry, response.headers());
+                // 先增加新条目的引用再移除旧条目：内容未变时两者指向同一个 blob，顺序反过来会把它删掉
+                addRef(entry);
+                removeEntry(url);
+                entries.put(url, entry);
+                evict(url);
+                writeIndex();
+                return toBlob(entry);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private synchronized Blob revalidate(String url, Entry cached, HttpHeaders headers) throws IOException {
+        Entry entry = entries.get(url);
+        if (entry == null) {
+            if (!Files.isRegularFile(blobPath(cached.sha256))) {
+                return null;
+            }
+            entry = cached;
+            entries.put(url, entry);
+            addRef(entry);
+        }
+        revalidations.increment();
+        applyHeaders(entry, headers);
+        entry.uses++;
+        writeIndex();
+        return toBlob(entry);
+    }
+
+    /**
+     * 立即保存索引 (正常情况下每次写入都会保存，命中只更新内存中的 LRU 顺序)
+     */
+    public synchronized void flush() throws IOException {
+        writeIndex();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException ignored) {
+            // 退出时索引保存失败，下次启动按已有 blob 重建
+        }
+    }
+
+    // ================= 索引与淘汰 (调用方持有锁) =================
+
+    private void addRef(Entry entry) {
+        int refs = blobRefs.merge(entry.sha256, 1, Integer::sum);
+        if (refs == 1) {
+            diskBytes += entry.size;
+        }
+    }
+
+    private void removeEntry(String url) {
+        Entry entry = entries.remove(url);
+        if (entry == null) {
+            return;
+        }
+        Integer refs = blobRefs.merge(entry.sha256, -1, Integer::sum);
+        if (refs != null && refs <= 0) {
+            blobRefs.remove(entry.sha256);
+            diskBytes -= entry.size;
+            byte[] encoded = hot.remove(entry.sha256);
+            if (encoded != null) {
+                hotBytes -= encoded.length;
+            }
+            try {
+                Files.deleteIfExists(blobPath(entry.sha256));
+            } catch (IOException ignored) {
+                // 文件正被占用时留给下次启动清理
+            }
+        }
+    }
+
+    /**
+     * 按 LRU 淘汰直到不超过预算 (刚写入的 keep 不会被淘汰，即使它本身超出预算)
+     */
+    private void evict(String keep) {
+        List<String> victims = new ArrayList<>();
+        Map<String, Integer> refs = new HashMap<>();
+        long projected = diskBytes;
+        // 遍历 entrySet 而不是 get()，访问顺序的 LinkedHashMap 在 get 时会调整链表
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); projected > maxBytes && it.hasNext(); ) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().equals(keep)) {
+                continue;
+            }
+            victims.add(e.getKey());
+            Entry entry = e.getValue();
+            // 只有最后一个引用被淘汰时 blob 才真正释放空间
+            int remaining = refs.getOrDefault(entry.sha256, blobRefs.get(entry.sha256)) - 1;
+            refs.put(entry.sha256, remaining);
+            if (remaining == 0) {
+                projected -= entry.size;
+            }
+        }
+        for (String url : victims) {
+            removeEntry(url);
+            evictions.increment();
+        }
+    }
+
+    private void putHot(String sha256, byte[] encoded) {
+        synchronized (this) {
+            if (!blobRefs.containsKey(sha256) || hot.containsKey(sha256)) {
+                return;
+            }
+            hot.put(sha256, encoded);
+            hotBytes += encoded.length;
+            Iterator<Map.Entry<String, byte[]>> it = hot.entrySet().iterator();
+            while (hotBytes > hotMaxBytes && it.hasNext()) {
+                Map.Entry<String, byte[]> eldest = it.next();
+                hotBytes -= eldest.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        Path index = dir.resolve(INDEX_FILE);
+        if (!Files.exists(index)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 7);
+                if (fields.length < 7) {
+                    continue;
+                }
+                try {
+                    Entry entry = new Entry(fields[0], Long.parseLong(fields[1]));
+                    entry.expiresAt = Long.parseLong(fields[2]);
+                    entry.uses = Integer.parseInt(fields[3]);
+                    entry.etag = fields[4].isEmpty() ? null : fields[4];
+                    entry.lastModified = fields[5].isEmpty() ? null : fields[5];
+                    Path blob = blobPath(entry.sha256);
+                    if (Files.isRegularFile(blob) && Files.size(blob) == entry.size) {
+                        entries.put(fields[6], entry);
+                        addRef(entry);
+                    }
+                } catch (NumberFormatException ignored) {
+                    // 损坏的行直接跳过
+                }
+            }
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        Path temp = dir.resolve(INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(entry.sha256 + '\t' + entry.size + '\t' + entry.expiresAt + '\t' + entry.uses + '\t'
+                        + clean(entry.etag) + '\t' + clean(entry.lastModified) + '\t' + e.getKey());
+                writer.newLine();
+            }
+        }
+        PicTechBase64FileHandler.moveAtomically(temp, dir.resolve(INDEX_FILE));
+    }
+
+    // ================= 工具方法 =================
+
+    private void applyHeaders(Entry entry, HttpHeaders headers) {
+        headers.firstValue("ETag").ifPresent(value -> entry.etag = value);
+        headers.firstValue("Last-Modified").ifPresent(value -> entry.lastModified = value);
+        entry.expiresAt = System.currentTimeMillis() + freshnessMillis(headers);
+    }
+
+    /**
+     * 新鲜期：Cache-Control max-age 优先，其次 Expires，否则使用默认值；no-cache / no-store 每次都重新验证
+     */
+    private long freshnessMillis(HttpHeaders headers) {
+        String cacheControl = headers.firstValue("Cache-Control").orElse("").toLowerCase();
+        if (cacheControl.contains("no-cache") || cacheControl.contains("no-store")) {
+            return 0;
+        }
+        int maxAge = cacheControl.indexOf("max-age=");
+        if (maxAge >= 0) {
+            int start = maxAge + "max-age=".length();
+            int end = start;
+            while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+                end++;
+            }
+            if (end > start) {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(cacheControl.substring(start, end)));
+            }
+        }
+        String expires = headers.firstValue("Expires").orElse(null);
+        if (expires != null) {
+            try {
+                long at = ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, at - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                // 非法的 Expires 视为已过期
+                return 0;
+            }
+        }
+        return defaultTtlMillis;
+    }
+
+    private Blob toBlob(Entry entry) {
+        return new Blob(entry.sha256, blobPath(entry.sha256), entry.size);
+    }
+
+    private Path blobPath(String sha256) {
+        return blobs.resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String sha256(Path file, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] encode(ByteBuffer mapped) {
+        ByteBuffer view = mapped.duplicate();
+        byte[] encoded = new byte[(view.remaining() + 2) / 3 * 4];
+        byte[] raw = new byte[PicTechBase64Source.RAW_CHUNK];
+        int out = 0;
+        while (view.hasRemaining()) {
+            int n = Math.min(raw.length, view.remaining());
+            view.get(raw, 0, n);
+            out += PicTechBase64Source.encode(raw, 0, n, encoded, out);
+        }
+        return encoded;
+    }
+
+    /**
+     * URL 条目 (可变，只在持有缓存锁时修改)
+     */
+    private static final class Entry {
+        final String sha256;
+        final long size;
+        String etag;
+        String lastModified;
+        long expiresAt;
+        int uses;
+
+        Entry(String sha256, long size) {
+            this.sha256 = sha256;
+            this.size = size;
+        }
+    }
+}
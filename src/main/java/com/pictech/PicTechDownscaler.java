@@ -0,0 +1,356 @@
+package com.pictech;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上传前在客户端缩小图片 (OCR / 修复)
+ *
+ * 手机拍摄的扫描件动辄 12~48MP，远超 OCR 所需的分辨率，原样上传既费带宽又拖慢服务端。
+ * 启用后，长边超过 maxEdge 或文件超过 maxBytes 的图片先缩小再重新编码：
+ *   - 解码时使用 ImageIO 的源端下采样 (setSourceSubsampling)，不在内存中生成全分辨率图像；
+ *     下采样到目标尺寸的 2 倍以内，再由 PicTechLocalTools.scale 逐级缩小到目标尺寸
+ *   - 编码后仍超过 maxBytes 时按面积比例继续缩小 (最多 4 次)
+ *   - OCR 结果的坐标由 Scaled.restore 映射回原图坐标
+ *   - 修复结果放大回原图尺寸，只替换蒙版覆盖的像素 (merge)，蒙版外仍是原图像素
+ * 未超限、本地无法解码 (如 WebP) 或只有 Base64 字符串的来源原样上传。
+ *
+ * 默认不启用，可通过系统属性调整：
+ *   -Dpictech.downscale.maxEdge=2048    长边上限 (像素)，0 表示不限制
+ *   -Dpictech.downscale.maxBytes=0      重新编码后的字节数上限，0 表示不限制
+ *   -Dpictech.downscale.quality=90      重新编码 JPEG 的质量
+ */
+public final class PicTechDownscaler {
+
+    /** 按字节数上限缩小的最多尝试次数 */
+    private static final int MAX_ATTEMPTS = 4;
+
+    private static volatile PicTechDownscaler shared;
+
+    private final int maxEdge;
+    private final long maxBytes;
+    private final int quality;
+    private final LongAdder scaledCount = new LongAdder();
+    private final LongAdder originalBytes = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+
+    /**
+     * @param maxEdge  长边上限，<= 0 表示不限制
+     * @param maxBytes 重新编码后的字节数上限，<= 0 表示不限制
+     * @param quality  JPEG 质量 (1~100)
+     */
+    public PicTechDownscaler(int maxEdge, long maxBytes, int quality) {
+        this.maxEdge = Math.max(0, maxEdge);
+        this.maxBytes = Math.max(0, maxBytes);
+        this.quality = quality;
+    }
+
+    /**
+     * 按系统属性配置的全局实例
+     */
+    public static PicTechDownscaler shared() {
+        PicTechDownscaler downscaler = shared;
+        if (downscaler == null) {
+            synchronized (PicTechDownscaler.class) {
+                downscaler = shared;
+                if (downscaler == null) {
+                    downscaler = new PicTechDownscaler(Integer.getInteger("pictech.downscale.maxEdge", 0),
+                            Long.getLong("pictech.downscale.maxBytes", 0L),
+                            Integer.getInteger("pictech.downscale.quality", 90));
+                    shared = downscaler;
+                }
+            }
+        }
+        return downscaler;
+    }
+
+    public boolean enabled() {
+        return maxEdge > 0 || maxBytes > 0;
+    }
+
+    /**
+     * 缩小结果
+     *
+     * @param source         实际上传的来源 (未缩小时就是原来源)
+     * @param originalWidth  原图宽度 (未读取图片头时为 0，下同)
+     * @param originalHeight 原图高度
+     * @param width          上传图片的宽度
+     * @param height         上传图片的高度
+     */
+    public record Scaled(PicTechBase64Source source, int originalWidth, int originalHeight, int width, int height) {
+
+        public boolean scaled() {
+            return width != originalWidth || height != originalHeight;
+        }
+
+        public double scaleX() {
+            return scaled() ? originalWidth / (double) width : 1;
+        }
+
+        public double scaleY() {
+            return scaled() ? originalHeight / (double) height : 1;
+        }
+
+        /**
+         * 把基于上传图片的 OCR 坐标映射回原图坐标
+         */
+        public PicTechOcrResult restore(PicTechOcrResult result) {
+            return scaled() ? result.transform(scaleX(), scaleY(), 0, 0) : result;
+        }
+    }
+
+    /**
+     * 需要时缩小并重新编码 source；MIME 前缀按新的编码格式生成 (source 无前缀时仍无前缀)
+     */
+    public Scaled prepare(PicTechBase64Source source) throws IOException {
+        if (!enabled() || !source.hasRaw()) {
+            return new Scaled(source, 0, 0, 0, 0);
+        }
+        long rawLength = source.rawLength();
+        BufferedImage decoded;
+        String format;
+        int width;
+        int height;
+        int edge;
+        try (ImageInputStream in = open(source)) {
+            ImageReader reader = reader(in);
+            if (reader == null) {
+                return new Scaled(source, 0, 0, 0, 0);
+            }
+            try {
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+                int longEdge = Math.max(width, height);
+                edge = maxEdge > 0 ? Math.min(longEdge, maxEdge) : longEdge;
+                boolean overBytes = maxBytes > 0 && rawLength > maxBytes;
+                if (edge == longEdge && !overBytes) {
+                    return new Scaled(source, width, height, width, height);
+                }
+                if (edge == longEdge) {
+                    edge = shrink(edge, rawLength);
+                }
+                decoded = reader.read(0, subsampling(reader, longEdge, edge));
+                format = reader.getFormatName().toLowerCase(Locale.ROOT);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        // PNG (修复原图常见) 和带透明通道的图片保持无损，其余重新编码为 JPEG
+        String target = "png".equals(format) || decoded.getColorModel().hasAlpha() ? "png" : "jpeg";
+        byte[] encoded = null;
+        int[] size = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            size = fit(width, height, edge);
+            encoded = encode(PicTechLocalTools.scale(decoded, size[0], size[1]), target, quality);
+            if (maxBytes <= 0 || encoded.length <= maxBytes) {
+                break;
+            }
+            edge = shrink(edge, encoded.length);
+        }
+        scaledCount.increment();
+        originalBytes.add(rawLength);
+        uploadedBytes.add(encoded.length);
+        String mimeType = source.mimeType() == null ? null : "image/" + target;
+        return new Scaled(PicTechBase64Source.ofBuffer(ByteBuffer.wrap(encoded), mimeType), width, height, size[0], size[1]);
+    }
+
+    /**
+     * 已解码的图像 (流水线) 只按长边上限缩小，未超限时原样返回
+     */
+    public BufferedImage fit(BufferedImage image) {
+        int longEdge = Math.max(image.getWidth(), image.getHeight());
+        if (maxEdge <= 0 || longEdge <= maxEdge) {
+            return image;
+        }
+        int[] size = fit(image.getWidth(), image.getHeight(), maxEdge);
+        return PicTechLocalTools.scale(image, size[0], size[1]);
+    }
+
+    /**
+     * 把蒙版缩放 (最近邻) 到缩小后的原图尺寸，编码为 PNG；原图未缩小时原样返回
+     */
+    public PicTechBase64Source mask(PicTechBase64Source mask, Scaled image) throws IOException {
+        if (!image.scaled()) {
+            return mask;
+        }
+        BufferedImage decoded = read(mask, Math.max(image.width(), image.height()));
+        byte[] encoded = encode(nearest(decoded, image.width(), image.height()), "png", 100);
+        return PicTechBase64Source.ofBuffer(ByteBuffer.wrap(encoded), mask.mimeType());
+    }
+
+    /**
+     * 把基于缩小图片的修复结果还原到原图：解码全分辨率原图与蒙版，只替换蒙版覆盖的像素
+     */
+    public BufferedImage merge(PicTechBase64Source image, PicTechBase64Source mask, byte[] repaired) throws IOException {
+        BufferedImage result = ImageIO.read(new ByteArrayInputStream(repaired));
+        if (result == null) {
+            throw new IOException("修复接口返回的不是图片");
+        }
+        return merge(read(image, 0), read(mask, 0), result);
+    }
+
+    /**
+     * 蒙版中白色 (修复区域) 的像素取自放大后的 repaired，其余保持 original
+     */
+    static BufferedImage merge(BufferedImage original, BufferedImage mask, BufferedImage repaired) {
+        int width = original.getWidth();
+        int height = original.getHeight();
+        if (repaired.getWidth() != width || repaired.getHeight() != height) {
+            repaired = PicTechLocalTools.scale(repaired, width, height);
+        }
+        if (mask.getWidth() != width || mask.getHeight() != height) {
+            mask = nearest(mask, width, height);
+        }
+        BufferedImage out = new BufferedImage(width, height, PicTechLocalTools.workingType(original));
+        int[] base = new int[width];
+        int[] fill = new int[width];
+        int[] select = new int[width];
+        for (int y = 0; y < height; y++) {
+            original.getRGB(0, y, width, 1, base, 0, width);
+            repaired.getRGB(0, y, width, 1, fill, 0, width);
+            mask.getRGB(0, y, width, 1, select, 0, width);
+            for (int x = 0; x < width; x++) {
+                if (((select[x] >> 8) & 0xff) > 127) {
+                    base[x] = fill[x];
+                }
+            }
+            out.setRGB(0, y, width, 1, base, 0, width);
+        }
+        return out;
+    }
+
+    /**
+     * 最近邻缩放，保持蒙版的黑白二值
+     */
+    static BufferedImage nearest(BufferedImage image, int width, int height) {
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    public long scaledCount() {
+        return scaledCount.sum();
+    }
+
+    /**
+     * 被缩小的图片的原始字节数之和
+     */
+    public long originalBytes() {
+        return originalBytes.sum();
+    }
+
+    /**
+     * 被缩小的图片重新编码后实际上传的字节数之和
+     */
+    public long uploadedBytes() {
+        return uploadedBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("上传缩小: 长边 %s, 字节 %s, 已缩小 %d 张, %.1fMB -> %.1fMB",
+                maxEdge > 0 ? String.valueOf(maxEdge) : "不限", maxBytes > 0 ? String.valueOf(maxBytes) : "不限",
+                scaledCount.sum(), originalBytes.sum() / 1048576.0, uploadedBytes.sum() / 1048576.0);
+    }
+
+    // ================= 编解码 =================
+
+    /**
+     * MemoryCacheImageInputStream.close() 不关闭底层流，这里一并关闭来源的读通道 (文件句柄)
+     * 与 reader() 一起也供 PicTechTiledOcr 按区域解码分块使用
+     */
+    static ImageInputStream open(PicTechBase64Source source) throws IOException {
+        if (!(source instanceof PicTechBase64Source.RawSource rawSource)) {
+            throw new IOException("已编码的来源没有原始字节，无法在本地解码");
+        }
+        InputStream raw = Channels.newInputStream(rawSource.openRaw());
+        return new MemoryCacheImageInputStream(raw) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    raw.close();
+                }
+            }
+        };
+    }
+
+    static ImageReader reader(ImageInputStream in) {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+
+    /**
+     * 解码 source；targetEdge > 0 时按源端下采样读取，长边不小于 targetEdge 的 2 倍
+     */
+    private static BufferedImage read(PicTechBase64Source source, int targetEdge) throws IOException {
+        try (ImageInputStream in = open(source)) {
+            ImageReader reader = reader(in);
+            if (reader == null) {
+                throw new IOException("本地无法解码该图片格式");
+            }
+            try {
+                int longEdge = Math.max(reader.getWidth(0), reader.getHeight(0));
+                return reader.read(0, targetEdge > 0 ? subsampling(reader, longEdge, targetEdge) : null);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 下采样步长取 longEdge / (2 * edge)：留出 2 倍余量给后面的平滑缩小，避免隔行取样的锯齿
+     */
+    private static ImageReadParam subsampling(ImageReader reader, int longEdge, int edge) {
+        ImageReadParam param = reader.getDefaultReadParam();
+        int step = Math.max(1, longEdge / (2 * edge));
+        param.setSourceSubsampling(step, step, 0, 0);
+        return param;
+    }
+
+    private static byte[] encode(BufferedImage image, String format, int quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 2);
+        PicTechLocalTools.write(image, format, quality, out);
+        return out.toByteArray();
+    }
+
+    private static int[] fit(int width, int height, int edge) {
+        double scale = edge / (double) Math.max(width, height);
+        return new int[]{Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale))};
+    }
+
+    /**
+     * 字节数大致与面积成正比：按 sqrt(maxBytes / bytes) 缩小长边，再留 5% 余量
+     */
+    private int shrink(int edge, long bytes) {
+        return Math.max(1, (int) (edge * Math.sqrt(maxBytes / (double) bytes) * 0.95));
+    }
+}
@@ -0,0 +1,581 @@
+package com.pictech;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * JDK Flight Recorder 事件：把一次请求拆成排队、准备 (签名 / JSON)、连接、上传 (读文件 / Base64 编码)、
+ * 等待首字节、下载 (Base64 解码 / 写盘) 几个阶段，每个事件都带接口名、请求体大小与服务端 RequestId
+ *
+ * 每次发送 (含重试与对冲) 对应一个 Trace，各阶段事件在阶段起止时 begin / end，
+ * 等响应结束、RequestId 已知后一起 commit。读文件、编码、解码、写盘与网络收发交错进行，
+ * 以累计耗时字段 (readTime / encodeTime / decodeTime / writeTime) 记在上传 / 下载事件上。
+ *
+ * 未开启录制时不创建 Trace，热路径上只多一次 isEnabled 判断。录制方法：
+ *   java -XX:StartFlightRecording:settings=src/main/resources/pictech.jfc,filename=pictech.jfr ...
+ * 然后在 JMC 的「事件浏览器 → PicTech」下按阶段查看。
+ *
+ * 注：java.net.http 不暴露连接建立与 TLS 握手的时间点，Connect 阶段取「名额到手 → 开始写请求体」，
+ * 复用连接时接近 0，新建连接时包含 TCP 与 TLS 握手。
+ */
+public final class PicTechFlightRecorder {
+
+    /** 正在准备 / 上传 / 下载的 Trace，供签名、编码、解码代码累计耗时 (只在同步回调期间设置) */
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+    private static final ExchangeEvent PROBE = new ExchangeEvent();
+    private static final byte[] REQUEST_ID_KEY = "\"RequestId\"".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_REQUEST_ID = 128;
+
+    private PicTechFlightRecorder() {
+    }
+
+    /**
+     * 当前是否在录制 PicTech 事件
+     */
+    public static boolean enabled() {
+        return PROBE.isEnabled();
+    }
+
+    /**
+     * 为一次发送创建 Trace (开始准备阶段，并在当前线程上登记，直到 prepared 调用)；未录制时返回 null
+     */
+    static Trace start(String endpoint, int attempt, boolean hedge) {
+        if (!enabled()) {
+            return null;
+        }
+        Trace trace = new Trace(endpoint, attempt, hedge);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * 准备阶段 (签名、构建请求) 结束
+     */
+    static void prepared(Trace trace) {
+        if (trace != null) {
+            CURRENT.remove();
+            trace.prepared();
+        }
+    }
+
+    static Trace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 累计签名耗时 (PicTechSigner 调用)
+     */
+    static void signed(long nanos) {
+        Trace trace = CURRENT.get();
+        if (trace != null) {
+            trace.signNanos += nanos;
+        }
+    }
+
+    // ================= 事件定义 =================
+
+    /**
+     * 所有阶段事件共有的字段
+     */
+    @Category({"PicTech", "请求阶段"})
+    @StackTrace(false)
+    abstract static class PhaseEvent extends Event {
+        @Label("接口")
+        String endpoint;
+
+        @Label("尝试次数")
+        int attempt;
+
+        @Label("对冲请求")
+        boolean hedge;
+
+        @Label("请求体大小")
+        @DataAmount
+        long payloadBytes;
+
+        @Label("RequestId")
+        String requestId;
+    }
+
+    @Name("com.pictech.Prepare")
+    @Label("请求准备")
+    @Description("RequestFactory 中的签名与请求体构建 (非流式 JSON 在此阶段序列化)")
+    static final class PrepareEvent extends PhaseEvent {
+        @Label("签名耗时")
+        @Timespan
+        long signTime;
+    }
+
+    @Name("com.pictech.QueueWait")
+    @Label("并发窗口排队")
+    @Description("等待该接口的自适应并发窗口名额")
+    static final class QueueEvent extends PhaseEvent {
+    }
+
+    @Name("com.pictech.Connect")
+    @Label("连接")
+    @Description("名额到手到开始写请求体：新建连接时包含 TCP 与 TLS 握手，复用连接时接近 0")
+    static final class ConnectEvent extends PhaseEvent {
+    }
+
+    @Name("com.pictech.Upload")
+    @Label("请求体上传")
+    @Description("流式请求体的发送，包括读取图片文件与 Base64 编码")
+    static final class UploadEvent extends PhaseEvent {
+        @Label("读文件耗时")
+        @Timespan
+        long readTime;
+
+        @Label("Base64 编码耗时")
+        @Timespan
+        long encodeTime;
+    }
+
+    @Name("com.pictech.ServerWait")
+    @Label("等待首字节")
+    @Description("请求体发送完毕到收到响应头 (服务端处理时间 + 一个 RTT)")
+    static final class ServerWaitEvent extends PhaseEvent {
+        @Label("状态码")
+        int status;
+    }
+
+    @Name("com.pictech.Download")
+    @Label("响应体接收")
+    @Description("响应体传输，包括 Base64 解码与写入磁盘")
+    static final class DownloadEvent extends PhaseEvent {
+        @Label("响应体大小")
+        @DataAmount
+        long responseBytes;
+
+        @Label("Base64 解码耗时")
+        @Timespan
+        long decodeTime;
+
+        @Label("写盘耗时")
+        @Timespan
+        long writeTime;
+    }
+
+    @Name("com.pictech.Exchange")
+    @Label("PicTech 请求")
+    @Description("一次发送的完整耗时及各阶段分解")
+    static final class ExchangeEvent extends PhaseEvent {
+        @Label("状态码")
+        int status;
+
+        @Label("异常")
+        String error;
+
+        @Label("响应体大小")
+        @DataAmount
+        long responseBytes;
+
+        @Label("准备") @Timespan long prepareTime;
+        @Label("签名") @Timespan long signTime;
+        @Label("排队") @Timespan long queueTime;
+        @Label("连接") @Timespan long connectTime;
+        @Label("上传") @Timespan long uploadTime;
+        @Label("读文件") @Timespan long readTime;
+        @Label("编码") @Timespan long encodeTime;
+        @Label("等待首字节") @Timespan long serverTime;
+        @Label("下载") @Timespan long downloadTime;
+        @Label("解码") @Timespan long decodeTime;
+        @Label("写盘") @Timespan long writeTime;
+    }
+
+    // ================= 单次发送 =================
+
+    /**
+     * 一次发送的各阶段事件与累计耗时
+     */
+    static final class Trace {
+        private final ExchangeEvent exchange = new ExchangeEvent();
+        private final PrepareEvent prepare = new PrepareEvent();
+        private final QueueEvent queue = new QueueEvent();
+        private final ConnectEvent connect = new ConnectEvent();
+        private final UploadEvent upload = new UploadEvent();
+        private final ServerWaitEvent serverWait = new ServerWaitEvent();
+        private final DownloadEvent download = new DownloadEvent();
+
+        private final String endpoint;
+        private final int attempt;
+        private final boolean hedge;
+
+        // 阶段边界 (System.nanoTime)，0 表示未到达
+        private long prepareStart;
+        private long queueStart;
+        private long sendStart;
+        private long uploadStart;
+        private long uploadEnd;
+        private long headersAt;
+
+        // 累计耗时，只由当前持有 Trace 的同步回调线程写入
+        long signNanos;
+        long readNanos;
+        long encodeNanos;
+        long decodeNanos;
+        long writeNanos;
+
+        private long payloadBytes = -1;
+        private long responseBytes;
+        private String requestId;
+        private int matched;
+        private int idState;
+        private final StringBuilder idBuilder = new StringBuilder();
+        private boolean committed;
+
+        private Trace(String endpoint, int attempt, boolean hedge) {
+            this.endpoint = endpoint;
+            this.attempt = attempt;
+            this.hedge = hedge;
+            exchange.begin();
+            prepare.begin();
+            prepareStart = System.nanoTime();
+        }
+
+        synchronized void prepared() {
+            prepare.end();
+            queue.begin();
+            queueStart = System.nanoTime();
+        }
+
+        /**
+         * 直接调用 PicTechHttpEngine (没有经过 PicTechResilience) 时从排队阶段开始
+         */
+        static Trace queued(String endpoint) {
+            if (!enabled()) {
+                return null;
+            }
+            Trace trace = new Trace(endpoint, 1, false);
+            trace.prepared();
+            return trace;
+        }
+
+        synchronized void sending(long bodyBytes) {
+            queue.end();
+            connect.begin();
+            sendStart = System.nanoTime();
+            payloadBytes = bodyBytes;
+        }
+
+        private synchronized void uploadStarted() {
+            if (uploadStart == 0 && headersAt == 0) {
+                connect.end();
+                upload.begin();
+                uploadStart = System.nanoTime();
+            }
+        }
+
+        private synchronized void uploadFinished() {
+            if (uploadStart != 0 && headersAt == 0) {
+                upload.end();
+                serverWait.begin();
+                uploadEnd = System.nanoTime();
+            }
+        }
+
+        private synchronized void headers(HttpResponse.ResponseInfo info) {
+            if (headersAt != 0) {
+                return;
+            }
+            headersAt = System.nanoTime();
+            if (uploadStart == 0) {
+                // 没有请求体 (GET)：连接阶段一直持续到响应头
+                connect.end();
+            } else if (uploadEnd == 0) {
+                // 服务端在请求体发完前就响应了
+                upload.end();
+                uploadEnd = headersAt;
+                serverWait.begin();
+            }
+            serverWait.end();
+            serverWait.status = info.statusCode();
+            download.begin();
+            requestId = info.headers().firstValue("X-Request-Id")
+                    .or(() -> info.headers().firstValue("RequestId")).orElse(null);
+        }
+
+        /**
+         * 在响应体中查找 "RequestId" : "..." (跨分片的状态机，找到后不再扫描)
+         */
+        private void scan(ByteBuffer buffer) {
+            if (requestId != null) {
+                return;
+            }
+            for (int i = buffer.position(), limit = buffer.limit(); i < limit; i++) {
+                byte b = buffer.get(i);
+                if (idState == 0) {
+                    if (b == REQUEST_ID_KEY[matched]) {
+                        if (++matched == REQUEST_ID_KEY.length) {
+                            idState = 1;
+                            matched = 0;
+                        }
+                    } else {
+                        matched = b == REQUEST_ID_KEY[0] ? 1 : 0;
+                    }
+                } else if (idState == 1) {
+                    // 键之后：跳过空白，期待冒号
+                    if (b == ':') {
+                        idState = 2;
+                    } else if (b != ' ' && b != '\t') {
+                        idState = 0;
+                    }
+                } else if (idState == 2) {
+                    // 冒号之后：跳过空白，期待引号
+                    if (b == '"') {
+                        idState = 3;
+                    } else if (b != ' ' && b != '\t') {
+                        idState = 0;
+                    }
+                } else {
+                    if (b == '"' || idBuilder.length() >= MAX_REQUEST_ID) {
+                        requestId = idBuilder.toString();
+                        return;
+                    }
+                    idBuilder.append((char) (b & 0xff));
+                }
+            }
+        }
+
+        /**
+         * 发送结束：补齐未到达的阶段并提交全部事件
+         */
+        synchronized void finish(int status, Throwable error) {
+            if (committed) {
+                return;
+            }
+            committed = true;
+            long now = System.nanoTime();
+            if (headersAt != 0) {
+                download.end();
+            }
+            exchange.end();
+
+            tag(prepare);
+            prepare.signTime = signNanos;
+            prepare.commit();
+            if (sendStart == 0) {
+                // 在排队时被取消 (例如对冲落败)
+                queue.end();
+            }
+            tag(queue);
+            queue.commit();
+            if (sendStart != 0) {
+                if (uploadStart == 0 && headersAt == 0) {
+                    connect.end();
+                }
+                tag(connect);
+                connect.commit();
+            }
+            if (uploadStart != 0) {
+                if (uploadEnd == 0) {
+                    upload.end();
+                }
+                tag(upload);
+                upload.readTime = readNanos;
+                upload.encodeTime = encodeNanos;
+                upload.commit();
+            }
+            if (uploadEnd != 0 || headersAt != 0) {
+                if (headersAt == 0) {
+                    serverWait.end();
+                }
+                tag(serverWait);
+                serverWait.commit();
+            }
+            if (headersAt != 0) {
+                tag(download);
+                download.responseBytes = responseBytes;
+                download.decodeTime = decodeNanos;
+                download.writeTime = writeNanos;
+                download.commit();
+            }
+
+            tag(exchange);
+            exchange.status = status;
+            exchange.error = error == null ? null : error.getClass().getSimpleName() + ": " + error.getMessage();
+            exchange.responseBytes = responseBytes;
+            long queueEnd = sendStart != 0 ? sendStart : now;
+            long connectEnd = uploadStart != 0 ? uploadStart : (headersAt != 0 ? headersAt : now);
+            exchange.prepareTime = queueStart - prepareStart;
+            exchange.signTime = signNanos;
+            exchange.queueTime = queueEnd - queueStart;
+            exchange.connectTime = sendStart == 0 ? 0 : connectEnd - sendStart;
+            exchange.uploadTime = uploadStart == 0 ? 0 : (uploadEnd != 0 ? uploadEnd : now) - uploadStart;
+            exchange.readTime = readNanos;
+            exchange.encodeTime = encodeNanos;
+            exchange.serverTime = uploadEnd == 0 ? 0 : (headersAt != 0 ? headersAt : now) - uploadEnd;
+            exchange.downloadTime = headersAt == 0 ? 0 : now - headersAt;
+            exchange.decodeTime = decodeNanos;
+            exchange.writeTime = writeNanos;
+            exchange.commit();
+        }
+
+        private void tag(PhaseEvent event) {
+            event.endpoint = endpoint;
+            event.attempt = attempt;
+            event.hedge = hedge;
+            event.payloadBytes = payloadBytes;
+            event.requestId = requestId;
+        }
+
+        /**
+         * 包装请求：请求体开始 / 结束发送时记录阶段边界，拉取数据期间登记当前 Trace
+         *
+         * @param bodyBytes 压缩前的请求体长度 (未知时为 -1)
+         */
+        HttpRequest wrap(HttpRequest request, long bodyBytes) {
+            sending(bodyBytes);
+            return request.bodyPublisher()
+                    .map(body -> HttpRequest.newBuilder(request, (name, value) -> true)
+                            .method(request.method(), new TracedPublisher(body, this))
+                            .build())
+                    .orElse(request);
+        }
+
+        /**
+         * 包装响应处理器：记录响应头到达时间，推送数据期间登记当前 Trace，并查找 RequestId
+         */
+        <T> HttpResponse.BodyHandler<T> wrap(HttpResponse.BodyHandler<T> handler) {
+            return info -> {
+                headers(info);
+                return new TracedSubscriber<>(handler.apply(info), this);
+            };
+        }
+    }
+
+    // ================= 请求体 / 响应体包装 =================
+
+    private static final class TracedPublisher implements HttpRequest.BodyPublisher {
+        private final HttpRequest.BodyPublisher delegate;
+        private final Trace trace;
+
+        TracedPublisher(HttpRequest.BodyPublisher delegate, Trace trace) {
+            this.delegate = delegate;
+            this.trace = trace;
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            delegate.subscribe(new Flow.Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    trace.uploadStarted();
+                    subscriber.onSubscribe(new Flow.Subscription() {
+                        @Override
+                        public void request(long n) {
+                            // 流式请求体在 request 中同步读取并编码，期间登记 Trace 以累计读文件 / 编码耗时
+                            Trace previous = CURRENT.get();
+                            CURRENT.set(trace);
+                            try {
+                                subscription.request(n);
+                            } finally {
+                                restore(previous);
+                            }
+                        }
+
+                        @Override
+                        public void cancel() {
+                            subscription.cancel();
+                        }
+                    });
+                }
+
+                @Override
+                public void onNext(ByteBuffer item) {
+                    subscriber.onNext(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    subscriber.onError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    trace.uploadFinished();
+                    subscriber.onComplete();
+                }
+            });
+        }
+    }
+
+    private static final class TracedSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> delegate;
+        private final Trace trace;
+
+        TracedSubscriber(HttpResponse.BodySubscriber<T> delegate, Trace trace) {
+            this.delegate = delegate;
+            this.trace = trace;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return delegate.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            for (int i = 0, n = items.size(); i < n; i++) {
+                ByteBuffer item = items.get(i);
+                trace.responseBytes += item.remaining();
+                trace.scan(item);
+            }
+            Trace previous = CURRENT.get();
+            CURRENT.set(trace);
+            try {
+                delegate.onNext(items);
+            } finally {
+                restore(previous);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            Trace previous = CURRENT.get();
+            CURRENT.set(trace);
+            try {
+                delegate.onComplete();
+            } finally {
+                restore(previous);
+            }
+        }
+    }
+
+    private static void restore(Trace previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+}
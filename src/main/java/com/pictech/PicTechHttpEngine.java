@@ -0,0 +1,309 @@
+package com.pictech;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 共享的 HTTP 客户端引擎
+ * 所有示例类 (缩放/裁剪/水印/模板/OCR/修复) 都通过同一个 HttpClient 发送请求，
+ * 以复用连接池、TLS 会话以及 HTTP/2 多路复用，而不是每次调用都 newHttpClient()。
+ *
+ * 默认实例可通过系统属性调整：
+ *   -Dpictech.http.connectTimeoutMs=15000   连接超时
+ *   -Dpictech.http.requestTimeoutMs=120000  单次请求超时 (0 表示不限制)
+ *   -Dpictech.http.threads=8                 回调线程数
+ *   -Dpictech.http.virtualThreads=true       使用虚拟线程 (需要 JDK 21+，否则自动回退)
+ */
+public final class PicTechHttpEngine {
+
+    private static volatile PicTechHttpEngine shared;
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+
+    private PicTechHttpEngine(Builder builder) {
+        HttpClient.Builder clientBuilder = HttpClient.newBuilder()
+                .version(builder.version)
+                .connectTimeout(builder.connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(builder.virtualThreads ? newVirtualThreadExecutor(builder.threads) : newPooledExecutor(builder.threads));
+        this.client = clientBuilder.build();
+        this.requestTimeout = builder.requestTimeout;
+    }
+
+    /**
+     * 获取全局共享的引擎实例 (懒加载，线程安全)
+     */
+    public static PicTechHttpEngine shared() {
+        PicTechHttpEngine engine = shared;
+        if (engine == null) {
+            synchronized (PicTechHttpEngine.class) {
+                engine = shared;
+                if (engine == null) {
+                    engine = newBuilder()
+                            .connectTimeout(Duration.ofMillis(Long.getLong("pictech.http.connectTimeoutMs", 15_000L)))
+                            .requestTimeout(Duration.ofMillis(Long.getLong("pictech.http.requestTimeoutMs", 120_000L)))
+                            .threads(Integer.getInteger("pictech.http.threads", Math.max(2, Runtime.getRuntime().availableProcessors())))
+                            .virtualThreads(Boolean.getBoolean("pictech.http.virtualThreads"))
+                            .build();
+                    shared = engine;
+                    PicTechMetrics.serveIfConfigured();
+                }
+            }
+        }
+        return engine;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * 创建一个带默认超时的请求构建器
+     */
+    public HttpRequest.Builder newRequest(String url) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder().uri(URI.create(url));
+        if (requestTimeout != null && !requestTimeout.isZero()) {
+            builder.timeout(requestTimeout);
+        }
+        return builder;
+    }
+
+    /**
+     * 异步发送请求
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        return client.sendAsync(request, handler);
+    }
+
+    /**
+     * 异步发送 PicTech 接口请求，受全局内存预算 (PicTechMemoryGovernor) 与该接口的自适应并发窗口控制
+     * 预算不足或窗口已满时请求在客户端排队，不会占用线程；RTT 与状态码反馈给限制器调整窗口，
+     * 并记录到 PicTechMetrics (延迟、状态码、字节数)
+     *
+     * @param endpoint 接口名 (例如 tools/resize、image_ocr_sync)，每个接口独立限流
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(String endpoint, HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        return sendAsync(endpoint, request, handler, PicTechFlightRecorder.Trace.queued(endpoint));
+    }
+
+    /**
+     * @param trace 本次发送的 JFR 阶段记录 (未录制时为 null)，由 PicTechResilience 在准备阶段创建
+     */
+    <T> CompletableFuture<HttpResponse<T>> sendAsync(String endpoint, HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                                     PicTechFlightRecorder.Trace trace) {
+        PicTechAdaptiveLimiter limiter = PicTechAdaptiveLimiter.forEndpoint(endpoint);
+        PicTechMetrics.Endpoint metrics = PicTechMetrics.endpoint(endpoint);
+        PicTechMemoryGovernor governor = PicTechMemoryGovernor.shared();
+        long bodyBytes = request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(-1L);
+        // 先预留内存再申请并发名额：等预算的请求不占窗口，窗口里的请求都能立即发出
+        CompletableFuture<PicTechMemoryGovernor.Reservation> reservationFuture = governor.reserve(governor.estimate(endpoint, bodyBytes));
+        AtomicReference<CompletableFuture<PicTechAdaptiveLimiter.Permit>> permitRef = new AtomicReference<>();
+        AtomicReference<CompletableFuture<HttpResponse<T>>> exchangeRef = new AtomicReference<>();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        CompletableFuture<HttpResponse<T>> result = reservationFuture.thenCompose(reservation -> {
+            CompletableFuture<PicTechAdaptiveLimiter.Permit> permitFuture = limiter.acquire();
+            permitRef.set(permitFuture);
+            if (cancelled.get()) {
+                permitFuture.cancel(false);
+            }
+            return permitFuture.thenCompose(permit -> startExchange(endpoint, request, handler, trace, metrics, permit, bodyBytes,
+                    exchangeRef, cancelled)).whenComplete((response, error) -> {
+                if (response != null) {
+                    governor.observeResponse(endpoint, response.headers().firstValueAsLong("Content-Length").orElse(-1L));
+                }
+                reservation.release();
+            });
+        });
+        // 调用方取消时：排队中则放弃等待预算 / 名额，已发出则中止底层交换 (例如对冲请求的落败方)
+        result.whenComplete((response, error) -> {
+            if (trace != null) {
+                trace.finish(response != null ? response.statusCode() : -1, error);
+            }
+            if (result.isCancelled()) {
+                cancelled.set(true);
+                reservationFuture.cancel(false);
+                CompletableFuture<PicTechAdaptiveLimiter.Permit> permitFuture = permitRef.get();
+                if (permitFuture != null) {
+                    permitFuture.cancel(false);
+                }
+                CompletableFuture<HttpResponse<T>> exchange = exchangeRef.get();
+                if (exchange != null) {
+                    exchange.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 已取得内存预算与并发名额，发出请求并在结束时归还名额、记录指标
+     */
+    private <T> CompletableFuture<HttpResponse<T>> startExchange(String endpoint, HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                                                 PicTechFlightRecorder.Trace trace, PicTechMetrics.Endpoint metrics,
+                                                                 PicTechAdaptiveLimiter.Permit permit, long bodyBytes,
+                                                                 AtomicReference<CompletableFuture<HttpResponse<T>>> exchangeRef,
+                                                                 AtomicBoolean cancelled) {
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<T>> exchange;
+        HttpRequest outgoing;
+        try {
+            // 按接口阈值压缩请求体 / 声明接受 gzip；JFR 记录在最外层，看到的是线上字节
+            outgoing = PicTechCompression.apply(endpoint, request, metrics);
+            HttpResponse.BodyHandler<T> inner = trace == null ? handler : trace.wrap(handler);
+            exchange = sendAsync(trace == null ? outgoing : trace.wrap(outgoing, bodyBytes),
+                    metrics.counting(PicTechCompression.decoding(inner, metrics)));
+        } catch (RuntimeException e) {
+            permit.cancel();
+            throw e;
+        }
+        // gzip 请求体的长度在发送完毕后才知道，由 PicTechCompression 计入
+        metrics.onStart(outgoing == request ? bodyBytes : outgoing.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(-1L));
+        exchangeRef.set(exchange);
+        if (cancelled.get()) {
+            exchange.cancel(true);
+        }
+        return exchange.whenComplete((response, error) -> {
+            long nanos = System.nanoTime() - start;
+            // 取消的交换可能以 CompletionException(CancellationException) 结束 (HttpClient 中止请求时)
+            boolean aborted = error != null && (exchange.isCancelled() || error instanceof CancellationException
+                    || error instanceof CompletionException && error.getCause() instanceof CancellationException);
+            if (aborted) {
+                // 被主动取消 (如对冲落败方) 不代表服务端过载，只归还名额，不收缩窗口
+                permit.cancel();
+            } else {
+                permit.release(error != null ? -1 : response.statusCode(), nanos);
+            }
+            if (error != null) {
+                metrics.onFailure(aborted);
+            } else {
+                metrics.onResponse(response.statusCode(), nanos);
+            }
+        });
+    }
+
+    /**
+     * 同步发送请求 (内部同样走 sendAsync，保证所有调用共享同一条发送路径)
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        return await(sendAsync(request, handler));
+    }
+
+    /**
+     * 同步发送 PicTech 接口请求 (受自适应并发窗口控制)
+     */
+    public <T> HttpResponse<T> send(String endpoint, HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        return await(sendAsync(endpoint, request, handler));
+    }
+
+    /**
+     * 等待异步结果，并把 ExecutionException 还原为调用方熟悉的异常类型
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public HttpClient client() {
+        return client;
+    }
+
+    // ================= 线程池 =================
+
+    private static ExecutorService newPooledExecutor(int threads) {
+        AtomicInteger seq = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "pictech-http-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+
+    /**
+     * 通过反射调用 Executors.newVirtualThreadPerTaskExecutor()，
+     * 当前运行时不支持虚拟线程 (JDK 17) 时回退到固定线程池
+     */
+    private static ExecutorService newVirtualThreadExecutor(int fallbackThreads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return newPooledExecutor(fallbackThreads);
+        }
+    }
+
+    /**
+     * 引擎配置构建器
+     */
+    public static final class Builder {
+        private Duration connectTimeout = Duration.ofSeconds(15);
+        private Duration requestTimeout = Duration.ofSeconds(120);
+        private HttpClient.Version version = HttpClient.Version.HTTP_2;
+        private int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        private boolean virtualThreads;
+
+        private Builder() {
+        }
+
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder requestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        public Builder version(HttpClient.Version version) {
+            this.version = version;
+            return this;
+        }
+
+        public Builder threads(int threads) {
+            this.threads = Math.max(1, threads);
+            return this;
+        }
+
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public PicTechHttpEngine build() {
+            return new PicTechHttpEngine(this);
+        }
+    }
+}
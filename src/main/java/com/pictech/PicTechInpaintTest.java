@@ -1,13 +1,9 @@
 package com.pictech;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.FileOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -15,7 +11,7 @@ import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 独立的图片修复 (Inpaint) 测试类
@@ -29,7 +25,16 @@ public class PicTechInpaintTest {
     private static final String ACCOUNT_ID = "pic_YOUR_ID";
     private static final String SECRET_KEY = "YOUR_SECRET_KEY";
     // API 地址 (根据您的实际环境调整，通常是 image_inpaint_sync 或 inpaint_image_sync)
-    private static final String API_URL = "https://www.pictech.top/pictech/commonapi/inpaint_image_sync";
+    private static final String API_URL = System.getProperty("pictech.api.host", "https://www.pictech.top/pictech/commonapi") + "/inpaint_image_sync";
+    // 全局共享的 HTTP 引擎 (连接池 / HTTP/2 复用)
+    private static final PicTechHttpEngine engine = PicTechHttpEngine.shared();
+    private static final PicTechResilience resilience = PicTechResilience.defaults();
+    // 源图 / 蒙版的本地内容缓存 (按内容寻址，ETag 重新验证)
+    private static final PicTechContentCache contentCache = PicTechContentCache.shared();
+    // 上传前按 -Dpictech.downscale.* 缩小大图，结果还原到原图尺寸
+    private static final PicTechDownscaler downscaler = PicTechDownscaler.shared();
+    // -Dpictech.inpaint.mode=region 时只上传蒙版覆盖的局部，在本地贴回原图
+    private static final PicTechRegionInpaint regionInpaint = PicTechRegionInpaint.shared();
     // ===========================================
 
     public static void main(String[] args) {
@@ -50,6 +55,9 @@ public class PicTechInpaintTest {
             String savedFileName = iopaint(sourceImageUrl, maskImageUrl, saveDir, saveFileName);
 
             System.out.println("✅ 任务成功！图片已保存至: " + saveDir + "/" + savedFileName);
+            if (regionInpaint.enabled()) {
+                System.out.println(regionInpaint);
+            }
 
         } catch (Exception e) {
             System.err.println("❌ 任务失败: " + e.getMessage());
@@ -59,25 +67,23 @@ public class PicTechInpaintTest {
 
     /**
      * 【业务包装方法】
-     * 下载URL图片 -> 转换Base64 -> 调用API -> 保存文件
+     * 下载URL图片 (本地内容缓存) -> 转换Base64 -> 调用API -> 保存文件
      */
     public static String iopaint(String sourceUrl, String maskUrl, String savePath, String imageName) throws Exception {
-        // 1. 将 URL 图片下载并转为 Base64
-        String sourceBase64 = downloadUrlAsBase64(sourceUrl);
-        String maskBase64 = downloadUrlAsBase64(maskUrl);
-
-        if (sourceBase64 == null || maskBase64 == null) {
-            throw new IOException("无法下载图片或蒙版，请检查 URL 是否有效。");
-        }
-
-        // 2. 调用 API 获取修复后的图片字节流
-        byte[] responseBytes = inpaintImageSync(sourceBase64, maskBase64);
-
-        if (responseBytes == null || responseBytes.length == 0) {
-            throw new RuntimeException("API 返回的图片数据为空");
+        // 1. 通过本地内容缓存获取原图和蒙版：同一原图配多张蒙版时只下载一次，之后最多一次 304 重新验证
+        PicTechBase64Source sourceImage;
+        PicTechBase64Source maskImage;
+        try {
+            System.out.println("正在获取: " + sourceUrl);
+            sourceImage = contentCache.base64(sourceUrl, null);
+            System.out.println("正在获取: " + maskUrl);
+            maskImage = contentCache.base64(maskUrl, null);
+        } catch (IOException e) {
+            throw new IOException("无法下载图片或蒙版，请检查 URL 是否有效。", e);
         }
+        System.out.println("下载缓存: " + contentCache.stats());
 
-        // 3. 保存到本地
+        // 2. 确定保存路径
         String fileExt = "png"; // API 返回的通常是 PNG
         String fullFileName = imageName + "." + fileExt;
 
@@ -87,9 +93,10 @@ public class PicTechInpaintTest {
             Files.createDirectories(dirPath);
         }
 
+        // 3. 调用 API，修复结果从池化的直接内存直接写入文件 (不在堆上生成整张图片的 byte[])
         Path finalPath = dirPath.resolve(fullFileName);
-        try (FileOutputStream fos = new FileOutputStream(finalPath.toFile())) {
-            fos.write(responseBytes);
+        if (inpaintImageSync(sourceImage, maskImage, finalPath) == 0) {
+            throw new RuntimeException("API 返回的图片数据为空");
         }
 
         return fullFileName;
@@ -100,107 +107,138 @@ public class PicTechInpaintTest {
      * 构造请求 -> 签名 -> 发送 -> 返回字节数组
      */
     public static byte[] inpaintImageSync(String sourceImageBase64, String maskImageBase64) throws Exception {
-        // 1. 准备请求参数
-        Map<String, String> params = new TreeMap<>();
-        params.put("AccountId", ACCOUNT_ID);
-        // 获取 CST 时间戳
-        long cstTimestamp = Instant.now().atZone(ZoneId.of("Asia/Shanghai")).toEpochSecond();
-        params.put("Timestamp", String.valueOf(cstTimestamp));
+        return inpaintImageSync(PicTechBase64Source.ofEncoded(sourceImageBase64), PicTechBase64Source.ofEncoded(maskImageBase64));
+    }
 
-        // 注意：这里传入的是纯 Base64，不需要 data:image/png;base64, 前缀
-        params.put("image", sourceImageBase64);
-        params.put("mask", maskImageBase64);
-
-        // 2. 生成签名
-        String signature = generateSignature(params, SECRET_KEY);
-        params.put("Signature", signature);
-
-        // 3. 构建 JSON
-        String jsonBody = buildJsonRequest(params);
-
-        // 4. 发送 HTTP 请求
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(API_URL))
-                .header("Content-Type", "application/json")
-                .header("Accept", "*/*") // 接受二进制流
-                .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
-                .build();
-
-        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
-
-        // 5. 处理响应
-        if (response.statusCode() == 200) {
-            return response.body();
-        } else {
-            // 如果出错，尝试将 byte[] 转为字符串打印错误信息
-            String errorMsg = new String(response.body(), StandardCharsets.UTF_8);
-            throw new RuntimeException("API 请求失败 [HTTP " + response.statusCode() + "]: " + errorMsg);
+    /**
+     * 【核心 API 调用方法 - 流式版本】
+     * image / mask 在发送时边读边编码，不在堆上生成完整的 Base64 字符串
+     */
+    public static byte[] inpaintImageSync(PicTechBase64Source sourceImage, PicTechBase64Source maskImage) throws Exception {
+        if (regionInpaint.supports(sourceImage, maskImage)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PicTechLocalTools.write(regionInpaint.inpaint(sourceImage, maskImage), "png", 100, out);
+            return out.toByteArray();
+        }
+        PicTechDownscaler.Scaled scaled = downscaler.prepare(sourceImage);
+        if (scaled.scaled()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PicTechLocalTools.write(inpaintScaled(scaled, sourceImage, maskImage), "png", 100, out);
+            return out.toByteArray();
+        }
+        try (PicTechPooledBody body = sendInpaint(sourceImage, maskImage)) {
+            return body.toByteArray();
         }
     }
 
     /**
-     * 工具方法：下载 URL 资源并转为纯 Base64 字符串 (不带 data 前缀)
+     * 【核心 API 调用方法 - 落盘版本】
+     * 修复结果直接从直接内存分片写入 target，返回写入的字节数
      */
-    private static String downloadUrlAsBase64(String urlStr) {
-        try {
-            System.out.println("正在下载: " + urlStr);
-            HttpClient client = HttpClient.newHttpClient();
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(urlStr))
-                    .GET()
-                    .build();
+    public static long inpaintImageSync(PicTechBase64Source sourceImage, PicTechBase64Source maskImage, Path target) throws Exception {
+        if (regionInpaint.supports(sourceImage, maskImage)) {
+            PicTechLocalTools.write(regionInpaint.inpaint(sourceImage, maskImage), "png", 100, target);
+            return Files.size(target);
+        }
+        PicTechDownscaler.Scaled scaled = downscaler.prepare(sourceImage);
+        if (scaled.scaled()) {
+            PicTechLocalTools.write(inpaintScaled(scaled, sourceImage, maskImage), "png", 100, target);
+            return Files.size(target);
+        }
+        try (PicTechPooledBody body = sendInpaint(sourceImage, maskImage)) {
+            body.writeTo(target);
+            return body.size();
+        }
+    }
 
-            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    /**
+     * 上传缩小后的原图与蒙版，修复结果放大回原图尺寸，只替换蒙版覆盖的像素 (蒙版外保持原图的全分辨率像素)
+     */
+    private static BufferedImage inpaintScaled(PicTechDownscaler.Scaled scaled, PicTechBase64Source sourceImage,
+                                               PicTechBase64Source maskImage) throws Exception {
+        byte[] repaired;
+        try (PicTechPooledBody body = sendInpaint(scaled.source(), downscaler.mask(maskImage, scaled))) {
+            repaired = body.toByteArray();
+        }
+        return downscaler.merge(sourceImage, maskImage, repaired);
+    }
 
-            if (response.statusCode() != 200) {
-                System.err.println("下载失败，状态码: " + response.statusCode());
-                return null;
+    /**
+     * 【核心 API 调用方法 - 异步版本】
+     * 不占用调用线程，供区域修复等需要并发发出多个请求的场景使用
+     */
+    public static CompletableFuture<byte[]> inpaintImageAsync(PicTechBase64Source sourceImage, PicTechBase64Source maskImage) {
+        return sendInpaintAsync(sourceImage, maskImage).thenApply(response -> {
+            try (PicTechPooledBody body = response) {
+                return body.toByteArray();
             }
-
-            return Base64.getEncoder().encodeToString(response.body());
-        } catch (Exception e) {
-            System.err.println("下载图片异常: " + e.getMessage());
-            return null;
-        }
+        });
     }
 
     /**
-     * 工具方法：生成签名
+     * 签名、发送并检查状态码，成功时返回存放在池化直接内存中的响应体 (调用方负责 close)
      */
-    private static String generateSignature(Map<String, String> params, String secretKey) throws Exception {
-        // 过滤空值并排序
-        String paramString = params.entrySet().stream()
-                .filter(e -> e.getValue() != null && !e.getValue().isEmpty())
-                .sorted(Map.Entry.comparingByKey())
-                .map(e -> e.getKey() + "=" + e.getValue())
-                .collect(Collectors.joining("&"));
+    private static PicTechPooledBody sendInpaint(PicTechBase64Source sourceImage, PicTechBase64Source maskImage) throws Exception {
+        return PicTechHttpEngine.await(sendInpaintAsync(sourceImage, maskImage));
+    }
 
-        String signString = paramString + "&SecretKey=" + secretKey;
+    private static CompletableFuture<PicTechPooledBody> sendInpaintAsync(PicTechBase64Source sourceImage, PicTechBase64Source maskImage) {
+        // 1. 准备请求参数
+        Map<String, Object> params = new TreeMap<>();
+        params.put("AccountId", ACCOUNT_ID);
+        // 获取 CST 时间戳
+        long cstTimestamp = Instant.now().atZone(ZoneId.of("Asia/Shanghai")).toEpochSecond();
+        params.put("Timestamp", String.valueOf(cstTimestamp));
 
-        Mac hmacSha256 = Mac.getInstance("HmacSHA256");
-        hmacSha256.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
-        byte[] hash = hmacSha256.doFinal(signString.getBytes(StandardCharsets.UTF_8));
+        // 注意：这里传入的是纯 Base64，不需要 data:image/png;base64, 前缀
+        params.put("image", sourceImage);
+        params.put("mask", maskImage);
+
+        // 2~4. 签名、构建 JSON (流式请求体) 并发送 HTTP 请求
+        // 修复接口是幂等的：超时 / 5xx / 429 按退避重试，每次尝试都刷新 Timestamp 并重新签名
+        return resilience.sendAsync("inpaint_image_sync", PicTechResilience.Kind.IDEMPOTENT, attempt -> {
+            if (PicTechMultipartBodyPublisher.enabled()) {
+                // 二进制上传：image / mask 按原始字节发送，签名覆盖各自的 SHA-256 摘要
+                PicTechSigner.forSecret(SECRET_KEY).refreshBinary(params);
+                PicTechMultipartBodyPublisher body = PicTechMultipartBodyPublisher.of(params);
+                return engine.newRequest(API_URL)
+                        .header("Content-Type", body.contentType())
+                        .header("Accept", "*/*")
+                        .POST(body)
+                        .build();
+            }
+            signRequest(params, SECRET_KEY);
+            return engine.newRequest(API_URL)
+                    .header("Content-Type", "application/json")
+                    .header("Accept", "*/*") // 接受二进制流
+                    .POST(buildJsonRequest(params))
+                    .build();
+        }, PicTechPooledBody.handler()).thenApply(response -> {
+            // 5. 处理响应 (重试耗尽后仍失败才抛出)
+            if (response.statusCode() == 200) {
+                return response.body();
+            }
+            // 如果出错，尝试将响应体转为字符串打印错误信息
+            String errorMsg;
+            try (PicTechPooledBody body = response.body()) {
+                errorMsg = body.toString(StandardCharsets.UTF_8);
+            }
+            throw new RuntimeException("API 请求失败 [HTTP " + response.statusCode() + "]: " + errorMsg);
+        });
+    }
 
-        return Base64.getEncoder().encodeToString(hash);
+    /**
+     * 工具方法：生成签名 (同时刷新 Timestamp)
+     */
+    private static void signRequest(Map<String, Object> params, String secretKey) {
+        PicTechSigner.forSecret(secretKey).refresh(params);
     }
 
     /**
-     * 工具方法：手动构建简单的 JSON 字符串
-     * (避免引入 Jackson/Gson 依赖，确保独立运行)
+     * 工具方法：构建流式 JSON 请求体
+     * (避免引入 Jackson/Gson 依赖，确保独立运行；image / mask 发送时才编码)
      */
-    private static String buildJsonRequest(Map<String, String> params) {
-        StringBuilder sb = new StringBuilder("{");
-        boolean first = true;
-        for (Map.Entry<String, String> entry : params.entrySet()) {
-            if (!first) sb.append(",");
-            sb.append("\"").append(entry.getKey()).append("\":\"");
-            // 简单的转义处理
-            sb.append(entry.getValue().replace("\"", "\\\"").replace("\n", ""));
-            sb.append("\"");
-            first = false;
-        }
-        sb.append("}");
-        return sb.toString();
+    private static HttpRequest.BodyPublisher buildJsonRequest(Map<String, Object> params) {
+        return PicTechJsonBodyPublisher.of(params);
     }
 }
\ No newline at end of file
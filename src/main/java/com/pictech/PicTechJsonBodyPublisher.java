@@ -0,0 +1,156 @@
+package com.pictech;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 流式 JSON 请求体
+ *
+ * 普通字段 (字符串 / 数字) 会预先序列化为很小的字节片段；
+ * PicTechBase64Source 类型的字段 (大图片) 在发送时才边读边编码，
+ * 不会在堆上生成完整的 Base64 字符串或 JSON 字符串。
+ */
+public final class PicTechJsonBodyPublisher {
+
+    private PicTechJsonBodyPublisher() {
+    }
+
+    /**
+     * 根据参数表构建请求体 (字段顺序与 Map 的迭代顺序一致)
+     */
+    public static HttpRequest.BodyPublisher of(Map<String, ?> params) {
+        List<Object> parts = buildParts(params);
+        long contentLength = 0;
+        for (Object part : parts) {
+            contentLength += part instanceof byte[] ? ((byte[]) part).length : ((PicTechBase64Source) part).encodedLength();
+        }
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> openStream(parts));
+        return HttpRequest.BodyPublishers.fromPublisher(stream, contentLength);
+    }
+
+    /**
+     * 将参数表拆分为静态字节片段与流式 Base64 片段
+     */
+    private static List<Object> buildParts(Map<String, ?> params) {
+        List<Object> parts = new ArrayList<>();
+        StringBuilder sb = new StringBuilder("{");
+        boolean first = true;
+        for (Map.Entry<String, ?> entry : params.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            if (!first) {
+                sb.append(",");
+            }
+            first = false;
+            sb.append("\"");
+            appendEscaped(sb, entry.getKey());
+            sb.append("\":");
+
+            if (value instanceof PicTechBase64Source) {
+                // Base64 字符集不需要转义，直接流式输出
+                sb.append("\"");
+                parts.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+                parts.add(value);
+                sb.setLength(0);
+                sb.append("\"");
+            } else if (value instanceof Number || value instanceof Boolean) {
+                sb.append(value);
+            } else {
+                sb.append("\"");
+                appendEscaped(sb, value.toString());
+                sb.append("\"");
+            }
+        }
+        sb.append("}");
+        parts.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+        return parts;
+    }
+
+    /**
+     * 按 JSON 规范转义字符串
+     */
+    static void appendEscaped(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+    }
+
+    private static InputStream openStream(List<Object> parts) {
+        List<InputStream> streams = new ArrayList<>(parts.size());
+        for (Object part : parts) {
+            streams.add(part instanceof byte[]
+                    ? new ByteArrayInputStream((byte[]) part)
+                    : new DeferredStream((PicTechBase64Source) part));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * 首次读取时才打开底层 Base64 来源，避免同时持有多个文件句柄
+     */
+    private static final class DeferredStream extends InputStream {
+        private final PicTechBase64Source source;
+        private InputStream delegate;
+
+        DeferredStream(PicTechBase64Source source) {
+            this.source = source;
+        }
+
+        private InputStream delegate() throws IOException {
+            if (delegate == null) {
+                delegate = source.openEncodedStream();
+            }
+            return delegate;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return delegate().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return delegate().read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package com.pictech;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 零依赖的流式 JSON 拉取解析器 (pull parser)
+ *
+ * 直接在 UTF-8 字节数组上逐个读取 token，不构建对象树。
+ * 读取 token、比较字段名、读取数字都不会分配对象；
+ * 只有调用 stringValue() 时才会生成 String (正确处理 \\uXXXX 转义与代理对)。
+ *
+ * 用法：
+ * <pre>
+ *   PicTechJsonReader reader = new PicTechJsonReader(bytes);
+ *   while (reader.next() != Token.END_DOCUMENT) {
+ *       if (reader.token() == Token.NAME && reader.nameEquals(CODE)) { ... }
+ *   }
+ * </pre>
+ */
+public final class PicTechJsonReader {
+
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY,
+        NAME, STRING, NUMBER, TRUE, FALSE, NULL, END_DOCUMENT
+    }
+
+    /** 嵌套层级上限 */
+    private static final int MAX_DEPTH = 256;
+
+    private final byte[] data;
+    private final int limit;
+    private int pos;
+
+    private Token token;
+    private int valueStart;
+    private int valueEnd;
+    private boolean valueEscaped;
+
+    /** 每层是否为对象 (用于判断字符串是字段名还是值) */
+    private final boolean[] inObject = new boolean[MAX_DEPTH];
+    /** 每层是否在等待字段名 */
+    private final boolean[] expectName = new boolean[MAX_DEPTH];
+    private int depth;
+
+    private char[] chars = new char[64];
+
+    public PicTechJsonReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public PicTechJsonReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * 从 ByteBuffer 读取；堆内缓冲区直接复用底层数组，堆外缓冲区会复制一次
+     */
+    public static PicTechJsonReader of(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new PicTechJsonReader(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.duplicate().get(copy);
+        return new PicTechJsonReader(copy);
+    }
+
+    /**
+     * 读取下一个 token
+     */
+    public Token next() {
+        skipSeparators();
+        if (pos >= limit) {
+            return token = Token.END_DOCUMENT;
+        }
+        byte b = data[pos];
+        switch (b) {
+            case '{':
+                pos++;
+                push(true);
+                return token = Token.BEGIN_OBJECT;
+            case '}':
+                pos++;
+                pop();
+                return token = Token.END_OBJECT;
+            case '[':
+                pos++;
+                push(false);
+                return token = Token.BEGIN_ARRAY;
+            case ']':
+                pos++;
+                pop();
+                return token = Token.END_ARRAY;
+            case '"':
+                readString();
+                if (depth > 0 && inObject[depth - 1] && expectName[depth - 1]) {
+                    expectName[depth - 1] = false;
+                    return token = Token.NAME;
+                }
+                afterValue();
+                return token = Token.STRING;
+            case 't':
+                return literal("true", Token.TRUE);
+            case 'f':
+                return literal("false", Token.FALSE);
+            case 'n':
+                return literal("null", Token.NULL);
+            default:
+                if (b == '-' || (b >= '0' && b <= '9')) {
+                    readNumber();
+                    afterValue();
+                    return token = Token.NUMBER;
+                }
+                throw error("意外的字符 '" + (char) b + "'");
+        }
+    }
+
+    public Token token() {
+        return token;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * 当前 token 是否直接位于数组中
+     */
+    public boolean inArray() {
+        return depth > 0 && !inObject[depth - 1];
+    }
+
+    /**
+     * 跳过当前值：当前 token 为 NAME 时跳过其对应的值；为 BEGIN_* 时跳过整个容器
+     */
+    public void skipValue() {
+        if (token == Token.NAME) {
+            next();
+        }
+        if (token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY) {
+            int target = depth - 1;
+            while (depth > target) {
+                if (next() == Token.END_DOCUMENT) {
+                    throw error("JSON 提前结束");
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前字段名 / 字符串是否等于给定 ASCII 字节 (不分配对象)
+     */
+    public boolean nameEquals(byte[] ascii) {
+        if (valueEscaped || valueEnd - valueStart != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (data[valueStart + i] != ascii[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 当前字符串值在原始数组中的起止位置 (不含引号，未反转义)
+     */
+    public int rawStart() {
+        return valueStart;
+    }
+
+    public int rawEnd() {
+        return valueEnd;
+    }
+
+    public byte[] rawData() {
+        return data;
+    }
+
+    /**
+     * 当前字符串 / 字段名的解码结果
+     */
+    public String stringValue() {
+        if (token == Token.NUMBER) {
+            return new String(data, valueStart, valueEnd - valueStart, StandardCharsets.US_ASCII);
+        }
+        if (!valueEscaped) {
+            return new String(data, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+        }
+        int n = decodeEscaped(data, valueStart, valueEnd);
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * 当前数字的整数值 (小数部分截断)
+     */
+    public long longValue() {
+        if (token == Token.STRING) {
+            return (long) doubleValue();
+        }
+        long value = 0;
+        boolean negative = false;
+        int i = valueStart;
+        if (data[i] == '-') {
+            negative = true;
+            i++;
+        }
+        for (; i < valueEnd; i++) {
+            byte b = data[i];
+            if (b < '0' || b > '9') {
+                return (long) doubleValue();
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    public int intValue() {
+        return (int) longValue();
+    }
+
+    /**
+     * 宽松读取整数：数字或数字字符串都可以，其他类型 (null / 非数字字符串) 返回 fallback
+     */
+    public int intValueOr(int fallback) {
+        if (token == Token.NUMBER) {
+            return intValue();
+        }
+        if (token == Token.STRING) {
+            try {
+                return Integer.parseInt(stringValue().trim());
+            } catch (NumberFormatException e) {
+                return fallback;
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * 当前数字的浮点值；纯整数或简单小数走快速路径，其余情况交给 Double.parseDouble
+     */
+    public double doubleValue() {
+        long mantissa = 0;
+        int scale = 0;
+        boolean negative = false;
+        boolean fraction = false;
+        int i = valueStart;
+        if (i < valueEnd && data[i] == '-') {
+            negative = true;
+            i++;
+        }
+        int digits = 0;
+        for (; i < valueEnd; i++) {
+            byte b = data[i];
+            if (b == '.' && !fraction) {
+                fraction = true;
+            } else if (b >= '0' && b <= '9' && digits < 15) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fraction) {
+                    scale++;
+                }
+            } else {
+                return Double.parseDouble(stringValue().trim());
+            }
+        }
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    /**
+     * 解码一段 JSON 字符串转义文本 (例如 OCR 结果中的 \\u4e2d\\u6587)，支持代理对
+     */
+    public static String unescape(String escaped) {
+        byte[] bytes = escaped.getBytes(StandardCharsets.UTF_8);
+        PicTechJsonReader reader = new PicTechJsonReader(bytes);
+        int n = reader.decodeEscaped(bytes, 0, bytes.length);
+        return new String(reader.chars, 0, n);
+    }
+
+    // ================= 内部实现 =================
+
+    private void push(boolean object) {
+        if (depth == MAX_DEPTH) {
+            throw error("嵌套层级过深");
+        }
+        inObject[depth] = object;
+        expectName[depth] = object;
+        depth++;
+    }
+
+    private void pop() {
+        if (depth == 0) {
+            throw error("括号不匹配");
+        }
+        depth--;
+        afterValue();
+    }
+
+    /**
+     * 一个值结束后，所在对象重新进入等待字段名的状态
+     */
+    private void afterValue() {
+        if (depth > 0 && inObject[depth - 1]) {
+            expectName[depth - 1] = true;
+        }
+    }
+
+    private void skipSeparators() {
+        while (pos < limit) {
+            byte b = data[pos];
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == ',' || b == ':') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private Token literal(String text, Token literalToken) {
+        int len = text.length();
+        if (pos + len > limit) {
+            throw error("JSON 提前结束");
+        }
+        for (int i = 0; i < len; i++) {
+            if (data[pos + i] != text.charAt(i)) {
+                throw error("非法的字面量");
+            }
+        }
+        valueStart = pos;
+        pos += len;
+        valueEnd = pos;
+        afterValue();
+        return token = literalToken;
+    }
+
+    private void readString() {
+        int i = pos + 1;
+        boolean escaped = false;
+        while (i < limit) {
+            byte b = data[i];
+            if (b == '"') {
+                valueStart = pos + 1;
+                valueEnd = i;
+                valueEscaped = escaped;
+                pos = i + 1;
+                return;
+            }
+            if (b == '\\') {
+                escaped = true;
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        throw error("字符串未闭合");
+    }
+
+    private void readNumber() {
+        int i = pos;
+        while (i < limit) {
+            byte b = data[i];
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                i++;
+            } else {
+                break;
+            }
+        }
+        valueStart = pos;
+        valueEnd = i;
+        valueEscaped = false;
+        pos = i;
+    }
+
+    /**
+     * 将 [start, end) 的 UTF-8 字节 (含 JSON 转义) 解码到 chars，返回字符数
+     */
+    private int decodeEscaped(byte[] src, int start, int end) {
+        ensureChars(end - start);
+        int n = 0;
+        int i = start;
+        while (i < end) {
+            int b = src[i] & 0xff;
+            if (b == '\\' && i + 1 < end) {
+                byte e = src[i + 1];
+                i += 2;
+                switch (e) {
+                    case 'n': chars[n++] = '\n'; break;
+                    case 'r': chars[n++] = '\r'; break;
+                    case 't': chars[n++] = '\t'; break;
+                    case 'b': chars[n++] = '\b'; break;
+                    case 'f': chars[n++] = '\f'; break;
+                    case 'u':
+                        if (i + 4 <= end) {
+                            int cp = hex(src, i);
+                            if (cp >= 0) {
+                                // 高低代理各自是一个 \\uXXXX，按 UTF-16 顺序写入即可组成完整字符
+                                chars[n++] = (char) cp;
+                                i += 4;
+                                break;
+                            }
+                        }
+                        chars[n++] = '\\';
+                        chars[n++] = 'u';
+                        break;
+                    default:
+                        chars[n++] = (char) e; // \" \\ \/
+                }
+            } else if (b < 0x80) {
+                chars[n++] = (char) b;
+                i++;
+            } else if (b < 0xe0 && i + 1 < end) {
+                chars[n++] = (char) ((b & 0x1f) << 6 | (src[i + 1] & 0x3f));
+                i += 2;
+            } else if (b < 0xf0 && i + 2 < end) {
+                chars[n++] = (char) ((b & 0x0f) << 12 | (src[i + 1] & 0x3f) << 6 | (src[i + 2] & 0x3f));
+                i += 3;
+            } else if (i + 3 < end) {
+                // 4 字节 UTF-8 (例如 emoji) 拆成代理对
+                int cp = (b & 0x07) << 18 | (src[i + 1] & 0x3f) << 12 | (src[i + 2] & 0x3f) << 6 | (src[i + 3] & 0x3f);
+                chars[n++] = Character.highSurrogate(cp);
+                chars[n++] = Character.lowSurrogate(cp);
+                i += 4;
+            } else {
+                chars[n++] = '\uFFFD';
+                i++;
+            }
+        }
+        return n;
+    }
+
+    private static int hex(byte[] src, int i) {
+        int value = 0;
+        for (int k = 0; k < 4; k++) {
+            int d = Character.digit(src[i + k], 16);
+            if (d < 0) {
+                return -1;
+            }
+            value = value << 4 | d;
+        }
+        return value;
+    }
+
+    private void ensureChars(int n) {
+        // UTF-8 字节数 >= UTF-16 字符数 (4 字节序列对应 2 个字符)，因此按字节数分配足够
+        if (chars.length < n) {
+            chars = new char[Math.max(n, chars.length * 2)];
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("JSON 解析错误 (位置 " + pos + "): " + message);
+    }
+}
@@ -0,0 +1,136 @@
+package com.pictech;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定内存的延迟直方图 (HdrHistogram 的简化版)
+ *
+ * 以微秒记录，128 以下每个值一格，之后每个 2 的幂区间再分为 64 格，相对误差不超过 1/64 (约 1.6%)；
+ * 可记录 0 ~ 约 38 小时，共 2048 格 (16KB)。记录是无锁的，可在任意线程并发调用。
+ */
+public final class PicTechLatencyHistogram {
+
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BITS = 6;
+    private static final int MAGNITUDES = 30;
+    private static final int BUCKETS = LINEAR + MAGNITUDES * SUB_BUCKETS;
+    private static final long MAX_MICROS = bucketUpperBound(BUCKETS - 1);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordMicros(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_MICROS));
+        counts.incrementAndGet(bucketIndex(value));
+        total.incrementAndGet();
+        sumMicros.addAndGet(value);
+        maxMicros.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public double meanMillis() {
+        long n = total.get();
+        return n == 0 ? 0 : sumMicros.get() / 1000.0 / n;
+    }
+
+    public double maxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * 分位数 (毫秒)，q 取 0 ~ 1；返回所在格的上界，不超过实际最大值
+     */
+    public double percentileMillis(double q) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return maxMillis();
+    }
+
+    /**
+     * 不超过 micros 的记录数 (按所在格计，用于导出 Prometheus 的累积桶)
+     */
+    public long countAtOrBelowMicros(long micros) {
+        int last = bucketIndex(Math.max(0, Math.min(micros, MAX_MICROS)));
+        long seen = 0;
+        for (int i = 0; i <= last; i++) {
+            seen += counts.get(i);
+        }
+        return seen;
+    }
+
+    public double sumMillis() {
+        return sumMicros.get() / 1000.0;
+    }
+
+    /**
+     * 把 other 的记录累加到当前直方图
+     */
+    public void add(PicTechLatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sumMicros.addAndGet(other.sumMicros.get());
+        maxMicros.accumulateAndGet(other.maxMicros.get(), Math::max);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sumMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * 格式化为 "n=.. p50=.. p99=.. p99.9=.. max=.." (毫秒)
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms", count(),
+                percentileMillis(0.5), percentileMillis(0.9), percentileMillis(0.99), percentileMillis(0.999), maxMillis());
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,284 @@
+package com.pictech;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 端到端压测：以固定到达率驱动客户端 (签名、JSON 请求体、重试、Base64 解码全链路)，报告吞吐与延迟分位数
+ *
+ * 开环模型：第 i 个请求的计划发送时间固定为 start + i / rate，不因前面的请求变慢而推迟；
+ * 延迟从「计划发送时间」算起，压测端自身排队 (线程不足、在途上限) 造成的等待也计入，
+ * 避免闭环压测的协调遗漏 (coordinated omission) 把服务变慢的时段从统计里漏掉。
+ * 同时给出从实际发出算起的服务时间，两者差距大说明压测端或客户端在排队。
+ *
+ * 用法 (默认启动内置桩服务器):
+ *   PicTechLoadTest [--endpoint tools/resize|tools/crop|tools/watermark|image_ocr_sync|inpaint_image_sync|mix]
+ *                   [--rate 每秒请求数] [--duration 秒] [--warmup 秒] [--max-in-flight N] [--image-bytes N]
+ *                   [--target 接口根地址]                       # 压测其他地址 (不启动桩服务器)
+ *                   [--latency-ms 20] [--sigma 0.5] [--errors 0.01] [--throttle 每秒请求数] [--response-bytes N]
+ *                   [--transport json|multipart]  # OCR / 修复接口的上传方式 (JSON + Base64 或二进制 multipart)
+ *                   [--gzip-threshold N]  # 请求体不小于 N 字节时 gzip 压缩；桩服务器同时压缩不小于 N 字节的响应
+ */
+public class PicTechLoadTest {
+
+    private static final String[] MIX = {"tools/resize", "tools/crop", "tools/watermark", "image_ocr_sync", "inpaint_image_sync"};
+
+    private final String endpoint;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final byte[] image;
+    private final Path outputDir;
+
+    private final PicTechLatencyHistogram latency = new PicTechLatencyHistogram();
+    private final PicTechLatencyHistogram serviceTime = new PicTechLatencyHistogram();
+    private final AtomicReference<PicTechLatencyHistogram> interval = new AtomicReference<>(new PicTechLatencyHistogram());
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Map<String, LongAdder> errorKinds = new ConcurrentHashMap<>();
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    PicTechLoadTest(String endpoint, double rate, Duration duration, Duration warmup, int maxInFlight, int imageBytes)
+            throws IOException {
+        this.endpoint = endpoint;
+        this.rate = rate;
+        this.durationNanos = duration.toNanos();
+        this.warmupNanos = warmup.toNanos();
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.image = new byte[imageBytes];
+        new Random(imageBytes).nextBytes(image);
+        this.outputDir = Files.createTempDirectory("pictech-load-");
+        outputDir.toFile().deleteOnExit();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.out.println("无法识别的参数: " + args[i]);
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        String endpoint = options.getOrDefault("endpoint", "tools/resize");
+        double rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "30")));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "5")));
+        int maxInFlight = Integer.parseInt(options.getOrDefault("max-in-flight", "10000"));
+        int imageBytes = Integer.parseInt(options.getOrDefault("image-bytes", "102400"));
+        System.setProperty("pictech.upload.transport", options.getOrDefault("transport", "json"));
+        int gzipThreshold = Integer.parseInt(options.getOrDefault("gzip-threshold", "-1"));
+        if (gzipThreshold >= 0) {
+            System.setProperty("pictech.gzip.threshold", String.valueOf(gzipThreshold));
+        }
+
+        PicTechStubServer stub = null;
+        String target = options.get("target");
+        if (target == null) {
+            stub = PicTechStubServer.start(0)
+                    .latencyLogNormal(Duration.ofMillis(Long.parseLong(options.getOrDefault("latency-ms", "20"))),
+                            Double.parseDouble(options.getOrDefault("sigma", "0.5")))
+                    .errors(Double.parseDouble(options.getOrDefault("errors", "0")), 503)
+                    .throttle(Double.parseDouble(options.getOrDefault("throttle", "0")))
+                    .responseBytes(Integer.parseInt(options.getOrDefault("response-bytes", "102400")))
+                    .gzipResponses(gzipThreshold)
+                    .maxClockSkew(Duration.ofMinutes(5))
+                    // 示例类中的占位凭证
+                    .account("your_ACCOUNT_ID", "your_SECRET_KEY")
+                    .account("pic_YOUR_ID", "YOUR_SECRET_KEY");
+            target = stub.baseUrl();
+        }
+        // 必须在首次使用示例类之前设置 (接口地址在类初始化时读取)
+        System.setProperty("pictech.api.host", target);
+
+        System.out.printf("🚀 压测 %s @ %s: %.0f 请求/秒, 预热 %ds + 测量 %ds%n", endpoint, target, rate,
+                warmup.toSeconds(), duration.toSeconds());
+        PicTechLoadTest test = new PicTechLoadTest(endpoint, rate, duration, warmup, maxInFlight, imageBytes);
+        test.run();
+        test.printReport();
+
+        int exitCode = 0;
+        if (stub != null) {
+            System.out.printf("   桩服务器: 收到 %d (multipart %d), 限流 %d, 注入错误 %d, 签名失败 %d, 重复签名 %d%n", stub.requestCount(),
+                    stub.multipartRequestCount(), stub.throttledCount(), stub.injectedErrorCount(), stub.signatureFailureCount(), stub.replayCount());
+            if (gzipThreshold >= 0) {
+                System.out.printf("   gzip: 请求 %d, 响应 %d%n", stub.gzipRequestCount(), stub.gzipResponseCount());
+            }
+            // 签名失败或重放说明客户端签名链路有问题，与负载无关
+            if (stub.signatureFailureCount() > 0 || stub.replayCount() > 0) {
+                System.out.println("❌ 客户端签名未通过桩服务器校验");
+                exitCode = 1;
+            }
+            stub.close();
+        }
+        System.exit(exitCode);
+    }
+
+    void run() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "pictech-load-" + sequence.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long measureStart = start + warmupNanos;
+        long end = measureStart + durationNanos;
+        long nextProgress = start + TimeUnit.SECONDS.toNanos(1);
+
+        for (long i = 0; ; i++) {
+            long intended = start + i * intervalNanos;
+            if (intended >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            // 在途达到上限时在这里等待；后续请求的延迟仍从各自的计划时间算起
+            inFlight.acquire();
+            String target = endpoint.equals("mix") ? MIX[(int) (i % MIX.length)] : endpoint;
+            boolean measured = intended >= measureStart;
+            long index = i;
+            executor.execute(() -> {
+                try {
+                    call(target, index, intended, measured);
+                } finally {
+                    inFlight.release();
+                }
+            });
+            if (System.nanoTime() >= nextProgress) {
+                printProgress(start, measureStart);
+                nextProgress += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        executor.shutdown();
+        executor.awaitTermination(2, TimeUnit.MINUTES);
+        System.out.println();
+    }
+
+    private void call(String target, long index, long intended, boolean measured) {
+        long started = System.nanoTime();
+        String error = null;
+        try {
+            error = switch (target) {
+                case "image_ocr_sync" -> ocr(index);
+                case "inpaint_image_sync" -> inpaint(index);
+                default -> tool(target, index);
+            };
+        } catch (Exception e) {
+            error = e.getClass().getSimpleName();
+        }
+        long finished = System.nanoTime();
+        interval.get().recordNanos(finished - intended);
+        if (!measured) {
+            return;
+        }
+        sent.increment();
+        if (error == null) {
+            completed.increment();
+            latency.recordNanos(finished - intended);
+            serviceTime.recordNanos(finished - started);
+        } else {
+            errors.increment();
+            errorKinds.computeIfAbsent(error, k -> new LongAdder()).increment();
+        }
+    }
+
+    private String tool(String target, long index) throws Exception {
+        Map<String, Object> payload = new TreeMap<>();
+        // 每个请求的参数都不同：同一毫秒内参数相同的两个请求签名相同，会被服务端当作重放拒绝
+        payload.put("Image", "https://pictech.top/pctccloud/test/source_Chinese.jpeg?n=" + index);
+        switch (target) {
+            case "tools/resize" -> payload.put("Scale", 0.5);
+            case "tools/crop" -> {
+                payload.put("X", 100);
+                payload.put("Y", 50);
+                payload.put("Width", 300);
+                payload.put("Height", 150);
+            }
+            default -> {
+                payload.put("TemplateKey", "pattern_diagonal_da");
+                payload.put("Text", "压测 #" + index);
+            }
+        }
+        Path file = outputDir.resolve("load-" + index + ".png");
+        try {
+            PicTechBase64FileHandler.Result result = PicTechApiTest.callTool(target, payload, file);
+            if (result.statusCode() != 200) {
+                return "HTTP " + result.statusCode();
+            }
+            return result.saved() ? null : "no Base64";
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private String ocr(long index) throws Exception {
+        PicTechOcrResult result = PicTechOcrResult.parse(PicTechOcrTest.performOcr(PicTechBase64Source.ofBytes(unique(index), "image/jpeg")));
+        return result.success() ? null : "Code " + result.code();
+    }
+
+    private String inpaint(long index) throws Exception {
+        byte[] png = PicTechInpaintTest.inpaintImageSync(PicTechBase64Source.ofBytes(unique(index), null), PicTechBase64Source.ofBytes(image, null));
+        return png.length > 0 ? null : "empty";
+    }
+
+    /**
+     * 末尾 8 字节写入序号的图片副本 (OCR / 修复的 Timestamp 以秒为单位，图片相同的请求在同一秒内签名相同)
+     */
+    private byte[] unique(long index) {
+        byte[] copy = image.clone();
+        for (int i = 0; i < 8 && i < copy.length; i++) {
+            copy[copy.length - 1 - i] = (byte) (index >>> (8 * i));
+        }
+        return copy;
+    }
+
+    // ================= 输出 =================
+
+    private void printProgress(long start, long measureStart) {
+        PicTechLatencyHistogram last = interval.getAndSet(new PicTechLatencyHistogram());
+        long now = System.nanoTime();
+        System.out.printf("\r%s %3ds | 本秒完成 %d, p50 %.1fms, p99 %.1fms | 在途 %d   ",
+                now < measureStart ? "预热" : "测量", TimeUnit.NANOSECONDS.toSeconds(now - start),
+                last.count(), last.percentileMillis(0.5), last.percentileMillis(0.99),
+                maxInFlight - inFlight.availablePermits());
+    }
+
+    void printReport() {
+        double seconds = durationNanos / 1e9;
+        System.out.printf("%n📊 %s: 计划 %.0f 请求/秒, 实际完成 %.1f 请求/秒 (成功 %d, 失败 %d)%n",
+                endpoint, rate, completed.sum() / seconds, completed.sum(), errors.sum());
+        if (!errorKinds.isEmpty()) {
+            System.out.println("   失败原因: " + errorKinds);
+        }
+        System.out.printf("   延迟 (从计划时间起): p50 %.2fms  p90 %.2fms  p99 %.2fms  p99.9 %.2fms  max %.2fms%n",
+                latency.percentileMillis(0.5), latency.percentileMillis(0.9), latency.percentileMillis(0.99),
+                latency.percentileMillis(0.999), latency.maxMillis());
+        System.out.printf("   服务时间 (从发出起):  p50 %.2fms  p90 %.2fms  p99 %.2fms  p99.9 %.2fms  max %.2fms%n",
+                serviceTime.percentileMillis(0.5), serviceTime.percentileMillis(0.9), serviceTime.percentileMillis(0.99),
+                serviceTime.percentileMillis(0.999), serviceTime.maxMillis());
+        System.out.println("   客户端并发窗口: " + PicTechAdaptiveLimiter.limits());
+        System.out.println("   " + PicTechMemoryGovernor.shared() + " | " + PicTechBufferPool.shared());
+        System.out.print("   接口指标 (含预热):\n" + PicTechMetrics.snapshot());
+    }
+}
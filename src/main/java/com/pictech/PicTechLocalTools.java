@@ -0,0 +1,470 @@
+package com.pictech;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * /tools/resize、/tools/crop、/tools/watermark 的本地执行引擎 (ImageIO / Java2D)
+ *
+ * 参数约定与服务端一致：
+ *   resize: Scale 按比例缩放；Width / Height + Mode=fixed 强制拉伸；
+ *           Mode=lfit (默认) 等比缩放到 Width x Height 以内，只给一边时另一边按比例计算
+ *   crop:   X / Y / Width / Height，超出原图的部分按原图边界截断
+ *   watermark: TemplateKey / Text / Color / Opacity / Size，由 PicTechWatermarkEngine 渲染
+ *   通用:   OutputFormat (JPEG / PNG，默认与原图相同)，Quality (1~100，默认 90，仅 JPEG)
+ *
+ * 缩小超过一半时先逐级减半 (双线性) 再做最后一次双三次插值，避免一次大比例缩放的锯齿与摩尔纹。
+ * 所有调用在共享线程池上执行 (默认 CPU 核数)，可通过系统属性调整：
+ *   -Dpictech.tools.mode=remote    remote (默认) / auto / local
+ *   -Dpictech.tools.threads=N
+ *
+ * 默认全部交给服务端：本地的重采样、JPEG 编码器与元数据处理和服务端并不完全相同，需显式开启。
+ * auto 模式下，本地能解码原图且参数都能识别时本地执行，否则 (如 WebP 原图、未知参数) 交给服务端。
+ * 本地水印模板只是按服务端模板的外观近似实现，auto 模式下 watermark 仍交给服务端，只有 local 模式才在本地渲染。
+ */
+public final class PicTechLocalTools {
+
+    /**
+     * 执行位置策略
+     */
+    public enum Policy {
+        /** 只在本地执行，不支持的请求返回错误 */
+        LOCAL,
+        /** 始终调用服务端 */
+        REMOTE,
+        /** 能本地执行就本地执行，否则调用服务端 */
+        AUTO
+    }
+
+    private static final Set<String> RESIZE_PARAMS = Set.of("Scale", "Width", "Height", "Mode", "OutputFormat", "Quality");
+    private static final Set<String> CROP_PARAMS = Set.of("X", "Y", "Width", "Height", "OutputFormat", "Quality");
+    /** 与处理结果无关的参数 */
+    private static final Set<String> COMMON_PARAMS = Set.of("AccountId", "Image", "Timestamp", "Signature");
+    private static final int DEFAULT_QUALITY = 90;
+    /** 本地结果的 RequestId 前缀 */
+    private static final String LOCAL_REQUEST_ID = "local-";
+
+    private static volatile PicTechLocalTools shared;
+
+    private final Policy policy;
+    private final ExecutorService executor;
+    private final PicTechContentCache sources;
+    private final PicTechWatermarkEngine watermarks = PicTechWatermarkEngine.shared();
+    private final AtomicInteger sequence = new AtomicInteger();
+    private final LongAdder localCount = new LongAdder();
+    private final LongAdder remoteCount = new LongAdder();
+
+    static {
+        // 不使用 ImageIO 的磁盘缓存，图片都在内存中处理
+        ImageIO.setUseCache(false);
+    }
+
+    public PicTechLocalTools(Policy policy, int threads, PicTechContentCache sources) {
+        this.policy = policy;
+        this.sources = sources;
+        AtomicInteger index = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "pictech-local-tools-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 获取按系统属性配置的全局实例
+     */
+    public static PicTechLocalTools shared() {
+        PicTechLocalTools tools = shared;
+        if (tools == null) {
+            synchronized (PicTechLocalTools.class) {
+                tools = shared;
+                if (tools == null) {
+                    Policy policy = Policy.valueOf(System.getProperty("pictech.tools.mode", "remote").toUpperCase(Locale.ROOT));
+                    int threads = Integer.getInteger("pictech.tools.threads", Runtime.getRuntime().availableProcessors());
+                    tools = new PicTechLocalTools(policy, Math.max(1, threads), PicTechContentCache.shared());
+                    shared = tools;
+                }
+            }
+        }
+        return tools;
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    @Override
+    public String toString() {
+        return "policy=" + policy.name().toLowerCase(Locale.ROOT) + ", local=" + localCount.sum() + ", remote=" + remoteCount.sum();
+    }
+
+    /**
+     * 按策略执行一次工具调用：本地执行或交给 remote
+     *
+     * @param endpoint "tools/resize" / "tools/crop" / "tools/watermark" / 其他接口 (始终交给 remote)
+     */
+    public PicTechBase64FileHandler.Result run(String endpoint, Map<String, ?> params, Path target,
+                                               PicTechResultCache.Loader remote) throws Exception {
+        if (runsLocally(endpoint) && supports(endpoint, params)) {
+            try {
+                PicTechBase64FileHandler.Result result = execute(endpoint, params, target);
+                localCount.increment();
+                return result;
+            } catch (UnsupportedOperationException e) {
+                if (policy == Policy.LOCAL) {
+                    return error(400, e.getMessage());
+                }
+            }
+        } else if (policy == Policy.LOCAL) {
+            return error(400, "本地不支持: " + endpoint + " " + params.keySet());
+        }
+        remoteCount.increment();
+        return remote.load();
+    }
+
+    /**
+     * 结果是否由本地引擎生成 (而不是服务端返回)
+     */
+    public static boolean isLocal(PicTechToolResult result) {
+        return result.requestId() != null && result.requestId().startsWith(LOCAL_REQUEST_ID);
+    }
+
+    /**
+     * 当前策略是否允许在本地执行该接口 (水印只在 local 模式下本地渲染)
+     */
+    private boolean runsLocally(String endpoint) {
+        return switch (policy) {
+            case LOCAL -> true;
+            case AUTO -> !"tools/watermark".equals(endpoint);
+            case REMOTE -> false;
+        };
+    }
+
+    /**
+     * 流水线中的一步 (已解码的图像，无 Image 参数) 是否按当前策略在本地执行
+     */
+    boolean runsLocally(String endpoint, Map<String, ?> params) {
+        return runsLocally(endpoint) && supportsParams(endpoint, params);
+    }
+
+    /**
+     * 接口和参数是否都能在本地处理 (不检查原图能否解码)
+     */
+    public boolean supports(String endpoint, Map<String, ?> params) {
+        return params.get("Image") != null && supportsParams(endpoint, params);
+    }
+
+    private boolean supportsParams(String endpoint, Map<String, ?> params) {
+        Set<String> allowed = switch (endpoint) {
+            case "tools/resize" -> RESIZE_PARAMS;
+            case "tools/crop" -> CROP_PARAMS;
+            case "tools/watermark" -> watermarks.supports(params) ? PicTechWatermarkEngine.PARAMS : null;
+            default -> null;
+        };
+        if (allowed == null) {
+            return false;
+        }
+        for (String key : params.keySet()) {
+            if (!allowed.contains(key) && !COMMON_PARAMS.contains(key)) {
+                return false;
+            }
+        }
+        Object format = params.get("OutputFormat");
+        return format == null || writerFormat(format.toString()) != null;
+    }
+
+    /**
+     * 在共享线程池上异步执行
+     */
+    public CompletableFuture<PicTechBase64FileHandler.Result> executeAsync(String endpoint, Map<String, ?> params, Path target) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return execute(endpoint, params, target);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted");
+            }
+        }, executor);
+    }
+
+    /**
+     * 在当前线程本地执行，结果写入 target；原图无法解码时抛出 UnsupportedOperationException
+     * 参数错误 (如裁剪区域完全在图片外) 与服务端一样返回 Code 400
+     */
+    public PicTechBase64FileHandler.Result execute(String endpoint, Map<String, ?> params, Path target)
+            throws IOException, InterruptedException {
+        Decoded source = decode(params.get("Image").toString());
+        BufferedImage image = source.image();
+        BufferedImage output;
+        int quality;
+        try {
+            quality = intParam(params, "Quality", DEFAULT_QUALITY);
+            output = switch (endpoint) {
+                case "tools/resize" -> resize(image, params);
+                case "tools/crop" -> crop(image, params);
+                case "tools/watermark" -> watermarks.apply(image, params);
+                default -> throw new UnsupportedOperationException("本地不支持: " + endpoint);
+            };
+        } catch (IllegalArgumentException e) {
+            return error(400, e.getMessage());
+        }
+
+        String format = params.get("OutputFormat") != null ? writerFormat(params.get("OutputFormat").toString()) : null;
+        if (format == null) {
+            format = writerFormat(source.format()) != null ? writerFormat(source.format()) : "jpeg";
+        }
+
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", ".part");
+        try {
+            write(output, format, quality, temp);
+            PicTechBase64FileHandler.moveAtomically(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        String envelope = "{\"Code\":200,\"RequestId\":\"" + LOCAL_REQUEST_ID + sequence.incrementAndGet() + "\",\"Data\":{\"Width\":"
+                + output.getWidth() + ",\"Height\":" + output.getHeight() + "}}";
+        return new PicTechBase64FileHandler.Result(200, target, Files.size(target), envelope);
+    }
+
+    // ================= 几何运算 =================
+
+    /**
+     * 计算 resize 的目标尺寸 (与服务端约定一致)
+     */
+    static int[] resizeSize(int width, int height, Map<String, ?> params) {
+        Object scale = params.get("Scale");
+        if (scale != null) {
+            double s = Double.parseDouble(scale.toString());
+            if (s <= 0) {
+                throw new IllegalArgumentException("Scale 必须大于 0");
+            }
+            return new int[]{Math.max(1, (int) Math.round(width * s)), Math.max(1, (int) Math.round(height * s))};
+        }
+        int w = intParam(params, "Width", 0);
+        int h = intParam(params, "Height", 0);
+        if (w <= 0 && h <= 0) {
+            throw new IllegalArgumentException("需要 Scale 或 Width / Height");
+        }
+        String mode = params.get("Mode") == null ? "lfit" : params.get("Mode").toString().toLowerCase(Locale.ROOT);
+        if ("fixed".equals(mode) && w > 0 && h > 0) {
+            return new int[]{w, h};
+        }
+        if (!"fixed".equals(mode) && !"lfit".equals(mode)) {
+            throw new IllegalArgumentException("不支持的 Mode: " + mode);
+        }
+        double ratio;
+        if (w > 0 && h > 0) {
+            ratio = Math.min((double) w / width, (double) h / height);
+        } else if (w > 0) {
+            ratio = (double) w / width;
+        } else {
+            ratio = (double) h / height;
+        }
+        return new int[]{Math.max(1, (int) Math.round(width * ratio)), Math.max(1, (int) Math.round(height * ratio))};
+    }
+
+    static BufferedImage resize(BufferedImage image, Map<String, ?> params) {
+        int[] size = resizeSize(image.getWidth(), image.getHeight(), params);
+        return scale(image, size[0], size[1]);
+    }
+
+    /**
+     * 计算裁剪区域 {x, y, w, h} (超出图片的部分截断)
+     */
+    static int[] cropRect(int width, int height, Map<String, ?> params) {
+        int x = Math.max(0, intParam(params, "X", 0));
+        int y = Math.max(0, intParam(params, "Y", 0));
+        int w = intParam(params, "Width", width - x);
+        int h = intParam(params, "Height", height - y);
+        if (x >= width || y >= height || w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("裁剪区域超出图片范围");
+        }
+        return new int[]{x, y, Math.min(w, width - x), Math.min(h, height - y)};
+    }
+
+    static BufferedImage crop(BufferedImage image, Map<String, ?> params) {
+        int[] rect = cropRect(image.getWidth(), image.getHeight(), params);
+        int x = rect[0];
+        int y = rect[1];
+        int w = rect[2];
+        int h = rect[3];
+        // getSubimage 与原图共享像素，复制一份以便原图尽早回收
+        BufferedImage out = new BufferedImage(w, h, workingType(image));
+        Graphics2D g = out.createGraphics();
+        try {
+            g.drawImage(image.getSubimage(x, y, w, h), 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    /**
+     * 高质量缩放：缩小超过一半时逐级减半 (双线性)，最后一步双三次
+     */
+    static BufferedImage scale(BufferedImage image, int width, int height) {
+        int type = workingType(image);
+        BufferedImage current = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        while (w / 2 >= width || h / 2 >= height) {
+            int nw = w / 2 >= width ? w / 2 : w;
+            int nh = h / 2 >= height ? h / 2 : h;
+            current = draw(current, nw, nh, type, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            w = nw;
+            h = nh;
+        }
+        if (w != width || h != height || current == image) {
+            current = draw(current, width, height, type, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        }
+        return current;
+    }
+
+    private static BufferedImage draw(BufferedImage source, int width, int height, int type, Object interpolation) {
+        BufferedImage out = new BufferedImage(width, height, type);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    static int workingType(BufferedImage image) {
+        return image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+    }
+
+    // ================= 编解码 =================
+
+    record Decoded(BufferedImage image, String format) {
+    }
+
+    /**
+     * 读取原图：http(s) URL 经本地内容缓存，data: URI 直接解码，其余按本地路径处理
+     */
+    Decoded decode(String image) throws IOException, InterruptedException {
+        ImageInputStream in;
+        if (image.startsWith("http://") || image.startsWith("https://")) {
+            in = ImageIO.createImageInputStream(sources.get(image).file().toFile());
+        } else if (image.startsWith("data:")) {
+            byte[] bytes = Base64.getMimeDecoder().decode(image.substring(image.indexOf(',') + 1));
+            in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+        } else {
+            in = ImageIO.createImageInputStream(Path.of(image).toFile());
+        }
+        if (in == null) {
+            throw new UnsupportedOperationException("无法读取原图: " + image);
+        }
+        try (in) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new UnsupportedOperationException("本地无法解码该图片格式: " + image);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Decoded(reader.read(0), reader.getFormatName().toLowerCase(Locale.ROOT));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * OutputFormat -> ImageIO 格式名；本地无法写出时返回 null
+     */
+    static String writerFormat(String format) {
+        String name = format.toLowerCase(Locale.ROOT);
+        if ("jpg".equals(name)) {
+            name = "jpeg";
+        }
+        return ImageIO.getImageWritersByFormatName(name).hasNext() ? name : null;
+    }
+
+    static void write(BufferedImage image, String format, int quality, Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(image, format, quality, out);
+        }
+    }
+
+    /**
+     * 编码到输出流 (不关闭 target)
+     */
+    static void write(BufferedImage image, String format, int quality, OutputStream target) throws IOException {
+        if ("jpeg".equals(format) && image.getColorModel().hasAlpha()) {
+            // JPEG 不支持透明通道：铺白底
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            try {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, image.getWidth(), image.getHeight());
+                g.drawImage(image, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+            image = rgb;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(target)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpeg".equals(format)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(Math.max(1, Math.min(100, quality)) / 100f);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static int intParam(Map<String, ?> params, String key, int defaultValue) {
+        Object value = params.get(key);
+        if (value == null || value.toString().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return (int) Math.round(Double.parseDouble(value.toString()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " 不是数字: " + value);
+        }
+    }
+
+    private static PicTechBase64FileHandler.Result error(int code, String message) {
+        StringBuilder sb = new StringBuilder("{\"Code\":").append(code).append(",\"Message\":\"");
+        PicTechJsonBodyPublisher.appendEscaped(sb, message);
+        return new PicTechBase64FileHandler.Result(200, null, 0, sb.append("\"}").toString());
+    }
+}
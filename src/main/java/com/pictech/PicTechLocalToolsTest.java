@@ -0,0 +1,813 @@
+package com.pictech;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地 resize / crop / watermark 引擎测试
+ *
+ * 1. 离线：用合成图片校验参数约定 (尺寸、裁剪像素、缩小质量、策略回退、并行执行、水印合成与吞吐、流水线、上传缩小、分块 OCR、区域修复)
+ * 2. 金样比对：golden/ 目录下有服务端录制的结果时，逐个比较尺寸与 PSNR
+ *
+ * 录制金样 (需要真实的 AccountId / SecretKey)：
+ *   java com.pictech.PicTechLocalToolsTest record
+ * 可通过 -Dpictech.golden.dir / -Dpictech.golden.minPsnr 调整目录与阈值
+ */
+public class PicTechLocalToolsTest {
+
+    // ================= 配置区域 =================
+    private static final String API_HOST = "https://www.pictech.top/pictech/commonapi";
+    private static final String TEST_IMAGE_URL = "https://pictech.top/pctccloud/pictechcc-translate/1769184000000/atlas50696a9ea89e4456898a0c6d3393792f/bac35d1fe8904961a0c7478d36fa8eb6_source_Chinese.jpeg";
+    private static final String ACCOUNT_ID = "your_ACCOUNT_ID";
+    private static final String SECRET_KEY = "your_SECRET_KEY";
+    // ===========================================
+
+    private static final Path GOLDEN_DIR = Path.of(System.getProperty("pictech.golden.dir", "golden"));
+    private static final double MIN_PSNR = Double.parseDouble(System.getProperty("pictech.golden.minPsnr", "30"));
+    private static int failures = 0;
+
+    /**
+     * 与 PicTechApiTest 中 resize / crop 用例相同的参数
+     */
+    private record Case(String name, String endpoint, Map<String, Object> params) {
+
+        String fileName() {
+            return name + ("PNG".equals(params.get("OutputFormat")) ? ".png" : ".jpg");
+        }
+    }
+
+    private static List<Case> cases(String image) {
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("resize_50pct", "tools/resize", params(image, "Scale", 0.5, "OutputFormat", "JPEG", "Quality", 90)));
+        cases.add(new Case("fixed_200x300", "tools/resize", params(image, "Width", 200, "Height", 300, "Mode", "fixed",
+                "OutputFormat", "PNG", "Quality", 100)));
+        cases.add(new Case("crop_300x150", "tools/crop", params(image, "X", 100, "Y", 50, "Width", 300, "Height", 150,
+                "OutputFormat", "JPEG")));
+        cases.add(new Case("width_300", "tools/resize", params(image, "Width", 300, "Mode", "lfit")));
+        return cases;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "record".equals(args[0])) {
+            record();
+            return;
+        }
+
+        System.out.println("🚀 开始测试本地 resize / crop / watermark 引擎...");
+        Path work = Files.createTempDirectory("pictech-local-tools");
+        Path source = work.resolve("source.png");
+        BufferedImage synthetic = syntheticImage(1200, 800);
+        ImageIO.write(synthetic, "png", source.toFile());
+
+        PicTechLocalTools tools = new PicTechLocalTools(PicTechLocalTools.Policy.AUTO, 4, PicTechContentCache.shared());
+        testSizeContract(tools, source, work);
+        testCropPixels(tools, source, synthetic, work);
+        testDownscaleQuality(synthetic);
+        testPolicy(tools, source, work);
+        testParallel(tools, source, work);
+        testWatermark(tools, source, work);
+        testPipeline(tools, source, work);
+        testUploadDownscale(tools, source, synthetic, work);
+        testTiledOcr(work);
+        testRegionInpaint(work);
+        testGolden(tools, work);
+
+        if (failures > 0) {
+            System.out.println("\n❌ 共 " + failures + " 项失败");
+            System.exit(1);
+        }
+        System.out.println("\n✅ 全部通过");
+    }
+
+    // ==========================================
+    // 测试用例
+    // ==========================================
+
+    private static void testSizeContract(PicTechLocalTools tools, Path source, Path work) throws Exception {
+        System.out.println("\n--- 尺寸约定 (原图 1200x800) ---");
+        int[][] expected = {{600, 400}, {200, 300}, {300, 150}, {300, 200}};
+        List<Case> cases = cases(source.toString());
+        for (int i = 0; i < cases.size(); i++) {
+            Case c = cases.get(i);
+            PicTechBase64FileHandler.Result result = tools.execute(c.endpoint(), c.params(), work.resolve(c.fileName()));
+            BufferedImage out = ImageIO.read(result.file().toFile());
+            PicTechToolResult meta = PicTechToolResult.parse(result.envelope());
+            report(c.name() + " -> " + out.getWidth() + "x" + out.getHeight(),
+                    out.getWidth() == expected[i][0] && out.getHeight() == expected[i][1]
+                            && meta.width() == out.getWidth() && meta.height() == out.getHeight());
+        }
+        int[] lfitBox = PicTechLocalTools.resizeSize(1200, 800, params(null, "Width", 300, "Height", 300, "Mode", "lfit"));
+        report("lfit 300x300 -> 300x200", lfitBox[0] == 300 && lfitBox[1] == 200);
+        int[] heightOnly = PicTechLocalTools.resizeSize(1200, 800, params(null, "Height", 100));
+        report("仅 Height 100 -> 150x100", heightOnly[0] == 150 && heightOnly[1] == 100);
+    }
+
+    private static void testCropPixels(PicTechLocalTools tools, Path source, BufferedImage synthetic, Path work) throws Exception {
+        System.out.println("\n--- 裁剪像素 ---");
+        PicTechBase64FileHandler.Result result = tools.execute("tools/crop",
+                params(source.toString(), "X", 1100, "Y", 700, "Width", 300, "Height", 300, "OutputFormat", "PNG"),
+                work.resolve("crop_edge.png"));
+        BufferedImage out = ImageIO.read(result.file().toFile());
+        boolean same = out.getWidth() == 100 && out.getHeight() == 100;
+        for (int y = 0; same && y < out.getHeight(); y++) {
+            for (int x = 0; x < out.getWidth(); x++) {
+                if ((out.getRGB(x, y) & 0xffffff) != (synthetic.getRGB(1100 + x, 700 + y) & 0xffffff)) {
+                    same = false;
+                    break;
+                }
+            }
+        }
+        report("超出边界的区域被截断，PNG 像素与原图一致", same);
+
+        PicTechBase64FileHandler.Result outside = tools.execute("tools/crop",
+                params(source.toString(), "X", 5000, "Y", 0, "Width", 10, "Height", 10), work.resolve("crop_outside.jpg"));
+        report("裁剪区域在图片外返回 Code 400", !outside.saved() && PicTechToolResult.parse(outside.envelope()).code() == 400);
+    }
+
+    private static void testDownscaleQuality(BufferedImage synthetic) {
+        System.out.println("\n--- 缩小质量 (1/8) ---");
+        BufferedImage reference = boxDownscale(synthetic, 8);
+        BufferedImage multiStep = PicTechLocalTools.scale(synthetic, 150, 100);
+        BufferedImage oneStep = new BufferedImage(150, 100, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = oneStep.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.drawImage(synthetic, 0, 0, 150, 100, null);
+        g.dispose();
+
+        double psnrMulti = psnr(reference, multiStep);
+        double psnrOne = psnr(reference, oneStep);
+        System.out.printf("   与区域平均参考的 PSNR: 逐级 %.1f dB | 一次双三次 %.1f dB%n", psnrMulti, psnrOne);
+        report("逐级缩小优于一次缩放", psnrMulti > psnrOne);
+    }
+
+    private static void testPolicy(PicTechLocalTools tools, Path source, Path work) throws Exception {
+        System.out.println("\n--- 执行策略 ---");
+        Path notAnImage = work.resolve("not_an_image.bin");
+        Files.write(notAnImage, "not an image".getBytes(StandardCharsets.UTF_8));
+        PicTechBase64FileHandler.Result remote = new PicTechBase64FileHandler.Result(200, null, 0, "{\"Code\":200,\"RequestId\":\"remote\"}");
+
+        report("水印接口交给服务端", !tools.supports("tools/watermark", params(source.toString(), "TemplateKey", "x")));
+        report("未知参数交给服务端", !tools.supports("tools/resize", params(source.toString(), "Scale", 0.5, "Sharpen", 1)));
+        PicTechBase64FileHandler.Result fallback = tools.run("tools/resize", params(notAnImage.toString(), "Scale", 0.5),
+                work.resolve("fallback.jpg"), () -> remote);
+        report("auto: 无法解码的原图回退到服务端", fallback == remote);
+        Map<String, Object> watermark = params(source.toString(), "TemplateKey", "single_subtle_light", "Text", "PicTech");
+        report("auto: 水印模板仍调用服务端", tools.run("tools/watermark", watermark, work.resolve("auto_wm.jpg"), () -> remote) == remote);
+
+        PicTechLocalTools localOnly = new PicTechLocalTools(PicTechLocalTools.Policy.LOCAL, 1, PicTechContentCache.shared());
+        PicTechBase64FileHandler.Result rejected = localOnly.run("tools/resize", params(notAnImage.toString(), "Scale", 0.5),
+                work.resolve("rejected.jpg"), () -> remote);
+        report("local: 无法解码时返回错误而不是调用服务端", rejected != remote && PicTechToolResult.parse(rejected.envelope()).code() == 400);
+        PicTechBase64FileHandler.Result localWatermark = localOnly.run("tools/watermark", watermark, work.resolve("local_wm.jpg"), () -> remote);
+        report("local: 水印模板在本地渲染", localWatermark != remote && localWatermark.saved());
+
+        PicTechLocalTools remoteOnly = new PicTechLocalTools(PicTechLocalTools.Policy.REMOTE, 1, PicTechContentCache.shared());
+        report("remote: 始终调用服务端", remoteOnly.run("tools/resize", params(source.toString(), "Scale", 0.5),
+                work.resolve("remote.jpg"), () -> remote) == remote);
+
+        // 本地结果不进入结果缓存，切换到 remote 后得到的是服务端结果
+        PicTechResultCache cache = new PicTechResultCache(work.resolve("result-cache"), 1 << 24, 1 << 24, 1 << 20, 0,
+                PicTechContentCache.shared());
+        Map<String, Object> resize = params(source.toString(), "Scale", 0.5);
+        Path cached = work.resolve("cached.jpg");
+        Path remoteFile = work.resolve("remote_image.jpg");
+        Files.copy(source, remoteFile);
+        PicTechBase64FileHandler.Result remoteImage = new PicTechBase64FileHandler.Result(200, remoteFile, Files.size(remoteFile),
+                "{\"Code\":200,\"RequestId\":\"remote\"}");
+        cache.fetch("tools/resize", resize, cached, () -> tools.run("tools/resize", resize, cached, () -> remote));
+        boolean skipped = cache.stats().diskEntries() == 0;
+        PicTechBase64FileHandler.Result served = cache.fetch("tools/resize", resize, cached,
+                () -> remoteOnly.run("tools/resize", resize, cached, () -> remoteImage));
+        report("本地结果不写入结果缓存", skipped && "remote".equals(PicTechToolResult.parse(served.envelope()).requestId())
+                && cache.stats().diskEntries() == 1);
+    }
+
+    private static void testParallel(PicTechLocalTools tools, Path source, Path work) throws Exception {
+        System.out.println("\n--- 并行执行 ---");
+        long start = System.nanoTime();
+        List<CompletableFuture<PicTechBase64FileHandler.Result>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(tools.executeAsync("tools/resize", params(source.toString(), "Width", 100 + i * 10),
+                    work.resolve("parallel_" + i + ".jpg")));
+        }
+        int ok = 0;
+        for (CompletableFuture<PicTechBase64FileHandler.Result> future : futures) {
+            if (future.get().saved()) {
+                ok++;
+            }
+        }
+        System.out.printf("   16 张缩略图耗时 %.0fms%n", (System.nanoTime() - start) / 1e6);
+        report("全部生成", ok == 16);
+    }
+
+    private static final String[] TEMPLATE_KEYS = {
+            "single_subtle_light", "special_multiline", "single_strong_red", "multiple_corners", "multiple_edges",
+            "pattern_subtle", "pattern_diagonal_da", "special_photography", "special_confidential", "special_approved"};
+
+    private static void testWatermark(PicTechLocalTools tools, Path source, Path work) throws Exception {
+        System.out.println("\n--- 本地水印 ---");
+        int src = 0xff336699;
+        boolean exact = true;
+        for (int alpha = 0; alpha <= 255 && exact; alpha += 5) {
+            // 预乘白色 (alpha, alpha, alpha, alpha) 叠加到不透明底色，与 Java2D 的 SRC_OVER 比较
+            int premultiplied = alpha << 24 | alpha << 16 | alpha << 8 | alpha;
+            int expected = java2dOver(premultiplied, src);
+            int actual = PicTechWatermarkEngine.over(premultiplied, src) | 0xff000000;
+            exact = Math.abs(((expected >> 16) & 0xff) - ((actual >> 16) & 0xff)) <= 1
+                    && Math.abs((expected & 0xff) - (actual & 0xff)) <= 1;
+        }
+        report("整数合成与 Java2D SRC_OVER 误差不超过 1", exact);
+
+        int changed = 0;
+        for (String key : TEMPLATE_KEYS) {
+            PicTechBase64FileHandler.Result result = tools.execute("tools/watermark",
+                    params(source.toString(), "TemplateKey", key, "Text", "PicTech 2026", "OutputFormat", "PNG"),
+                    work.resolve("wm_" + key + ".png"));
+            BufferedImage out = ImageIO.read(result.file().toFile());
+            BufferedImage original = ImageIO.read(source.toFile());
+            if (out.getWidth() == 1200 && out.getHeight() == 800 && differentPixels(original, out) > 100) {
+                changed++;
+            } else {
+                System.out.println("   " + key + " 没有可见的水印");
+            }
+        }
+        report("10 个模板都生成了水印", changed == TEMPLATE_KEYS.length);
+
+        PicTechBase64FileHandler.Result bad = tools.execute("tools/watermark",
+                params(source.toString(), "TemplateKey", "single_subtle_light", "Color", "red-ish"), work.resolve("wm_bad.jpg"));
+        report("错误的 Color 返回 Code 400", PicTechToolResult.parse(bad.envelope()).code() == 400);
+
+        // 吞吐：同一段文字反复合成到 1000x750 的图片上 (只含合成，不含编解码)
+        PicTechWatermarkEngine engine = new PicTechWatermarkEngine(16);
+        BufferedImage canvas = syntheticImage(1000, 750);
+        Map<String, Object> diagonal = params(null, "TemplateKey", "pattern_diagonal_da", "Text", "禁止盗图 @PicTech");
+        Map<String, Object> corner = params(null, "TemplateKey", "single_subtle_light", "Text", "PicTech © 2026");
+        for (int i = 0; i < 50; i++) {
+            engine.apply(canvas, diagonal);
+        }
+        int n = 300;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            engine.apply(canvas, diagonal);
+            engine.apply(canvas, corner);
+        }
+        double perImageMs = (System.nanoTime() - start) / 1e6 / n;
+        System.out.printf("   平铺 + 角标合成 %.2fms/张 (单核约 %.0f 张/分钟) | %s%n", perImageMs, 60000 / perImageMs, engine);
+        report("文字层只光栅化一次", engine.toString().contains("renders=2,"));
+        report("单核合成吞吐超过 1000 张/分钟", 60000 / perImageMs > 1000);
+    }
+
+    private static void testPipeline(PicTechLocalTools tools, Path source, Path work) throws Exception {
+        System.out.println("\n--- 流水线 ---");
+        BufferedImage original = ImageIO.read(source.toFile());
+
+        // 相邻的 resize / crop 合并为一次几何变换，结果与逐步执行一致
+        PicTechPipeline.Report fused = PicTechPipeline.from(source.toString(), tools)
+                .resize("Scale", 0.5)
+                .crop("X", 100, "Y", 50, "Width", 300, "Height", 150)
+                .run();
+        BufferedImage stepwise = PicTechLocalTools.crop(PicTechLocalTools.resize(original, params(null, "Scale", 0.5)),
+                params(null, "X", 100, "Y", 50, "Width", 300, "Height", 150));
+        fused.print();
+        double psnr = psnr(stepwise, fused.image());
+        System.out.printf("   合并执行与逐步执行的 PSNR %.1f dB%n", psnr);
+        report("resize + crop 合并为一步", fused.stages().size() == 2 && "resize+crop".equals(fused.stages().get(1).name()));
+        report("合并结果与逐步执行一致", fused.image().getWidth() == 300 && fused.image().getHeight() == 150 && psnr > 35);
+
+        PicTechLocalTools localOnly = new PicTechLocalTools(PicTechLocalTools.Policy.LOCAL, 1, PicTechContentCache.shared());
+        PicTechPipeline.Report saved = PicTechPipeline.from(source.toString(), localOnly)
+                .resize("Scale", 0.5)
+                .watermark("TemplateKey", "single_subtle_light", "Text", "PicTech © 2026")
+                .crop("X", 0, "Y", 0, "Width", 300, "Height", 200)
+                .save(work.resolve("pipeline.jpg"), null, 90);
+        saved.print();
+        BufferedImage written = ImageIO.read(saved.file().toFile());
+        report("resize -> watermark -> crop -> save 只在最后编码一次",
+                written.getWidth() == 300 && written.getHeight() == 200 && saved.stages().size() == 5);
+
+        // auto 模式下 watermark 交给服务端：之前的 resize 先执行并编码上传，之后的 crop 在返回的图像上本地执行
+        int[] uploaded = new int[2];
+        PicTechPipeline.Report mixed = PicTechPipeline.from(source.toString(), tools)
+                .remote((endpoint, params, target) -> {
+                    String data = params.get("Image").toString();
+                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                            Base64.getDecoder().decode(data.substring(data.indexOf(',') + 1))));
+                    uploaded[0]++;
+                    uploaded[1] = "tools/watermark".equals(endpoint) && data.startsWith("data:image/") ? image.getWidth() : -1;
+                    ImageIO.write(image, "png", target.toFile());
+                    return new PicTechBase64FileHandler.Result(200, target, Files.size(target), "{\"Code\":200}");
+                })
+                .resize("Scale", 0.5)
+                .watermark("TemplateKey", "single_subtle_light", "Text", "PicTech © 2026")
+                .crop("X", 0, "Y", 0, "Width", 300, "Height", 200)
+                .run();
+        mixed.print();
+        report("auto 模式水印走服务端，只在远程边界编码一次", uploaded[0] == 1 && uploaded[1] == 600
+                && "watermark (remote)".equals(mixed.stages().get(2).name())
+                && mixed.image().getWidth() == 300 && mixed.image().getHeight() == 200);
+
+        // 远程边界：OCR 收到带 MIME 头的图片，修复收到同尺寸的纯 Base64 原图与蒙版
+        Path mask = work.resolve("mask.png");
+        ImageIO.write(new BufferedImage(40, 30, BufferedImage.TYPE_BYTE_GRAY), "png", mask.toFile());
+        int[] seen = new int[4];
+        PicTechPipeline.Report remote = PicTechPipeline.from(source.toString(), tools)
+                .resize("Width", 400)
+                .ocr(image -> {
+                    String head = new String(image.openEncodedStream().readNBytes(23), StandardCharsets.US_ASCII);
+                    seen[0] = head.startsWith("data:image/jpeg;base64,") ? 1 : 0;
+                    return ("{\"Code\":200,\"TemplateJson\":[{\"text\":\"PicTech\",\"points\":[[0,0],[10,0],[10,10],[0,10]]}]}")
+                            .getBytes(StandardCharsets.UTF_8);
+                }, result -> seen[1] = result.regions().size())
+                .inpaint(mask.toString(), (image, maskImage) -> {
+                    BufferedImage decodedImage = decodeBase64Image(image);
+                    BufferedImage decodedMask = decodeBase64Image(maskImage);
+                    seen[2] = decodedImage.getWidth() == decodedMask.getWidth() && decodedImage.getHeight() == decodedMask.getHeight() ? 1 : 0;
+                    seen[3] = decodedImage.getWidth();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    ImageIO.write(decodedImage, "png", out);
+                    return out.toByteArray();
+                })
+                .run();
+        remote.print();
+        report("OCR 收到带 MIME 头的 JPEG 并解析结果", seen[0] == 1 && seen[1] == 1);
+        report("修复前蒙版缩放到当前图像尺寸", seen[2] == 1 && seen[3] == 400 && remote.image().getWidth() == 400);
+    }
+
+    private static void testUploadDownscale(PicTechLocalTools tools, Path source, BufferedImage synthetic, Path work) throws Exception {
+        System.out.println("\n--- 上传前缩小 ---");
+        // 4000x3000 的 JPEG 按长边 1000 缩小：源端下采样解码，上传 1000x750
+        Path large = work.resolve("large.jpg");
+        PicTechLocalTools.write(syntheticImage(4000, 3000), "jpeg", 95, large);
+        PicTechBase64Source original = PicTechBase64Source.ofFile(large, "image/jpeg");
+        PicTechDownscaler downscaler = new PicTechDownscaler(1000, 0, 90);
+        long start = System.nanoTime();
+        PicTechDownscaler.Scaled scaled = downscaler.prepare(original);
+        System.out.printf("   %d bytes -> %d bytes, %.1fms%n", Files.size(large), scaled.source().rawLength(),
+                (System.nanoTime() - start) / 1e6);
+        String encoded = new String(scaled.source().openEncodedStream().readAllBytes(), StandardCharsets.US_ASCII);
+        BufferedImage uploaded = ImageIO.read(new ByteArrayInputStream(
+                Base64.getDecoder().decode(encoded.substring(encoded.indexOf(',') + 1))));
+        report("4000x3000 缩小为 1000x750 的 JPEG 上传", scaled.scaled() && encoded.startsWith("data:image/jpeg;base64,")
+                && uploaded.getWidth() == 1000 && uploaded.getHeight() == 750
+                && scaled.source().rawLength() < Files.size(large) / 4);
+
+        // OCR 坐标映射回原图；映射后的结果可序列化为规范化 JSON 并读回
+        PicTechOcrResult ocr = PicTechOcrResult.parse(("{\"Code\":200,\"RequestId\":\"r1\",\"TemplateJson\":[{\"text\":\"PicTech\","
+                + "\"points\":[[100,100],[200,100],[200,150],[100,150]]}]}").getBytes(StandardCharsets.UTF_8));
+        PicTechOcrResult.Region restored = scaled.restore(ocr).regions().get(0);
+        report("OCR 坐标映射回原图 (x4)", restored.minX() == 400 && restored.minY() == 400
+                && restored.maxX() == 800 && restored.maxY() == 600);
+        PicTechOcrResult reparsed = PicTechOcrResult.parse(scaled.restore(ocr).toJson().getBytes(StandardCharsets.UTF_8));
+        report("映射后的结果序列化为 JSON 可读回", reparsed.success() && "r1".equals(reparsed.requestId())
+                && "PicTech".equals(reparsed.regions().get(0).text())
+                && Arrays.equals(reparsed.regions().get(0).points(), restored.points()));
+
+        PicTechDownscaler.Scaled untouched = new PicTechDownscaler(5000, 0, 90).prepare(original);
+        report("未超过上限时原样上传", !untouched.scaled() && untouched.source() == original);
+
+        // 只限制字节数：按面积比例缩小直到编码结果不超过上限
+        long maxBytes = Files.size(large) / 8;
+        PicTechDownscaler.Scaled bounded = new PicTechDownscaler(0, maxBytes, 90).prepare(original);
+        report("按字节数上限缩小 (" + bounded.width() + "x" + bounded.height() + ", " + bounded.source().rawLength()
+                + " <= " + maxBytes + ")", bounded.scaled() && bounded.source().rawLength() <= maxBytes);
+
+        // 修复：原图与蒙版一起缩小，结果放大后只替换蒙版覆盖的像素
+        Path mask = work.resolve("inpaint_mask.png");
+        BufferedImage maskImage = new BufferedImage(1200, 800, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = maskImage.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(400, 200, 300, 200);
+        g.dispose();
+        ImageIO.write(maskImage, "png", mask.toFile());
+        PicTechDownscaler half = new PicTechDownscaler(600, 0, 90);
+        PicTechBase64Source image = PicTechBase64Source.ofFile(source, null);
+        PicTechDownscaler.Scaled scaledImage = half.prepare(image);
+        BufferedImage scaledMask = decodeBase64Image(half.mask(PicTechBase64Source.ofFile(mask, null), scaledImage));
+        BufferedImage repaired = new BufferedImage(scaledImage.width(), scaledImage.height(), BufferedImage.TYPE_INT_RGB);
+        g = repaired.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, repaired.getWidth(), repaired.getHeight());
+        g.dispose();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(repaired, "png", png);
+        BufferedImage merged = half.merge(image, PicTechBase64Source.ofFile(mask, null), png.toByteArray());
+        boolean inside = (merged.getRGB(550, 300) & 0xffffff) == 0xff0000;
+        boolean outside = (merged.getRGB(100, 100) & 0xffffff) == (synthetic.getRGB(100, 100) & 0xffffff)
+                && (merged.getRGB(1000, 700) & 0xffffff) == (synthetic.getRGB(1000, 700) & 0xffffff);
+        report("修复上传 600x400 的原图与蒙版", scaledImage.width() == 600 && scaledImage.height() == 400
+                && scaledMask.getWidth() == 600 && scaledMask.getHeight() == 400);
+        report("修复结果还原为 1200x800，蒙版外保持原图像素", merged.getWidth() == 1200 && merged.getHeight() == 800
+                && inside && outside);
+
+        // 流水线：OCR 上传按长边缩小，识别坐标映射回当前图像
+        int[] seen = new int[2];
+        PicTechPipeline.from(source.toString(), tools)
+                .downscaler(new PicTechDownscaler(300, 0, 90))
+                .ocr(upload -> {
+                    String data = new String(upload.openEncodedStream().readAllBytes(), StandardCharsets.US_ASCII);
+                    seen[0] = ImageIO.read(new ByteArrayInputStream(
+                            Base64.getDecoder().decode(data.substring(data.indexOf(',') + 1)))).getWidth();
+                    return ("{\"Code\":200,\"TemplateJson\":[{\"text\":\"PicTech\",\"points\":[[0,0],[300,0],[300,200],[0,200]]}]}")
+                            .getBytes(StandardCharsets.UTF_8);
+                }, result -> seen[1] = (int) result.regions().get(0).maxX())
+                .run();
+        report("流水线 OCR 上传 300 宽，坐标映射回 1200", seen[0] == 300 && seen[1] == 1200);
+    }
+
+    private static void testTiledOcr(Path work) throws Exception {
+        System.out.println("\n--- 分块 OCR ---");
+        // 白底 3000x2000 PNG，"文字" 是色块：R=200，G 为词编号，每 32px 一列的 B 编码一个字符 (全图坐标)
+        BufferedImage poster = new BufferedImage(3000, 2000, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = poster.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 3000, 2000);
+        g.dispose();
+        String[] expected = {
+                drawWord(poster, 1, 100, 100, 160),   // 块内部
+                drawWord(poster, 2, 980, 100, 96),    // 跨竖直接缝，右块完整可见
+                drawWord(poster, 3, 500, 300, 1000),  // 长于重叠区的一行，左右块各见一段
+                drawWord(poster, 4, 200, 470, 96),    // 跨水平接缝，上块完整可见
+                drawWord(poster, 5, 300, 700, 1700)}; // 跨三列、两行块的长行
+        Path posterFile = work.resolve("poster.png");
+        ImageIO.write(poster, "png", posterFile.toFile());
+
+        int[] calls = new int[1];
+        PicTechTiledOcr tiled = new PicTechTiledOcr(1024, 256, tile -> {
+            synchronized (calls) {
+                calls[0]++;
+            }
+            return CompletableFuture.completedFuture(fakeOcr(tile));
+        });
+        List<Rectangle> tiles = tiled.tiles(3000, 2000);
+        boolean covered = tiles.get(tiles.size() - 1).getMaxX() == 3000 && tiles.get(tiles.size() - 1).getMaxY() == 2000
+                && tiles.get(1).x <= 1024 - 256 && tiles.get(4).y <= 1024 - 256;
+        report("3000x2000 按 1024 / 重叠 256 切为 " + tiles.size() + " 块", tiles.size() == 12 && covered);
+
+        PicTechOcrResult result = tiled.recognize(PicTechBase64Source.ofFile(posterFile, "image/png"));
+        List<String> texts = new ArrayList<>();
+        for (PicTechOcrResult.Region region : result.regions()) {
+            texts.add(region.text());
+            System.out.println("   " + region.text() + String.format("  [%.0f,%.0f - %.0f,%.0f]",
+                    region.minX(), region.minY(), region.maxX(), region.maxY()));
+        }
+        report("接缝处的区域去重 / 拼接后与整图一致", calls[0] == 12 && result.success() && texts.equals(List.of(expected)));
+        PicTechOcrResult.Region line = result.regions().get(2);
+        report("拼接区域的坐标为整图坐标", line.minX() == 500 && line.maxX() == 1500 && line.minY() == 300);
+
+        // 每块的往返固定 300ms：并发后总耗时只比本地切块编码多出约一块的往返
+        long delayMs = 300;
+        double local = timeTiled(posterFile, 0);
+        double remote = timeTiled(posterFile, delayMs);
+        System.out.printf("   切块编码 %.0fms，加上每块 %dms 往返后 %.0fms%n", local, delayMs, remote);
+        report("12 块并发识别，总耗时约为一块的往返", remote - local < 3 * delayMs);
+        report("拼接文字去掉重叠部分", "ABCDEF".equals(PicTechTiledOcr.joinText("ABCD", "CDEF"))
+                && "ABXY".equals(PicTechTiledOcr.joinText("AB", "XY")));
+
+        PicTechOcrResult small = new PicTechTiledOcr(4096, 256, tile -> {
+            calls[0] = -1;
+            return CompletableFuture.completedFuture(fakeOcr(tile));
+        }).recognize(PicTechBase64Source.ofFile(posterFile, "image/png"));
+        report("不超过块大小时整张发送一次", calls[0] == -1 && small.regions().size() == expected.length);
+    }
+
+    private static double timeTiled(Path image, long delayMs) throws Exception {
+        PicTechTiledOcr tiled = new PicTechTiledOcr(1024, 256, tile -> CompletableFuture.supplyAsync(
+                () -> "{\"Code\":200,\"TemplateJson\":[]}".getBytes(StandardCharsets.UTF_8),
+                CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS)));
+        long start = System.nanoTime();
+        tiled.recognize(PicTechBase64Source.ofFile(image, "image/png"));
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    /**
+     * 画一个 "词"：每 32px 一列，B 通道编码全图列号，返回对应的文字
+     */
+    private static String drawWord(BufferedImage image, int id, int x, int y, int width) {
+        StringBuilder text = new StringBuilder();
+        for (int dx = 0; dx < width; dx++) {
+            int column = (x + dx) / 32;
+            if (dx == 0 || (x + dx) % 32 == 0) {
+                text.append((char) (0x4E00 + column));
+            }
+            for (int dy = 0; dy < 30; dy++) {
+                image.setRGB(x + dx, y + dy, 200 << 16 | id << 8 | column);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * 模拟 OCR：按 G 通道分组色块，框为色块外接矩形，文字按 B 通道列号从左到右
+     */
+    private static byte[] fakeOcr(PicTechBase64Source tile) {
+        try {
+            String data = new String(tile.openEncodedStream().readAllBytes(), StandardCharsets.US_ASCII);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                    Base64.getDecoder().decode(data.substring(data.indexOf(',') + 1))));
+            Map<Integer, int[]> boxes = new TreeMap<>();
+            Map<Integer, TreeSet<Integer>> columns = new TreeMap<>();
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    int rgb = image.getRGB(x, y) & 0xffffff;
+                    if (rgb >> 16 != 200) {
+                        continue;
+                    }
+                    int id = (rgb >> 8) & 0xff;
+                    int[] box = boxes.computeIfAbsent(id, k -> new int[]{Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0});
+                    box[0] = Math.min(box[0], x);
+                    box[1] = Math.min(box[1], y);
+                    box[2] = Math.max(box[2], x + 1);
+                    box[3] = Math.max(box[3], y + 1);
+                    columns.computeIfAbsent(id, k -> new TreeSet<>()).add(rgb & 0xff);
+                }
+            }
+            StringBuilder sb = new StringBuilder("{\"Code\":200,\"RequestId\":\"tile\",\"TemplateJson\":[");
+            for (Map.Entry<Integer, int[]> entry : boxes.entrySet()) {
+                StringBuilder text = new StringBuilder();
+                columns.get(entry.getKey()).forEach(column -> text.append((char) (0x4E00 + column)));
+                int[] b = entry.getValue();
+                sb.append(sb.charAt(sb.length() - 1) == '[' ? "" : ",").append("{\"text\":\"").append(text)
+                        .append("\",\"x\":").append(b[0]).append(",\"y\":").append(b[1])
+                        .append(",\"width\":").append(b[2] - b[0]).append(",\"height\":").append(b[3] - b[1]).append('}');
+            }
+            return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void testRegionInpaint(Path work) throws Exception {
+        System.out.println("\n--- 区域修复 ---");
+        // 1200x800 照片，左上角与右下角各有一个小 logo 蒙版
+        Path photo = work.resolve("photo.jpg");
+        PicTechLocalTools.write(syntheticImage(1200, 800), "jpeg", 95, photo);
+        BufferedImage original = ImageIO.read(photo.toFile());
+        Path mask = work.resolve("logo_mask.png");
+        BufferedImage maskImage = new BufferedImage(1200, 800, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = maskImage.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(20, 20, 80, 40);
+        g.fillRect(1080, 740, 100, 40);
+        g.dispose();
+        ImageIO.write(maskImage, "png", mask.toFile());
+
+        // 模拟修复：蒙版覆盖的像素涂成红色，每次调用固定 300ms
+        long delayMs = 300;
+        List<int[]> sizes = new ArrayList<>();
+        long epoch = System.nanoTime();
+        PicTechRegionInpaint.InpaintCall fake = (image, maskCrop) -> {
+            try {
+                BufferedImage crop = decodeBase64Image(image);
+                BufferedImage cropMask = decodeBase64Image(maskCrop);
+                synchronized (sizes) {
+                    sizes.add(new int[]{crop.getWidth(), crop.getHeight(), cropMask.getWidth(), cropMask.getHeight(),
+                            (int) ((System.nanoTime() - epoch) / 1_000_000)});
+                }
+                for (int y = 0; y < crop.getHeight(); y++) {
+                    for (int x = 0; x < crop.getWidth(); x++) {
+                        if ((cropMask.getRGB(x, y) & 0xff) > 127) {
+                            crop.setRGB(x, y, 0xff0000);
+                        }
+                    }
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(crop, "png", out);
+                return CompletableFuture.supplyAsync(out::toByteArray,
+                        CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        };
+        PicTechRegionInpaint region = new PicTechRegionInpaint(64, 0.5, fake);
+        // 本地没有解码器的蒙版 (WebP) 整图发送
+        Path webp = work.resolve("mask.webp");
+        Files.write(webp, "RIFF\0\0\0\0WEBPVP8 ".getBytes(StandardCharsets.US_ASCII));
+        report("本地无法解码的蒙版不使用区域模式", region.supports(PicTechBase64Source.ofFile(photo, null), PicTechBase64Source.ofFile(mask, null))
+                && !region.supports(PicTechBase64Source.ofFile(photo, null), PicTechBase64Source.ofFile(webp, null)));
+        BufferedImage result = region.inpaint(PicTechBase64Source.ofFile(photo, null), PicTechBase64Source.ofFile(mask, null));
+        System.out.println("   " + region);
+
+        boolean cropsMatch = sizes.size() == 2;
+        for (int[] size : sizes) {
+            cropsMatch &= size[0] == size[2] && size[1] == size[3] && size[0] < 300 && size[1] < 200;
+        }
+        report("两个不相交的区域分别发送局部 (含 64px 上下文)", cropsMatch);
+        report("第二个区域在第一个返回前发出 (并发)", sizes.size() == 2 && Math.abs(sizes.get(1)[4] - sizes.get(0)[4]) < delayMs);
+        boolean inside = (result.getRGB(50, 40) & 0xffffff) == 0xff0000 && (result.getRGB(1150, 760) & 0xffffff) == 0xff0000;
+        boolean outside = result.getWidth() == 1200 && result.getHeight() == 800 && differentPixels(
+                result.getSubimage(0, 100, 1200, 600), original.getSubimage(0, 100, 1200, 600)) == 0
+                && (result.getRGB(110, 30) & 0xffffff) == (original.getRGB(110, 30) & 0xffffff);
+        report("蒙版内贴回修复结果，蒙版外与原图一致", inside && outside);
+        long full = region.fullBytes();
+        report(String.format("上传字节为整图的 1/%.0f", full / (double) region.uploadedBytes()),
+                region.uploadedBytes() * 10 <= full);
+
+        sizes.clear();
+        Path empty = work.resolve("empty_mask.png");
+        ImageIO.write(new BufferedImage(1200, 800, BufferedImage.TYPE_BYTE_GRAY), "png", empty.toFile());
+        BufferedImage untouched = region.inpaint(PicTechBase64Source.ofFile(photo, null), PicTechBase64Source.ofFile(empty, null));
+        report("空蒙版不调用接口，直接返回原图", sizes.isEmpty() && differentPixels(untouched, original) == 0);
+
+        Path large = work.resolve("large_mask.png");
+        g = maskImage.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(100, 100, 1000, 600);
+        g.dispose();
+        ImageIO.write(maskImage, "png", large.toFile());
+        region.inpaint(PicTechBase64Source.ofFile(photo, null), PicTechBase64Source.ofFile(large, null));
+        report("区域超过原图一半时整图发送一次", sizes.size() == 1 && sizes.get(0)[0] == 1200 && sizes.get(0)[1] == 800);
+    }
+
+    private static void testGolden(PicTechLocalTools tools, Path work) throws Exception {
+        System.out.println("\n--- 金样比对 (" + GOLDEN_DIR.toAbsolutePath() + ") ---");
+        if (!Files.isDirectory(GOLDEN_DIR)) {
+            System.out.println("   未找到金样目录，跳过 (运行 record 录制服务端结果)");
+            return;
+        }
+        for (Case c : cases(TEST_IMAGE_URL)) {
+            Path golden = GOLDEN_DIR.resolve(c.fileName());
+            if (!Files.exists(golden)) {
+                System.out.println("   缺少金样 " + golden.getFileName() + "，跳过");
+                continue;
+            }
+            PicTechBase64FileHandler.Result result = tools.execute(c.endpoint(), c.params(), work.resolve("golden_" + c.fileName()));
+            BufferedImage expected = ImageIO.read(golden.toFile());
+            BufferedImage actual = ImageIO.read(result.file().toFile());
+            boolean sameSize = expected.getWidth() == actual.getWidth() && expected.getHeight() == actual.getHeight();
+            double psnr = sameSize ? psnr(expected, actual) : 0;
+            System.out.printf("   %s: 服务端 %dx%d | 本地 %dx%d | PSNR %.1f dB%n", c.name(),
+                    expected.getWidth(), expected.getHeight(), actual.getWidth(), actual.getHeight(), psnr);
+            report(c.name() + " 与服务端结果一致 (PSNR >= " + MIN_PSNR + ")", sameSize && psnr >= MIN_PSNR);
+        }
+    }
+
+    // ==========================================
+    // 录制金样
+    // ==========================================
+
+    private static void record() throws Exception {
+        Files.createDirectories(GOLDEN_DIR);
+        PicTechResilience resilience = PicTechResilience.defaults();
+        for (Case c : cases(TEST_IMAGE_URL)) {
+            Map<String, Object> params = new TreeMap<>(c.params());
+            params.put("AccountId", ACCOUNT_ID);
+            params.put("Timestamp", String.valueOf(System.currentTimeMillis()));
+            Path target = GOLDEN_DIR.resolve(c.fileName());
+            HttpResponse<PicTechBase64FileHandler.Result> response = resilience.send(c.endpoint(),
+                    PicTechResilience.Kind.IDEMPOTENT, attempt -> {
+                        PicTechSigner.forSecret(SECRET_KEY).refresh(params);
+                        return PicTechHttpEngine.shared().newRequest(API_HOST + "/" + c.endpoint())
+                                .header("Content-Type", "application/json")
+                                .POST(PicTechJsonBodyPublisher.of(params))
+                                .build();
+                    }, new PicTechBase64FileHandler(target));
+            PicTechBase64FileHandler.Result result = response.body();
+            if (result.saved() && PicTechToolResult.parse(result.envelope()).success()) {
+                System.out.println("✅ 已录制 " + target);
+            } else {
+                System.out.println("❌ 录制失败 " + c.name() + ": " + result.envelope());
+            }
+        }
+    }
+
+    // ==========================================
+    // 辅助方法
+    // ==========================================
+
+    private static Map<String, Object> params(String image, Object... pairs) {
+        Map<String, Object> params = new TreeMap<>();
+        if (image != null) {
+            params.put("Image", image);
+        }
+        for (int i = 0; i < pairs.length; i += 2) {
+            params.put((String) pairs[i], pairs[i + 1]);
+        }
+        return params;
+    }
+
+    /**
+     * 合成测试图：渐变背景 + 细线 + 文字，覆盖平滑区域与高频细节
+     */
+    private static BufferedImage syntheticImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, new Color(x * 255 / width, y * 255 / height, 128).getRGB());
+            }
+        }
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.BLACK);
+        for (int x = 0; x < width; x += 3) {
+            g.drawLine(x, 0, x, height / 3);
+        }
+        g.setColor(Color.WHITE);
+        g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 48));
+        g.drawString("PicTech 1200x800", 100, height / 2);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * 区域平均缩小 (整数倍)，作为理想缩小结果的参考
+     */
+    private static BufferedImage boxDownscale(BufferedImage image, int factor) {
+        int w = image.getWidth() / factor;
+        int h = image.getHeight() / factor;
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                long r = 0, gr = 0, b = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    for (int dx = 0; dx < factor; dx++) {
+                        int rgb = image.getRGB(x * factor + dx, y * factor + dy);
+                        r += (rgb >> 16) & 0xff;
+                        gr += (rgb >> 8) & 0xff;
+                        b += rgb & 0xff;
+                    }
+                }
+                int n = factor * factor;
+                out.setRGB(x, y, (int) (r / n) << 16 | (int) (gr / n) << 8 | (int) (b / n));
+            }
+        }
+        return out;
+    }
+
+    private static BufferedImage decodeBase64Image(PicTechBase64Source source) throws IOException {
+        try (InputStream in = source.openEncodedStream()) {
+            return ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode(in.readAllBytes())));
+        }
+    }
+
+    private static int java2dOver(int premultipliedSrc, int opaqueDst) {
+        BufferedImage dst = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        dst.setRGB(0, 0, opaqueDst);
+        BufferedImage src = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB_PRE);
+        ((DataBufferInt) src.getRaster().getDataBuffer()).getData()[0] = premultipliedSrc;
+        Graphics2D g = dst.createGraphics();
+        g.drawImage(src, 0, 0, null);
+        g.dispose();
+        return dst.getRGB(0, 0);
+    }
+
+    private static int differentPixels(BufferedImage a, BufferedImage b) {
+        int count = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if ((a.getRGB(x, y) & 0xffffff) != (b.getRGB(x, y) & 0xffffff)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static double psnr(BufferedImage a, BufferedImage b) {
+        double sum = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                int p = a.getRGB(x, y);
+                int q = b.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int d = ((p >> shift) & 0xff) - ((q >> shift) & 0xff);
+                    sum += d * d;
+                }
+            }
+        }
+        double mse = sum / (a.getWidth() * a.getHeight() * 3.0);
+        return mse == 0 ? 99 : 10 * Math.log10(255 * 255 / mse);
+    }
+
+    private static void report(String name, boolean ok) {
+        if (ok) {
+            System.out.println("✅ " + name);
+        } else {
+            System.out.println("❌ " + name);
+            failures++;
+        }
+    }
+}
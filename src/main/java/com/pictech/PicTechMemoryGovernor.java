@@ -0,0 +1,268 @@
+package com.pictech;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 全局内存预算：限制同时在途的图片载荷字节数
+ *
+ * 每个 PicTech 接口请求发送前，按 请求体 (原图 / 蒙版及 Base64 膨胀) + 预计响应体 从共享预算中预留字节，
+ * 响应处理完毕后归还。预算不足时请求按 FIFO 排队 (不占线程、不占并发窗口名额)，
+ * 等待超过 maxWait 则拒绝 (RejectedExecutionException，与负载相关，PicTechResilience 不会重试)。
+ * 这样突发的大批量任务只会排队变慢，而不会同时把几百 MB 的图片拷贝堆在内存里导致 OOM。
+ *
+ * 单个请求的预估超过整个预算时按整个预算计，即独占执行，保证总能发出。
+ * 响应体的预估取该接口最近响应大小的平滑值 (没有样本时按请求体大小估计)。
+ *
+ * 可通过系统属性调整：
+ *   -Dpictech.memory.budgetBytes=...    预算 (默认最大堆的 1/4)，0 表示不限制
+ *   -Dpictech.memory.maxWaitMs=60000    最长排队时间，0 表示预算不足时立即拒绝
+ */
+public final class PicTechMemoryGovernor {
+
+    /** 响应体大小的平滑系数 */
+    private static final double RESPONSE_SMOOTHING = 0.2;
+
+    private static volatile PicTechMemoryGovernor shared;
+
+    private final long budget;
+    private final long maxWaitNanos;
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private final ConcurrentHashMap<String, AtomicLong> responseEstimates = new ConcurrentHashMap<>();
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private long reserved;
+    private long queuedBytes;
+    private long peakReserved;
+
+    /**
+     * @param budgetBytes 预算字节数，<= 0 表示不限制
+     * @param maxWait     预算不足时的最长排队时间
+     */
+    public PicTechMemoryGovernor(long budgetBytes, Duration maxWait) {
+        this.budget = budgetBytes <= 0 ? Long.MAX_VALUE : budgetBytes;
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    /**
+     * 全局共享实例 (所有 PicTech 接口请求共用一份预算)
+     */
+    public static PicTechMemoryGovernor shared() {
+        PicTechMemoryGovernor governor = shared;
+        if (governor == null) {
+            synchronized (PicTechMemoryGovernor.class) {
+                governor = shared;
+                if (governor == null) {
+                    governor = new PicTechMemoryGovernor(
+                            Long.getLong("pictech.memory.budgetBytes", Runtime.getRuntime().maxMemory() / 4),
+                            Duration.ofMillis(Long.getLong("pictech.memory.maxWaitMs", 60_000L)));
+                    shared = governor;
+                }
+            }
+        }
+        return governor;
+    }
+
+    /**
+     * 预估一次请求占用的字节数：请求体 + 预计响应体
+     *
+     * @param requestBytes 请求体长度 (未知时传 -1)
+     */
+    public long estimate(String endpoint, long requestBytes) {
+        long request = Math.max(0, requestBytes);
+        AtomicLong response = responseEstimates.get(endpoint);
+        return request + (response != null ? response.get() : request);
+    }
+
+    /**
+     * 记录一次实际的响应体大小，用于之后的预估
+     */
+    public void observeResponse(String endpoint, long responseBytes) {
+        if (responseBytes < 0) {
+            return;
+        }
+        AtomicLong estimate = responseEstimates.computeIfAbsent(endpoint, k -> new AtomicLong(responseBytes));
+        long current;
+        long next;
+        do {
+            current = estimate.get();
+            next = current + (long) ((responseBytes - current) * RESPONSE_SMOOTHING);
+        } while (!estimate.compareAndSet(current, next));
+    }
+
+    /**
+     * 预留 bytes 字节；预算不足时返回的 Future 在有足够预算归还后完成，等待超时则以 RejectedExecutionException 失败
+     * 取消返回的 Future 即放弃排队
+     */
+    public CompletableFuture<Reservation> reserve(long bytes) {
+        long amount = Math.min(Math.max(0, bytes), budget);
+        Waiter waiter;
+        synchronized (this) {
+            // 前面有人排队时不插队，避免大请求一直等不到足够的预算
+            if (waiters.isEmpty() && reserved + amount <= budget) {
+                grant(amount);
+                return CompletableFuture.completedFuture(new Reservation(amount));
+            }
+            if (maxWaitNanos <= 0) {
+                shed.increment();
+                return CompletableFuture.failedFuture(rejection(amount));
+            }
+            waiter = new Waiter(amount);
+            waiters.add(waiter);
+            queuedBytes += amount;
+            waited.increment();
+        }
+        CompletableFuture.delayedExecutor(maxWaitNanos, TimeUnit.NANOSECONDS).execute(() -> {
+            List<Waiter> ready;
+            synchronized (this) {
+                if (!waiters.remove(waiter)) {
+                    // 已被唤醒
+                    return;
+                }
+                queuedBytes -= amount;
+                if (!waiter.future.isDone()) {
+                    shed.increment();
+                }
+                // 超时的可能是队首，后面较小的请求也许已经放得下
+                ready = drain();
+            }
+            waiter.future.completeExceptionally(rejection(amount));
+            wake(ready);
+        });
+        return waiter.future;
+    }
+
+    public long budget() {
+        return budget;
+    }
+
+    public synchronized long reserved() {
+        return reserved;
+    }
+
+    /**
+     * 排队中的请求预留的字节数
+     */
+    public synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * 启动以来同时预留的最大字节数
+     */
+    public synchronized long peakReserved() {
+        return peakReserved;
+    }
+
+    /**
+     * 因等待超时被拒绝的请求数
+     */
+    public long shedCount() {
+        return shed.sum();
+    }
+
+    /**
+     * 曾经排队等待预算的请求数
+     */
+    public long waitedCount() {
+        return waited.sum();
+    }
+
+    /**
+     * 一次预留，请求结束时必须调用 release 归还 (重复调用只生效一次)
+     */
+    public final class Reservation {
+        private final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                PicTechMemoryGovernor.this.release(bytes);
+            }
+        }
+    }
+
+    private void grant(long amount) {
+        reserved += amount;
+        peakReserved = Math.max(peakReserved, reserved);
+    }
+
+    private void release(long bytes) {
+        List<Waiter> ready;
+        synchronized (this) {
+            reserved -= bytes;
+            ready = drain();
+        }
+        wake(ready);
+    }
+
+    private void wake(List<Waiter> ready) {
+        for (Waiter waiter : ready) {
+            if (!waiter.future.complete(new Reservation(waiter.bytes))) {
+                // 等待者已超时或被取消，预算退回
+                release(waiter.bytes);
+            }
+        }
+    }
+
+    /**
+     * 按 FIFO 在预算允许的范围内唤醒等待者 (调用方持有锁)；已超时 / 取消的等待者直接移除
+     */
+    private List<Waiter> drain() {
+        List<Waiter> ready = new ArrayList<>();
+        while (!waiters.isEmpty()) {
+            Waiter head = waiters.peek();
+            if (head.future.isDone()) {
+                waiters.poll();
+                queuedBytes -= head.bytes;
+                continue;
+            }
+            if (reserved + head.bytes > budget) {
+                break;
+            }
+            waiters.poll();
+            queuedBytes -= head.bytes;
+            grant(head.bytes);
+            ready.add(head);
+        }
+        return ready;
+    }
+
+    private RejectedExecutionException rejection(long amount) {
+        return new RejectedExecutionException(String.format("内存预算不足: 需要 %.1fMB, 已预留 %.1fMB / 预算 %.1fMB",
+                amount / 1048576.0, reserved() / 1048576.0, budget / 1048576.0));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("内存预算 %.1fMB: 已预留 %.1fMB (峰值 %.1fMB), 排队 %d 个 / %.1fMB, 曾排队 %d, 拒绝 %d",
+                budget == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : budget / 1048576.0, reserved / 1048576.0,
+                peakReserved / 1048576.0, waiters.size(), queuedBytes / 1048576.0, waited.sum(), shed.sum());
+    }
+
+    private static final class Waiter {
+        final long bytes;
+        final CompletableFuture<Reservation> future = new CompletableFuture<>();
+
+        Waiter(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package com.pictech;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 按接口的请求指标：延迟直方图、在途请求数、请求 / 响应字节数、按状态码的计数，以及各缓存的命中率
+ *
+ * 所有经过 PicTechHttpEngine.sendAsync(endpoint, ...) 的请求 (resize / crop / watermark / OCR / inpaint / download)
+ * 都会被记录。记录只做原子加法 (LongAdder / AtomicLongArray)，不加锁也不分配对象，可以在生产环境全量常开。
+ *
+ * 读取方式：
+ *   - 进程内：PicTechMetrics.snapshot()
+ *   - Prometheus 文本格式：PicTechMetrics.serve(port) 或 -Dpictech.metrics.port=9464，地址 http://127.0.0.1:9464/metrics
+ */
+public final class PicTechMetrics {
+
+    /** 导出到 Prometheus 的累积桶上界 (秒) */
+    private static final double[] BUCKET_SECONDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final int MAX_STATUS = 600;
+
+    private static final ConcurrentHashMap<String, Endpoint> ENDPOINTS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CacheProbe> CACHES = new ConcurrentHashMap<>();
+    private static volatile long startedAt = System.nanoTime();
+
+    private static volatile HttpServer server;
+
+    private PicTechMetrics() {
+    }
+
+    /**
+     * 某个接口的指标 (不存在时创建)，调用方可以缓存返回值
+     */
+    public static Endpoint endpoint(String name) {
+        Endpoint endpoint = ENDPOINTS.get(name);
+        return endpoint != null ? endpoint : ENDPOINTS.computeIfAbsent(name, Endpoint::new);
+    }
+
+    /**
+     * 登记一个缓存的命中 / 未命中计数来源，快照时读取
+     */
+    public static void registerCache(String name, LongSupplier hits, LongSupplier misses) {
+        CACHES.put(name, new CacheProbe(hits, misses));
+    }
+
+    /**
+     * 清空所有接口的计数 (缓存计数由缓存自身维护，不受影响)
+     */
+    public static void reset() {
+        ENDPOINTS.values().forEach(Endpoint::reset);
+        startedAt = System.nanoTime();
+    }
+
+    /**
+     * 单个接口的计数器
+     */
+    public static final class Endpoint {
+        private final String name;
+        private final PicTechLatencyHistogram latency = new PicTechLatencyHistogram();
+        private final LongAdder started = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final LongAdder ioErrors = new LongAdder();
+        private final LongAdder cancelled = new LongAdder();
+        // gzip：压缩前后字节数与压缩 / 解压耗时 (只统计实际压缩的请求 / 响应)
+        private final LongAdder gzipRequestRaw = new LongAdder();
+        private final LongAdder gzipRequestWire = new LongAdder();
+        private final LongAdder gzipRequestNanos = new LongAdder();
+        private final LongAdder gzipResponseWire = new LongAdder();
+        private final LongAdder gzipResponseRaw = new LongAdder();
+        private final LongAdder gzipResponseNanos = new LongAdder();
+        /** 下标为状态码，0 存放超出范围的状态码 */
+        private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+
+        private Endpoint(String name) {
+            this.name = name;
+        }
+
+        /**
+         * 请求发出 (已拿到并发窗口名额)
+         *
+         * @param bodyBytes 请求体长度，未知时传 -1
+         */
+        public void onStart(long bodyBytes) {
+            started.increment();
+            inFlight.increment();
+            if (bodyBytes > 0) {
+                requestBytes.add(bodyBytes);
+            }
+        }
+
+        /**
+         * 请求结束：得到响应时记录状态码与延迟
+         */
+        public void onResponse(int statusCode, long nanos) {
+            inFlight.decrement();
+            statuses.incrementAndGet(statusCode > 0 && statusCode < MAX_STATUS ? statusCode : 0);
+            latency.recordNanos(nanos);
+        }
+
+        /**
+         * 请求结束：网络异常或被取消 (例如对冲请求的落败方)
+         */
+        public void onFailure(boolean wasCancelled) {
+            inFlight.decrement();
+            (wasCancelled ? cancelled : ioErrors).increment();
+        }
+
+        public void onResponseBytes(long bytes) {
+            responseBytes.add(bytes);
+        }
+
+        /**
+         * gzip 请求体发送完毕 (压缩后的长度事先未知，在这里计入请求字节数)
+         */
+        public void onRequestCompressed(long rawBytes, long wireBytes, long nanos) {
+            requestBytes.add(wireBytes);
+            gzipRequestRaw.add(rawBytes);
+            gzipRequestWire.add(wireBytes);
+            gzipRequestNanos.add(nanos);
+        }
+
+        /**
+         * gzip 响应体解压完毕 (线上字节已由 counting 计入响应字节数)
+         */
+        public void onResponseDecompressed(long wireBytes, long rawBytes, long nanos) {
+            gzipResponseWire.add(wireBytes);
+            gzipResponseRaw.add(rawBytes);
+            gzipResponseNanos.add(nanos);
+        }
+
+        /**
+         * 包装响应处理器，在接收过程中累计响应体字节数
+         */
+        public <T> HttpResponse.BodyHandler<T> counting(HttpResponse.BodyHandler<T> handler) {
+            return info -> new CountingSubscriber<>(handler.apply(info), this);
+        }
+
+        private void reset() {
+            latency.reset();
+            started.reset();
+            requestBytes.reset();
+            responseBytes.reset();
+            ioErrors.reset();
+            cancelled.reset();
+            gzipRequestRaw.reset();
+            gzipRequestWire.reset();
+            gzipRequestNanos.reset();
+            gzipResponseWire.reset();
+            gzipResponseRaw.reset();
+            gzipResponseNanos.reset();
+            for (int i = 0; i < MAX_STATUS; i++) {
+                statuses.set(i, 0);
+            }
+        }
+
+        private EndpointSnapshot snapshot(double uptimeSeconds) {
+            PicTechLatencyHistogram copy = new PicTechLatencyHistogram();
+            copy.add(latency);
+            Map<Integer, Long> byStatus = new TreeMap<>();
+            for (int i = 0; i < MAX_STATUS; i++) {
+                long n = statuses.get(i);
+                if (n != 0) {
+                    byStatus.put(i, n);
+                }
+            }
+            return new EndpointSnapshot(name, started.sum(), inFlight.sum(), requestBytes.sum(), responseBytes.sum(),
+                    ioErrors.sum(), cancelled.sum(), byStatus, copy,
+                    new Compression(gzipRequestRaw.sum(), gzipRequestWire.sum(), gzipRequestNanos.sum(),
+                            gzipResponseWire.sum(), gzipResponseRaw.sum(), gzipResponseNanos.sum()),
+                    uptimeSeconds);
+        }
+    }
+
+    // ================= 快照 =================
+
+    /**
+     * 某个接口的指标快照
+     *
+     * @param statuses 按状态码的响应数
+     * @param latency  从发出请求到响应体接收完毕的延迟 (副本)
+     * @param gzip     经过 gzip 的请求 / 响应的压缩统计
+     */
+    public record EndpointSnapshot(String endpoint, long requests, long inFlight, long requestBytes, long responseBytes,
+                                   long ioErrors, long cancelled, Map<Integer, Long> statuses,
+                                   PicTechLatencyHistogram latency, Compression gzip, double uptimeSeconds) {
+
+        /** 状态码 >= 400 的响应数 */
+        public long errorResponses() {
+            return statuses.entrySet().stream().filter(e -> e.getKey() >= 400 || e.getKey() == 0)
+                    .mapToLong(Map.Entry::getValue).sum();
+        }
+
+        /** 进程启动 (或上次 reset) 以来平均每秒完成的请求数 */
+        public double throughput() {
+            return uptimeSeconds <= 0 ? 0 : latency.count() / uptimeSeconds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: 请求 %d (在途 %d) | %.1f req/s | 状态 %s | 异常 %d, 取消 %d | 发送 %.1fKB, 接收 %.1fKB | p50 %.1fms p99 %.1fms max %.1fms",
+                    endpoint, requests, inFlight, throughput(), statuses, ioErrors, cancelled,
+                    requestBytes / 1024.0, responseBytes / 1024.0,
+                    latency.percentileMillis(0.5), latency.percentileMillis(0.99), latency.maxMillis())
+                    + (gzip.isEmpty() ? "" : " | " + gzip);
+        }
+    }
+
+    /**
+     * gzip 统计：请求为压缩前 / 后字节数，响应为线上 / 解压后字节数，耗时为压缩 / 解压的 CPU 时间
+     */
+    public record Compression(long requestRawBytes, long requestWireBytes, long requestNanos,
+                              long responseWireBytes, long responseRawBytes, long responseNanos) {
+
+        public boolean isEmpty() {
+            return requestRawBytes == 0 && responseWireBytes == 0;
+        }
+
+        /** 请求体压缩率 (压缩后 / 压缩前)，没有压缩过时为 1 */
+        public double requestRatio() {
+            return requestRawBytes == 0 ? 1 : (double) requestWireBytes / requestRawBytes;
+        }
+
+        public double responseRatio() {
+            return responseRawBytes == 0 ? 1 : (double) responseWireBytes / responseRawBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("gzip 请求 %.1fKB→%.1fKB (%.0f%%, %.1fms) 响应 %.1fKB→%.1fKB (%.0f%%, %.1fms)",
+                    requestRawBytes / 1024.0, requestWireBytes / 1024.0, requestRatio() * 100, requestNanos / 1e6,
+                    responseWireBytes / 1024.0, responseRawBytes / 1024.0, responseRatio() * 100, responseNanos / 1e6);
+        }
+    }
+
+    public record CacheSnapshot(String cache, long hits, long misses) {
+        public double hitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: 命中 %d / 未命中 %d (%.1f%%)", cache, hits, misses, hitRatio() * 100);
+        }
+    }
+
+    public record Snapshot(Map<String, EndpointSnapshot> endpoints, Map<String, CacheSnapshot> caches) {
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            endpoints.values().forEach(e -> sb.append("  ").append(e).append('\n'));
+            caches.values().forEach(c -> sb.append("  缓存 ").append(c).append('\n'));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 当前所有接口与缓存的指标快照
+     */
+    public static Snapshot snapshot() {
+        double uptime = (System.nanoTime() - startedAt) / 1e9;
+        Map<String, EndpointSnapshot> endpoints = new TreeMap<>();
+        ENDPOINTS.forEach((name, endpoint) -> endpoints.put(name, endpoint.snapshot(uptime)));
+        Map<String, CacheSnapshot> caches = new TreeMap<>();
+        CACHES.forEach((name, probe) -> caches.put(name, new CacheSnapshot(name, probe.hits.getAsLong(), probe.misses.getAsLong())));
+        return new Snapshot(endpoints, caches);
+    }
+
+    // ================= Prometheus =================
+
+    /**
+     * 按 Prometheus 文本格式 (0.0.4) 输出全部指标
+     */
+    public static String prometheus() {
+        Snapshot snapshot = snapshot();
+        StringBuilder sb = new StringBuilder(4096);
+
+        header(sb, "pictech_requests_total", "counter", "按状态码统计的响应数");
+        snapshot.endpoints.values().forEach(e -> e.statuses.forEach((status, n) ->
+                sample(sb, "pictech_requests_total", "endpoint", e.endpoint, "status", String.valueOf(status), n)));
+
+        header(sb, "pictech_request_failures_total", "counter", "未得到响应的请求数 (网络异常 / 被取消)");
+        snapshot.endpoints.values().forEach(e -> {
+            sample(sb, "pictech_request_failures_total", "endpoint", e.endpoint, "reason", "io", e.ioErrors);
+            sample(sb, "pictech_request_failures_total", "endpoint", e.endpoint, "reason", "cancelled", e.cancelled);
+        });
+
+        header(sb, "pictech_in_flight_requests", "gauge", "在途请求数");
+        snapshot.endpoints.values().forEach(e -> sample(sb, "pictech_in_flight_requests", "endpoint", e.endpoint, null, null, e.inFlight));
+
+        header(sb, "pictech_request_bytes_total", "counter", "请求体字节数");
+        snapshot.endpoints.values().forEach(e -> sample(sb, "pictech_request_bytes_total", "endpoint", e.endpoint, null, null, e.requestBytes));
+
+        header(sb, "pictech_response_bytes_total", "counter", "响应体字节数");
+        snapshot.endpoints.values().forEach(e -> sample(sb, "pictech_response_bytes_total", "endpoint", e.endpoint, null, null, e.responseBytes));
+
+        header(sb, "pictech_gzip_bytes_total", "counter", "gzip 压缩前 (raw) / 线上 (wire) 字节数");
+        snapshot.endpoints.values().stream().filter(e -> !e.gzip.isEmpty()).forEach(e -> {
+            sample(sb, "pictech_gzip_bytes_total", "endpoint", e.endpoint, "kind", "request_raw", e.gzip.requestRawBytes());
+            sample(sb, "pictech_gzip_bytes_total", "endpoint", e.endpoint, "kind", "request_wire", e.gzip.requestWireBytes());
+            sample(sb, "pictech_gzip_bytes_total", "endpoint", e.endpoint, "kind", "response_wire", e.gzip.responseWireBytes());
+            sample(sb, "pictech_gzip_bytes_total", "endpoint", e.endpoint, "kind", "response_raw", e.gzip.responseRawBytes());
+        });
+        header(sb, "pictech_gzip_seconds_total", "counter", "gzip 压缩 / 解压耗时");
+        snapshot.endpoints.values().stream().filter(e -> !e.gzip.isEmpty()).forEach(e -> {
+            sample(sb, "pictech_gzip_seconds_total", "endpoint", e.endpoint, "direction", "request", e.gzip.requestNanos() / 1e9);
+            sample(sb, "pictech_gzip_seconds_total", "endpoint", e.endpoint, "direction", "response", e.gzip.responseNanos() / 1e9);
+        });
+
+        header(sb, "pictech_request_duration_seconds", "histogram", "请求延迟");
+        for (EndpointSnapshot e : snapshot.endpoints.values()) {
+            for (double le : BUCKET_SECONDS) {
+                long count = e.latency.countAtOrBelowMicros((long) (le * 1_000_000));
+                sample(sb, "pictech_request_duration_seconds_bucket", "endpoint", e.endpoint, "le", format(le), count);
+            }
+            sample(sb, "pictech_request_duration_seconds_bucket", "endpoint", e.endpoint, "le", "+Inf", e.latency.count());
+            sample(sb, "pictech_request_duration_seconds_sum", "endpoint", e.endpoint, null, null, e.latency.sumMillis() / 1000);
+            sample(sb, "pictech_request_duration_seconds_count", "endpoint", e.endpoint, null, null, e.latency.count());
+        }
+
+        header(sb, "pictech_request_latency_seconds", "summary", "请求延迟分位数 (进程启动以来)");
+        for (EndpointSnapshot e : snapshot.endpoints.values()) {
+            for (double q : QUANTILES) {
+                sample(sb, "pictech_request_latency_seconds", "endpoint", e.endpoint, "quantile", format(q),
+                        e.latency.percentileMillis(q) / 1000);
+            }
+        }
+
+        header(sb, "pictech_concurrency_limit", "gauge", "自适应并发窗口");
+        PicTechAdaptiveLimiter.limits().forEach((name, limit) -> sample(sb, "pictech_concurrency_limit", "endpoint", name, null, null, limit));
+
+        PicTechMemoryGovernor governor = PicTechMemoryGovernor.shared();
+        header(sb, "pictech_memory_bytes", "gauge", "内存预算：预算 / 已预留 / 排队 / 分片池空闲");
+        if (governor.budget() != Long.MAX_VALUE) {
+            sample(sb, "pictech_memory_bytes", "kind", "budget", null, null, governor.budget());
+        }
+        sample(sb, "pictech_memory_bytes", "kind", "reserved", null, null, governor.reserved());
+        sample(sb, "pictech_memory_bytes", "kind", "queued", null, null, governor.queuedBytes());
+        sample(sb, "pictech_memory_bytes", "kind", "pool_idle", null, null, PicTechBufferPool.shared().idleBytes());
+        header(sb, "pictech_memory_rejected_total", "counter", "因内存预算不足被拒绝的请求数");
+        sample(sb, "pictech_memory_rejected_total", "reason", "timeout", null, null, governor.shedCount());
+
+        header(sb, "pictech_cache_hits_total", "counter", "缓存命中数");
+        snapshot.caches.values().forEach(c -> sample(sb, "pictech_cache_hits_total", "cache", c.cache, null, null, c.hits));
+        header(sb, "pictech_cache_misses_total", "counter", "缓存未命中数");
+        snapshot.caches.values().forEach(c -> sample(sb, "pictech_cache_misses_total", "cache", c.cache, null, null, c.misses));
+        header(sb, "pictech_cache_hit_ratio", "gauge", "缓存命中率");
+        snapshot.caches.values().forEach(c -> sample(sb, "pictech_cache_hit_ratio", "cache", c.cache, null, null, c.hitRatio()));
+        return sb.toString();
+    }
+
+    /**
+     * 在 127.0.0.1:port 上提供 /metrics (重复调用返回已启动的服务)，port 为 0 时随机分配
+     */
+    public static synchronized HttpServer serve(int port) throws IOException {
+        if (server != null) {
+            return server;
+        }
+        HttpServer created = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 16);
+        created.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        created.setExecutor(null);
+        // HttpServer 的分发线程继承启动线程的 daemon 属性；在守护线程里启动，指标端口不会阻止进程退出
+        Thread starter = new Thread(created::start, "pictech-metrics-start");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server = created;
+        return created;
+    }
+
+    /**
+     * 设置了 -Dpictech.metrics.port 时启动 /metrics (由共享 HTTP 引擎初始化时调用)
+     */
+    static void serveIfConfigured() {
+        Integer port = Integer.getInteger("pictech.metrics.port");
+        if (port != null && server == null) {
+            try {
+                serve(port);
+            } catch (IOException e) {
+                throw new UncheckedIOException("无法启动指标端口: " + port, e);
+            }
+        }
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String label, String value,
+                               String label2, String value2, double sample) {
+        sb.append(name).append('{').append(label).append("=\"").append(escape(value)).append('"');
+        if (label2 != null) {
+            sb.append(',').append(label2).append("=\"").append(escape(value2)).append('"');
+        }
+        sb.append("} ");
+        if (sample == Math.rint(sample) && Math.abs(sample) < 1e15) {
+            sb.append((long) sample);
+        } else {
+            sb.append(sample);
+        }
+        sb.append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private record CacheProbe(LongSupplier hits, LongSupplier misses) {
+    }
+
+    /**
+     * 透传响应体，同时累计字节数
+     */
+    private static final class CountingSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> delegate;
+        private final Endpoint endpoint;
+
+        CountingSubscriber(HttpResponse.BodySubscriber<T> delegate, Endpoint endpoint) {
+            this.delegate = delegate;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return delegate.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            long bytes = 0;
+            for (int i = 0, n = items.size(); i < n; i++) {
+                bytes += items.get(i).remaining();
+            }
+            endpoint.onResponseBytes(bytes);
+            delegate.onNext(items);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            delegate.onComplete();
+        }
+    }
+}
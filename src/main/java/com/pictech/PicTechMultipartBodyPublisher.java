@@ -0,0 +1,196 @@
+package com.pictech;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 流式 multipart/form-data 请求体 (二进制上传)
+ *
+ * 与 PicTechJsonBodyPublisher 使用同一份参数表：普通字段作为文本段，
+ * 持有原始字节的 PicTechBase64Source (ImageBase64 / image / mask) 作为文件段，
+ * 发送时直接从 FileChannel / 内存读取原始字节，不做 Base64 编码，请求体比 JSON 小约 25%。
+ * 文件段按摘要参与签名，签名须用 PicTechSigner.refreshBinary 计算。
+ *
+ * 需要服务端支持二进制上传，默认不启用：
+ *   -Dpictech.upload.transport=json       JSON + Base64 (默认)
+ *   -Dpictech.upload.transport=multipart  OCR / 修复接口改用本类
+ */
+public final class PicTechMultipartBodyPublisher implements HttpRequest.BodyPublisher {
+
+    private final String boundary;
+    private final HttpRequest.BodyPublisher delegate;
+
+    private PicTechMultipartBodyPublisher(String boundary, HttpRequest.BodyPublisher delegate) {
+        this.boundary = boundary;
+        this.delegate = delegate;
+    }
+
+    /**
+     * 是否启用二进制上传 (-Dpictech.upload.transport=multipart)
+     */
+    public static boolean enabled() {
+        return "multipart".equalsIgnoreCase(System.getProperty("pictech.upload.transport", "json"));
+    }
+
+    /**
+     * 根据参数表构建请求体 (字段顺序与 Map 的迭代顺序一致)
+     */
+    public static PicTechMultipartBodyPublisher of(Map<String, ?> params) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String boundary = "PicTechBoundary" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+
+        List<Object> parts = buildParts(params, boundary);
+        long contentLength = 0;
+        for (Object part : parts) {
+            contentLength += part instanceof byte[] ? ((byte[]) part).length : partLength((PicTechBase64Source) part);
+        }
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> openStream(parts));
+        return new PicTechMultipartBodyPublisher(boundary, HttpRequest.BodyPublishers.fromPublisher(stream, contentLength));
+    }
+
+    /**
+     * 请求头 Content-Type 的值 (含 boundary)
+     */
+    public String contentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    @Override
+    public long contentLength() {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        delegate.subscribe(subscriber);
+    }
+
+    /**
+     * 将参数表拆分为静态字节片段 (段头、文本字段) 与流式文件段
+     */
+    private static List<Object> buildParts(Map<String, ?> params, String boundary) {
+        List<Object> parts = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ?> entry : params.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            String name = escapeName(entry.getKey());
+            sb.append("--").append(boundary).append("\r\n");
+            if (value instanceof PicTechBase64Source && ((PicTechBase64Source) value).hasRaw()) {
+                PicTechBase64Source source = (PicTechBase64Source) value;
+                String mimeType = source.mimeType() == null ? "application/octet-stream" : source.mimeType();
+                sb.append("Content-Disposition: form-data; name=\"").append(name)
+                        .append("\"; filename=\"").append(name).append("\"\r\n")
+                        .append("Content-Type: ").append(mimeType).append("\r\n\r\n");
+                parts.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+                parts.add(source);
+                sb.setLength(0);
+            } else if (value instanceof PicTechBase64Source) {
+                // 已编码的字符串没有原始字节，仍以 Base64 文本发送 (签名同样按文本计算)
+                sb.append("Content-Disposition: form-data; name=\"").append(name).append("\"\r\n\r\n");
+                parts.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+                parts.add(value);
+                sb.setLength(0);
+            } else {
+                sb.append("Content-Disposition: form-data; name=\"").append(name).append("\"\r\n\r\n")
+                        .append(value);
+            }
+            sb.append("\r\n");
+        }
+        sb.append("--").append(boundary).append("--\r\n");
+        parts.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+        return parts;
+    }
+
+    /**
+     * 字段名中的引号与换行按 HTML 表单的规则转义
+     */
+    private static String escapeName(String name) {
+        return name.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    private static long partLength(PicTechBase64Source source) {
+        return source.hasRaw() ? source.rawLength() : source.encodedLength();
+    }
+
+    private static InputStream openStream(List<Object> parts) {
+        List<InputStream> streams = new ArrayList<>(parts.size());
+        for (Object part : parts) {
+            streams.add(part instanceof byte[]
+                    ? new ByteArrayInputStream((byte[]) part)
+                    : new DeferredStream((PicTechBase64Source) part));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * 首次读取时才打开来源：持有原始字节的直接读通道 (文件为 FileChannel)，否则读 Base64 文本
+     */
+    private static final class DeferredStream extends InputStream {
+        private final PicTechBase64Source source;
+        private ReadableByteChannel channel;
+        private InputStream encoded;
+
+        DeferredStream(PicTechBase64Source source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!(source instanceof PicTechBase64Source.RawSource rawSource)) {
+                if (encoded == null) {
+                    encoded = source.openEncodedStream();
+                }
+                return encoded.read(b, off, len);
+            }
+            if (channel == null) {
+                channel = rawSource.openRaw();
+            }
+            PicTechFlightRecorder.Trace trace = PicTechFlightRecorder.current();
+            long readStart = trace == null ? 0 : System.nanoTime();
+            ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+            int n;
+            do {
+                n = channel.read(dst);
+            } while (n == 0);
+            if (trace != null) {
+                trace.readNanos += System.nanoTime() - readStart;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            if (encoded != null) {
+                encoded.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.pictech;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * OCR 接口 (image_ocr_sync) 的类型化结果
+ *
+ * @param code      业务状态码 (Code)
+ * @param requestId 请求 ID (RequestId)
+ * @param message   错误信息 (Message / Msg)，成功时可能为 null
+ * @param regions   识别出的文字区域 (TemplateJson)
+ */
+public record PicTechOcrResult(int code, String requestId, String message, List<Region> regions) {
+
+    private static final byte[] CODE = "Code".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REQUEST_ID = "RequestId".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MESSAGE = "Message".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MSG = "Msg".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TEMPLATE_JSON = "TemplateJson".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TEXT = "text".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] X = "x".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] Y = "y".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WIDTH = "width".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEIGHT = "height".getBytes(StandardCharsets.US_ASCII);
+
+    public boolean success() {
+        return code == 200;
+    }
+
+    /**
+     * 返回坐标经过仿射变换后的新结果 (x' = x * scaleX + dx, y' = y * scaleY + dy)
+     */
+    public PicTechOcrResult transform(double scaleX, double scaleY, double dx, double dy) {
+        List<Region> mapped = new ArrayList<>(regions.size());
+        for (Region region : regions) {
+            mapped.add(region.transform(scaleX, scaleY, dx, dy));
+        }
+        return new PicTechOcrResult(code, requestId, message, Collections.unmodifiableList(mapped));
+    }
+
+    /**
+     * 序列化为规范化的 JSON ({Code, RequestId, Message, TemplateJson: [{text, points: [[x, y], ...]}]})，可由 parse 读回
+     * 坐标经过 transform 后原始响应已不再适用时使用 (如缩小上传后映射回原图坐标)
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"Code\":").append(code);
+        if (requestId != null) {
+            sb.append(",\"RequestId\":\"");
+            PicTechJsonBodyPublisher.appendEscaped(sb, requestId);
+            sb.append('"');
+        }
+        if (message != null) {
+            sb.append(",\"Message\":\"");
+            PicTechJsonBodyPublisher.appendEscaped(sb, message);
+            sb.append('"');
+        }
+        sb.append(",\"TemplateJson\":[");
+        for (int r = 0; r < regions.size(); r++) {
+            Region region = regions.get(r);
+            sb.append(r == 0 ? "{\"text\":\"" : ",{\"text\":\"");
+            PicTechJsonBodyPublisher.appendEscaped(sb, region.text());
+            sb.append("\",\"points\":[");
+            double[] points = region.points();
+            for (int i = 0; i + 1 < points.length; i += 2) {
+                sb.append(i == 0 ? "[" : ",[");
+                appendNumber(sb, points[i]).append(',');
+                appendNumber(sb, points[i + 1]).append(']');
+            }
+            sb.append("]}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static StringBuilder appendNumber(StringBuilder sb, double value) {
+        double rounded = Math.rint(value * 100) / 100;
+        return rounded == (long) rounded ? sb.append((long) rounded) : sb.append(rounded);
+    }
+
+    /**
+     * 单个文字区域
+     *
+     * @param text   识别出的文字 (已反转义)
+     * @param points 按 x0, y0, x1, y1 ... 顺序展开的边框坐标；没有坐标时为空数组
+     */
+    public record Region(String text, double[] points) {
+
+        public double minX() {
+            return extreme(0, true);
+        }
+
+        public double minY() {
+            return extreme(1, true);
+        }
+
+        public double maxX() {
+            return extreme(0, false);
+        }
+
+        public double maxY() {
+            return extreme(1, false);
+        }
+
+        public boolean hasBox() {
+            return points.length >= 2;
+        }
+
+        public Region transform(double scaleX, double scaleY, double dx, double dy) {
+            double[] mapped = new double[points.length];
+            for (int i = 0; i + 1 < points.length; i += 2) {
+                mapped[i] = points[i] * scaleX + dx;
+                mapped[i + 1] = points[i + 1] * scaleY + dy;
+            }
+            return new Region(text, mapped);
+        }
+
+        private double extreme(int offset, boolean min) {
+            if (points.length < 2) {
+                return 0;
+            }
+            double value = points[offset];
+            for (int i = offset; i < points.length; i += 2) {
+                value = min ? Math.min(value, points[i]) : Math.max(value, points[i]);
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return text + " " + Arrays.toString(points);
+        }
+    }
+
+    // ================= 解析 =================
+
+    /**
+     * 单次遍历解析完整的 OCR 响应
+     */
+    public static PicTechOcrResult parse(byte[] json) {
+        PicTechJsonReader reader = new PicTechJsonReader(json);
+        int code = -1;
+        String requestId = null;
+        String message = null;
+        List<Region> regions = new ArrayList<>();
+
+        while (reader.next() != PicTechJsonReader.Token.END_DOCUMENT) {
+            if (reader.token() != PicTechJsonReader.Token.NAME) {
+                continue;
+            }
+            if (code == -1 && reader.nameEquals(CODE)) {
+                reader.next();
+                code = reader.intValueOr(-1);
+            } else if (requestId == null && reader.nameEquals(REQUEST_ID)) {
+                if (reader.next() == PicTechJsonReader.Token.STRING) {
+                    requestId = reader.stringValue();
+                }
+            } else if (message == null && (reader.nameEquals(MESSAGE) || reader.nameEquals(MSG))) {
+                if (reader.next() == PicTechJsonReader.Token.STRING) {
+                    message = reader.stringValue();
+                }
+            } else if (reader.nameEquals(TEMPLATE_JSON)) {
+                reader.next();
+                if (reader.token() == PicTechJsonReader.Token.STRING) {
+                    // TemplateJson 以字符串形式嵌套时再解析一层
+                    byte[] inner = reader.stringValue().getBytes(StandardCharsets.UTF_8);
+                    PicTechJsonReader innerReader = new PicTechJsonReader(inner);
+                    if (innerReader.next() != PicTechJsonReader.Token.END_DOCUMENT) {
+                        readRegions(innerReader, regions);
+                    }
+                } else {
+                    readRegions(reader, regions);
+                }
+            }
+        }
+        return new PicTechOcrResult(code, requestId, message, Collections.unmodifiableList(regions));
+    }
+
+    /**
+     * 从当前值 (数组或对象) 中收集所有带 text 的对象作为文字区域
+     * 坐标取自该对象内的数字数组 (如 [[x,y],...] 或 [x0,y0,...])，
+     * 或 {x, y, width, height} 形式的矩形，或 [{x, y}, ...] 形式的点列表
+     */
+    private static void readRegions(PicTechJsonReader reader, List<Region> out) {
+        if (reader.token() != PicTechJsonReader.Token.BEGIN_ARRAY && reader.token() != PicTechJsonReader.Token.BEGIN_OBJECT) {
+            return;
+        }
+        int baseDepth = reader.depth() - 1;
+        Deque<RegionBuilder> stack = new ArrayDeque<>();
+        if (reader.token() == PicTechJsonReader.Token.BEGIN_OBJECT) {
+            stack.push(new RegionBuilder());
+        }
+        byte[] pendingName = null;
+
+        while (reader.depth() > baseDepth) {
+            PicTechJsonReader.Token token = reader.next();
+            switch (token) {
+                case BEGIN_OBJECT:
+                    stack.push(new RegionBuilder());
+                    pendingName = null;
+                    break;
+                case END_OBJECT:
+                    RegionBuilder done = stack.pop();
+                    RegionBuilder parent = stack.peek();
+                    if (done.text != null) {
+                        out.add(new Region(done.text, done.points()));
+                    } else if (parent != null) {
+                        // 没有文字的子对象 (例如 {x, y} 点或 box 对象) 归入上层区域的坐标
+                        double[] points = done.points();
+                        for (double p : points) {
+                            parent.add(p);
+                        }
+                    }
+                    pendingName = null;
+                    break;
+                case NAME:
+                    pendingName = reader.nameEquals(TEXT) ? TEXT
+                            : reader.nameEquals(X) ? X
+                            : reader.nameEquals(Y) ? Y
+                            : reader.nameEquals(WIDTH) ? WIDTH
+                            : reader.nameEquals(HEIGHT) ? HEIGHT
+                            : null;
+                    break;
+                case STRING:
+                    if (pendingName == TEXT && !stack.isEmpty() && !reader.inArray()) {
+                        stack.peek().text = reader.stringValue();
+                    }
+                    pendingName = null;
+                    break;
+                case NUMBER:
+                    RegionBuilder current = stack.peek();
+                    if (current != null) {
+                        if (reader.inArray()) {
+                            current.add(reader.doubleValue());
+                        } else if (pendingName == X) {
+                            current.x = reader.doubleValue();
+                        } else if (pendingName == Y) {
+                            current.y = reader.doubleValue();
+                        } else if (pendingName == WIDTH) {
+                            current.width = reader.doubleValue();
+                        } else if (pendingName == HEIGHT) {
+                            current.height = reader.doubleValue();
+                        }
+                    }
+                    pendingName = null;
+                    break;
+                case END_DOCUMENT:
+                    return;
+                default:
+                    pendingName = null;
+            }
+        }
+    }
+
+    private static final class RegionBuilder {
+        String text;
+        double[] coords = new double[8];
+        int size;
+        double x = Double.NaN;
+        double y = Double.NaN;
+        double width = Double.NaN;
+        double height = Double.NaN;
+
+        void add(double value) {
+            if (size == coords.length) {
+                coords = Arrays.copyOf(coords, size * 2);
+            }
+            coords[size++] = value;
+        }
+
+        double[] points() {
+            if (size > 0) {
+                return Arrays.copyOf(coords, size);
+            }
+            if (!Double.isNaN(x) && !Double.isNaN(y)) {
+                if (!Double.isNaN(width) && !Double.isNaN(height)) {
+                    return new double[]{x, y, x + width, y, x + width, y + height, x, y + height};
+                }
+                return new double[]{x, y};
+            }
+            return new double[0];
+        }
+    }
+}
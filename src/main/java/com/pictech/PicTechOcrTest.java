@@ -1,40 +1,78 @@
 package com.pictech;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 public class PicTechOcrTest {
     // 替换为您的实际 API 地址
-    private static final String API_URL = "https://www.pictech.top/pictech/commonapi/image_ocr_sync";
+    private static final String API_URL = System.getProperty("pictech.api.host", "https://www.pictech.top/pictech/commonapi") + "/image_ocr_sync";
     private static final String ACCOUNT_ID = "pic_YOUR_ID";
     private static final String SECRET_KEY = "YOUR_SECRET_KEY";
+    // 全局共享的 HTTP 引擎 (连接池 / HTTP/2 复用)
+    private static final PicTechHttpEngine engine = PicTechHttpEngine.shared();
+    private static final PicTechResilience resilience = PicTechResilience.defaults();
+    // 上传前按 -Dpictech.downscale.* 缩小大图
+    private static final PicTechDownscaler downscaler = PicTechDownscaler.shared();
+    // 大图按 -Dpictech.ocr.tileSize 分块并行识别
+    private static final PicTechTiledOcr tiledOcr = PicTechTiledOcr.shared();
 
     public static void main(String[] args) throws Exception {
         String imagePath = "/Users/Downloads/aa.jpeg"; // 待识别图片路径
 
+        if (tiledOcr.enabled()) {
+            // 分块模式：各块并发识别，结果已是整图坐标
+            System.out.println("正在分块发送OCR请求...");
+            PicTechOcrResult merged = tiledOcr.recognize(readFileAsBase64(imagePath));
+            printFormattedResult(merged, merged.toJson(), "合并后的结果:");
+            return;
+        }
+
+        // 读取图片 (流式来源，发送时才边读边编码)；超过上限的大图先缩小
+        PicTechDownscaler.Scaled image = downscaler.prepare(readFileAsBase64(imagePath));
+        if (image.scaled()) {
+            System.out.printf("图片已缩小: %dx%d -> %dx%d%n", image.originalWidth(), image.originalHeight(),
+                    image.width(), image.height());
+        }
+
         // 执行OCR识别
-        String result = performOcr(imagePath);
+        System.out.println("正在发送OCR请求...");
+        byte[] result = performOcr(image.source());
+
+        // 输出美化后的结果 (坐标映射回原图)
+        printFormattedResult(result, image);
+    }
 
-        // 输出美化后的结果
-        printFormattedResult(result);
+    /**
+     * 执行OCR识别并解析，区域坐标均为原图坐标：
+     * 启用分块时大图分块并行识别后合并，否则超过上限的大图先缩小再上传
+     */
+    public static PicTechOcrResult recognize(PicTechBase64Source image) throws Exception {
+        if (tiledOcr.enabled()) {
+            return tiledOcr.recognize(image);
+        }
+        PicTechDownscaler.Scaled scaled = downscaler.prepare(image);
+        return scaled.restore(PicTechOcrResult.parse(performOcr(scaled.source())));
     }
 
     /**
-     * 执行OCR识别
+     * 执行OCR识别 (图片已是 Base64 来源，如内存中的编码结果)，返回原始 JSON 响应
+     * 不打印进度，供流水线 / 批量任务调用
      */
-    private static String performOcr(String imagePath) throws Exception {
+    public static byte[] performOcr(PicTechBase64Source image) throws Exception {
+        return PicTechHttpEngine.await(performOcrAsync(image));
+    }
+
+    /**
+     * 异步版本：不占用调用线程，供分块 OCR 等需要并发发出多个请求的场景使用
+     */
+    public static CompletableFuture<byte[]> performOcrAsync(PicTechBase64Source image) {
         // 1. 准备参数
         Map<String, Object> params = new TreeMap<>();
         params.put("AccountId", ACCOUNT_ID);
@@ -42,208 +80,121 @@ public class PicTechOcrTest {
         // 获取 CST (UTC+8) 时间戳
         long cstTimestamp = Instant.now().atZone(ZoneId.of("Asia/Shanghai")).toEpochSecond();
         params.put("Timestamp", String.valueOf(cstTimestamp));
-
-        // 读取图片并转 Base64
-        params.put("ImageBase64", readFileAsBase64(imagePath));
-
-        // 2. 生成签名
-        String signature = generateSignature(params, SECRET_KEY);
-        params.put("Signature", signature);
-
-        // 3. 构建JSON请求体（使用更可靠的方法）
-        String jsonBody = buildJsonRequest(params);
-
-        // 4. 发送请求
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(API_URL))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
-                .build();
-
-        System.out.println("正在发送OCR请求...");
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-
-        // 5. 返回响应
-        System.out.println("响应状态码: " + response.statusCode());
-        return response.body();
+        params.put("ImageBase64", image);
+
+        // 2~4. 签名、构建JSON请求体（流式输出，不物化完整 JSON 字符串）并发送
+        // OCR 是幂等的，失败按退避重试；每次尝试都刷新 Timestamp 并重新签名
+        return resilience.sendAsync("image_ocr_sync", PicTechResilience.Kind.IDEMPOTENT, attempt -> {
+            if (PicTechMultipartBodyPublisher.enabled()) {
+                // 二进制上传：图片按原始字节发送 (省去 Base64 的 33%)，签名覆盖其 SHA-256 摘要
+                PicTechSigner.forSecret(SECRET_KEY).refreshBinary(params);
+                PicTechMultipartBodyPublisher body = PicTechMultipartBodyPublisher.of(params);
+                return engine.newRequest(API_URL)
+                        .header("Content-Type", body.contentType())
+                        .POST(body)
+                        .build();
+            }
+            signRequest(params, SECRET_KEY);
+            return engine.newRequest(API_URL)
+                    .header("Content-Type", "application/json")
+                    .POST(buildJsonRequest(params))
+                    .build();
+        }, PicTechPooledBody.handler()).thenApply(response -> {
+            // 5. 返回响应 (业务错误由调用方根据 Code 判断)；响应先收在池化的直接内存中，只拷贝一次到堆上
+            try (PicTechPooledBody body = response.body()) {
+                return body.toByteArray();
+            }
+        });
     }
 
     /**
-     * 读取文件并转换为带 MIME 头的 Base64 字符串
+     * 将文件包装为带 MIME 头的流式 Base64 来源
+     * 不再一次性读入内存，发送请求时按固定大小的缓冲区边读边编码
      */
-    private static String readFileAsBase64(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Path.of(path));
-        String lowerPath = path.toLowerCase();
-
-        // 根据文件扩展名确定MIME类型
-        String mimeType = "image/jpeg"; // 默认
-        if (lowerPath.endsWith(".png")) {
-            mimeType = "image/png";
-        } else if (lowerPath.endsWith(".bmp")) {
-            mimeType = "image/bmp";
-        } else if (lowerPath.endsWith(".gif")) {
-            mimeType = "image/gif";
-        } else if (lowerPath.endsWith(".tiff") || lowerPath.endsWith(".tif")) {
-            mimeType = "image/tiff";
+    private static PicTechBase64Source readFileAsBase64(String path) throws IOException {
+        Path filePath = Path.of(path);
+        if (!Files.isReadable(filePath)) {
+            throw new IOException("无法读取图片文件: " + path);
         }
 
-        String base64 = Base64.getEncoder().encodeToString(bytes);
-        return "data:" + mimeType + ";base64," + base64;
+        // 根据文件扩展名确定MIME类型
+        String mimeType = PicTechBase64Source.guessMimeType(path);
+        return PicTechBase64Source.ofFile(filePath, mimeType);
     }
 
     /**
-     * 生成 API 请求签名 (HMAC-SHA256)
+     * 生成 API 请求签名 (HMAC-SHA256)，同时刷新 Timestamp
      */
-    private static String generateSignature(Map<String, Object> params, String secretKey) throws Exception {
-        // 1. 过滤空值并按Key排序
-        String paramString = params.entrySet().stream()
-                .filter(entry -> {
-                    Object value = entry.getValue();
-                    return value != null && !value.toString().isEmpty();
-                })
-                .sorted(Map.Entry.comparingByKey())
-                .map(entry -> entry.getKey() + "=" + entry.getValue())
-                .collect(Collectors.joining("&"));
-
-        // 2. 拼接 SecretKey
-        String signString = paramString + "&SecretKey=" + secretKey;
-
-        // 3. 计算 HMAC-SHA256
-        Mac hmacSha256 = Mac.getInstance("HmacSHA256");
-        hmacSha256.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
-        byte[] hash = hmacSha256.doFinal(signString.getBytes(StandardCharsets.UTF_8));
-
-        // 4. Base64 编码
-        return Base64.getEncoder().encodeToString(hash);
+    private static void signRequest(Map<String, Object> params, String secretKey) {
+        PicTechSigner.forSecret(secretKey).refresh(params);
     }
 
     /**
-     * 构建JSON请求体（使用更简单可靠的方法）
+     * 构建JSON请求体
+     * 普通字段预先序列化，ImageBase64 在发送时流式编码写入
      */
-    private static String buildJsonRequest(Map<String, Object> params) {
-        // 使用StringBuilder构建JSON
-        StringBuilder json = new StringBuilder("{");
-        boolean first = true;
-
-        for (Map.Entry<String, Object> entry : params.entrySet()) {
-            if (!first) {
-                json.append(",");
-            }
-            first = false;
-
-            String key = entry.getKey();
-            Object value = entry.getValue();
-
-            json.append("\"").append(key).append("\":");
-
-            if (value instanceof String) {
-                // 转义特殊字符
-                String escaped = ((String) value)
-                        .replace("\\", "\\\\")
-                        .replace("\"", "\\\"")
-                        .replace("\n", "\\n")
-                        .replace("\r", "\\r")
-                        .replace("\t", "\\t");
-                json.append("\"").append(escaped).append("\"");
-            } else if (value instanceof Number) {
-                json.append(value);
-            } else {
-                // 其他类型都转为字符串处理
-                json.append("\"").append(value.toString()).append("\"");
-            }
-        }
-
-        json.append("}");
-        return json.toString();
+    private static HttpRequest.BodyPublisher buildJsonRequest(Map<String, Object> params) {
+        return PicTechJsonBodyPublisher.of(params);
     }
 
     /**
      * 美化并打印OCR结果
      */
-    private static void printFormattedResult(String jsonResponse) {
+    private static void printFormattedResult(byte[] jsonResponse, PicTechDownscaler.Scaled image) {
+        String rawResponse = new String(jsonResponse, StandardCharsets.UTF_8);
         try {
-            // 将Unicode转义序列转换为中文
-            String decodedResponse = jsonResponse
-                    .replace("\\\"", "\"")
-                    .replace("\\\\", "\\");
-
-            // 简单解析JSON以提取数据
-            if (jsonResponse.contains("\"Code\":200")) {
-                System.out.println("\n========== OCR识别成功 ==========");
-                System.out.println("状态: 识别完成");
-
-                // 提取识别结果
-                if (jsonResponse.contains("TemplateJson")) {
-                    System.out.println("\n识别到的文字区域:");
-                    System.out.println("----------------------------------------");
-
-                    // 查找并提取每个文字区域
-                    int startIndex = jsonResponse.indexOf("\"TemplateJson\":");
-                    if (startIndex > 0) {
-                        // 简化处理，提取所有"text"字段
-                        String[] parts = jsonResponse.split("\"text\":\"");
-                        for (int i = 1; i < parts.length; i++) {
-                            String part = parts[i];
-                            int endIndex = part.indexOf("\"");
-                            if (endIndex > 0) {
-                                String text = part.substring(0, endIndex);
-                                // 将Unicode转义序列转换为中文
-                                String chineseText = convertUnicodeToChinese(text);
-                                System.out.println("区域 " + i + ": " + chineseText);
-                            }
-                        }
-                    }
-                }
+            // 使用拉取解析器一次遍历得到类型化结果 (转义与代理对已正确解码)
+            PicTechOcrResult result = image.restore(PicTechOcrResult.parse(jsonResponse));
+            printFormattedResult(result, rawResponse, image.scaled() ? "完整响应 (坐标基于缩小后的上传图片):" : "完整响应:");
+        } catch (Exception e) {
+            System.out.println("解析响应时出错: " + e.getMessage());
+            System.out.println("原始响应: " + rawResponse);
+        }
+    }
 
-                // 提取RequestId
-                if (jsonResponse.contains("\"RequestId\":")) {
-                    int start = jsonResponse.indexOf("\"RequestId\":\"") + 13;
-                    int end = jsonResponse.indexOf("\"", start);
-                    if (start > 13 && end > start) {
-                        String requestId = jsonResponse.substring(start, end);
-                        System.out.println("\n请求ID: " + requestId);
+    /**
+     * 打印已是原图坐标的结果 (如分块识别合并后的结果)，最后附上 rawLabel 与 rawResponse
+     */
+    private static void printFormattedResult(PicTechOcrResult result, String rawResponse, String rawLabel) {
+        if (result.success()) {
+            System.out.println("\n========== OCR识别成功 ==========");
+            System.out.println("状态: 识别完成");
+
+            // 输出识别到的每个文字区域
+            if (!result.regions().isEmpty()) {
+                System.out.println("\n识别到的文字区域:");
+                System.out.println("----------------------------------------");
+                int index = 1;
+                for (PicTechOcrResult.Region region : result.regions()) {
+                    if (region.hasBox()) {
+                        System.out.printf("区域 %d: %s  [%.0f,%.0f - %.0f,%.0f]%n", index++, region.text(),
+                                region.minX(), region.minY(), region.maxX(), region.maxY());
+                    } else {
+                        System.out.println("区域 " + index++ + ": " + region.text());
                     }
                 }
+            }
 
-                System.out.println("========================================\n");
-                System.out.println("完整响应:");
-                System.out.println(jsonResponse);
-
-            } else {
-                System.out.println("\n========== OCR识别失败 ==========");
-                System.out.println("响应内容: " + jsonResponse);
+            // 输出RequestId
+            if (result.requestId() != null) {
+                System.out.println("\n请求ID: " + result.requestId());
             }
 
-        } catch (Exception e) {
-            System.out.println("解析响应时出错: " + e.getMessage());
-            System.out.println("原始响应: " + jsonResponse);
+            System.out.println("========================================\n");
+            System.out.println(rawLabel);
+            System.out.println(rawResponse);
+
+        } else {
+            System.out.println("\n========== OCR识别失败 ==========");
+            System.out.println("响应内容: " + rawResponse);
         }
     }
 
     /**
      * 将Unicode转义序列转换为中文
+     * 支持 BMP 以外的字符 (代理对) 以及 \\n、\\" 等常规转义
      */
-    private static String convertUnicodeToChinese(String unicodeText) {
-        StringBuilder result = new StringBuilder();
-        int i = 0;
-        while (i < unicodeText.length()) {
-            if (unicodeText.charAt(i) == '\\' && i + 1 < unicodeText.length() && unicodeText.charAt(i + 1) == 'u') {
-                // 处理Unicode转义序列
-                String hex = unicodeText.substring(i + 2, i + 6);
-                try {
-                    int codePoint = Integer.parseInt(hex, 16);
-                    result.append((char) codePoint);
-                    i += 6;
-                } catch (Exception e) {
-                    result.append(unicodeText.charAt(i));
-                    i++;
-                }
-            } else {
-                result.append(unicodeText.charAt(i));
-                i++;
-            }
-        }
-        return result.toString();
+    static String convertUnicodeToChinese(String unicodeText) {
+        return PicTechJsonReader.unescape(unicodeText);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,405 @@
+package com.pictech;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * 多步图片处理流水线
+ *
+ * 示例：
+ *   PicTechPipeline.from(url)
+ *           .resize("Scale", 0.5)
+ *           .watermark("TemplateKey", "single_subtle_light", "Text", "PicTech")
+ *           .crop("X", 0, "Y", 0, "Width", 300, "Height", 200)
+ *           .save(Path.of("out.jpg"), "JPEG", 90)
+ *           .print();
+ *
+ * resize / crop / watermark 每一步按 PicTechLocalTools 的策略 (-Dpictech.tools.mode) 决定本地还是服务端执行，
+ * 默认 remote 模式下全部调用服务端。中间结果是内存中的解码图像，只在远程边界编码：
+ *   - 本地执行的相邻 resize / crop 合并为一次几何变换 (在原图坐标上裁剪，再一次缩放到最终尺寸)
+ *   - 本地执行的 watermark 原地合成到当前图像上
+ *   - 服务端执行的步骤、OCR / inpaint 和最终保存时才编码
+ *   - 上传给 OCR / inpaint 的图像按 PicTechDownscaler 的长边上限缩小，结果映射回当前图像
+ * 每一步的耗时记录在返回的 Report 中。
+ */
+public final class PicTechPipeline {
+
+    /**
+     * OCR 调用：输入带 MIME 头的 Base64 图片，返回原始 JSON 响应
+     */
+    @FunctionalInterface
+    public interface OcrCall {
+        byte[] recognize(PicTechBase64Source image) throws Exception;
+    }
+
+    /**
+     * 修复调用：输入纯 Base64 的原图与蒙版，返回修复后的图片字节
+     */
+    @FunctionalInterface
+    public interface InpaintCall {
+        byte[] inpaint(PicTechBase64Source image, PicTechBase64Source mask) throws Exception;
+    }
+
+    /**
+     * /tools/* 调用：参数中的 Image 为带 MIME 头的 Base64 图片，结果图片写入 target
+     */
+    @FunctionalInterface
+    public interface ToolCall {
+        PicTechBase64FileHandler.Result call(String endpoint, Map<String, Object> params, Path target) throws Exception;
+    }
+
+    private enum Kind {
+        RESIZE("tools/resize"), CROP("tools/crop"), WATERMARK("tools/watermark"), OCR(null), INPAINT(null);
+
+        /** 可在本地或服务端执行的 /tools/* 接口 */
+        final String endpoint;
+
+        Kind(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    private record Step(Kind kind, Map<String, Object> params, Object call, Object argument) {
+    }
+
+    /**
+     * 单个阶段的耗时
+     */
+    public record Stage(String name, double millis, String detail) {
+    }
+
+    /**
+     * 执行结果：每个阶段的耗时，最终图像与保存的文件 (未保存时为 null)
+     */
+    public record Report(List<Stage> stages, BufferedImage image, Path file) {
+
+        public double totalMillis() {
+            return stages.stream().mapToDouble(Stage::millis).sum();
+        }
+
+        public Report print() {
+            for (Stage stage : stages) {
+                System.out.printf("   %-14s %8.1fms  %s%n", stage.name(), stage.millis(), stage.detail());
+            }
+            System.out.printf("   %-14s %8.1fms%n", "total", totalMillis());
+            return this;
+        }
+    }
+
+    private final String source;
+    private final PicTechLocalTools tools;
+    private PicTechDownscaler downscaler = PicTechDownscaler.shared();
+    private ToolCall remote = PicTechApiTest::callTool;
+    private final List<Step> steps = new ArrayList<>();
+
+    private PicTechPipeline(String source, PicTechLocalTools tools) {
+        this.source = source;
+        this.tools = tools;
+    }
+
+    /**
+     * 以 http(s) URL、data: URI 或本地路径作为输入
+     */
+    public static PicTechPipeline from(String image) {
+        return new PicTechPipeline(image, PicTechLocalTools.shared());
+    }
+
+    static PicTechPipeline from(String image, PicTechLocalTools tools) {
+        return new PicTechPipeline(image, tools);
+    }
+
+    public PicTechPipeline resize(Object... keyValues) {
+        return add(Kind.RESIZE, keyValues);
+    }
+
+    public PicTechPipeline crop(Object... keyValues) {
+        return add(Kind.CROP, keyValues);
+    }
+
+    public PicTechPipeline watermark(Object... keyValues) {
+        return add(Kind.WATERMARK, keyValues);
+    }
+
+    /**
+     * 指定 OCR / inpaint 上传前的缩小策略 (默认 PicTechDownscaler.shared())
+     */
+    public PicTechPipeline downscaler(PicTechDownscaler downscaler) {
+        this.downscaler = downscaler;
+        return this;
+    }
+
+    /**
+     * 指定不在本地执行的 resize / crop / watermark 如何调用服务端 (默认 PicTechApiTest.callTool)
+     */
+    public PicTechPipeline remote(ToolCall remote) {
+        this.remote = remote;
+        return this;
+    }
+
+    /**
+     * 识别当前图像中的文字，结果交给 sink；图像本身不变
+     */
+    public PicTechPipeline ocr(Consumer<PicTechOcrResult> sink) {
+        return ocr(PicTechOcrTest::performOcr, sink);
+    }
+
+    public PicTechPipeline ocr(OcrCall call, Consumer<PicTechOcrResult> sink) {
+        steps.add(new Step(Kind.OCR, Map.of(), call, sink));
+        return this;
+    }
+
+    /**
+     * 按蒙版修复当前图像；蒙版尺寸与当前图像不同时先缩放到当前尺寸
+     */
+    public PicTechPipeline inpaint(String mask) {
+        return inpaint(mask, PicTechInpaintTest::inpaintImageSync);
+    }
+
+    public PicTechPipeline inpaint(String mask, InpaintCall call) {
+        steps.add(new Step(Kind.INPAINT, Map.of(), call, mask));
+        return this;
+    }
+
+    /**
+     * 执行并编码保存到 target
+     *
+     * @param outputFormat JPEG / PNG；为 null 时按 target 扩展名
+     */
+    public Report save(Path target, String outputFormat, int quality) throws Exception {
+        Execution execution = execute();
+        long start = System.nanoTime();
+        String format = PicTechLocalTools.writerFormat(outputFormat != null ? outputFormat : extension(target));
+        if (format == null) {
+            throw new IllegalArgumentException("不支持的输出格式: " + outputFormat);
+        }
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", ".part");
+        try {
+            PicTechLocalTools.write(execution.image, format, quality, temp);
+            PicTechBase64FileHandler.moveAtomically(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        execution.stage("save", start, format + " " + Files.size(target) + " bytes");
+        return new Report(List.copyOf(execution.stages), execution.image, target);
+    }
+
+    /**
+     * 执行但不保存，最终图像在 Report.image() 中
+     */
+    public Report run() throws Exception {
+        Execution execution = execute();
+        return new Report(List.copyOf(execution.stages), execution.image, null);
+    }
+
+    private PicTechPipeline add(Kind kind, Object... keyValues) {
+        Map<String, Object> params = new TreeMap<>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            params.put(keyValues[i].toString(), keyValues[i + 1]);
+        }
+        steps.add(new Step(kind, params, null, null));
+        return this;
+    }
+
+    // ================= 执行 =================
+
+    private Execution execute() throws Exception {
+        Execution execution = new Execution();
+        long start = System.nanoTime();
+        BufferedImage image = tools.decode(source).image();
+        execution.reset(image);
+        execution.stage("load", start, image.getWidth() + "x" + image.getHeight());
+
+        for (Step step : steps) {
+            String endpoint = step.kind().endpoint;
+            if (endpoint != null && !tools.runsLocally(endpoint, step.params())) {
+                if (tools.policy() == PicTechLocalTools.Policy.LOCAL) {
+                    throw new IllegalArgumentException("本地不支持: " + endpoint + " " + step.params().keySet());
+                }
+                execution.materialize();
+                start = System.nanoTime();
+                Map<String, Object> params = new TreeMap<>(step.params());
+                params.put("Image", encode(execution.image, true));
+                long sent = System.nanoTime();
+                execution.reset(callRemote(endpoint, params));
+                execution.stage(step.kind().name().toLowerCase(Locale.ROOT) + " (remote)", start,
+                        String.format("encode %.1fms", (sent - start) / 1e6));
+                continue;
+            }
+            switch (step.kind()) {
+                case RESIZE -> execution.resize(step.params());
+                case CROP -> execution.crop(step.params());
+                case WATERMARK -> {
+                    execution.materialize();
+                    start = System.nanoTime();
+                    execution.image = PicTechWatermarkEngine.shared().apply(execution.image, step.params());
+                    execution.stage("watermark", start, String.valueOf(step.params().get("TemplateKey")));
+                }
+                case OCR -> {
+                    execution.materialize();
+                    start = System.nanoTime();
+                    // 超过长边上限时先缩小再上传，识别坐标映射回当前图像
+                    BufferedImage upload = downscaler.fit(execution.image);
+                    PicTechBase64Source encoded = encode(upload, true);
+                    long sent = System.nanoTime();
+                    PicTechOcrResult result = PicTechOcrResult.parse(((OcrCall) step.call()).recognize(encoded))
+                            .transform(execution.image.getWidth() / (double) upload.getWidth(),
+                                    execution.image.getHeight() / (double) upload.getHeight(), 0, 0);
+                    @SuppressWarnings("unchecked")
+                    Consumer<PicTechOcrResult> sink = (Consumer<PicTechOcrResult>) step.argument();
+                    sink.accept(result);
+                    execution.stage("ocr", start, String.format("encode %.1fms, %d regions",
+                            (sent - start) / 1e6, result.regions().size()));
+                }
+                case INPAINT -> {
+                    execution.materialize();
+                    start = System.nanoTime();
+                    BufferedImage mask = tools.decode(step.argument().toString()).image();
+                    // 超过长边上限时原图与蒙版一起缩小上传，结果放大后只替换蒙版覆盖的像素
+                    BufferedImage upload = downscaler.fit(execution.image);
+                    if (mask.getWidth() != upload.getWidth() || mask.getHeight() != upload.getHeight()) {
+                        mask = PicTechDownscaler.nearest(mask, upload.getWidth(), upload.getHeight());
+                    }
+                    PicTechBase64Source encodedImage = encode(upload, false);
+                    PicTechBase64Source encodedMask = encode(mask, false);
+                    long sent = System.nanoTime();
+                    byte[] bytes = ((InpaintCall) step.call()).inpaint(encodedImage, encodedMask);
+                    BufferedImage repaired = ImageIO.read(new ByteArrayInputStream(bytes));
+                    if (repaired == null) {
+                        throw new IOException("修复接口返回的不是图片");
+                    }
+                    if (upload != execution.image) {
+                        repaired = PicTechDownscaler.merge(execution.image, mask, repaired);
+                    }
+                    execution.reset(repaired);
+                    execution.stage("inpaint", start, String.format("encode %.1fms", (sent - start) / 1e6));
+                }
+            }
+        }
+        execution.materialize();
+        return execution;
+    }
+
+    /**
+     * 执行状态：当前图像 + 尚未执行的几何变换 (原图坐标中的区域 -> 输出尺寸)
+     */
+    private static final class Execution {
+        final List<Stage> stages = new ArrayList<>();
+        BufferedImage image;
+        double rx;
+        double ry;
+        double rw;
+        double rh;
+        int outWidth;
+        int outHeight;
+        /** 合并在当前几何变换中的步骤名 */
+        final List<String> pending = new ArrayList<>();
+
+        void reset(BufferedImage image) {
+            this.image = image;
+            rx = 0;
+            ry = 0;
+            rw = image.getWidth();
+            rh = image.getHeight();
+            outWidth = image.getWidth();
+            outHeight = image.getHeight();
+            pending.clear();
+        }
+
+        void resize(Map<String, Object> params) {
+            int[] size = PicTechLocalTools.resizeSize(outWidth, outHeight, params);
+            outWidth = size[0];
+            outHeight = size[1];
+            pending.add("resize");
+        }
+
+        void crop(Map<String, Object> params) {
+            int[] rect = PicTechLocalTools.cropRect(outWidth, outHeight, params);
+            double sx = rw / outWidth;
+            double sy = rh / outHeight;
+            rx += rect[0] * sx;
+            ry += rect[1] * sy;
+            rw = rect[2] * sx;
+            rh = rect[3] * sy;
+            outWidth = rect[2];
+            outHeight = rect[3];
+            pending.add("crop");
+        }
+
+        /**
+         * 一次执行合并后的几何变换：取原图中的区域，缩放到最终尺寸
+         */
+        void materialize() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            int x0 = (int) Math.floor(rx + 1e-6);
+            int y0 = (int) Math.floor(ry + 1e-6);
+            int x1 = Math.min(image.getWidth(), Math.max(x0 + 1, (int) Math.ceil(rx + rw - 1e-6)));
+            int y1 = Math.min(image.getHeight(), Math.max(y0 + 1, (int) Math.ceil(ry + rh - 1e-6)));
+            BufferedImage region = image.getSubimage(x0, y0, x1 - x0, y1 - y0);
+            BufferedImage result = PicTechLocalTools.scale(region, outWidth, outHeight);
+            String name = String.join("+", pending);
+            String detail = (x1 - x0) + "x" + (y1 - y0) + "@" + x0 + "," + y0 + " -> " + outWidth + "x" + outHeight;
+            reset(result);
+            stage(name, start, detail);
+        }
+
+        void stage(String name, long startNanos, String detail) {
+            stages.add(new Stage(name, (System.nanoTime() - startNanos) / 1e6, detail));
+        }
+    }
+
+    // ================= 编码 =================
+
+    /**
+     * 调用服务端执行一步，结果经临时文件解码回内存
+     */
+    private BufferedImage callRemote(String endpoint, Map<String, Object> params) throws Exception {
+        Path temp = Files.createTempFile("pictech-pipeline-", ".part");
+        try {
+            PicTechBase64FileHandler.Result result = remote.call(endpoint, params, temp);
+            if (!result.saved()) {
+                throw new IOException(endpoint + " 调用失败: " + result.envelope());
+            }
+            BufferedImage image = ImageIO.read(result.file().toFile());
+            if (image == null) {
+                throw new IOException(endpoint + " 返回的不是图片");
+            }
+            return image;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 远程边界：在内存中编码为 PNG (修复 / 带透明通道) 或 JPEG (OCR)，包装为 Base64 来源，不写临时文件
+     *
+     * @param withMime 是否带 data:...;base64, 前缀
+     */
+    private static PicTechBase64Source encode(BufferedImage image, boolean withMime) throws IOException {
+        boolean png = !withMime || image.getColorModel().hasAlpha();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 2);
+        PicTechLocalTools.write(image, png ? "png" : "jpeg", 95, out);
+        String mime = withMime ? (png ? "image/png" : "image/jpeg") : null;
+        return PicTechBase64Source.ofBuffer(ByteBuffer.wrap(out.toByteArray()), mime);
+    }
+
+    private static String extension(Path target) {
+        String name = target.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "jpeg" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
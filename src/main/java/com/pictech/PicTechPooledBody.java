@@ -0,0 +1,159 @@
+package com.pictech;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * 存放在池化直接内存分片中的响应体 (见 PicTechBufferPool)
+ *
+ * 代替 BodyHandlers.ofByteArray()：后者先把所有网络缓冲区挂在列表里，结束时再拷贝成一个完整的堆数组，
+ * 峰值是响应体的两倍且都在堆上。这里每收到一段就拷进直接内存分片，网络缓冲区随即可回收；
+ * 需要落盘时直接从分片写入文件 (writeTo)，整个过程不在堆上生成与响应一样大的数组。
+ *
+ * 用完必须 close() 归还分片 (try-with-resources)。
+ */
+public final class PicTechPooledBody implements AutoCloseable {
+
+    private final PicTechBufferPool pool;
+    private final List<ByteBuffer> chunks;
+    private final long size;
+
+    private PicTechPooledBody(PicTechBufferPool pool, List<ByteBuffer> chunks, long size) {
+        this.pool = pool;
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    /**
+     * 使用共享分片池的响应体处理器
+     */
+    public static HttpResponse.BodyHandler<PicTechPooledBody> handler() {
+        return info -> new PooledSubscriber(PicTechBufferPool.shared());
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * 拷贝为堆数组 (只产生一份与响应等大的拷贝，供需要 byte[] 的旧接口使用)
+     */
+    public byte[] toByteArray() {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("响应体过大: " + size);
+        }
+        byte[] result = new byte[(int) size];
+        int offset = 0;
+        for (ByteBuffer chunk : chunks) {
+            int n = chunk.remaining();
+            chunk.duplicate().get(result, offset, n);
+            offset += n;
+        }
+        return result;
+    }
+
+    /**
+     * 按指定字符集解码为字符串 (错误信息等小响应)
+     */
+    public String toString(Charset charset) {
+        return new String(toByteArray(), charset);
+    }
+
+    /**
+     * 写入文件 (覆盖)，直接从直接内存分片批量写出
+     */
+    public void writeTo(Path target) throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] views = new ByteBuffer[chunks.size()];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = chunks.get(i).duplicate();
+            }
+            long written = 0;
+            while (written < size) {
+                written += channel.write(views);
+            }
+        }
+    }
+
+    /**
+     * 归还分片；之后不得再读取
+     */
+    @Override
+    public void close() {
+        synchronized (chunks) {
+            for (ByteBuffer chunk : chunks) {
+                pool.release(chunk);
+            }
+            chunks.clear();
+        }
+    }
+
+    /**
+     * 把收到的每段数据拷贝进分片，网络缓冲区不被持有
+     */
+    private static final class PooledSubscriber implements HttpResponse.BodySubscriber<PicTechPooledBody> {
+        private final PicTechBufferPool pool;
+        private final CompletableFuture<PicTechPooledBody> result = new CompletableFuture<>();
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer current;
+        private long size;
+
+        PooledSubscriber(PicTechBufferPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public CompletionStage<PicTechPooledBody> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            for (ByteBuffer item : items) {
+                while (item.hasRemaining()) {
+                    if (current == null || !current.hasRemaining()) {
+                        current = pool.acquire();
+                        chunks.add(current);
+                    }
+                    int n = Math.min(item.remaining(), current.remaining());
+                    ByteBuffer slice = item.slice();
+                    slice.limit(n);
+                    current.put(slice);
+                    item.position(item.position() + n);
+                    size += n;
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            chunks.forEach(pool::release);
+            chunks.clear();
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            for (ByteBuffer chunk : chunks) {
+                chunk.flip();
+            }
+            result.complete(new PicTechPooledBody(pool, chunks, size));
+        }
+    }
+}
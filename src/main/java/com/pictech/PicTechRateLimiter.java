@@ -0,0 +1,84 @@
+package com.pictech;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 令牌桶限流器
+ *
+ * 以「每秒请求数」配置速率，允许 burst 个令牌的突发；
+ * 取代示例代码中固定的 Thread.sleep(500)，在服务空闲时不再白白等待。
+ * rate <= 0 表示不限流。
+ */
+public final class PicTechRateLimiter {
+
+    private final double permitsPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    public PicTechRateLimiter(double requestsPerSecond) {
+        this(requestsPerSecond, Math.max(1, requestsPerSecond));
+    }
+
+    public PicTechRateLimiter(double requestsPerSecond, double burst) {
+        this.permitsPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = Math.min(1, burst);
+        this.lastRefill = System.nanoTime();
+    }
+
+    public static PicTechRateLimiter unlimited() {
+        return new PicTechRateLimiter(0);
+    }
+
+    /**
+     * 获取一个令牌，必要时阻塞等待
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        long deadline = System.nanoTime() + waitNanos;
+        while (waitNanos > 0) {
+            LockSupport.parkNanos(this, waitNanos);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            waitNanos = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * 尝试立即获取一个令牌
+     */
+    public synchronized boolean tryAcquire() {
+        if (permitsPerNano <= 0) {
+            return true;
+        }
+        refill(System.nanoTime());
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 预订一个令牌，返回需要等待的纳秒数 (令牌可以透支，等待在锁外进行)
+     */
+    private synchronized long reserve() {
+        if (permitsPerNano <= 0) {
+            return 0;
+        }
+        refill(System.nanoTime());
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / permitsPerNano);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * permitsPerNano);
+            lastRefill = now;
+        }
+    }
+}
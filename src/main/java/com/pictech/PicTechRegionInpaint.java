@@ -0,0 +1,334 @@
+package com.pictech;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按蒙版区域修复：只上传蒙版覆盖的局部，结果在本地贴回原图
+ *
+ * 去水印 / 去 logo 这类任务的蒙版通常只占角落的一小块，整图上传、整图 PNG 下载的字节大多浪费在不变的像素上。
+ * 区域模式先求出蒙版的连通区域 (按 16px 网格)，每个区域四周加上 margin 像素的上下文 (修复需要参考周围内容)，
+ * 相交的区域合并后，把原图与蒙版的对应局部并发发给 inpaint_image_sync，
+ * 返回的局部只把蒙版覆盖的像素贴回原图，蒙版外的像素与原图完全一致。
+ * 区域总面积超过原图的 maxFraction 时退化为整图一次发送 (仍在本地合成)。
+ *
+ * 默认不启用，可通过系统属性调整：
+ *   -Dpictech.inpaint.mode=full          full 整图发送 (默认) / region 按区域发送
+ *   -Dpictech.inpaint.regionMargin=64    区域四周的上下文像素
+ *   -Dpictech.inpaint.regionMaxFraction=0.5
+ */
+public final class PicTechRegionInpaint {
+
+    /**
+     * 单次修复调用：输入纯 Base64 的局部原图与蒙版，返回修复后的图片字节
+     */
+    @FunctionalInterface
+    public interface InpaintCall {
+        CompletableFuture<byte[]> inpaint(PicTechBase64Source image, PicTechBase64Source mask);
+    }
+
+    /** 求连通区域的网格边长 */
+    private static final int CELL = 16;
+    private static final int CROP_QUALITY = 95;
+
+    private static volatile PicTechRegionInpaint shared;
+
+    private final boolean enabled;
+    private final int margin;
+    private final double maxFraction;
+    private final InpaintCall call;
+    private final LongAdder jobs = new LongAdder();
+    private final LongAdder regions = new LongAdder();
+    private final LongAdder fullBytes = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder downloadedBytes = new LongAdder();
+
+    /**
+     * @param margin      区域四周的上下文像素
+     * @param maxFraction 区域总面积占原图的比例上限，超过时整图发送
+     * @param call        单次修复调用
+     */
+    public PicTechRegionInpaint(int margin, double maxFraction, InpaintCall call) {
+        this(true, margin, maxFraction, call);
+    }
+
+    private PicTechRegionInpaint(boolean enabled, int margin, double maxFraction, InpaintCall call) {
+        this.enabled = enabled;
+        this.margin = Math.max(0, margin);
+        this.maxFraction = maxFraction;
+        this.call = call;
+    }
+
+    /**
+     * 按系统属性配置、通过 PicTechInpaintTest.inpaintImageAsync 修复的全局实例
+     */
+    public static PicTechRegionInpaint shared() {
+        PicTechRegionInpaint region = shared;
+        if (region == null) {
+            synchronized (PicTechRegionInpaint.class) {
+                region = shared;
+                if (region == null) {
+                    region = new PicTechRegionInpaint(
+                            "region".equals(System.getProperty("pictech.inpaint.mode", "full").toLowerCase(Locale.ROOT)),
+                            Integer.getInteger("pictech.inpaint.regionMargin", 64),
+                            Double.parseDouble(System.getProperty("pictech.inpaint.regionMaxFraction", "0.5")),
+                            PicTechInpaintTest::inpaintImageAsync);
+                    shared = region;
+                }
+            }
+        }
+        return region;
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * 是否对这对原图 / 蒙版使用区域模式：两者都持有原始字节且本地能解码 (如 WebP 蒙版不能，整图发送)
+     */
+    public boolean supports(PicTechBase64Source image, PicTechBase64Source mask) {
+        return enabled && decodable(image) && decodable(mask);
+    }
+
+    /**
+     * 按图片头判断本地是否有对应的解码器 (不解码像素)
+     */
+    private static boolean decodable(PicTechBase64Source source) {
+        if (!(source instanceof PicTechBase64Source.RawSource rawSource)) {
+            return false;
+        }
+        try (InputStream raw = Channels.newInputStream(rawSource.openRaw());
+             ImageInputStream in = new MemoryCacheImageInputStream(raw)) {
+            return ImageIO.getImageReaders(in).hasNext();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 修复并返回完整尺寸的结果图像；蒙版为空时不调用接口，直接返回原图
+     */
+    public BufferedImage inpaint(PicTechBase64Source image, PicTechBase64Source mask) throws IOException, InterruptedException {
+        BufferedImage original = read(image);
+        BufferedImage maskImage = read(mask);
+        if (maskImage.getWidth() != original.getWidth() || maskImage.getHeight() != original.getHeight()) {
+            maskImage = PicTechDownscaler.nearest(maskImage, original.getWidth(), original.getHeight());
+        }
+        List<Rectangle> boxes = regions(maskImage, margin);
+        long area = 0;
+        for (Rectangle box : boxes) {
+            area += (long) box.width * box.height;
+        }
+        if (area > maxFraction * original.getWidth() * original.getHeight()) {
+            boxes = List.of(new Rectangle(0, 0, original.getWidth(), original.getHeight()));
+        }
+        jobs.increment();
+        regions.add(boxes.size());
+        fullBytes.add(image.rawLength() + mask.rawLength());
+
+        // 各区域并发发送，结果按区域顺序贴回
+        String format = original.getColorModel().hasAlpha() ? "png" : "jpeg";
+        List<CompletableFuture<BufferedImage>> futures = new ArrayList<>(boxes.size());
+        for (Rectangle box : boxes) {
+            byte[] crop = encode(original.getSubimage(box.x, box.y, box.width, box.height), format);
+            byte[] cropMask = encode(maskImage.getSubimage(box.x, box.y, box.width, box.height), "png");
+            uploadedBytes.add(crop.length + cropMask.length);
+            futures.add(call.inpaint(PicTechBase64Source.ofBuffer(ByteBuffer.wrap(crop), null),
+                    PicTechBase64Source.ofBuffer(ByteBuffer.wrap(cropMask), null)).thenApply(bytes -> {
+                downloadedBytes.add(bytes.length);
+                try {
+                    BufferedImage repaired = ImageIO.read(new ByteArrayInputStream(bytes));
+                    if (repaired == null) {
+                        throw new IOException("修复接口返回的不是图片");
+                    }
+                    return repaired;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        // 任一区域失败时取消其余区域
+        for (CompletableFuture<BufferedImage> future : futures) {
+            future.whenComplete((repaired, error) -> {
+                if (error != null) {
+                    futures.forEach(other -> other.cancel(true));
+                }
+            });
+        }
+        PicTechHttpEngine.await(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])));
+
+        BufferedImage out = new BufferedImage(original.getWidth(), original.getHeight(), PicTechLocalTools.workingType(original));
+        Graphics2D g = out.createGraphics();
+        try {
+            g.drawImage(original, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        for (int i = 0; i < boxes.size(); i++) {
+            paste(out, maskImage, futures.get(i).join(), boxes.get(i));
+        }
+        return out;
+    }
+
+    /**
+     * 蒙版的连通区域 (8 邻接，按 CELL 网格)，四周扩展 margin 后合并相交的区域
+     */
+    static List<Rectangle> regions(BufferedImage mask, int margin) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        int gw = (width + CELL - 1) / CELL;
+        int gh = (height + CELL - 1) / CELL;
+        boolean[] marked = new boolean[gw * gh];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            mask.getRGB(0, y, width, 1, row, 0, width);
+            int base = (y / CELL) * gw;
+            for (int x = 0; x < width; x++) {
+                if (((row[x] >> 8) & 0xff) > 127) {
+                    marked[base + x / CELL] = true;
+                }
+            }
+        }
+
+        List<Rectangle> boxes = new ArrayList<>();
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int start = 0; start < marked.length; start++) {
+            if (!marked[start]) {
+                continue;
+            }
+            marked[start] = false;
+            queue.add(start);
+            int minX = gw;
+            int minY = gh;
+            int maxX = 0;
+            int maxY = 0;
+            while (!queue.isEmpty()) {
+                int cell = queue.poll();
+                int cx = cell % gw;
+                int cy = cell / gw;
+                minX = Math.min(minX, cx);
+                minY = Math.min(minY, cy);
+                maxX = Math.max(maxX, cx);
+                maxY = Math.max(maxY, cy);
+                for (int ny = Math.max(0, cy - 1); ny <= Math.min(gh - 1, cy + 1); ny++) {
+                    for (int nx = Math.max(0, cx - 1); nx <= Math.min(gw - 1, cx + 1); nx++) {
+                        int next = ny * gw + nx;
+                        if (marked[next]) {
+                            marked[next] = false;
+                            queue.add(next);
+                        }
+                    }
+                }
+            }
+            int x0 = Math.max(0, minX * CELL - margin);
+            int y0 = Math.max(0, minY * CELL - margin);
+            int x1 = Math.min(width, (maxX + 1) * CELL + margin);
+            int y1 = Math.min(height, (maxY + 1) * CELL + margin);
+            boxes.add(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+        }
+
+        // 扩展后相交的区域合并为外接矩形，直到没有相交
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < boxes.size() && !changed; i++) {
+                for (int j = i + 1; j < boxes.size(); j++) {
+                    if (boxes.get(i).intersects(boxes.get(j))) {
+                        boxes.set(i, boxes.get(i).union(boxes.get(j)));
+                        boxes.remove(j);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return boxes;
+    }
+
+    /**
+     * 把 repaired 中蒙版覆盖的像素贴到 out 的 box 区域 (尺寸与 box 不同时先缩放)
+     */
+    private static void paste(BufferedImage out, BufferedImage mask, BufferedImage repaired, Rectangle box) {
+        if (repaired.getWidth() != box.width || repaired.getHeight() != box.height) {
+            repaired = PicTechLocalTools.scale(repaired, box.width, box.height);
+        }
+        int[] fill = new int[box.width];
+        int[] select = new int[box.width];
+        int[] base = new int[box.width];
+        for (int y = 0; y < box.height; y++) {
+            repaired.getRGB(0, y, box.width, 1, fill, 0, box.width);
+            mask.getRGB(box.x, box.y + y, box.width, 1, select, 0, box.width);
+            out.getRGB(box.x, box.y + y, box.width, 1, base, 0, box.width);
+            for (int x = 0; x < box.width; x++) {
+                if (((select[x] >> 8) & 0xff) > 127) {
+                    base[x] = fill[x];
+                }
+            }
+            out.setRGB(box.x, box.y + y, box.width, 1, base, 0, box.width);
+        }
+    }
+
+    private static BufferedImage read(PicTechBase64Source source) throws IOException {
+        if (!(source instanceof PicTechBase64Source.RawSource rawSource)) {
+            throw new IOException("已编码的来源没有原始字节，无法在本地解码");
+        }
+        try (InputStream raw = Channels.newInputStream(rawSource.openRaw())) {
+            BufferedImage image = ImageIO.read(new MemoryCacheImageInputStream(raw));
+            if (image == null) {
+                throw new IOException("本地无法解码该图片格式");
+            }
+            return image;
+        }
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 2);
+        PicTechLocalTools.write(image, format, CROP_QUALITY, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 区域模式下实际上传的字节数之和 (局部原图 + 局部蒙版)
+     */
+    public long uploadedBytes() {
+        return uploadedBytes.sum();
+    }
+
+    /**
+     * 区域模式下下载的字节数之和
+     */
+    public long downloadedBytes() {
+        return downloadedBytes.sum();
+    }
+
+    /**
+     * 整图发送时原图 + 蒙版的字节数之和 (对照)
+     */
+    public long fullBytes() {
+        return fullBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("区域修复: %d 次 / %d 个区域, 上传 %.1fKB (整图 %.1fKB), 下载 %.1fKB",
+                jobs.sum(), regions.sum(), uploadedBytes.sum() / 1024.0, fullBytes.sum() / 1024.0, downloadedBytes.sum() / 1024.0);
+    }
+}
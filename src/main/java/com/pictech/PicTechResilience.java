@@ -0,0 +1,563 @@
+package com.pictech;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 请求弹性层：重试、指数退避 (带抖动) 与对冲请求
+ *
+ *   - 重试：按调用类型判断是否可以重试，非幂等调用只在请求确定没有被处理时 (连接失败 / 429 / 503) 重试
+ *   - 退避：base * 2^(n-1) 封顶 maxDelay 后取 [0, delay) 随机值 (full jitter)，并尊重 Retry-After
+ *   - 签名：每次尝试都调用 RequestFactory 重新生成请求，Timestamp / Signature 不会重复使用
+ *   - 对冲：HEDGEABLE 调用在超过该接口近期 p95 延迟仍未返回时再发一份，取先成功者并取消另一份；
+ *     对冲请求受预算限制 (约占总请求的 10%)，不会在服务端整体变慢时把负载翻倍
+ *
+ * 默认实例可通过系统属性调整：
+ *   -Dpictech.retry.maxAttempts=3       最大尝试次数 (含首次)
+ *   -Dpictech.retry.baseDelayMs=200     退避基数
+ *   -Dpictech.retry.maxDelayMs=5000     单次退避上限
+ *   -Dpictech.hedge.enabled=false       是否启用对冲
+ *   -Dpictech.hedge.percentile=0.95     触发对冲的延迟分位
+ */
+public final class PicTechResilience {
+
+    /**
+     * 调用类型
+     */
+    public enum Kind {
+        /** 非幂等：只在请求确定未被处理时重试 */
+        NON_IDEMPOTENT,
+        /** 幂等：超时、网络异常及 5xx 均可重试 */
+        IDEMPOTENT,
+        /** 幂等且允许对冲 (例如 /tools/* 图片处理) */
+        HEDGEABLE
+    }
+
+    /**
+     * 请求工厂，每次尝试 (包括对冲请求) 调用一次，应在其中刷新 Timestamp 并重新签名
+     */
+    @FunctionalInterface
+    public interface RequestFactory {
+        /**
+         * @param attempt 第几次尝试，从 1 开始；对冲请求与它所属的尝试同号
+         */
+        HttpRequest create(int attempt) throws Exception;
+    }
+
+    /** 对冲预算：每个请求积攒的令牌数 (0.1 即最多约 10% 的请求会被对冲) */
+    private static final double HEDGE_BUDGET_RATIO = 0.1;
+    private static final double HEDGE_BUDGET_MAX = 10;
+    /** 计算分位数前至少需要的样本数 */
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    /** Retry-After 最多等待多久 */
+    private static final long MAX_RETRY_AFTER_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pictech-resilience");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** 各接口近期成功请求的延迟 (所有实例共享，用于计算对冲阈值) */
+    private static final ConcurrentHashMap<String, LatencyWindow> LATENCIES = new ConcurrentHashMap<>();
+
+    private static volatile PicTechResilience defaults;
+
+    private final PicTechHttpEngine engine;
+    private final int maxAttempts;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final boolean hedging;
+    private final double hedgePercentile;
+    private final long minHedgeDelayNanos;
+
+    private double hedgeTokens = HEDGE_BUDGET_MAX;
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+
+    private PicTechResilience(Builder builder) {
+        this.engine = builder.engine != null ? builder.engine : PicTechHttpEngine.shared();
+        this.maxAttempts = builder.maxAttempts;
+        this.baseDelayNanos = builder.baseDelay.toNanos();
+        this.maxDelayNanos = builder.maxDelay.toNanos();
+        this.hedging = builder.hedging;
+        this.hedgePercentile = builder.hedgePercentile;
+        this.minHedgeDelayNanos = builder.minHedgeDelay.toNanos();
+    }
+
+    /**
+     * 获取按系统属性配置的默认实例 (使用共享 HTTP 引擎)
+     */
+    public static PicTechResilience defaults() {
+        PicTechResilience instance = defaults;
+        if (instance == null) {
+            synchronized (PicTechResilience.class) {
+                instance = defaults;
+                if (instance == null) {
+                    instance = newBuilder()
+                            .maxAttempts(Integer.getInteger("pictech.retry.maxAttempts", 3))
+                            .baseDelay(Duration.ofMillis(Long.getLong("pictech.retry.baseDelayMs", 200L)))
+                            .maxDelay(Duration.ofMillis(Long.getLong("pictech.retry.maxDelayMs", 5_000L)))
+                            .hedging(Boolean.getBoolean("pictech.hedge.enabled"))
+                            .hedgePercentile(Double.parseDouble(System.getProperty("pictech.hedge.percentile", "0.95")))
+                            .build();
+                    defaults = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * 同步发送，重试全部失败时返回最后一次的响应 (或抛出最后一次的异常)
+     */
+    public <T> HttpResponse<T> send(String endpoint, Kind kind, RequestFactory factory,
+                                    HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        return PicTechHttpEngine.await(sendAsync(endpoint, kind, factory, handler));
+    }
+
+    /**
+     * 异步发送
+     *
+     * @param endpoint 接口名 (与 PicTechHttpEngine 的并发窗口共用同一个 key)
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(String endpoint, Kind kind, RequestFactory factory,
+                                                            HttpResponse.BodyHandler<T> handler) {
+        Call<T> call = new Call<>(endpoint, kind, factory, handler);
+        call.result.whenComplete((response, error) -> {
+            if (call.result.isCancelled()) {
+                Attempt<T> current = call.current;
+                if (current != null) {
+                    current.abort();
+                }
+            }
+        });
+        startAttempt(call, 1);
+        return call.result;
+    }
+
+    public long retryCount() {
+        return retries.sum();
+    }
+
+    public long hedgeCount() {
+        return hedges.sum();
+    }
+
+    /**
+     * 对冲请求先于原请求返回的次数
+     */
+    public long hedgeWinCount() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * 某个接口当前的对冲阈值 (毫秒)，样本不足时返回 -1
+     */
+    public double hedgeDelayMillis(String endpoint) {
+        long nanos = hedgeDelayNanos(endpoint);
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PicTechResilience[maxAttempts=%d, hedging=%s, retries=%d, hedges=%d, hedgeWins=%d]",
+                maxAttempts, hedging, retryCount(), hedgeCount(), hedgeWinCount());
+    }
+
+    // ================= 尝试调度 =================
+
+    private <T> void startAttempt(Call<T> call, int number) {
+        if (call.result.isDone()) {
+            return;
+        }
+        Attempt<T> attempt = new Attempt<>(call, number);
+        call.current = attempt;
+        earnHedgeToken();
+        attempt.launch(false);
+
+        if (hedging && call.kind == Kind.HEDGEABLE) {
+            long delay = hedgeDelayNanos(call.endpoint);
+            if (delay >= 0) {
+                attempt.hedgeTask = SCHEDULER.schedule(() -> {
+                    if (!attempt.isFinished() && spendHedgeToken()) {
+                        hedges.increment();
+                        attempt.launch(true);
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private <T> void retryOrGiveUp(Call<T> call, int number, HttpResponse<T> response, Throwable error) {
+        if (number >= maxAttempts || call.result.isDone()) {
+            if (error != null) {
+                call.result.completeExceptionally(error);
+            } else {
+                call.result.complete(response);
+            }
+            return;
+        }
+        retries.increment();
+        long delay = backoffNanos(number, response);
+        discard(response);
+        SCHEDULER.schedule(() -> startAttempt(call, number + 1), delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 第 number 次尝试失败后的等待时间：full jitter，Retry-After 优先
+     */
+    private long backoffNanos(int number, HttpResponse<?> response) {
+        long ceiling = baseDelayNanos << Math.min(number - 1, 20);
+        ceiling = Math.min(maxDelayNanos, ceiling <= 0 ? maxDelayNanos : ceiling);
+        long delay = ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling);
+        if (response != null) {
+            long retryAfter = response.headers().firstValue("Retry-After").map(PicTechResilience::parseRetryAfter).orElse(0L);
+            delay = Math.max(delay, Math.min(retryAfter, MAX_RETRY_AFTER_NANOS));
+        }
+        return delay;
+    }
+
+    private static long parseRetryAfter(String value) {
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            // HTTP 日期格式的 Retry-After 不常见，按普通退避处理
+            return 0;
+        }
+    }
+
+    /**
+     * 丢弃不再交付的响应 (重试前的失败响应、对冲落败方)：响应体持有池化资源 (PicTechPooledBody) 时归还
+     */
+    private static void discard(HttpResponse<?> response) {
+        if (response != null && response.body() instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) response.body()).close();
+            } catch (Exception ignored) {
+                // 归还失败不影响本次调用的结果
+            }
+        }
+    }
+
+    static boolean isRetryable(Kind kind, int statusCode) {
+        if (statusCode == 429 || statusCode == 503) {
+            return true;
+        }
+        return kind != Kind.NON_IDEMPOTENT
+                && (statusCode == 408 || statusCode == 500 || statusCode == 502 || statusCode == 504);
+    }
+
+    static boolean isRetryable(Kind kind, Throwable error) {
+        if (error instanceof ConnectException || error instanceof HttpConnectTimeoutException) {
+            // 连接都没有建立，服务端不可能处理过这个请求
+            return true;
+        }
+        return kind != Kind.NON_IDEMPOTENT && error instanceof IOException;
+    }
+
+    // ================= 对冲 =================
+
+    private long hedgeDelayNanos(String endpoint) {
+        LatencyWindow window = LATENCIES.get(endpoint);
+        long percentile = window == null ? -1 : window.percentile(hedgePercentile);
+        return percentile < 0 ? -1 : Math.max(minHedgeDelayNanos, percentile);
+    }
+
+    private synchronized void earnHedgeToken() {
+        hedgeTokens = Math.min(HEDGE_BUDGET_MAX, hedgeTokens + HEDGE_BUDGET_RATIO);
+    }
+
+    private synchronized boolean spendHedgeToken() {
+        if (hedgeTokens < 1) {
+            return false;
+        }
+        hedgeTokens -= 1;
+        return true;
+    }
+
+    private static void recordLatency(String endpoint, long nanos) {
+        LATENCIES.computeIfAbsent(endpoint, name -> new LatencyWindow()).record(nanos);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    // ================= 内部状态 =================
+
+    /**
+     * 一次逻辑调用 (可能包含多次尝试)
+     */
+    private static final class Call<T> {
+        final String endpoint;
+        final Kind kind;
+        final RequestFactory factory;
+        final HttpResponse.BodyHandler<T> handler;
+        final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        volatile Attempt<T> current;
+
+        Call(String endpoint, Kind kind, RequestFactory factory, HttpResponse.BodyHandler<T> handler) {
+            this.endpoint = endpoint;
+            this.kind = kind;
+            this.factory = factory;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * 一次尝试：原请求 + 至多一个对冲请求，任何一个得到确定结果即结束
+     */
+    private final class Attempt<T> {
+        final Call<T> call;
+        final int number;
+        final List<CompletableFuture<HttpResponse<T>>> exchanges = new ArrayList<>(2);
+        volatile ScheduledFuture<?> hedgeTask;
+        private int pending;
+        private boolean finished;
+        private HttpResponse<T> lastResponse;
+        private Throwable lastError;
+
+        Attempt(Call<T> call, int number) {
+            this.call = call;
+            this.number = number;
+        }
+
+        synchronized boolean isFinished() {
+            return finished;
+        }
+
+        void launch(boolean hedge) {
+            HttpRequest request;
+            PicTechFlightRecorder.Trace trace = PicTechFlightRecorder.start(call.endpoint, number, hedge);
+            try {
+                request = call.factory.create(number);
+            } catch (Exception e) {
+                PicTechFlightRecorder.prepared(trace);
+                if (trace != null) {
+                    trace.finish(-1, e);
+                }
+                if (!hedge) {
+                    // 请求都构造不出来 (例如签名失败)，重试没有意义
+                    finish(null, e, false);
+                }
+                return;
+            }
+            PicTechFlightRecorder.prepared(trace);
+
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<T>> exchange = engine.sendAsync(call.endpoint, request, call.handler, trace);
+            synchronized (this) {
+                if (finished) {
+                    exchange.cancel(true);
+                    return;
+                }
+                pending++;
+                exchanges.add(exchange);
+            }
+            exchange.whenComplete((response, error) -> onExchangeDone(hedge, response, error, System.nanoTime() - start));
+        }
+
+        private void onExchangeDone(boolean hedge, HttpResponse<T> response, Throwable error, long nanos) {
+            error = unwrap(error);
+            if (error instanceof CancellationException) {
+                synchronized (this) {
+                    pending--;
+                }
+                return;
+            }
+            boolean retryable = error != null ? isRetryable(call.kind, error) : isRetryable(call.kind, response.statusCode());
+            synchronized (this) {
+                pending--;
+                if (finished) {
+                    discard(response);
+                    return;
+                }
+                if (retryable) {
+                    if (lastResponse != response) {
+                        discard(lastResponse);
+                    }
+                    lastResponse = response;
+                    lastError = error;
+                    if (pending > 0) {
+                        // 另一份请求还在路上，等它的结果
+                        return;
+                    }
+                }
+            }
+            if (!retryable) {
+                if (error == null && response.statusCode() < 400) {
+                    recordLatency(call.endpoint, nanos);
+                    if (hedge) {
+                        hedgeWins.increment();
+                    }
+                }
+                finish(response, error, false);
+            } else {
+                finish(lastResponse, lastError, true);
+            }
+        }
+
+        /**
+         * 结束本次尝试：取消尚未返回的另一份请求，然后交付结果或安排重试
+         */
+        private void finish(HttpResponse<T> response, Throwable error, boolean retry) {
+            List<CompletableFuture<HttpResponse<T>>> losers;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                losers = new ArrayList<>(exchanges);
+            }
+            ScheduledFuture<?> task = hedgeTask;
+            if (task != null) {
+                task.cancel(false);
+            }
+            for (CompletableFuture<HttpResponse<T>> loser : losers) {
+                loser.cancel(true);
+            }
+            if (retry) {
+                retryOrGiveUp(call, number, response, error);
+            } else if (error != null) {
+                call.result.completeExceptionally(error);
+            } else {
+                call.result.complete(response);
+            }
+        }
+
+        void abort() {
+            List<CompletableFuture<HttpResponse<T>>> running;
+            synchronized (this) {
+                finished = true;
+                running = new ArrayList<>(exchanges);
+            }
+            ScheduledFuture<?> task = hedgeTask;
+            if (task != null) {
+                task.cancel(false);
+            }
+            running.forEach(exchange -> exchange.cancel(true));
+        }
+    }
+
+    /**
+     * 最近 N 次成功请求的延迟环形缓冲，分位数按需排序计算并缓存
+     */
+    private static final class LatencyWindow {
+        private static final int SIZE = 256;
+        private static final int RECOMPUTE_EVERY = 16;
+
+        private final long[] samples = new long[SIZE];
+        private int count;
+        private int next;
+        private int sinceCompute = RECOMPUTE_EVERY;
+        private double cachedQuantile = -1;
+        private long cachedValue = -1;
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % SIZE;
+            count = Math.min(SIZE, count + 1);
+            sinceCompute++;
+        }
+
+        synchronized long percentile(double quantile) {
+            if (count < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            if (sinceCompute >= RECOMPUTE_EVERY || quantile != cachedQuantile) {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                int index = (int) Math.min(count - 1, Math.ceil(quantile * count) - 1);
+                cachedValue = sorted[Math.max(0, index)];
+                cachedQuantile = quantile;
+                sinceCompute = 0;
+            }
+            return cachedValue;
+        }
+    }
+
+    /**
+     * 弹性策略构建器
+     */
+    public static final class Builder {
+        private PicTechHttpEngine engine;
+        private int maxAttempts = 3;
+        private Duration baseDelay = Duration.ofMillis(200);
+        private Duration maxDelay = Duration.ofSeconds(5);
+        private boolean hedging;
+        private double hedgePercentile = 0.95;
+        private Duration minHedgeDelay = Duration.ofMillis(20);
+
+        private Builder() {
+        }
+
+        public Builder engine(PicTechHttpEngine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = Math.max(1, maxAttempts);
+            return this;
+        }
+
+        public Builder baseDelay(Duration baseDelay) {
+            this.baseDelay = baseDelay;
+            return this;
+        }
+
+        public Builder maxDelay(Duration maxDelay) {
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        public Builder hedging(boolean hedging) {
+            this.hedging = hedging;
+            return this;
+        }
+
+        public Builder hedgePercentile(double hedgePercentile) {
+            this.hedgePercentile = Math.max(0.5, Math.min(0.999, hedgePercentile));
+            return this;
+        }
+
+        /**
+         * 对冲等待的下限，避免延迟极低时几乎每个请求都被对冲
+         */
+        public Builder minHedgeDelay(Duration minHedgeDelay) {
+            this.minHedgeDelay = minHedgeDelay;
+            return this;
+        }
+
+        public PicTechResilience build() {
+            return new PicTechResilience(this);
+        }
+    }
+}
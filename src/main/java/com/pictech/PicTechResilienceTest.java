@@ -0,0 +1,648 @@
+package com.pictech;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * 重试 / 退避 / 对冲测试
+ * 在本地桩服务器上注入错误与长尾延迟，验证 PicTechResilience 的行为
+ * (离线运行，不需要真实的 AccountId / SecretKey)
+ */
+public class PicTechResilienceTest {
+
+    private static final String SECRET_KEY = "test_SECRET_KEY";
+    private static final String ENDPOINT = "tools/watermark";
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("🚀 开始测试重试与对冲...");
+
+        try (PicTechStubServer stub = PicTechStubServer.start(0)) {
+            testRetryOnServerErrors(stub);     // 503 自动重试，每次重新签名
+            testNonIdempotentNotRetried(stub); // 500 对非幂等调用不重试
+            testRetryExhausted(stub);          // 重试耗尽后返回最后一次响应
+            testHedgingCutsTail(stub);         // 对冲压低 p99
+            testHedgedFileResults(stub);       // 对冲时只有被采用的响应写入目标文件
+            testHedgeKeepsWindow(stub);        // 对冲落败方被取消不收缩并发窗口
+            testSignatureVerified(stub);       // 桩服务器按服务端规则校验签名
+            testThrottleRetryAfter(stub);      // 429 + Retry-After 后重试成功
+            testMetrics(stub);                 // 接口指标与 /metrics 输出
+            testFlightRecording(stub);         // JFR 阶段事件
+            testGzip(stub);                    // gzip 请求体与响应
+            testMultipart(stub);               // 二进制上传与摘要签名
+            testMemoryGovernor(stub);          // 内存预算与直接内存分片池
+            testContentCacheRedownload(stub);  // 无校验头的内容重新下载
+        }
+
+        if (failures > 0) {
+            System.out.println("\n❌ 共 " + failures + " 项失败");
+            System.exit(1);
+        }
+        System.out.println("\n✅ 全部通过");
+    }
+
+    // ==========================================
+    // 测试用例
+    // ==========================================
+
+    private static void testRetryOnServerErrors(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 30% 503 错误 ---");
+        stub.resetCounters();
+        stub.latency(Duration.ofMillis(2), Duration.ZERO).stragglers(0, Duration.ZERO).errors(0.3, 503);
+        PicTechResilience resilience = PicTechResilience.newBuilder()
+                .maxAttempts(6).baseDelay(Duration.ofMillis(5)).maxDelay(Duration.ofMillis(50)).build();
+
+        int ok = 0;
+        for (int i = 0; i < 50; i++) {
+            if (call(stub, resilience, PicTechResilience.Kind.IDEMPOTENT).statusCode() == 200) {
+                ok++;
+            }
+        }
+        System.out.printf("   成功 %d/50 | 服务端收到 %d 次 | 注入错误 %d 次 | 重复签名 %d 次%n",
+                ok, stub.requestCount(), stub.injectedErrorCount(), stub.replayCount());
+        report("全部请求最终成功", ok == 50);
+        report("发生过重试", resilience.retryCount() > 0 && stub.requestCount() > 50);
+        report("每次尝试使用新的签名", stub.replayCount() == 0);
+    }
+
+    private static void testNonIdempotentNotRetried(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 非幂等调用遇到 500 ---");
+        stub.resetCounters();
+        stub.errors(1.0, 500);
+        PicTechResilience resilience = PicTechResilience.newBuilder()
+                .maxAttempts(4).baseDelay(Duration.ofMillis(1)).build();
+
+        int status = call(stub, resilience, PicTechResilience.Kind.NON_IDEMPOTENT).statusCode();
+        report("返回 500 且只发送一次", status == 500 && stub.requestCount() == 1);
+    }
+
+    private static void testRetryExhausted(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 持续 503 ---");
+        stub.resetCounters();
+        stub.errors(1.0, 503);
+        PicTechResilience resilience = PicTechResilience.newBuilder()
+                .maxAttempts(3).baseDelay(Duration.ofMillis(1)).build();
+
+        int status = call(stub, resilience, PicTechResilience.Kind.NON_IDEMPOTENT).statusCode();
+        report("尝试 3 次后返回 503", status == 503 && stub.requestCount() == 3);
+    }
+
+    private static void testHedgingCutsTail(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 3% 长尾 (+400ms) ---");
+        stub.resetCounters();
+        stub.errors(0, 503).latency(Duration.ofMillis(10), Duration.ofMillis(5)).stragglers(0.03, Duration.ofMillis(400));
+
+        PicTechResilience plain = PicTechResilience.newBuilder().maxAttempts(1).build();
+        PicTechResilience hedged = PicTechResilience.newBuilder().maxAttempts(1).hedging(true).build();
+
+        // 预热：积累延迟样本，确定 p95 阈值
+        runConcurrently(stub, plain, 100);
+        double p99Plain = percentile(runConcurrently(stub, plain, 400), 0.99);
+        double p99Hedged = percentile(runConcurrently(stub, hedged, 400), 0.99);
+
+        System.out.printf("   对冲阈值 %.1fms | p99 无对冲 %.0fms | p99 对冲 %.0fms | 对冲 %d 次 (胜出 %d 次)%n",
+                hedged.hedgeDelayMillis(ENDPOINT), p99Plain, p99Hedged, hedged.hedgeCount(), hedged.hedgeWinCount());
+        System.out.println("   并发窗口: " + PicTechAdaptiveLimiter.forEndpoint(ENDPOINT));
+        report("对冲后 p99 降低一半以上", p99Hedged < p99Plain / 2);
+        report("对冲请求不超过预算", hedged.hedgeCount() <= 400 * 0.1 + 10);
+        report("对冲请求同样重新签名", stub.replayCount() == 0);
+    }
+
+    private static void testHedgedFileResults(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 对冲请求的结果文件 ---");
+        stub.resetCounters();
+        stub.errors(0, 503).latency(Duration.ofMillis(10), Duration.ofMillis(20)).stragglers(0.2, Duration.ofMillis(100))
+                .responseBytes(64 * 1024);
+        PicTechResilience hedged = PicTechResilience.newBuilder().maxAttempts(1).hedging(true).build();
+        Path dir = Files.createTempDirectory("pictech-hedge");
+        try {
+            long hedgesBefore = hedged.hedgeCount();
+            boolean saved = true;
+            boolean untouched = true;
+            for (int i = 0; i < 60; i++) {
+                Map<String, Object> params = new TreeMap<>();
+                params.put("AccountId", "your_ACCOUNT_ID");
+                params.put("Text", "hedge-file-" + SEQUENCE.incrementAndGet());
+                params.put("Timestamp", String.valueOf(System.currentTimeMillis()));
+                Path target = dir.resolve("result-" + i + ".png");
+                // 与 PicTechApiTest 相同：每次尝试签名一份副本，结果先写临时文件，只有被采用的响应提交
+                AtomicReference<Map<String, Object>> previous = new AtomicReference<>(params);
+                HttpResponse<PicTechBase64FileHandler.Pending> response = hedged.send(ENDPOINT, PicTechResilience.Kind.HEDGEABLE, attempt -> {
+                    Map<String, Object> signed = new TreeMap<>(previous.get());
+                    PicTechSigner.forSecret(SECRET_KEY).refresh(signed);
+                    previous.set(signed);
+                    return PicTechHttpEngine.shared().newRequest(stub.baseUrl() + "/" + ENDPOINT)
+                            .header("Content-Type", "application/json")
+                            .POST(PicTechJsonBodyPublisher.of(signed))
+                            .build();
+                }, PicTechBase64FileHandler.deferred(target));
+                try (PicTechBase64FileHandler.Pending pending = response.body()) {
+                    PicTechBase64FileHandler.Result result = pending.commit();
+                    saved &= target.equals(result.file()) && Files.size(target) == 64 * 1024;
+                }
+                untouched &= !params.containsKey("Signature");
+            }
+            // 落败方的临时文件在被取消或丢弃时删除 (可能稍晚于调用返回)
+            long parts = 0;
+            for (int i = 0; i < 50; i++) {
+                try (Stream<Path> files = Files.list(dir)) {
+                    parts = files.filter(file -> file.getFileName().toString().endsWith(".part")).count();
+                }
+                if (parts == 0) {
+                    break;
+                }
+                Thread.sleep(20);
+            }
+            System.out.printf("   对冲 %d 次 | 残留临时文件 %d 个%n", hedged.hedgeCount() - hedgesBefore, parts);
+            report("结果写入目标文件", saved);
+            report("调用方的参数没有被改写", untouched);
+            report("发生过对冲且每份请求签名不同", hedged.hedgeCount() > hedgesBefore && stub.replayCount() == 0);
+            report("落败方不留下临时文件", parts == 0);
+        } finally {
+            stub.responseBytes(0).stragglers(0, Duration.ZERO);
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void testHedgeKeepsWindow(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 对冲与并发窗口 ---");
+        stub.resetCounters();
+        // 长尾只比正常请求慢一点：落后的原请求胜出时 RTT 也不会触发延迟梯度收缩，窗口的变化只可能来自被取消的一方
+        stub.errors(0, 503).latency(Duration.ofMillis(50), Duration.ofMillis(2)).stragglers(0, Duration.ZERO);
+        // 单独的接口名：窗口与延迟样本不受其他用例影响 (请求仍发往 ENDPOINT)
+        String endpoint = "tools/hedge-window";
+        PicTechResilience plain = PicTechResilience.newBuilder().maxAttempts(1).build();
+        PicTechResilience hedged = PicTechResilience.newBuilder().maxAttempts(1).hedging(true).build();
+        for (int i = 0; i < 40; i++) {
+            plain.send(endpoint, PicTechResilience.Kind.HEDGEABLE, requestFactory(stub), HttpResponse.BodyHandlers.ofString());
+        }
+        PicTechAdaptiveLimiter limiter = PicTechAdaptiveLimiter.forEndpoint(endpoint);
+        int before = limiter.getLimit();
+        stub.stragglers(0.2, Duration.ofMillis(100));
+        try {
+            for (int i = 0; i < 40; i++) {
+                hedged.send(endpoint, PicTechResilience.Kind.HEDGEABLE, requestFactory(stub), HttpResponse.BodyHandlers.ofString());
+            }
+        } finally {
+            stub.stragglers(0, Duration.ZERO);
+        }
+        System.out.printf("   对冲 %d 次 (胜出 %d 次) | 窗口 %d -> %d%n", hedged.hedgeCount(), hedged.hedgeWinCount(),
+                before, limiter.getLimit());
+        report("落败方被取消不收缩并发窗口", hedged.hedgeCount() > 0 && limiter.getLimit() >= before);
+    }
+
+    private static void testSignatureVerified(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 签名校验 ---");
+        stub.resetCounters();
+        stub.errors(0, 503).latency(Duration.ZERO, Duration.ZERO).stragglers(0, Duration.ZERO).account("your_ACCOUNT_ID", SECRET_KEY);
+        PicTechResilience once = PicTechResilience.newBuilder().maxAttempts(1).build();
+
+        report("字符串参数签名通过", call(stub, once, PicTechResilience.Kind.IDEMPOTENT).statusCode() == 200);
+
+        // 客户端实际使用的请求体：数字按原样输出，签名时按 toString() 参与
+        Map<String, Object> params = new TreeMap<>();
+        params.put("AccountId", "your_ACCOUNT_ID");
+        params.put("Image", "https://pictech.top/pctccloud/test/source_Chinese.jpeg");
+        params.put("Scale", 0.5);
+        params.put("Quality", 90);
+        params.put("OutputFormat", "");
+        params.put("Timestamp", String.valueOf(System.currentTimeMillis()));
+        PicTechSigner.forSecret(SECRET_KEY).refresh(params);
+        report("数字参数与空值签名通过", post(stub, "tools/resize", PicTechJsonBodyPublisher.of(params)) == 200);
+
+        params.put("Quality", 91);
+        report("签名后修改参数返回 401", post(stub, "tools/resize", PicTechJsonBodyPublisher.of(params)) == 401);
+
+        params.put("AccountId", "unknown");
+        PicTechSigner.forSecret(SECRET_KEY).refresh(params);
+        report("未登记的 AccountId 返回 401", post(stub, "tools/resize", PicTechJsonBodyPublisher.of(params)) == 401);
+        report("记录了 2 次签名失败", stub.signatureFailureCount() == 2);
+    }
+
+    private static void testThrottleRetryAfter(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 限流 (1 请求/秒) ---");
+        stub.resetCounters();
+        stub.throttle(1);
+        PicTechResilience once = PicTechResilience.newBuilder().maxAttempts(1).build();
+        PicTechResilience retrying = PicTechResilience.newBuilder().maxAttempts(3).baseDelay(Duration.ofMillis(1)).build();
+
+        int first = call(stub, once, PicTechResilience.Kind.IDEMPOTENT).statusCode();
+        HttpResponse<String> second = call(stub, once, PicTechResilience.Kind.IDEMPOTENT);
+        report("超出速率返回 429 与 Retry-After", first == 200 && second.statusCode() == 429
+                && second.headers().firstValue("Retry-After").isPresent());
+
+        long start = System.nanoTime();
+        int status = call(stub, retrying, PicTechResilience.Kind.IDEMPOTENT).statusCode();
+        double waited = (System.nanoTime() - start) / 1e6;
+        System.out.printf("   重试后状态 %d，耗时 %.0fms，限流 %d 次%n", status, waited, stub.throttledCount());
+        report("按 Retry-After 等待后成功", status == 200 && waited >= 900);
+        stub.throttle(0);
+    }
+
+    private static void testMetrics(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 接口指标 ---");
+        stub.errors(0, 503).throttle(0);
+        PicTechMetrics.reset();
+        PicTechResilience once = PicTechResilience.newBuilder().maxAttempts(1).build();
+        for (int i = 0; i < 20; i++) {
+            call(stub, once, PicTechResilience.Kind.IDEMPOTENT);
+        }
+        stub.errors(1.0, 503);
+        call(stub, once, PicTechResilience.Kind.IDEMPOTENT);
+        stub.errors(0, 503);
+
+        PicTechMetrics.EndpointSnapshot snapshot = PicTechMetrics.snapshot().endpoints().get(ENDPOINT);
+        System.out.println("   " + snapshot);
+        report("按状态码计数", snapshot.statuses().getOrDefault(200, 0L) == 20 && snapshot.statuses().getOrDefault(503, 0L) == 1);
+        report("延迟直方图与在途数", snapshot.latency().count() == 21 && snapshot.inFlight() == 0 && snapshot.errorResponses() == 1);
+        report("请求 / 响应字节数", snapshot.requestBytes() > 0 && snapshot.responseBytes() > 0);
+
+        String url = "http://127.0.0.1:" + PicTechMetrics.serve(0).getAddress().getPort() + "/metrics";
+        String text = PicTechHttpEngine.shared().send(PicTechHttpEngine.shared().newRequest(url).GET().build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        report("Prometheus 文本输出", text.contains("pictech_requests_total{endpoint=\"" + ENDPOINT + "\",status=\"200\"} 20")
+                && text.contains("pictech_request_duration_seconds_bucket{endpoint=\"" + ENDPOINT + "\",le=\"+Inf\"} 21"));
+
+        // 记录路径不分配对象：预热后 10 万次记录的分配量应接近 0
+        PicTechMetrics.Endpoint endpoint = PicTechMetrics.endpoint("alloc-check");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        for (int round = 0; round < 2; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 100_000; i++) {
+                endpoint.onStart(1024);
+                endpoint.onResponseBytes(2048);
+                endpoint.onResponse(200, 1_000_000L + i * 100L);
+            }
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+            if (round == 1) {
+                System.out.printf("   10 万次记录分配 %d 字节%n", allocated);
+                report("记录路径不分配对象", allocated < 64 * 1024);
+            }
+        }
+    }
+
+    private static void testFlightRecording(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- JFR 阶段事件 ---");
+        stub.resetCounters();
+        stub.errors(0, 503).throttle(0).responseBytes(256 * 1024);
+        Path dir = Files.createTempDirectory("pictech-jfr");
+        Path image = dir.resolve("source.png");
+        Files.write(image, new byte[300 * 1024]);
+        PicTechResilience once = PicTechResilience.newBuilder().maxAttempts(1).build();
+        report("未录制时不创建 Trace", !PicTechFlightRecorder.enabled());
+
+        Configuration settings;
+        try (Reader reader = new InputStreamReader(PicTechResilienceTest.class.getResourceAsStream("/pictech.jfc"), StandardCharsets.UTF_8)) {
+            settings = Configuration.create(reader);
+        }
+        Path output = dir.resolve("test.jfr");
+        try (Recording recording = new Recording(settings)) {
+            recording.start();
+            report("录制中 enabled() 为 true", PicTechFlightRecorder.enabled());
+            for (int i = 0; i < 3; i++) {
+                Map<String, Object> params = new TreeMap<>();
+                params.put("AccountId", "your_ACCOUNT_ID");
+                params.put("ImageBase64", PicTechBase64Source.ofFile(image, "image/png"));
+                params.put("Text", "jfr-" + i);
+                params.put("Timestamp", String.valueOf(System.currentTimeMillis()));
+                Path target = dir.resolve("result-" + i + ".png");
+                once.send(ENDPOINT, PicTechResilience.Kind.IDEMPOTENT, attempt -> {
+                    PicTechSigner.forSecret(SECRET_KEY).refresh(params);
+                    return PicTechHttpEngine.shared().newRequest(stub.baseUrl() + "/" + ENDPOINT)
+                            .header("Content-Type", "application/json")
+                            .POST(PicTechJsonBodyPublisher.of(params))
+                            .build();
+                }, new PicTechBase64FileHandler(target));
+            }
+            recording.stop();
+            recording.dump(output);
+        }
+        stub.responseBytes(0);
+
+        Map<String, List<RecordedEvent>> byType = new TreeMap<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(output)) {
+            String name = event.getEventType().getName();
+            if (name.startsWith("com.pictech.") && ENDPOINT.equals(event.getString("endpoint"))) {
+                byType.computeIfAbsent(name, k -> new ArrayList<>()).add(event);
+            }
+        }
+        System.out.println("   事件数: " + byType.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue().size()).toList());
+        List<RecordedEvent> exchanges = byType.getOrDefault("com.pictech.Exchange", List.of());
+        RecordedEvent last = exchanges.isEmpty() ? null : exchanges.get(exchanges.size() - 1);
+        if (last != null) {
+            System.out.printf("   最后一次: 总计 %.1fms | 签名 %.2fms | 连接 %.2fms | 上传 %.2fms (读 %.2fms, 编码 %.2fms) | 首字节 %.2fms | 下载 %.2fms (解码 %.2fms, 写盘 %.2fms) | %s%n",
+                    last.getDuration().toNanos() / 1e6, millis(last, "signTime"), millis(last, "connectTime"),
+                    millis(last, "uploadTime"), millis(last, "readTime"), millis(last, "encodeTime"),
+                    millis(last, "serverTime"), millis(last, "downloadTime"), millis(last, "decodeTime"),
+                    millis(last, "writeTime"), last.getString("requestId"));
+        }
+        report("每次发送一个 Exchange 事件", exchanges.size() == 3);
+        report("事件带 RequestId 与请求体大小", last != null && last.getString("requestId") != null
+                && last.getString("requestId").startsWith("stub") && last.getLong("payloadBytes") > 400 * 1024);
+        report("上传 / 下载阶段事件", byType.getOrDefault("com.pictech.Upload", List.of()).size() == 3
+                && byType.getOrDefault("com.pictech.Download", List.of()).size() == 3
+                && byType.getOrDefault("com.pictech.ServerWait", List.of()).size() == 3);
+        report("读文件 / 编码 / 签名 / 解码 / 写盘耗时", last != null && last.getLong("readTime") > 0 && last.getLong("encodeTime") > 0
+                && last.getLong("signTime") > 0 && last.getLong("decodeTime") > 0 && last.getLong("writeTime") > 0);
+    }
+
+    private static void testGzip(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- gzip 传输 ---");
+        stub.resetCounters();
+        stub.errors(0, 503).throttle(0).responseBytes(128 * 1024);
+        Path image = Files.createTempFile("pictech-gzip", ".png");
+        Files.write(image, new byte[200 * 1024]);
+        PicTechResilience once = PicTechResilience.newBuilder().maxAttempts(1).build();
+        PicTechResilience.RequestFactory factory = attempt -> {
+            Map<String, Object> params = new TreeMap<>();
+            params.put("AccountId", "your_ACCOUNT_ID");
+            params.put("ImageBase64", PicTechBase64Source.ofFile(image, "image/png"));
+            params.put("Timestamp", String.valueOf(System.currentTimeMillis()));
+            PicTechSigner.forSecret(SECRET_KEY).refresh(params);
+            return PicTechHttpEngine.shared().newRequest(stub.baseUrl() + "/" + ENDPOINT)
+                    .header("Content-Type", "application/json")
+                    .POST(PicTechJsonBodyPublisher.of(params))
+                    .build();
+        };
+
+        HttpResponse<String> plain = once.send(ENDPOINT, PicTechResilience.Kind.IDEMPOTENT, factory, HttpResponse.BodyHandlers.ofString());
+        PicTechMetrics.reset();
+        stub.gzipResponses(1024);
+        PicTechCompression.requestThreshold(ENDPOINT, 1024);
+        try {
+            HttpResponse<String> gzipped = once.send(ENDPOINT, PicTechResilience.Kind.IDEMPOTENT, factory, HttpResponse.BodyHandlers.ofString());
+            report("gzip 请求签名通过", gzipped.statusCode() == 200 && stub.gzipRequestCount() == 1);
+            report("gzip 响应透明解压", stub.gzipResponseCount() == 1 && gzipped.body().length() == plain.body().length()
+                    && gzipped.body().startsWith("{"));
+        } finally {
+            PicTechCompression.requestThreshold(ENDPOINT, -1);
+            stub.gzipResponses(-1).responseBytes(0);
+            Files.deleteIfExists(image);
+        }
+
+        PicTechMetrics.Compression gzip = PicTechMetrics.snapshot().endpoints().get(ENDPOINT).gzip();
+        System.out.println("   " + gzip);
+        report("压缩比与 CPU 耗时计入指标", gzip.requestWireBytes() < gzip.requestRawBytes()
+                && gzip.responseWireBytes() < gzip.responseRawBytes()
+                && gzip.requestNanos() > 0 && gzip.responseNanos() > 0);
+    }
+
+    private static void testMultipart(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 二进制上传 ---");
+        stub.resetCounters();
+        stub.errors(0, 503).throttle(0);
+        Path dir = Files.createTempDirectory("pictech-multipart");
+        Path image = dir.resolve("source.jpg");
+        Path mask = dir.resolve("mask.png");
+        byte[] random = new byte[512 * 1024];
+        new java.util.Random(21).nextBytes(random);
+        Files.write(image, random);
+        Files.write(mask, Arrays.copyOf(random, 64 * 1024));
+
+        Map<String, Object> params = new TreeMap<>();
+        params.put("AccountId", "your_ACCOUNT_ID");
+        params.put("Timestamp", String.valueOf(System.currentTimeMillis()));
+        params.put("image", PicTechBase64Source.ofFile(image, "image/jpeg"));
+        params.put("mask", PicTechBase64Source.ofFile(mask, null));
+        PicTechSigner.forSecret(SECRET_KEY).refreshBinary(params);
+        PicTechMultipartBodyPublisher body = PicTechMultipartBodyPublisher.of(params);
+        long jsonLength = PicTechJsonBodyPublisher.of(params).contentLength();
+        System.out.printf("   请求体: multipart %.1fKB, JSON %.1fKB (%.0f%%)%n", body.contentLength() / 1024.0,
+                jsonLength / 1024.0, body.contentLength() * 100.0 / jsonLength);
+        report("文件段摘要签名通过", postMultipart(stub, "inpaint_image_sync", body) == 200 && stub.multipartRequestCount() == 1);
+        report("请求体约为 JSON 的 3/4", body.contentLength() < jsonLength * 0.8);
+
+        // 签名后换成内容不同但长度相同的文件：摘要不符
+        byte[] tampered = Arrays.copyOf(random, 64 * 1024);
+        tampered[0] ^= 1;
+        Path other = Files.write(dir.resolve("other.png"), tampered);
+        PicTechSigner.forSecret(SECRET_KEY).refreshBinary(params);
+        params.put("mask", PicTechBase64Source.ofFile(other, null));
+        report("签名后替换文件返回 401", postMultipart(stub, "inpaint_image_sync", PicTechMultipartBodyPublisher.of(params)) == 401);
+
+        // 已编码的字符串来源没有原始字节，退回按 Base64 文本发送与签名
+        params.put("mask", PicTechBase64Source.ofEncoded("aGVsbG8="));
+        PicTechSigner.forSecret(SECRET_KEY).refreshBinary(params);
+        report("Base64 字符串来源按文本签名", postMultipart(stub, "inpaint_image_sync", PicTechMultipartBodyPublisher.of(params)) == 200);
+
+        // 示例类按 -Dpictech.upload.transport 选择传输方式 (接口地址在类初始化时读取，本测试之前未加载 PicTechOcrTest)
+        System.setProperty("pictech.api.host", stub.baseUrl());
+        System.setProperty("pictech.upload.transport", "multipart");
+        try {
+            stub.account("pic_YOUR_ID", "YOUR_SECRET_KEY").resetCounters();
+            PicTechOcrResult ocr = PicTechOcrResult.parse(PicTechOcrTest.performOcr(PicTechBase64Source.ofFile(image, "image/jpeg")));
+            report("PicTechOcrTest 以 multipart 上传", ocr.success() && stub.multipartRequestCount() == 1 && stub.signatureFailureCount() == 0);
+        } finally {
+            System.clearProperty("pictech.upload.transport");
+            System.clearProperty("pictech.api.host");
+        }
+    }
+
+    private static void testMemoryGovernor(PicTechStubServer stub) throws Exception {
+        System.out.println("\n--- 内存预算 ---");
+        PicTechMemoryGovernor governor = new PicTechMemoryGovernor(1000, Duration.ofMillis(200));
+        PicTechMemoryGovernor.Reservation first = governor.reserve(600).join();
+        CompletableFuture<PicTechMemoryGovernor.Reservation> second = governor.reserve(600);
+        CompletableFuture<PicTechMemoryGovernor.Reservation> small = governor.reserve(100);
+        report("预算不足时排队且不插队", !second.isDone() && !small.isDone() && governor.queuedBytes() == 700);
+        first.release();
+        report("归还后按 FIFO 唤醒", second.isDone() && small.isDone() && governor.reserved() == 700);
+        CompletableFuture<PicTechMemoryGovernor.Reservation> late = governor.reserve(900);
+        try {
+            late.join();
+            report("等待超时被拒绝", false);
+        } catch (java.util.concurrent.CompletionException e) {
+            report("等待超时被拒绝", e.getCause() instanceof java.util.concurrent.RejectedExecutionException && governor.shedCount() == 1);
+        }
+        second.join().release();
+        small.join().release();
+        PicTechMemoryGovernor.Reservation huge = governor.reserve(5000).join();
+        report("超过整个预算的请求独占执行", huge.bytes() == 1000 && governor.reserved() == 1000);
+        huge.release();
+
+        // 响应体收在池化的直接内存中，落盘结果与 ofByteArray 一致，关闭后分片归还复用
+        stub.resetCounters();
+        stub.errors(0, 503).throttle(0).responseBytes(1024 * 1024 + 123);
+        PicTechBufferPool pool = PicTechBufferPool.shared();
+        Path target = Files.createTempFile("pictech-pooled", ".png");
+        try {
+            byte[] expected = postInpaint(stub, HttpResponse.BodyHandlers.ofByteArray()).body();
+            int outstanding = pool.outstanding();
+            try (PicTechPooledBody body = postInpaint(stub, PicTechPooledBody.handler()).body()) {
+                body.writeTo(target);
+                report("分片写盘与 ofByteArray 一致", body.size() == expected.length && Arrays.equals(Files.readAllBytes(target), expected)
+                        && Arrays.equals(body.toByteArray(), expected));
+            }
+            report("关闭后分片全部归还", pool.outstanding() == outstanding);
+            long allocated = pool.allocatedCount();
+            long reused = pool.reusedCount();
+            postInpaint(stub, PicTechPooledBody.handler()).body().close();
+            report("再次请求只复用分片", pool.allocatedCount() == allocated && pool.reusedCount() == reused + 17);
+            System.out.println("   " + pool + " | " + PicTechMemoryGovernor.shared());
+        } finally {
+            stub.responseBytes(0);
+            Files.deleteIfExists(target);
+        }
+        report("共享预算已全部归还", PicTechMemoryGovernor.shared().reserved() == 0);
+    }
+
+    private static void testContentCacheRedownload(PicTechStubServer stub) throws Exception {
+        System.out.println("\n📦 测试下载缓存: 内容未变的完整重新下载");
+        stub.resetCounters();
+        Path dir = Files.createTempDirectory("pictech-content-cache");
+        PicTechContentCache cache = new PicTechContentCache(dir, 64L * 1024 * 1024, 0, 0, PicTechResilience.defaults());
+        // 没有 ETag / Last-Modified 且 TTL 为 0：每次都是 200 完整下载，内容与已缓存的 blob 相同
+        String url = stub.fileUrlWithoutValidators("unchanged.bin", 64 * 1024);
+        boolean readable = true;
+        String sha256 = null;
+        for (int i = 0; i < 3; i++) {
+            PicTechContentCache.Blob blob = cache.get(url);
+            readable &= Files.isRegularFile(blob.file()) && blob.map().remaining() == 64 * 1024
+                    && (sha256 == null || sha256.equals(blob.sha256()));
+            sha256 = blob.sha256();
+        }
+        report("重新下载后 blob 仍可读取", readable && stub.fileDownloadCount() == 3);
+        PicTechContentCache.Stats stats = cache.stats();
+        report("同一份内容只计一次磁盘占用", stats.entries() == 1 && stats.diskBytes() == 64 * 1024);
+    }
+
+    private static <T> HttpResponse<T> postInpaint(PicTechStubServer stub, HttpResponse.BodyHandler<T> handler) throws Exception {
+        Map<String, Object> params = new TreeMap<>();
+        params.put("AccountId", "your_ACCOUNT_ID");
+        params.put("Text", "pooled-" + SEQUENCE.incrementAndGet());
+        params.put("Timestamp", String.valueOf(System.currentTimeMillis()));
+        PicTechSigner.forSecret(SECRET_KEY).refresh(params);
+        HttpResponse<T> response = PicTechHttpEngine.shared().send("inpaint_image_sync",
+                PicTechHttpEngine.shared().newRequest(stub.baseUrl() + "/inpaint_image_sync")
+                        .header("Content-Type", "application/json")
+                        .POST(PicTechJsonBodyPublisher.of(params))
+                        .build(), handler);
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("HTTP " + response.statusCode());
+        }
+        return response;
+    }
+
+    private static double millis(RecordedEvent event, String field) {
+        return event.getDuration(field).toNanos() / 1e6;
+    }
+
+    // ==========================================
+    // 辅助方法
+    // ==========================================
+
+    private static HttpResponse<String> call(PicTechStubServer stub, PicTechResilience resilience,
+                                             PicTechResilience.Kind kind) throws Exception {
+        return resilience.send(ENDPOINT, kind, requestFactory(stub), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static int post(PicTechStubServer stub, String endpoint, HttpRequest.BodyPublisher body) throws Exception {
+        return PicTechHttpEngine.shared().send(PicTechHttpEngine.shared().newRequest(stub.baseUrl() + "/" + endpoint)
+                .header("Content-Type", "application/json")
+                .POST(body)
+                .build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private static int postMultipart(PicTechStubServer stub, String endpoint, PicTechMultipartBodyPublisher body) throws Exception {
+        return PicTechHttpEngine.shared().send(PicTechHttpEngine.shared().newRequest(stub.baseUrl() + "/" + endpoint)
+                .header("Content-Type", body.contentType())
+                .POST(body)
+                .build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private static PicTechResilience.RequestFactory requestFactory(PicTechStubServer stub) {
+        Map<String, Object> params = new TreeMap<>();
+        params.put("AccountId", "your_ACCOUNT_ID");
+        params.put("Image", "https://pictech.top/pctccloud/test/source_Chinese.jpeg");
+        params.put("TemplateKey", "single_subtle_light");
+        params.put("Text", "case-" + SEQUENCE.incrementAndGet());
+        params.put("Timestamp", String.valueOf(System.currentTimeMillis()));
+        return attempt -> {
+            synchronized (params) {
+                PicTechSigner.forSecret(SECRET_KEY).refresh(params);
+                return PicTechHttpEngine.shared().newRequest(stub.baseUrl() + "/" + ENDPOINT)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(toJson(params), StandardCharsets.UTF_8))
+                        .build();
+            }
+        };
+    }
+
+    /**
+     * 以 8 个并发发送 n 个请求，返回每个请求的耗时 (毫秒)
+     */
+    private static double[] runConcurrently(PicTechStubServer stub, PicTechResilience resilience, int n) throws Exception {
+        Semaphore slots = new Semaphore(8);
+        List<CompletableFuture<Double>> futures = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            slots.acquire();
+            long start = System.nanoTime();
+            futures.add(resilience.sendAsync(ENDPOINT, PicTechResilience.Kind.HEDGEABLE, requestFactory(stub),
+                            HttpResponse.BodyHandlers.discarding())
+                    .handle((response, error) -> {
+                        slots.release();
+                        return (System.nanoTime() - start) / 1e6;
+                    }));
+        }
+        double[] latencies = new double[n];
+        for (int i = 0; i < n; i++) {
+            latencies[i] = futures.get(i).get();
+        }
+        return latencies;
+    }
+
+    private static double percentile(double[] values, double quantile) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    private static String toJson(Map<String, Object> params) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append('"').append(entry.getKey()).append("\":\"");
+            PicTechJsonBodyPublisher.appendEscaped(sb, String.valueOf(entry.getValue()));
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void report(String name, boolean ok) {
+        if (ok) {
+            System.out.println("✅ " + name);
+        } else {
+            System.out.println("❌ " + name);
+            failures++;
+        }
+    }
+}
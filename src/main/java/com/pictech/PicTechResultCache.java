@@ -0,0 +1,512 @@
+package com.pictech;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * 图片处理结果的两级缓存 (内存 + 磁盘分段文件)
+ *
+ * /tools/resize、/tools/crop、/tools/watermark 对相同的源图和参数结果是确定的，
+ * 每次请求只有 Timestamp / Signature 不同。缓存键为：
+ *   SHA-256( 接口 + 去掉 Timestamp / Signature / AccountId 后按 Key 排序的参数 + 源图内容的 SHA-256 )
+ * 源图为 URL 时通过 PicTechContentCache 取得内容哈希 (新鲜期内无请求，否则一次 304)，
+ * 因此源图在服务端被替换后缓存自然失效。
+ * 注意：这意味着客户端自己也会下载一次源图 URL (首次完整下载，之后按 ETag 重新验证)；
+ * 客户端下载失败时跳过缓存，直接调用接口。
+ * 只缓存服务端返回的结果：本地执行 (PicTechLocalTools) 的结果不写入缓存，
+ * 否则切换到 -Dpictech.tools.mode=remote 后仍会读到本地生成的图片。
+ *
+ * 未命中时相同参数的并发调用经 PicTechSingleFlight 合并为一次请求。
+ *
+ * 磁盘层是追加写的分段文件 (segment-000001.dat ...)，超过预算时整段删除最旧的分段；
+ * 内存层按 LRU 保留最近使用的结果。两层都支持可选的 TTL。
+ *
+ * 默认实例可通过系统属性调整：
+ *   -Dpictech.resultCache.enabled=true
+ *   -Dpictech.resultCache.dir=...                 (默认 ${java.io.tmpdir}/pictech-result-cache)
+ *   -Dpictech.resultCache.maxBytes=1073741824     磁盘预算
+ *   -Dpictech.resultCache.memoryBytes=67108864    内存预算
+ *   -Dpictech.resultCache.segmentBytes=67108864   单个分段大小
+ *   -Dpictech.resultCache.ttlSeconds=0            0 表示不过期
+ */
+public final class PicTechResultCache {
+
+    /** 不参与缓存键的参数 */
+    private static final Set<String> VOLATILE_PARAMS = Set.of("Timestamp", "Signature", "AccountId");
+
+    private static final int MAGIC = 0x50544331; // "PTC1"
+    private static final int KEY_BYTES = 32;
+    /** magic + key + createdAt + envelopeLen + dataLen */
+    private static final int HEADER_BYTES = 4 + KEY_BYTES + 8 + 4 + 4;
+    private static final int CRC_BYTES = 4;
+
+    private static volatile PicTechResultCache shared;
+
+    /** 在途的 /tools/* 调用 (跨缓存实例共享) */
+    private static final PicTechSingleFlight<PicTechBase64FileHandler.Result> IN_FLIGHT = new PicTechSingleFlight<>();
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long memoryMaxBytes;
+    private final long segmentBytes;
+    private final long ttlMillis;
+    private final PicTechContentCache sources;
+
+    private final LinkedHashMap<String, Cached> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    /** 键 -> 磁盘位置 */
+    private final Map<String, Location> index = new HashMap<>();
+    /** 分段编号 -> 打开的文件 (按编号升序) */
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+    private long diskBytes;
+    private int activeSegment;
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public PicTechResultCache(Path dir, long maxBytes, long memoryMaxBytes, long segmentBytes, long ttlMillis,
+                              PicTechContentCache sources) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.memoryMaxBytes = memoryMaxBytes;
+        this.segmentBytes = Math.max(1024 * 1024, segmentBytes);
+        this.ttlMillis = ttlMillis;
+        this.sources = sources;
+        Files.createDirectories(dir);
+        loadSegments();
+    }
+
+    /**
+     * 获取按系统属性配置的全局缓存；-Dpictech.resultCache.enabled=false 时返回 null
+     */
+    public static PicTechResultCache shared() {
+        if (!Boolean.parseBoolean(System.getProperty("pictech.resultCache.enabled", "true"))) {
+            return null;
+        }
+        PicTechResultCache cache = shared;
+        if (cache == null) {
+            synchronized (PicTechResultCache.class) {
+                cache = shared;
+                if (cache == null) {
+                    Path dir = Path.of(System.getProperty("pictech.resultCache.dir",
+                            Path.of(System.getProperty("java.io.tmpdir"), "pictech-result-cache").toString()));
+                    try {
+                        cache = new PicTechResultCache(dir,
+                                Long.getLong("pictech.resultCache.maxBytes", 1024L * 1024 * 1024),
+                                Long.getLong("pictech.resultCache.memoryBytes", 64L * 1024 * 1024),
+                                Long.getLong("pictech.resultCache.segmentBytes", 64L * 1024 * 1024),
+                                TimeUnit.SECONDS.toMillis(Long.getLong("pictech.resultCache.ttlSeconds", 0L)),
+                                PicTechContentCache.shared());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("无法初始化结果缓存: " + dir, e);
+                    }
+                    PicTechResultCache registered = cache;
+                    PicTechMetrics.registerCache("result", () -> registered.memoryHits.sum() + registered.diskHits.sum(),
+                            registered.misses::sum);
+                    shared = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * 缓存的结果：去掉 Base64 后的 JSON 及解码后的图片字节
+     */
+    public record Cached(String envelope, byte[] data, long createdAt) {
+    }
+
+    /**
+     * 缓存统计
+     */
+    public record Stats(long memoryHits, long diskHits, long misses, long evictions,
+                        int memoryEntries, int diskEntries, long memoryBytes, long diskBytes) {
+
+        @Override
+        public String toString() {
+            return String.format("memoryHits=%d, diskHits=%d, misses=%d, evictions=%d, entries=%d/%d, memory=%.1fMB, disk=%.1fMB",
+                    memoryHits, diskHits, misses, evictions, memoryEntries, diskEntries, memoryBytes / 1048576.0, diskBytes / 1048576.0);
+        }
+    }
+
+    /**
+     * 结果加载器 (缓存未命中时真正调用接口)
+     */
+    @FunctionalInterface
+    public interface Loader {
+        PicTechBase64FileHandler.Result load() throws Exception;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(memoryHits.sum(), diskHits.sum(), misses.sum(), evictions.sum(),
+                memory.size(), index.size(), memoryBytes, diskBytes);
+    }
+
+    /**
+     * 命中时把缓存的图片写入 target 并直接返回；否则调用 loader，成功的结果 (HTTP 200 且 Code 成功) 写入缓存
+     */
+    public PicTechBase64FileHandler.Result fetch(String endpoint, Map<String, ?> params, Path target,
+                                                 Loader loader) throws Exception {
+        String key;
+        try {
+            key = key(endpoint, params);
+        } catch (IOException e) {
+            // 客户端取不到源图 (404、鉴权、网络策略等) 时无法计算缓存键，不经过缓存直接调用接口
+            return coalesce(endpoint, params, target, loader);
+        }
+        Cached cached = get(key);
+        if (cached != null) {
+            Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", ".part");
+            try {
+                Files.write(temp, cached.data());
+                PicTechBase64FileHandler.moveAtomically(temp, target);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            return new PicTechBase64FileHandler.Result(200, target, cached.data().length, cached.envelope());
+        }
+
+        // 未命中：相同参数的并发调用只发送一次，成功后写入缓存
+        return coalesce(endpoint, params, target, () -> {
+            PicTechBase64FileHandler.Result result = loader.load();
+            if (result.statusCode() == 200 && result.saved() && cacheable(PicTechToolResult.parse(result.envelope()))) {
+                put(key, result.envelope(), Files.readAllBytes(result.file()));
+            }
+            return result;
+        });
+    }
+
+    private static boolean cacheable(PicTechToolResult result) {
+        return result.success() && !PicTechLocalTools.isLocal(result);
+    }
+
+    /**
+     * 合并相同参数 (忽略 Timestamp / Signature) 的并发调用：只有一个调用方执行 loader，
+     * 其余调用方共享其结果，图片复制到各自的 target；不经过结果缓存也可单独使用
+     */
+    public static PicTechBase64FileHandler.Result coalesce(String endpoint, Map<String, ?> params, Path target,
+                                                           Loader loader) throws Exception {
+        PicTechBase64FileHandler.Result result = IN_FLIGHT.run(PicTechSingleFlight.key(endpoint, params), loader::load);
+        return PicTechBase64FileHandler.copyTo(result, target);
+    }
+
+    /**
+     * 合并统计
+     */
+    public static PicTechSingleFlight<PicTechBase64FileHandler.Result> inFlight() {
+        return IN_FLIGHT;
+    }
+
+    /**
+     * 计算缓存键 (64 位十六进制)
+     */
+    public String key(String endpoint, Map<String, ?> params) throws IOException, InterruptedException {
+        MessageDigest digest = sha256();
+        update(digest, endpoint);
+        for (Map.Entry<String, ?> entry : new TreeMap<>(params).entrySet()) {
+            if (VOLATILE_PARAMS.contains(entry.getKey()) || entry.getValue() == null) {
+                continue;
+            }
+            Object value = entry.getValue();
+            update(digest, entry.getKey());
+            if ("Image".equals(entry.getKey()) && isUrl(value)) {
+                // 源图按内容参与缓存键，而不是 URL 本身
+                update(digest, "sha256:" + sources.get(value.toString()).sha256());
+            } else if (value instanceof PicTechBase64Source) {
+                update(digest, "sha256:" + contentHash((PicTechBase64Source) value));
+            } else {
+                update(digest, String.valueOf(value));
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * 查找缓存 (内存 -> 磁盘)，过期或不存在时返回 null
+     */
+    public Cached get(String key) throws IOException {
+        Location location;
+        synchronized (this) {
+            Cached cached = memory.get(key);
+            if (cached != null) {
+                if (!expired(cached.createdAt())) {
+                    memoryHits.increment();
+                    return cached;
+                }
+                removeMemory(key);
+            }
+            location = index.get(key);
+            if (location == null || expired(location.createdAt)) {
+                misses.increment();
+                return null;
+            }
+        }
+
+        Cached cached = read(location);
+        if (cached == null) {
+            // 分段已被淘汰或记录损坏
+            synchronized (this) {
+                index.remove(key, location);
+                misses.increment();
+            }
+            return null;
+        }
+        diskHits.increment();
+        putMemory(key, cached);
+        return cached;
+    }
+
+    /**
+     * 写入缓存 (追加到当前分段，同时放入内存层)
+     */
+    public void put(String key, String envelope, byte[] data) throws IOException {
+        byte[] envelopeBytes = envelope.getBytes(StandardCharsets.UTF_8);
+        long createdAt = System.currentTimeMillis();
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + envelopeBytes.length + data.length + CRC_BYTES);
+        record.putInt(MAGIC).put(unhex(key)).putLong(createdAt).putInt(envelopeBytes.length).putInt(data.length)
+                .put(envelopeBytes).put(data);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        synchronized (this) {
+            FileChannel channel = activeChannel(record.remaining());
+            long offset = channel.size();
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            diskBytes += record.limit();
+            index.put(key, new Location(activeSegment, offset, record.limit(), createdAt));
+            evictSegments();
+        }
+        putMemory(key, new Cached(envelope, data, createdAt));
+    }
+
+    /**
+     * 关闭所有分段文件
+     */
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : segments.values()) {
+            channel.close();
+        }
+        segments.clear();
+    }
+
+    // ================= 磁盘层 =================
+
+    /**
+     * 磁盘上的一条记录
+     */
+    private record Location(int segment, long offset, int length, long createdAt) {
+    }
+
+    private Cached read(Location location) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            channel = segments.get(location.segment());
+        }
+        if (channel == null) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(location.length());
+        try {
+            while (record.hasRemaining()) {
+                if (channel.read(record, location.offset() + record.position()) < 0) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            // 读取期间分段被淘汰关闭
+            return null;
+        }
+        record.flip();
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.limit() - 4 - CRC_BYTES);
+        if (record.getInt(record.limit() - CRC_BYTES) != (int) crc.getValue()) {
+            return null;
+        }
+        record.position(4 + KEY_BYTES);
+        long createdAt = record.getLong();
+        byte[] envelope = new byte[record.getInt()];
+        byte[] data = new byte[record.getInt()];
+        record.get(envelope).get(data);
+        return new Cached(new String(envelope, StandardCharsets.UTF_8), data, createdAt);
+    }
+
+    /**
+     * 启动时扫描所有分段重建索引，截掉尾部不完整的记录 (写入中途进程退出)
+     */
+    private void loadSegments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.dat")) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        for (Path file : files) {
+            int id = Integer.parseInt(file.getFileName().toString().substring(8, 14));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            long offset = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (offset + HEADER_BYTES <= size) {
+                header.clear();
+                channel.read(header, offset);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    break;
+                }
+                byte[] key = new byte[KEY_BYTES];
+                header.get(key);
+                long createdAt = header.getLong();
+                long length = (long) HEADER_BYTES + header.getInt() + header.getInt() + CRC_BYTES;
+                if (offset + length > size) {
+                    break;
+                }
+                index.put(hex(key), new Location(id, offset, (int) length, createdAt));
+                offset += length;
+            }
+            if (offset < size) {
+                channel.truncate(offset);
+            }
+            segments.put(id, channel);
+            diskBytes += offset;
+            activeSegment = Math.max(activeSegment, id);
+        }
+    }
+
+    private FileChannel activeChannel(int recordBytes) throws IOException {
+        FileChannel channel = segments.get(activeSegment);
+        if (channel == null || channel.size() + recordBytes > segmentBytes && channel.size() > 0) {
+            activeSegment++;
+            Path file = dir.resolve(String.format("segment-%06d.dat", activeSegment));
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(activeSegment, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * 超出磁盘预算时整段删除最旧的分段 (当前写入的分段除外)
+     */
+    private void evictSegments() throws IOException {
+        while (diskBytes > maxBytes && segments.size() > 1) {
+            Map.Entry<Integer, FileChannel> oldest = segments.pollFirstEntry();
+            int id = oldest.getKey();
+            diskBytes -= oldest.getValue().size();
+            oldest.getValue().close();
+            Files.deleteIfExists(dir.resolve(String.format("segment-%06d.dat", id)));
+            for (Iterator<Location> it = index.values().iterator(); it.hasNext(); ) {
+                if (it.next().segment() == id) {
+                    it.remove();
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    // ================= 内存层 =================
+
+    private synchronized void putMemory(String key, Cached cached) {
+        long size = cached.data().length + cached.envelope().length();
+        if (size > memoryMaxBytes / 4) {
+            return;
+        }
+        removeMemory(key);
+        memory.put(key, cached);
+        memoryBytes += size;
+        Iterator<Map.Entry<String, Cached>> it = memory.entrySet().iterator();
+        while (memoryBytes > memoryMaxBytes && it.hasNext()) {
+            Cached eldest = it.next().getValue();
+            memoryBytes -= eldest.data().length + eldest.envelope().length();
+            it.remove();
+        }
+    }
+
+    private void removeMemory(String key) {
+        Cached removed = memory.remove(key);
+        if (removed != null) {
+            memoryBytes -= removed.data().length + removed.envelope().length();
+        }
+    }
+
+    // ================= 工具方法 =================
+
+    private boolean expired(long createdAt) {
+        return ttlMillis > 0 && System.currentTimeMillis() - createdAt > ttlMillis;
+    }
+
+    private static boolean isUrl(Object value) {
+        String s = value.toString();
+        return s.startsWith("http://") || s.startsWith("https://");
+    }
+
+    private static String contentHash(PicTechBase64Source source) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = source.openEncodedStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * 写入 长度 + 内容，避免 "ab"+"c" 与 "a"+"bc" 得到相同的摘要
+     */
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex, i * 2, i * 2 + 2, 16);
+        }
+        return bytes;
+    }
+}
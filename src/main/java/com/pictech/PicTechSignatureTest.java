@@ -0,0 +1,251 @@
+package com.pictech;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * 签名一致性测试
+ * 验证 PicTechSigner 的增量签名与四个示例类原来的 generateSignature 逐字节一致
+ * (离线运行，不需要真实的 AccountId / SecretKey)
+ */
+public class PicTechSignatureTest {
+
+    private static final String SECRET_KEY = "test_SECRET_KEY_密钥";
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("🚀 开始校验签名一致性...");
+
+        testApiParams();          // PicTechApiTest 的缩放 / 裁剪 / 水印参数
+        testWatermarkParams();    // PicTechWatermarkTest 的模板及覆盖参数
+        testOcrParams();          // PicTechOcrTest 的 ImageBase64 (带 data 前缀)
+        testInpaintParams();      // PicTechInpaintTest 的 image / mask (纯 Base64)
+        testConcurrentSigning();  // 多线程复用 Mac 实例
+        testRefreshTimestamp();   // 重试时 Timestamp 递增，首次签名不超前
+
+        if (failures > 0) {
+            System.out.println("\n❌ 共 " + failures + " 项签名不一致");
+            System.exit(1);
+        }
+        System.out.println("\n✅ 全部签名与原实现一致");
+    }
+
+    // ==========================================
+    // 各示例类的参数集
+    // ==========================================
+
+    private static void testApiParams() {
+        System.out.println("\n--- PicTechApiTest ---");
+        Map<String, Object> scale = baseParams();
+        scale.put("Scale", 0.5);
+        scale.put("OutputFormat", "JPEG");
+        scale.put("Quality", 90);
+        check("resize scale", scale);
+
+        Map<String, Object> fixed = baseParams();
+        fixed.put("Width", 200);
+        fixed.put("Height", 300);
+        fixed.put("Mode", "fixed");
+        fixed.put("OutputFormat", "PNG");
+        fixed.put("Quality", 100);
+        check("resize fixed", fixed);
+
+        Map<String, Object> crop = baseParams();
+        crop.put("X", 100);
+        crop.put("Y", 50);
+        crop.put("Width", 300);
+        crop.put("Height", 150);
+        crop.put("OutputFormat", "JPEG");
+        check("crop", crop);
+
+        Map<String, Object> watermark = baseParams();
+        watermark.put("TemplateKey", "pattern_diagonal_da");
+        watermark.put("Text", "绝密资料 禁止外传");
+        watermark.put("OutputFormat", "");   // 空值应被过滤
+        watermark.put("Quality", 95);
+        check("watermark pattern", watermark);
+    }
+
+    private static void testWatermarkParams() {
+        System.out.println("\n--- PicTechWatermarkTest ---");
+        String[][] templates = {
+                {"single_subtle_light", "PicTech © 2026"},
+                {"special_multiline", "内部资料\n仅供参考"},
+                {"pattern_diagonal_da", "禁止盗图 @PicTech"},
+                {"special_photography", "ISO 200  f/1.8  1/500s"},
+                {"special_confidential", null},
+                {"single_emoji", "😀 表情 & = 符号"},
+        };
+        for (String[] template : templates) {
+            Map<String, Object> params = baseParams();
+            params.put("TemplateKey", template[0]);
+            params.put("OutputFormat", "JPEG");
+            params.put("Quality", 90);
+            if (template[1] != null) {
+                params.put("Text", template[1]);
+            }
+            check("template " + template[0], params);
+        }
+
+        // 覆盖参数 + 非排序 Map
+        Map<String, Object> override = new HashMap<>(baseParams());
+        override.put("TemplateKey", "multiple_corners");
+        override.put("Color", "#FF0000");
+        override.put("Opacity", 100);
+        override.put("Size", 30);
+        check("override (HashMap)", override);
+    }
+
+    private static void testOcrParams() throws Exception {
+        System.out.println("\n--- PicTechOcrTest ---");
+        for (int size : new int[]{0, 1, 2, 3, 100_000, 6 * 1024 * 1024 + 1}) {
+            Path image = randomFile(size, ".jpeg");
+            try {
+                Map<String, Object> params = new TreeMap<>();
+                params.put("AccountId", "pic_YOUR_ID");
+                params.put("Timestamp", "1769184000");
+                params.put("ImageBase64", PicTechBase64Source.ofFile(image, PicTechBase64Source.guessMimeType(image.toString())));
+                check("ImageBase64 " + size + " bytes", params);
+            } finally {
+                Files.deleteIfExists(image);
+            }
+        }
+    }
+
+    private static void testInpaintParams() throws Exception {
+        System.out.println("\n--- PicTechInpaintTest ---");
+        Path image = randomFile(3 * 1024 * 1024, ".bin");
+        Path mask = randomFile(200_001, ".bin");
+        try {
+            Map<String, Object> params = new TreeMap<>();
+            params.put("AccountId", "pic_YOUR_ID");
+            params.put("Timestamp", "1769184000");
+            params.put("image", PicTechBase64Source.ofFile(image, null));
+            params.put("mask", PicTechBase64Source.ofFile(mask, null));
+            check("image + mask (file)", params);
+
+            // 兼容旧的 String 入参
+            Map<String, Object> legacy = new TreeMap<>(params);
+            legacy.put("image", PicTechBase64Source.ofEncoded(Base64.getEncoder().encodeToString(Files.readAllBytes(image))));
+            legacy.put("mask", PicTechBase64Source.ofBytes(Files.readAllBytes(mask), null));
+            check("image (encoded) + mask (bytes)", legacy);
+
+            // 已编码来源的原始长度：去掉 data 前缀与补位的 '='
+            report("已编码来源的原始长度", PicTechBase64Source.ofEncoded("aGVsbG8=").rawLength() == 5
+                    && PicTechBase64Source.ofEncoded("data:text/plain;base64,aGk=").rawLength() == 2
+                    && ((PicTechBase64Source) legacy.get("image")).rawLength() == Files.size(image));
+        } finally {
+            Files.deleteIfExists(image);
+            Files.deleteIfExists(mask);
+        }
+    }
+
+    private static void testConcurrentSigning() throws Exception {
+        System.out.println("\n--- 并发签名 ---");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                final int n = i;
+                futures.add(pool.submit(() -> {
+                    Map<String, Object> params = baseParams();
+                    params.put("Timestamp", String.valueOf(1769184000000L + n));
+                    params.put("Quality", n % 100);
+                    return PicTechSigner.forSecret(SECRET_KEY).sign(params).equals(legacySignature(params, SECRET_KEY));
+                }));
+            }
+            int mismatched = 0;
+            for (Future<Boolean> future : futures) {
+                if (!future.get()) {
+                    mismatched++;
+                }
+            }
+            report("8 线程 x 2000 次签名", mismatched == 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void testRefreshTimestamp() {
+        System.out.println("\n--- 刷新 Timestamp ---");
+        PicTechSigner signer = PicTechSigner.forSecret(SECRET_KEY);
+        Map<String, Object> params = baseParams();
+        long second = System.currentTimeMillis() / 1000;
+        params.put("Timestamp", String.valueOf(second));
+        signer.refresh(params);
+        long first = Long.parseLong(params.get("Timestamp").toString());
+        report("首次签名使用当前时间", first <= System.currentTimeMillis() / 1000 && first >= second);
+        signer.refresh(params);
+        long retried = Long.parseLong(params.get("Timestamp").toString());
+        signer.refresh(params);
+        long again = Long.parseLong(params.get("Timestamp").toString());
+        report("同一秒内的重试 Timestamp 各不相同", first < retried && retried < again);
+    }
+
+    // ==========================================
+    // 辅助方法
+    // ==========================================
+
+    private static Map<String, Object> baseParams() {
+        Map<String, Object> params = new TreeMap<>();
+        params.put("AccountId", "your_ACCOUNT_ID");
+        params.put("Image", "https://pictech.top/pctccloud/test/source_Chinese.jpeg");
+        params.put("Timestamp", "1769184000000");
+        return params;
+    }
+
+    private static void check(String name, Map<String, Object> params) {
+        try {
+            String expected = legacySignature(params, SECRET_KEY);
+            String actual = PicTechSigner.forSecret(SECRET_KEY).sign(params);
+            report(name, expected.equals(actual));
+        } catch (Exception e) {
+            System.out.println("❌ " + name + " 异常: " + e.getMessage());
+            failures++;
+        }
+    }
+
+    private static void report(String name, boolean ok) {
+        if (ok) {
+            System.out.println("✅ " + name);
+        } else {
+            System.out.println("❌ " + name + " 签名不一致");
+            failures++;
+        }
+    }
+
+    private static Path randomFile(int size, String suffix) throws Exception {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        Path file = Files.createTempFile("pictech-sign-", suffix);
+        Files.write(file, bytes);
+        return file;
+    }
+
+    /**
+     * 原 generateSignature 实现 (四个示例类的逻辑等价，保留作为基准)
+     */
+    private static String legacySignature(Map<String, Object> params, String secretKey) throws Exception {
+        String paramString = params.entrySet().stream()
+                .filter(e -> e.getValue() != null && !e.getValue().toString().isEmpty())
+                .sorted(Map.Entry.comparingByKey())
+                .map(e -> e.getKey() + "=" + e.getValue())
+                .collect(Collectors.joining("&"));
+
+        String signString = paramString + "&SecretKey=" + secretKey;
+
+        Mac hmacSha256 = Mac.getInstance("HmacSHA256");
+        hmacSha256.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        byte[] hash = hmacSha256.doFinal(signString.getBytes(StandardCharsets.UTF_8));
+
+        return Base64.getEncoder().encodeToString(hash);
+    }
+}
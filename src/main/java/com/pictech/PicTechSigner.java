@@ -0,0 +1,237 @@
+package com.pictech;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 增量 HMAC-SHA256 签名引擎
+ *
+ * 签名规则与各示例类原来的 generateSignature 完全一致：
+ *   1. 过滤 null / 空字符串的参数，按 Key 字典序排序
+ *   2. 拼接为 k1=v1&k2=v2...&SecretKey={secretKey}
+ *   3. 以 SecretKey 为密钥计算 HMAC-SHA256，结果 Base64 编码
+ *
+ * 区别在于：
+ *   - 每个线程复用一个已 init 的 Mac 实例，不再每次 Mac.getInstance + init
+ *   - 规范串不再拼接成完整 String，而是逐段写入 Mac.update
+ *   - PicTechBase64Source 类型的大参数 (ImageBase64 / image / mask) 边编码边签名，不产生第二份图片拷贝
+ *
+ * 二进制上传 (PicTechMultipartBodyPublisher) 时文件不再以 Base64 文本发送，
+ * 对应参数改为按 key=sha256:{原始字节 SHA-256 的 Base64} 参与签名 (signBinary / refreshBinary)，其余规则不变。
+ */
+public final class PicTechSigner {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    /** 二进制上传时文件参数的签名值前缀 */
+    static final String DIGEST_PREFIX = "sha256:";
+    private static final ConcurrentHashMap<String, PicTechSigner> SIGNERS = new ConcurrentHashMap<>();
+
+    /** 线程私有的缓冲区：UTF-8 编码 / 原始字节 / Base64 编码 */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final byte[] secretSuffix;
+    private final ThreadLocal<Mac> macs;
+
+    private PicTechSigner(String secretKey) {
+        this.secretSuffix = ("&SecretKey=" + secretKey).getBytes(StandardCharsets.UTF_8);
+        SecretKeySpec keySpec = new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(keySpec);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("无法初始化 " + ALGORITHM, e);
+            }
+        });
+    }
+
+    /**
+     * 获取某个 SecretKey 对应的签名器 (全局缓存)
+     */
+    public static PicTechSigner forSecret(String secretKey) {
+        return SIGNERS.computeIfAbsent(secretKey, PicTechSigner::new);
+    }
+
+    /**
+     * 计算签名
+     */
+    public String sign(Map<String, ?> params) {
+        return sign(params, false);
+    }
+
+    /**
+     * 计算二进制上传的签名：文件参数以原始字节的摘要代替 Base64 文本
+     */
+    public String signBinary(Map<String, ?> params) {
+        return sign(params, true);
+    }
+
+    private String sign(Map<String, ?> params, boolean binary) {
+        long start = System.nanoTime();
+        byte[] hash = signBytes(params, binary);
+        String signature = Base64.getEncoder().encodeToString(hash);
+        PicTechFlightRecorder.signed(System.nanoTime() - start);
+        return signature;
+    }
+
+    /**
+     * 为一次 (重) 试刷新 Timestamp 并重新签名，写回 params
+     * Timestamp 保持原来的单位 (13 位毫秒 / 10 位秒)，取当前时间；params 已经签过名 (重试) 且当前时间
+     * 不大于上次签名的 Timestamp 时改用上次 + 1，避免同一毫秒 / 秒内的重试得到相同的 Signature。
+     * 没有 Timestamp 的参数只重新签名
+     */
+    public void refresh(Map<String, Object> params) {
+        refresh(params, false);
+    }
+
+    /**
+     * 同 refresh，签名按二进制上传的规则计算
+     */
+    public void refreshBinary(Map<String, Object> params) {
+        refresh(params, true);
+    }
+
+    private void refresh(Map<String, Object> params, boolean binary) {
+        boolean signed = params.remove("Signature") != null;
+        Object timestamp = params.get("Timestamp");
+        if (timestamp != null) {
+            String previous = timestamp.toString();
+            long now = System.currentTimeMillis();
+            long next = previous.length() >= 13 ? now : now / 1000;
+            try {
+                if (signed) {
+                    next = Math.max(next, Long.parseLong(previous) + 1);
+                }
+            } catch (NumberFormatException ignored) {
+                // 非数字的 Timestamp 直接覆盖
+            }
+            params.put("Timestamp", String.valueOf(next));
+        }
+        params.put("Signature", sign(params, binary));
+    }
+
+    /**
+     * 计算签名 (原始 32 字节摘要)
+     */
+    public byte[] signBytes(Map<String, ?> params) {
+        return signBytes(params, false);
+    }
+
+    private byte[] signBytes(Map<String, ?> params, boolean binary) {
+        Mac mac = macs.get();
+        Scratch scratch = SCRATCH.get();
+        try {
+            boolean first = true;
+            for (String key : sortedKeys(params)) {
+                Object value = params.get(key);
+                if (isBlank(value)) {
+                    continue;
+                }
+                if (!first) {
+                    mac.update((byte) '&');
+                }
+                first = false;
+                updateUtf8(mac, scratch, key);
+                mac.update((byte) '=');
+                if (binary && value instanceof PicTechBase64Source.RawSource) {
+                    updateUtf8(mac, scratch, DIGEST_PREFIX);
+                    updateUtf8(mac, scratch, ((PicTechBase64Source.RawSource) value).sha256(scratch.raw));
+                } else if (value instanceof PicTechBase64Source) {
+                    ((PicTechBase64Source) value).forEachEncodedChunk(scratch.raw, scratch.encoded, mac::update);
+                } else {
+                    updateUtf8(mac, scratch, String.valueOf(value));
+                }
+            }
+            mac.update(secretSuffix);
+            return mac.doFinal();
+        } catch (IOException e) {
+            mac.reset();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            mac.reset();
+            throw e;
+        }
+    }
+
+    /**
+     * 与原实现一致的空值判断：null 或 toString() 为空字符串
+     */
+    private static boolean isBlank(Object value) {
+        if (value == null) {
+            return true;
+        }
+        if (value instanceof PicTechBase64Source) {
+            return ((PicTechBase64Source) value).isEmpty();
+        }
+        if (value instanceof CharSequence) {
+            return ((CharSequence) value).length() == 0;
+        }
+        return value.toString().isEmpty();
+    }
+
+    /**
+     * TreeMap 等自然排序的 SortedMap 直接按迭代顺序，否则对 Key 排序
+     */
+    private static Iterable<String> sortedKeys(Map<String, ?> params) {
+        if (params instanceof SortedMap && ((SortedMap<String, ?>) params).comparator() == null) {
+            return params.keySet();
+        }
+        String[] keys = params.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        return Arrays.asList(keys);
+    }
+
+    /**
+     * 将字符串按 UTF-8 编码分批写入 Mac，不分配中间 byte[]
+     */
+    private static void updateUtf8(Mac mac, Scratch scratch, String s) {
+        byte[] buf = scratch.utf8;
+        int n = 0;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (n > buf.length - 4) {
+                mac.update(buf, 0, n);
+                n = 0;
+            }
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[n++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[n++] = (byte) (0xc0 | (c >> 6));
+                buf[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[n++] = (byte) (0xf0 | (cp >> 18));
+                buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // 孤立代理与 String.getBytes(UTF_8) 的行为一致：替换为 '?'
+                buf[n++] = '?';
+            } else {
+                buf[n++] = (byte) (0xe0 | (c >> 12));
+                buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        if (n > 0) {
+            mac.update(buf, 0, n);
+        }
+    }
+
+    private static final class Scratch {
+        final byte[] utf8 = new byte[8 * 1024];
+        final byte[] raw = new byte[PicTechBase64Source.RAW_CHUNK];
+        final byte[] encoded = new byte[PicTechBase64Source.RAW_CHUNK / 3 * 4];
+    }
+}
@@ -0,0 +1,224 @@
+package com.pictech;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 相同请求的合并 (single-flight)
+ *
+ * 多个线程同时请求同一张图的同一种 resize / watermark 时，只有第一个调用方 (leader) 真正签名并发送，
+ * 其余调用方 (follower) 等待并共享同一个结果；leader 完成后立即移除，之后的调用重新发送 (或命中结果缓存)。
+ *
+ * 错误与取消：
+ *   - leader 的失败 (HTTP 异常、重试耗尽等) 原样传给所有 follower
+ *   - leader 被中断 / 取消时 follower 不继承该异常，而是由其中一个重新成为 leader
+ *   - 异步调用方各自取消互不影响，全部取消后才取消底层请求
+ */
+public final class PicTechSingleFlight<V> {
+
+    /** 不参与合并键的参数 */
+    private static final Set<String> VOLATILE_PARAMS = Set.of("Timestamp", "Signature");
+
+    private final ConcurrentHashMap<String, Flight<V>> flights = new ConcurrentHashMap<>();
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder followers = new LongAdder();
+
+    /**
+     * 合并键：接口 + 除 Timestamp / Signature 以外按 Key 排序的参数
+     */
+    public static String key(String endpoint, Map<String, ?> params) {
+        StringBuilder sb = new StringBuilder(endpoint);
+        for (Map.Entry<String, ?> entry : new TreeMap<>(params).entrySet()) {
+            if (VOLATILE_PARAMS.contains(entry.getKey()) || entry.getValue() == null) {
+                continue;
+            }
+            Object value = entry.getValue();
+            // 流式图片参数按对象合并，不为计算合并键读取整张图
+            String text = value instanceof PicTechBase64Source source
+                    ? "source#" + source.id()
+                    : String.valueOf(value);
+            sb.append('\n').append(entry.getKey().length()).append(':').append(entry.getKey())
+                    .append(text.length()).append(':').append(text);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 同步执行：没有相同请求在途时在当前线程执行 call，否则等待在途请求的结果
+     */
+    public V run(String key, Callable<V> call) throws Exception {
+        while (true) {
+            Flight<V> mine = new Flight<>();
+            Flight<V> flight = flights.putIfAbsent(key, mine);
+            if (flight == null) {
+                leaders.increment();
+                // 先移除再完成，被唤醒的 follower 重新竞争时不会再看到这个已结束的请求
+                try {
+                    V value = call.call();
+                    flights.remove(key, mine);
+                    mine.result.complete(value);
+                    return value;
+                } catch (Throwable e) {
+                    flights.remove(key, mine);
+                    mine.result.completeExceptionally(e);
+                    throw e;
+                }
+            }
+
+            followers.increment();
+            try {
+                return flight.result.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof InterruptedException || cause instanceof CancellationException) {
+                    // leader 被中断：重新竞争 leader
+                    continue;
+                }
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw (Error) cause;
+            } catch (CancellationException e) {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * 异步执行：返回调用方私有的 Future，取消它只影响自己；所有调用方都取消后取消底层请求
+     */
+    public CompletableFuture<V> submit(String key, Supplier<CompletableFuture<V>> call) {
+        while (true) {
+            Flight<V> mine = new Flight<>(true);
+            Flight<V> flight = flights.putIfAbsent(key, mine);
+            if (flight == null) {
+                leaders.increment();
+                CompletableFuture<V> caller = mine.join(key, flights);
+                CompletableFuture<V> underlying;
+                try {
+                    underlying = call.get();
+                } catch (RuntimeException e) {
+                    underlying = CompletableFuture.failedFuture(e);
+                }
+                underlying.whenComplete((value, error) -> {
+                    flights.remove(key, mine);
+                    if (error != null) {
+                        mine.result.completeExceptionally(unwrap(error));
+                    } else {
+                        mine.result.complete(value);
+                    }
+                });
+                mine.start(underlying);
+                return caller;
+            }
+            CompletableFuture<V> joined = flight.join(key, flights);
+            if (joined != null) {
+                followers.increment();
+                return joined;
+            }
+            // 在途请求刚被全部取消，重新发起
+        }
+    }
+
+    /** 实际发出的请求数 */
+    public long leaderCount() {
+        return leaders.sum();
+    }
+
+    /** 被合并 (未发送) 的调用数 */
+    public long coalescedCount() {
+        return followers.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + leaders.sum() + ", coalesced=" + followers.sum() + ", inFlight=" + flights.size();
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * 一个在途请求
+     */
+    private static final class Flight<V> {
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        /** 异步请求才有取消语义；同步 leader 的请求不会因 follower 取消而中止 */
+        final boolean async;
+        CompletableFuture<V> underlying;
+        int waiters;
+        boolean abandoned;
+
+        Flight() {
+            this(false);
+        }
+
+        Flight(boolean async) {
+            this.async = async;
+        }
+
+        /**
+         * 登记底层请求；如果在发起期间所有调用方都已取消，立即取消它
+         */
+        void start(CompletableFuture<V> underlying) {
+            boolean cancel;
+            synchronized (this) {
+                this.underlying = underlying;
+                cancel = abandoned;
+            }
+            if (cancel) {
+                underlying.cancel(true);
+            }
+        }
+
+        /**
+         * 为一个异步调用方生成私有 Future；请求已被放弃时返回 null
+         */
+        synchronized CompletableFuture<V> join(String key, ConcurrentHashMap<String, Flight<V>> flights) {
+            if (abandoned) {
+                return null;
+            }
+            waiters++;
+            CompletableFuture<V> mine = new CompletableFuture<>();
+            result.whenComplete((value, error) -> {
+                if (error != null) {
+                    mine.completeExceptionally(error);
+                } else {
+                    mine.complete(value);
+                }
+            });
+            mine.whenComplete((value, error) -> {
+                if (mine.isCancelled()) {
+                    leave(key, flights);
+                }
+            });
+            return mine;
+        }
+
+        private void leave(String key, ConcurrentHashMap<String, Flight<V>> flights) {
+            CompletableFuture<V> toCancel;
+            synchronized (this) {
+                if (!async || result.isDone() || --waiters > 0) {
+                    return;
+                }
+                abandoned = true;
+                toCancel = underlying;
+            }
+            flights.remove(key, this);
+            result.cancel(false);
+            if (toCancel != null) {
+                toCancel.cancel(true);
+            }
+        }
+    }
+}
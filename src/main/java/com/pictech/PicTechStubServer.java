@@ -0,0 +1,638 @@
+package com.pictech;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 本地桩服务器：模拟 PicTech 同步接口，可注入延迟、长尾与错误
+ *
+ * 用于在没有真实凭证和网络的情况下测试重试、对冲、限流等客户端逻辑：
+ *   POST /pictech/commonapi/tools/*            返回带 Base64 图片的 JSON
+ *   POST /pictech/commonapi/image_ocr_sync     返回 OCR 结果 JSON
+ *   POST /pictech/commonapi/inpaint_image_sync 返回 PNG 二进制
+ *   GET  /files/{name}?size=N                 返回确定性的伪随机内容，支持 ETag / If-None-Match (模拟图片 CDN)
+ * 与真实服务一样拒绝重复使用的 Signature (401)，因此重试必须重新签名。
+ * 通过 account(AccountId, SecretKey) 登记账号后，按服务端的规则 (参数按 key 排序、过滤空值、拼接 SecretKey 后 HMAC-SHA256)
+ * 校验每个请求的签名，AccountId 未登记或签名不符返回 401。
+ *
+ * 可注入的行为：固定 + 均匀抖动或对数正态分布的延迟、长尾、错误状态码、按每秒请求数限流 (429 + Retry-After)，
+ * 响应大小可调 (responseBytes / ocrRegions)，用于端到端压测 (见 PicTechLoadTest)。
+ * 请求体可以是 JSON，也可以是 multipart/form-data 二进制上传 (文件段按 key=sha256:{摘要} 校验签名，见 PicTechMultipartBodyPublisher)。
+ * 接受 Content-Encoding: gzip 的请求体；gzipResponses(minBytes) 后对声明 Accept-Encoding: gzip 的请求压缩响应。
+ *
+ * 单独运行：mvn compile exec:java -Dexec.mainClass="com.pictech.PicTechStubServer" -Dexec.args="18080"
+ * 示例类用 -Dpictech.api.host=http://127.0.0.1:18080/pictech/commonapi 指向桩服务器即可离线运行
+ */
+public final class PicTechStubServer implements AutoCloseable {
+
+    public static final String BASE_PATH = "/pictech/commonapi";
+    public static final String FILES_PATH = "/files/";
+
+    private static final int IMAGE_SIZE = 4;
+    private static final byte[] PNG = tinyPng();
+
+    static {
+        // 响应头和响应体分两次写出，开启 Nagle 时会与客户端的延迟 ACK 叠加出约 40ms 的额外延迟
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private volatile double stragglerRate;
+    private volatile long stragglerNanos;
+    private volatile double latencySigma;
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile PicTechRateLimiter throttle;
+    private volatile long maxClockSkewMillis;
+    private volatile byte[] toolBodyHead;
+    private volatile byte[] toolBodyTail;
+    private volatile byte[] inpaintBody = PNG;
+    private volatile byte[] ocrBody;
+    private final Map<String, String> accounts = new ConcurrentHashMap<>();
+    private volatile int gzipMinBytes = -1;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder fileDownloads = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder signatureFailures = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder gzipRequests = new LongAdder();
+    private final LongAdder multipartRequests = new LongAdder();
+    private final LongAdder gzipResponses = new LongAdder();
+    private final Set<String> signatures = ConcurrentHashMap.newKeySet();
+
+    private PicTechStubServer(int port) throws IOException {
+        AtomicInteger seq = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "pictech-stub-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        this.server.createContext(BASE_PATH + "/", this::handle);
+        this.server.createContext(FILES_PATH, this::handleFile);
+        this.server.setExecutor(executor);
+        responseBytes(0);
+        ocrRegions(1);
+    }
+
+    /**
+     * 启动桩服务器
+     *
+     * @param port 端口，0 表示随机
+     */
+    public static PicTechStubServer start(int port) throws IOException {
+        PicTechStubServer stub = new PicTechStubServer(port);
+        stub.server.start();
+        return stub;
+    }
+
+    /**
+     * 接口根地址，对应真实的 https://www.pictech.top/pictech/commonapi
+     */
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + BASE_PATH;
+    }
+
+    /**
+     * 每个请求的基础延迟，外加 [0, jitter) 的随机抖动
+     */
+    public PicTechStubServer latency(Duration base, Duration jitter) {
+        this.latencyNanos = base.toNanos();
+        this.jitterNanos = jitter.toNanos();
+        this.latencySigma = 0;
+        return this;
+    }
+
+    /**
+     * 对数正态分布的延迟：中位数 median，sigma 越大尾部越长 (0.5 时 p99 约为中位数的 3.2 倍)
+     */
+    public PicTechStubServer latencyLogNormal(Duration median, double sigma) {
+        this.latencyNanos = median.toNanos();
+        this.jitterNanos = 0;
+        this.latencySigma = sigma;
+        return this;
+    }
+
+    /**
+     * 以 rate 的概率额外延迟 delay (模拟长尾)
+     */
+    public PicTechStubServer stragglers(double rate, Duration delay) {
+        this.stragglerRate = rate;
+        this.stragglerNanos = delay.toNanos();
+        return this;
+    }
+
+    /**
+     * 以 rate 的概率返回 status 错误
+     */
+    public PicTechStubServer errors(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+        return this;
+    }
+
+    /**
+     * 超过 requestsPerSecond 的请求返回 429 (带 Retry-After)，<= 0 表示不限流
+     */
+    public PicTechStubServer throttle(double requestsPerSecond) {
+        this.throttle = requestsPerSecond > 0 ? new PicTechRateLimiter(requestsPerSecond) : null;
+        return this;
+    }
+
+    /**
+     * 客户端接受 gzip 时，压缩不小于 minBytes 的响应体；< 0 表示从不压缩 (默认)
+     */
+    public PicTechStubServer gzipResponses(int minBytes) {
+        this.gzipMinBytes = minBytes;
+        return this;
+    }
+
+    /**
+     * 登记账号；登记过任意账号后开始校验签名
+     */
+    public PicTechStubServer account(String accountId, String secretKey) {
+        accounts.put(accountId, secretKey);
+        return this;
+    }
+
+    /**
+     * Timestamp 与服务器时间相差超过 skew 时返回 401 (10 位按秒、13 位按毫秒解析)，Duration.ZERO 表示不检查
+     */
+    public PicTechStubServer maxClockSkew(Duration skew) {
+        this.maxClockSkewMillis = skew.toMillis();
+        return this;
+    }
+
+    /**
+     * /tools/* 与 inpaint 返回的图片大小 (字节)；有效的 PNG 后补随机数据，解码器会忽略 IEND 之后的内容
+     */
+    public PicTechStubServer responseBytes(int bytes) {
+        byte[] image = PNG;
+        if (bytes > PNG.length) {
+            image = Arrays.copyOf(PNG, bytes);
+            byte[] padding = new byte[bytes - PNG.length];
+            new Random(bytes).nextBytes(padding);
+            System.arraycopy(padding, 0, image, PNG.length, padding.length);
+        }
+        this.toolBodyHead = "{\"Code\":200,\"RequestId\":\"stub-".getBytes(StandardCharsets.US_ASCII);
+        this.toolBodyTail = ("\",\"Data\":{\"Width\":" + IMAGE_SIZE + ",\"Height\":" + IMAGE_SIZE
+                + ",\"Base64\":\"data:image/png;base64," + Base64.getEncoder().encodeToString(image) + "\"}}")
+                .getBytes(StandardCharsets.US_ASCII);
+        this.inpaintBody = image;
+        return this;
+    }
+
+    /**
+     * OCR 响应中的文字区域数 (文字以 \\uXXXX 转义，与服务端一致)
+     */
+    public PicTechStubServer ocrRegions(int regions) {
+        StringBuilder sb = new StringBuilder("{\"Code\":200,\"RequestId\":\"stub\",\"TemplateJson\":[");
+        for (int i = 0; i < Math.max(1, regions); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            int y = i * 24;
+            // 第一个区域固定为「桩服务器」，便于测试断言
+            sb.append("{\"text\":\"\\u6869\\u670d\\u52a1\\u5668").append(i == 0 ? "" : String.valueOf(i))
+                    .append("\",\"points\":[[0,").append(y).append("],[").append(IMAGE_SIZE).append(',').append(y)
+                    .append("],[").append(IMAGE_SIZE).append(',').append(y + IMAGE_SIZE).append("],[0,").append(y + IMAGE_SIZE).append("]]}");
+        }
+        this.ocrBody = sb.append("]}").toString().getBytes(StandardCharsets.US_ASCII);
+        return this;
+    }
+
+    /**
+     * 静态文件地址，内容由 name 决定，相同 name + size 的 ETag 相同
+     */
+    public String fileUrl(String name, int size) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + FILES_PATH + name + "?size=" + size;
+    }
+
+    /**
+     * 同 fileUrl，但响应不带 ETag / Last-Modified，客户端无法重新验证，每次都是完整下载
+     */
+    public String fileUrlWithoutValidators(String name, int size) {
+        return fileUrl(name, size) + "&validators=false";
+    }
+
+    /**
+     * 返回完整内容 (200) 的文件请求次数
+     */
+    public long fileDownloadCount() {
+        return fileDownloads.sum();
+    }
+
+    /**
+     * 返回 304 的文件请求次数
+     */
+    public long notModifiedCount() {
+        return notModified.sum();
+    }
+
+    public long requestCount() {
+        return requests.sum();
+    }
+
+    public long injectedErrorCount() {
+        return injectedErrors.sum();
+    }
+
+    /**
+     * 签名校验失败 (含未登记的 AccountId、Timestamp 超出范围) 的次数
+     */
+    public long signatureFailureCount() {
+        return signatureFailures.sum();
+    }
+
+    /**
+     * 因限流返回 429 的次数
+     */
+    public long throttledCount() {
+        return throttled.sum();
+    }
+
+    /**
+     * 请求体为 gzip 的请求数
+     */
+    public long gzipRequestCount() {
+        return gzipRequests.sum();
+    }
+
+    /**
+     * multipart/form-data (二进制上传) 的请求数
+     */
+    public long multipartRequestCount() {
+        return multipartRequests.sum();
+    }
+
+    /**
+     * 以 gzip 返回的响应数
+     */
+    public long gzipResponseCount() {
+        return gzipResponses.sum();
+    }
+
+    /**
+     * 收到重复 Signature 的次数
+     */
+    public long replayCount() {
+        return replays.sum();
+    }
+
+    /**
+     * 清空计数 (注入配置保持不变)
+     */
+    public void resetCounters() {
+        requests.reset();
+        injectedErrors.reset();
+        replays.reset();
+        fileDownloads.reset();
+        notModified.reset();
+        signatureFailures.reset();
+        throttled.reset();
+        gzipRequests.reset();
+        gzipResponses.reset();
+        multipartRequests.reset();
+        signatures.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // ================= 请求处理 =================
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requests.increment();
+            byte[] body;
+            boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            if (gzip) {
+                gzipRequests.increment();
+            }
+            try (InputStream in = gzip ? new GZIPInputStream(exchange.getRequestBody(), 64 * 1024) : exchange.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            Map<String, String> params;
+            if (contentType != null && contentType.startsWith("multipart/form-data")) {
+                multipartRequests.increment();
+                params = parseMultipart(body, contentType);
+            } else {
+                params = parseParams(body);
+            }
+            String signature = params == null ? null : params.remove("Signature");
+            if (params != null && !accounts.isEmpty()) {
+                String failure = verify(params, signature);
+                if (failure != null) {
+                    signatureFailures.increment();
+                    respondJson(exchange, 401, "{\"Code\":401,\"Message\":\"" + failure + "\"}");
+                    return;
+                }
+            }
+            if (signature != null && !signatures.add(signature)) {
+                replays.increment();
+                respondJson(exchange, 401, "{\"Code\":401,\"Message\":\"Signature 已被使用\"}");
+                return;
+            }
+
+            PicTechRateLimiter limiter = throttle;
+            if (limiter != null && !limiter.tryAcquire()) {
+                throttled.increment();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respondJson(exchange, 429, "{\"Code\":429,\"Message\":\"请求过于频繁\"}");
+                return;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                injectedErrors.increment();
+                respondJson(exchange, errorStatus, "{\"Code\":" + errorStatus + ",\"Message\":\"injected\"}");
+                return;
+            }
+
+            long delay = latencySigma > 0
+                    ? (long) (latencyNanos * Math.exp(latencySigma * random.nextGaussian()))
+                    : latencyNanos + (jitterNanos > 0 ? random.nextLong(jitterNanos) : 0);
+            if (stragglerRate > 0 && random.nextDouble() < stragglerRate) {
+                delay += stragglerNanos;
+            }
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+
+            String path = exchange.getRequestURI().getPath().substring(BASE_PATH.length());
+            if (path.startsWith("/tools/")) {
+                byte[] head = toolBodyHead;
+                byte[] id = String.valueOf(requests.sum()).getBytes(StandardCharsets.US_ASCII);
+                byte[] tail = toolBodyTail;
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                try (OutputStream out = openBody(exchange, 200, head.length + id.length + tail.length)) {
+                    out.write(head);
+                    out.write(id);
+                    out.write(tail);
+                }
+            } else if (path.equals("/image_ocr_sync")) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                respond(exchange, 200, ocrBody);
+            } else if (path.equals("/inpaint_image_sync")) {
+                exchange.getResponseHeaders().set("Content-Type", "image/png");
+                respond(exchange, 200, inpaintBody);
+            } else {
+                respondJson(exchange, 404, "{\"Code\":404,\"Message\":\"unknown endpoint\"}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleFile(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String name = exchange.getRequestURI().getPath().substring(FILES_PATH.length());
+            String query = exchange.getRequestURI().getQuery();
+            int size = 1024;
+            boolean validators = true;
+            for (String param : query == null ? new String[0] : query.split("&")) {
+                if (param.startsWith("size=")) {
+                    size = Integer.parseInt(param.substring(5));
+                } else if ("validators=false".equals(param)) {
+                    validators = false;
+                }
+            }
+            String etag = "\"" + name + "-" + size + "\"";
+            if (validators) {
+                exchange.getResponseHeaders().set("ETag", etag);
+            }
+            if (validators && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.increment();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            byte[] body = new byte[size];
+            new Random(name.hashCode()).nextBytes(body);
+            fileDownloads.increment();
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            respond(exchange, 200, body);
+        }
+    }
+
+    /**
+     * 取顶层字段，值按签名时的字符串形式保存 (字符串反转义，数字和布尔值保留原文)；非 JSON 请求体返回 null
+     */
+    private static Map<String, String> parseParams(byte[] body) {
+        try {
+            Map<String, String> params = new TreeMap<>();
+            PicTechJsonReader reader = new PicTechJsonReader(body);
+            while (reader.next() != PicTechJsonReader.Token.END_DOCUMENT) {
+                if (reader.token() != PicTechJsonReader.Token.NAME || reader.depth() != 1) {
+                    continue;
+                }
+                String key = reader.stringValue();
+                switch (reader.next()) {
+                    case STRING, NUMBER -> params.put(key, reader.stringValue());
+                    case TRUE -> params.put(key, "true");
+                    case FALSE -> params.put(key, "false");
+                    case NULL -> {
+                    }
+                    default -> reader.skipValue();
+                }
+            }
+            return params;
+        } catch (IllegalArgumentException e) {
+            // 非 JSON 请求体不做签名检查
+            return null;
+        }
+    }
+
+    /**
+     * 解析 multipart/form-data：文本段按原文，文件段 (带 filename) 取原始字节的 SHA-256，
+     * 按二进制上传的签名规则记为 sha256:{Base64 摘要}；格式错误返回 null
+     */
+    private static Map<String, String> parseMultipart(byte[] body, String contentType) {
+        int at = contentType.indexOf("boundary=");
+        if (at < 0) {
+            return null;
+        }
+        String boundary = contentType.substring(at + 9).replace("\"", "");
+        byte[] first = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        byte[] delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        int pos = indexOf(body, first, 0);
+        if (pos < 0) {
+            return null;
+        }
+        pos += first.length;
+        Map<String, String> params = new TreeMap<>();
+        while (pos + 2 <= body.length) {
+            if (body[pos] == '-' && body[pos + 1] == '-') {
+                return params;
+            }
+            int headerStart = pos + 2;
+            int headerEnd = indexOf(body, "\r\n\r\n".getBytes(StandardCharsets.US_ASCII), headerStart);
+            if (headerEnd < 0) {
+                return null;
+            }
+            String headers = new String(body, headerStart, headerEnd - headerStart, StandardCharsets.UTF_8);
+            int dataStart = headerEnd + 4;
+            int dataEnd = indexOf(body, delimiter, dataStart);
+            int nameAt = headers.indexOf("; name=\"");
+            if (dataEnd < 0 || nameAt < 0) {
+                return null;
+            }
+            String name = headers.substring(nameAt + 8, headers.indexOf('"', nameAt + 8));
+            if (headers.contains("filename=")) {
+                try {
+                    MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                    sha256.update(body, dataStart, dataEnd - dataStart);
+                    params.put(name, PicTechSigner.DIGEST_PREFIX + Base64.getEncoder().encodeToString(sha256.digest()));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else {
+                params.put(name, new String(body, dataStart, dataEnd - dataStart, StandardCharsets.UTF_8));
+            }
+            pos = dataEnd + delimiter.length;
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 按服务端规则校验签名，通过时返回 null，否则返回错误信息
+     */
+    private String verify(Map<String, String> params, String signature) {
+        String secret = params.get("AccountId") == null ? null : accounts.get(params.get("AccountId"));
+        if (secret == null) {
+            return "AccountId 不存在";
+        }
+        if (signature == null || !signature.equals(PicTechSigner.forSecret(secret).sign(params))) {
+            return "签名错误";
+        }
+        long skew = maxClockSkewMillis;
+        if (skew > 0) {
+            try {
+                String timestamp = params.get("Timestamp");
+                long millis = timestamp.length() >= 13 ? Long.parseLong(timestamp) : Long.parseLong(timestamp) * 1000;
+                if (Math.abs(System.currentTimeMillis() - millis) > skew) {
+                    return "Timestamp 已过期";
+                }
+            } catch (RuntimeException e) {
+                return "Timestamp 格式错误";
+            }
+        }
+        return null;
+    }
+
+    private void respondJson(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        respond(exchange, status, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        try (OutputStream out = openBody(exchange, status, body.length)) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * 发送响应头并返回响应体输出流；客户端接受 gzip 且响应体足够大时改为 gzip 分块传输
+     */
+    private OutputStream openBody(HttpExchange exchange, int status, long length) throws IOException {
+        int minBytes = gzipMinBytes;
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (minBytes >= 0 && length >= minBytes && accept != null && accept.contains("gzip")) {
+            gzipResponses.increment();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(status, 0);
+            return new GZIPOutputStream(exchange.getResponseBody(), 64 * 1024);
+        }
+        exchange.sendResponseHeaders(status, length);
+        return exchange.getResponseBody();
+    }
+
+    private static byte[] tinyPng() {
+        BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < IMAGE_SIZE; y++) {
+            for (int x = 0; x < IMAGE_SIZE; x++) {
+                image.setRGB(x, y, (x + y) % 2 == 0 ? 0xFFFFFF : 0x3366CC);
+            }
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18080;
+        PicTechStubServer stub = start(port)
+                .latency(Duration.ofMillis(Long.getLong("pictech.stub.latencyMs", 20L)), Duration.ofMillis(10))
+                .stragglers(Double.parseDouble(System.getProperty("pictech.stub.stragglerRate", "0.02")), Duration.ofMillis(500))
+                .errors(Double.parseDouble(System.getProperty("pictech.stub.errorRate", "0.05")), 503)
+                .throttle(Double.parseDouble(System.getProperty("pictech.stub.throttleRps", "0")))
+                .responseBytes(Integer.getInteger("pictech.stub.responseBytes", 0))
+                .ocrRegions(Integer.getInteger("pictech.stub.ocrRegions", 1));
+        double sigma = Double.parseDouble(System.getProperty("pictech.stub.latencySigma", "0"));
+        if (sigma > 0) {
+            stub.latencyLogNormal(Duration.ofMillis(Long.getLong("pictech.stub.latencyMs", 20L)), sigma);
+        }
+        // 示例类中的占位凭证
+        stub.account("your_ACCOUNT_ID", "your_SECRET_KEY").account("pic_YOUR_ID", "YOUR_SECRET_KEY");
+        System.out.println("🚀 桩服务器已启动: " + stub.baseUrl());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,382 @@
+package com.pictech;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 大图分块并行 OCR
+ *
+ * 海报、长截图等大图整张上传既可能超过建议的 6MB，又会因服务端缩小而丢失小字。
+ * 分块模式把图片切成互相重叠的块，每块单独解码 (ImageReadParam.setSourceRegion，内存与块大小成正比)、
+ * 编码后通过共享客户端并发识别，各块的区域坐标平移回整图坐标，再合并接缝处的区域：
+ *   - 碰到块内侧边缘的区域视为被接缝切断
+ *   - 同一行上一段在左块右缘被切断、一段在右块左缘被切断：拼成一个区域，文字去掉重叠部分后连接
+ *   - 其余大部分重叠的区域视为同一处文字被识别了两次：保留未被切断的一个，都完整时保留面积大的
+ * 总延迟约为一块的往返时间 (并发受接口的自适应并发窗口约束)，而不是整张大图的上传 + 识别时间。
+ *
+ * 可通过系统属性调整：
+ *   -Dpictech.ocr.tileSize=0       块的边长 (像素)，0 表示不分块 (默认)；图片两边都不超过块大小时也不分块
+ *   -Dpictech.ocr.tileOverlap=256  相邻块的最小重叠像素，应大于最高的一行文字
+ */
+public final class PicTechTiledOcr {
+
+    /**
+     * 单块识别调用：输入块图片，返回原始 JSON 响应
+     */
+    @FunctionalInterface
+    public interface OcrCall {
+        CompletableFuture<byte[]> recognize(PicTechBase64Source tile);
+    }
+
+    /** 同一处文字的判定：交集占较小框的比例 */
+    private static final double DUPLICATE_OVERLAP = 0.5;
+    /** 同一行的判定：垂直方向重合占较矮框的比例 */
+    private static final double SAME_LINE = 0.5;
+    private static final int TILE_QUALITY = 95;
+
+    private static volatile PicTechTiledOcr shared;
+
+    private final int tileSize;
+    private final int overlap;
+    private final OcrCall call;
+    private final ExecutorService executor;
+
+    /**
+     * @param tileSize 块的边长，<= 0 表示不分块
+     * @param overlap  相邻块的最小重叠像素
+     * @param call     单块识别调用
+     */
+    public PicTechTiledOcr(int tileSize, int overlap, OcrCall call) {
+        this.tileSize = Math.max(0, tileSize);
+        this.overlap = Math.max(0, Math.min(overlap, this.tileSize / 2));
+        this.call = call;
+        AtomicInteger index = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "pictech-ocr-tile-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 按系统属性配置、通过 PicTechOcrTest.performOcrAsync 识别的全局实例
+     */
+    public static PicTechTiledOcr shared() {
+        PicTechTiledOcr tiled = shared;
+        if (tiled == null) {
+            synchronized (PicTechTiledOcr.class) {
+                tiled = shared;
+                if (tiled == null) {
+                    tiled = new PicTechTiledOcr(Integer.getInteger("pictech.ocr.tileSize", 0),
+                            Integer.getInteger("pictech.ocr.tileOverlap", 256), PicTechOcrTest::performOcrAsync);
+                    shared = tiled;
+                }
+            }
+        }
+        return tiled;
+    }
+
+    public boolean enabled() {
+        return tileSize > 0;
+    }
+
+    /**
+     * 同步识别，区域坐标为整图坐标
+     */
+    public PicTechOcrResult recognize(PicTechBase64Source image) throws IOException, InterruptedException {
+        return PicTechHttpEngine.await(recognizeAsync(image));
+    }
+
+    /**
+     * 异步识别：图片不需要分块 (或本地无法解码) 时整张发送一次，否则分块并发识别后合并
+     */
+    public CompletableFuture<PicTechOcrResult> recognizeAsync(PicTechBase64Source image) {
+        int width;
+        int height;
+        String format;
+        if (!enabled() || !image.hasRaw()) {
+            return whole(image);
+        }
+        try (ImageInputStream in = PicTechDownscaler.open(image)) {
+            ImageReader reader = PicTechDownscaler.reader(in);
+            if (reader == null) {
+                return whole(image);
+            }
+            try {
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+                format = reader.getFormatName().toLowerCase(Locale.ROOT);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        List<Rectangle> tiles = tiles(width, height);
+        if (tiles.size() == 1) {
+            return whole(image);
+        }
+
+        List<CompletableFuture<List<Piece>>> futures = new ArrayList<>(tiles.size());
+        List<PicTechOcrResult> results = new ArrayList<>(tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            Rectangle tile = tiles.get(i);
+            int index = i;
+            results.add(null);
+            futures.add(CompletableFuture.supplyAsync(() -> encodeTile(image, tile, format), executor)
+                    .thenCompose(call::recognize)
+                    .thenApply(json -> {
+                        PicTechOcrResult result = PicTechOcrResult.parse(json);
+                        synchronized (results) {
+                            results.set(index, result);
+                        }
+                        return pieces(result, index, tile, width, height);
+                    }));
+        }
+        // 任一块失败时取消其余块，不再等待
+        for (CompletableFuture<List<Piece>> future : futures) {
+            future.whenComplete((pieces, error) -> {
+                if (error != null) {
+                    futures.forEach(other -> other.cancel(true));
+                }
+            });
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Set<String> requestIds = new LinkedHashSet<>();
+            for (PicTechOcrResult result : results) {
+                if (!result.success()) {
+                    return new PicTechOcrResult(result.code(), result.requestId(), result.message(), List.of());
+                }
+                if (result.requestId() != null) {
+                    requestIds.add(result.requestId());
+                }
+            }
+            List<Piece> pieces = new ArrayList<>();
+            futures.forEach(future -> pieces.addAll(future.join()));
+            return new PicTechOcrResult(200, requestIds.isEmpty() ? null : String.join(",", requestIds), null, merge(pieces));
+        });
+    }
+
+    private CompletableFuture<PicTechOcrResult> whole(PicTechBase64Source image) {
+        return call.recognize(image).thenApply(PicTechOcrResult::parse);
+    }
+
+    // ================= 分块 =================
+
+    /**
+     * 按行优先切分：每个方向上块数取满足最小重叠的最少块数，块的起点均匀分布
+     */
+    List<Rectangle> tiles(int width, int height) {
+        int[] xs = starts(width);
+        int[] ys = starts(height);
+        List<Rectangle> tiles = new ArrayList<>(xs.length * ys.length);
+        for (int y : ys) {
+            for (int x : xs) {
+                tiles.add(new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+            }
+        }
+        return tiles;
+    }
+
+    private int[] starts(int length) {
+        if (tileSize <= 0 || length <= tileSize) {
+            return new int[]{0};
+        }
+        int count = (int) Math.ceil((length - overlap) / (double) (tileSize - overlap));
+        int[] starts = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = (int) Math.round(i * (length - tileSize) / (double) (count - 1));
+        }
+        return starts;
+    }
+
+    /**
+     * 只解码块所在的区域并编码为原格式 (PNG 保持无损，其余为 JPEG)
+     */
+    private static PicTechBase64Source encodeTile(PicTechBase64Source image, Rectangle tile, String format) {
+        try (ImageInputStream in = PicTechDownscaler.open(image)) {
+            ImageReader reader = PicTechDownscaler.reader(in);
+            BufferedImage region;
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(tile);
+                region = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+            String target = "png".equals(format) || region.getColorModel().hasAlpha() ? "png" : "jpeg";
+            ByteArrayOutputStream out = new ByteArrayOutputStream(tile.width * tile.height / 2);
+            PicTechLocalTools.write(region, target, TILE_QUALITY, out);
+            String mimeType = image.mimeType() == null ? null : "image/" + target;
+            return PicTechBase64Source.ofBuffer(ByteBuffer.wrap(out.toByteArray()), mimeType);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ================= 合并 =================
+
+    /**
+     * 平移到整图坐标的区域，记录所在块与被哪些块边缘切断
+     */
+    private static final class Piece {
+        PicTechOcrResult.Region region;
+        int tile;
+        double minX;
+        double minY;
+        double maxX;
+        double maxY;
+        boolean cutLeft;
+        boolean cutRight;
+        boolean cutTop;
+        boolean cutBottom;
+
+        boolean cut() {
+            return cutLeft || cutRight || cutTop || cutBottom;
+        }
+
+        double area() {
+            return Math.max(1, maxX - minX) * Math.max(1, maxY - minY);
+        }
+    }
+
+    /**
+     * 区域离块的内侧边缘不超过 slack 像素即视为被切断 (整图边缘不算)
+     */
+    private List<Piece> pieces(PicTechOcrResult result, int index, Rectangle tile, int width, int height) {
+        double slack = Math.max(4, overlap / 16.0);
+        List<Piece> pieces = new ArrayList<>(result.regions().size());
+        for (PicTechOcrResult.Region region : result.regions()) {
+            Piece piece = new Piece();
+            piece.tile = index;
+            piece.region = region.transform(1, 1, tile.x, tile.y);
+            if (region.hasBox()) {
+                piece.minX = piece.region.minX();
+                piece.minY = piece.region.minY();
+                piece.maxX = piece.region.maxX();
+                piece.maxY = piece.region.maxY();
+                piece.cutLeft = tile.x > 0 && region.minX() <= slack;
+                piece.cutTop = tile.y > 0 && region.minY() <= slack;
+                piece.cutRight = tile.x + tile.width < width && region.maxX() >= tile.width - slack;
+                piece.cutBottom = tile.y + tile.height < height && region.maxY() >= tile.height - slack;
+            }
+            pieces.add(piece);
+        }
+        return pieces;
+    }
+
+    /**
+     * 合并不同块中属于同一处文字的区域，结果按阅读顺序 (上到下、左到右) 排列
+     */
+    private static List<PicTechOcrResult.Region> merge(List<Piece> pieces) {
+        List<Piece> boxed = new ArrayList<>();
+        List<PicTechOcrResult.Region> unboxed = new ArrayList<>();
+        for (Piece piece : pieces) {
+            if (piece.region.hasBox()) {
+                boxed.add(piece);
+            } else {
+                unboxed.add(piece.region);
+            }
+        }
+        // 一行文字可能跨越多个块，拼接后可能与下一块的区域继续拼接，直到没有变化
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < boxed.size(); i++) {
+                for (int j = i + 1; j < boxed.size(); j++) {
+                    Piece a = boxed.get(i);
+                    Piece b = boxed.get(j);
+                    if (a.tile == b.tile && a.tile >= 0) {
+                        continue;
+                    }
+                    Piece merged = combine(a, b);
+                    if (merged != null) {
+                        boxed.set(i, merged);
+                        boxed.remove(j);
+                        changed = true;
+                        j = i;
+                    }
+                }
+            }
+        }
+        boxed.sort(Comparator.comparingDouble((Piece p) -> p.minY).thenComparingDouble(p -> p.minX));
+        List<PicTechOcrResult.Region> regions = new ArrayList<>(boxed.size() + unboxed.size());
+        for (Piece piece : boxed) {
+            regions.add(piece.region);
+        }
+        regions.addAll(unboxed);
+        return regions;
+    }
+
+    /**
+     * 两个区域属于同一处文字时返回合并结果，否则返回 null
+     */
+    private static Piece combine(Piece a, Piece b) {
+        double overlapX = Math.min(a.maxX, b.maxX) - Math.max(a.minX, b.minX);
+        double overlapY = Math.min(a.maxY, b.maxY) - Math.max(a.minY, b.minY);
+        if (overlapX < 0 || overlapY <= 0) {
+            return null;
+        }
+        // 同一行被竖直接缝切成左右两段
+        Piece left = a.minX <= b.minX ? a : b;
+        Piece right = left == a ? b : a;
+        double shorter = Math.min(a.maxY - a.minY, b.maxY - b.minY);
+        if (left.cutRight && right.cutLeft && overlapY >= SAME_LINE * shorter) {
+            return join(left, right);
+        }
+        // 同一处文字在重叠区被识别了两次
+        double intersection = Math.max(1, overlapX) * overlapY;
+        if (intersection < DUPLICATE_OVERLAP * Math.min(a.area(), b.area())) {
+            return null;
+        }
+        if (a.cut() != b.cut()) {
+            return a.cut() ? b : a;
+        }
+        return a.area() >= b.area() ? a : b;
+    }
+
+    private static Piece join(Piece left, Piece right) {
+        Piece joined = new Piece();
+        joined.tile = -1;
+        joined.minX = left.minX;
+        joined.minY = Math.min(left.minY, right.minY);
+        joined.maxX = Math.max(left.maxX, right.maxX);
+        joined.maxY = Math.max(left.maxY, right.maxY);
+        joined.cutLeft = left.cutLeft;
+        joined.cutRight = right.cutRight;
+        joined.cutTop = left.cutTop || right.cutTop;
+        joined.cutBottom = left.cutBottom || right.cutBottom;
+        joined.region = new PicTechOcrResult.Region(joinText(left.region.text(), right.region.text()), new double[]{
+                joined.minX, joined.minY, joined.maxX, joined.minY, joined.maxX, joined.maxY, joined.minX, joined.maxY});
+        return joined;
+    }
+
+    /**
+     * 连接两段文字，去掉左段结尾与右段开头重复的部分 (两块都识别到的重叠区文字)
+     */
+    static String joinText(String left, String right) {
+        for (int k = Math.min(left.length(), right.length()); k > 0; k--) {
+            if (left.regionMatches(left.length() - k, right, 0, k)) {
+                return left + right.substring(k);
+            }
+        }
+        return left + right;
+    }
+}
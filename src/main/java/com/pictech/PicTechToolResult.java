@@ -0,0 +1,105 @@
+package com.pictech;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 图片工具接口 (/tools/resize、/tools/crop、/tools/watermark) 的类型化结果
+ *
+ * Base64 图片数据不会被复制成 String，只记录其在原始响应字节中的位置，
+ * 需要时再调用 decodeImage() 解码。
+ *
+ * @param code      业务状态码 (Code)
+ * @param requestId 请求 ID (RequestId)
+ * @param message   错误信息 (Message / Msg)
+ * @param width     结果图片宽度 (Width)，缺失时为 -1
+ * @param height    结果图片高度 (Height)，缺失时为 -1
+ */
+public record PicTechToolResult(int code, String requestId, String message, int width, int height,
+                                byte[] source, int base64Start, int base64End) {
+
+    private static final byte[] CODE = "Code".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REQUEST_ID = "RequestId".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MESSAGE = "Message".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MSG = "Msg".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WIDTH = "Width".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEIGHT = "Height".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BASE64 = "Base64".getBytes(StandardCharsets.US_ASCII);
+
+    public boolean success() {
+        return code == 200;
+    }
+
+    public boolean hasImage() {
+        return base64End > base64Start;
+    }
+
+    /**
+     * 解码 Base64 图片 (自动去掉 data:...;base64, 前缀)
+     */
+    public byte[] decodeImage() {
+        if (!hasImage()) {
+            return new byte[0];
+        }
+        int start = base64Start;
+        for (int i = start; i < base64End && i < start + 64; i++) {
+            if (source[i] == ',') {
+                start = i + 1;
+                break;
+            }
+        }
+        String encoded = new String(source, start, base64End - start, StandardCharsets.US_ASCII);
+        if (encoded.indexOf('\\') >= 0) {
+            encoded = PicTechJsonReader.unescape(encoded);
+        }
+        return Base64.getMimeDecoder().decode(encoded);
+    }
+
+    public static PicTechToolResult parse(String json) {
+        return parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 单次遍历解析响应，字段可位于任意层级 (取第一次出现的值)
+     */
+    public static PicTechToolResult parse(byte[] json) {
+        PicTechJsonReader reader = new PicTechJsonReader(json);
+        int code = -1;
+        String requestId = null;
+        String message = null;
+        int width = -1;
+        int height = -1;
+        int base64Start = 0;
+        int base64End = 0;
+
+        while (reader.next() != PicTechJsonReader.Token.END_DOCUMENT) {
+            if (reader.token() != PicTechJsonReader.Token.NAME) {
+                continue;
+            }
+            if (code == -1 && reader.nameEquals(CODE)) {
+                reader.next();
+                code = reader.intValueOr(-1);
+            } else if (requestId == null && reader.nameEquals(REQUEST_ID)) {
+                if (reader.next() == PicTechJsonReader.Token.STRING) {
+                    requestId = reader.stringValue();
+                }
+            } else if (message == null && (reader.nameEquals(MESSAGE) || reader.nameEquals(MSG))) {
+                if (reader.next() == PicTechJsonReader.Token.STRING) {
+                    message = reader.stringValue();
+                }
+            } else if (width == -1 && reader.nameEquals(WIDTH)) {
+                reader.next();
+                width = reader.intValueOr(-1);
+            } else if (height == -1 && reader.nameEquals(HEIGHT)) {
+                reader.next();
+                height = reader.intValueOr(-1);
+            } else if (base64End == 0 && reader.nameEquals(BASE64)) {
+                if (reader.next() == PicTechJsonReader.Token.STRING) {
+                    base64Start = reader.rawStart();
+                    base64End = reader.rawEnd();
+                }
+            }
+        }
+        return new PicTechToolResult(code, requestId, message, width, height, json, base64Start, base64End);
+    }
+}
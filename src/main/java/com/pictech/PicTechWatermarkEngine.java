@@ -0,0 +1,378 @@
+package com.pictech;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * /tools/watermark 的本地渲染引擎
+ *
+ * 十个 TemplateKey 的位置、颜色、透明度与字号按服务端模板的外观近似实现，支持 Color / Opacity / Size 覆盖。
+ * 同样的 (模板, 文字, 字号, 颜色, 透明度) 只用 Java2D 光栅化一次，缓存为预乘 ARGB 的像素层；
+ * 之后每张图只做整数运算的 alpha 合成，不分配内存。平铺模板复用同一块预渲染的瓦片，不再逐块绘制文字。
+ *
+ * 可通过系统属性调整：
+ *   -Dpictech.watermark.layerCacheSize=256   缓存的文字层数量
+ */
+public final class PicTechWatermarkEngine {
+
+    /** 水印接口可识别的参数 */
+    static final Set<String> PARAMS = Set.of("TemplateKey", "Text", "Color", "Opacity", "Size", "OutputFormat", "Quality");
+
+    private static volatile PicTechWatermarkEngine shared;
+
+    /**
+     * 摆放方式
+     */
+    private enum Placement {
+        BOTTOM_RIGHT, BOTTOM_LEFT, CENTER, CORNERS, EDGES, PATTERN, PATTERN_DIAGONAL
+    }
+
+    /**
+     * 模板定义
+     *
+     * @param sizeRatio 默认字号相对图片短边的比例
+     * @param angle     文字旋转角度 (度，逆时针为负)
+     * @param stamp     是否绘制印章边框
+     * @param shadow    是否绘制阴影 (浅色文字在亮背景上的可读性)
+     */
+    private record Template(String defaultText, Placement placement, Color color, int opacity, double sizeRatio,
+                            String fontName, int fontStyle, double angle, boolean stamp, boolean shadow) {
+    }
+
+    private static final Map<String, Template> TEMPLATES = Map.of(
+            "single_subtle_light", new Template("PicTech", Placement.BOTTOM_RIGHT, Color.WHITE, 50, 0.04,
+                    Font.SANS_SERIF, Font.PLAIN, 0, false, true),
+            "special_multiline", new Template("PicTech", Placement.BOTTOM_LEFT, Color.WHITE, 70, 0.035,
+                    Font.SANS_SERIF, Font.PLAIN, 0, false, true),
+            "single_strong_red", new Template("WARNING", Placement.CENTER, new Color(0xE0, 0x20, 0x20), 80, 0.12,
+                    Font.SANS_SERIF, Font.BOLD, 0, false, false),
+            "multiple_corners", new Template("PicTech", Placement.CORNERS, Color.WHITE, 60, 0.035,
+                    Font.SANS_SERIF, Font.PLAIN, 0, false, true),
+            "multiple_edges", new Template("PicTech", Placement.EDGES, Color.WHITE, 60, 0.035,
+                    Font.SANS_SERIF, Font.PLAIN, 0, false, true),
+            "pattern_subtle", new Template("PicTech", Placement.PATTERN, Color.WHITE, 20, 0.035,
+                    Font.SANS_SERIF, Font.PLAIN, 0, false, false),
+            "pattern_diagonal_da", new Template("PicTech", Placement.PATTERN_DIAGONAL, new Color(0x80, 0x80, 0x80), 25, 0.045,
+                    Font.SANS_SERIF, Font.BOLD, -30, false, false),
+            "special_photography", new Template("PicTech", Placement.BOTTOM_RIGHT, Color.WHITE, 85, 0.028,
+                    Font.MONOSPACED, Font.PLAIN, 0, false, true),
+            "special_confidential", new Template("绝密文件", Placement.CENTER, new Color(0xC0, 0x10, 0x10), 60, 0.1,
+                    Font.SERIF, Font.BOLD, -20, true, false),
+            "special_approved", new Template("审核通过", Placement.CENTER, new Color(0x1E, 0x9E, 0x3C), 70, 0.1,
+                    Font.SANS_SERIF, Font.BOLD, -15, true, false));
+
+    /**
+     * 预乘 ARGB 像素层 (行优先，宽 width)
+     */
+    static final class Layer {
+        final int[] pixels;
+        final int width;
+        final int height;
+
+        Layer(int[] pixels, int width, int height) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private record LayerKey(String template, String text, int size, int rgb, int opacity) {
+    }
+
+    private final LinkedHashMap<LayerKey, Layer> layers;
+    private final LongAdder layerHits = new LongAdder();
+    private final LongAdder layerRenders = new LongAdder();
+
+    public PicTechWatermarkEngine(int layerCacheSize) {
+        this.layers = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LayerKey, Layer> eldest) {
+                return size() > layerCacheSize;
+            }
+        };
+    }
+
+    public static PicTechWatermarkEngine shared() {
+        PicTechWatermarkEngine engine = shared;
+        if (engine == null) {
+            synchronized (PicTechWatermarkEngine.class) {
+                engine = shared;
+                if (engine == null) {
+                    engine = new PicTechWatermarkEngine(Integer.getInteger("pictech.watermark.layerCacheSize", 256));
+                    shared = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * 模板是否可在本地渲染
+     */
+    public boolean supports(Map<String, ?> params) {
+        Object key = params.get("TemplateKey");
+        return key != null && TEMPLATES.containsKey(key.toString());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "layers=" + layers.size() + ", renders=" + layerRenders.sum() + ", hits=" + layerHits.sum();
+    }
+
+    /**
+     * 把水印合成到图片上
+     * TYPE_INT_RGB / TYPE_INT_ARGB_PRE 的图片原地修改并返回自身，其他类型先转换为这两种之一
+     */
+    public BufferedImage apply(BufferedImage image, Map<String, ?> params) {
+        Template template = TEMPLATES.get(String.valueOf(params.get("TemplateKey")));
+        if (template == null) {
+            throw new IllegalArgumentException("未知的 TemplateKey: " + params.get("TemplateKey"));
+        }
+        BufferedImage target = compatible(image);
+        int width = target.getWidth();
+        int height = target.getHeight();
+
+        String text = params.get("Text") == null || params.get("Text").toString().isEmpty()
+                ? template.defaultText() : params.get("Text").toString();
+        int size = params.get("Size") != null ? parseInt(params, "Size")
+                : Math.max(12, (int) Math.round(Math.min(width, height) * template.sizeRatio()));
+        int rgb = params.get("Color") != null ? parseColor(params.get("Color").toString()) : template.color().getRGB() & 0xffffff;
+        int opacity = params.get("Opacity") != null ? Math.max(0, Math.min(100, parseInt(params, "Opacity"))) : template.opacity();
+        Layer layer = layer(String.valueOf(params.get("TemplateKey")), template, text, size, rgb, opacity);
+
+        int[] dst = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+        int margin = Math.max(4, Math.min(width, height) / 30);
+        switch (template.placement()) {
+            case BOTTOM_RIGHT -> blend(dst, width, height, layer, width - layer.width - margin, height - layer.height - margin);
+            case BOTTOM_LEFT -> blend(dst, width, height, layer, margin, height - layer.height - margin);
+            case CENTER -> blend(dst, width, height, layer, (width - layer.width) / 2, (height - layer.height) / 2);
+            case CORNERS -> {
+                blend(dst, width, height, layer, margin, margin);
+                blend(dst, width, height, layer, width - layer.width - margin, margin);
+                blend(dst, width, height, layer, margin, height - layer.height - margin);
+                blend(dst, width, height, layer, width - layer.width - margin, height - layer.height - margin);
+            }
+            case EDGES -> {
+                blend(dst, width, height, layer, (width - layer.width) / 2, margin);
+                blend(dst, width, height, layer, (width - layer.width) / 2, height - layer.height - margin);
+                blend(dst, width, height, layer, margin, (height - layer.height) / 2);
+                blend(dst, width, height, layer, width - layer.width - margin, (height - layer.height) / 2);
+            }
+            case PATTERN -> blendTiled(dst, width, height, layer, 0);
+            case PATTERN_DIAGONAL -> blendTiled(dst, width, height, layer, layer.width / 2);
+        }
+        return target;
+    }
+
+    // ================= 文字层 =================
+
+    private Layer layer(String templateKey, Template template, String text, int size, int rgb, int opacity) {
+        LayerKey key = new LayerKey(templateKey, text, size, rgb, opacity);
+        synchronized (this) {
+            Layer layer = layers.get(key);
+            if (layer != null) {
+                layerHits.increment();
+                return layer;
+            }
+        }
+        // 在锁外光栅化；并发首次渲染同一层时重复渲染无害，后写入者覆盖
+        Layer layer = render(template, text, size, new Color(rgb), opacity);
+        layerRenders.increment();
+        synchronized (this) {
+            layers.put(key, layer);
+        }
+        return layer;
+    }
+
+    /**
+     * 用 Java2D 光栅化一次文字 (可多行、旋转、印章边框、阴影)；平铺模板额外留出瓦片间距
+     */
+    private static Layer render(Template template, String text, int size, Color color, int opacity) {
+        Font font = new Font(template.fontName(), template.fontStyle(), size);
+        FontRenderContext frc = new FontRenderContext(null, true, true);
+        String[] lines = text.split("\n");
+        TextLayout[] layouts = new TextLayout[lines.length];
+        double textWidth = 0;
+        double lineHeight = 0;
+        for (int i = 0; i < lines.length; i++) {
+            layouts[i] = new TextLayout(lines[i].isEmpty() ? " " : lines[i], font, frc);
+            textWidth = Math.max(textWidth, layouts[i].getAdvance());
+            lineHeight = Math.max(lineHeight, layouts[i].getAscent() + layouts[i].getDescent() + layouts[i].getLeading());
+        }
+        double textHeight = lineHeight * lines.length;
+        double pad = template.stamp() ? size * 0.4 : size * 0.1;
+        double boxWidth = textWidth + pad * 2;
+        double boxHeight = textHeight + pad * 2;
+
+        double radians = Math.toRadians(template.angle());
+        AffineTransform rotate = AffineTransform.getRotateInstance(radians);
+        Rectangle2D bounds = rotate.createTransformedShape(new Rectangle2D.Double(-boxWidth / 2, -boxHeight / 2, boxWidth, boxHeight))
+                .getBounds2D();
+        double spacing = template.placement() == Placement.PATTERN || template.placement() == Placement.PATTERN_DIAGONAL ? size * 2.5 : 0;
+        int width = (int) Math.ceil(bounds.getWidth() + spacing);
+        int height = (int) Math.ceil(bounds.getHeight() + spacing);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity / 100f));
+            g.translate(width / 2.0, height / 2.0);
+            g.rotate(radians);
+            g.translate(-boxWidth / 2, -boxHeight / 2);
+
+            if (template.stamp()) {
+                float stroke = Math.max(2f, size / 12f);
+                g.setColor(color);
+                g.setStroke(new BasicStroke(stroke));
+                g.drawRoundRect((int) stroke, (int) stroke, (int) (boxWidth - stroke * 2), (int) (boxHeight - stroke * 2),
+                        size / 3, size / 3);
+            }
+            // 居中模板的多行文字逐行居中，其余左对齐
+            boolean centered = template.placement() == Placement.CENTER;
+            for (int i = 0; i < layouts.length; i++) {
+                float x = (float) (pad + (centered ? (textWidth - layouts[i].getAdvance()) / 2 : 0));
+                float y = (float) (pad + lineHeight * i + layouts[i].getAscent());
+                if (template.shadow()) {
+                    g.setColor(new Color(0, 0, 0, 110));
+                    layouts[i].draw(g, x + Math.max(1, size / 24f), y + Math.max(1, size / 24f));
+                }
+                g.setColor(color);
+                layouts[i].draw(g, x, y);
+            }
+        } finally {
+            g.dispose();
+        }
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        return new Layer(pixels, width, height);
+    }
+
+    // ================= 像素合成 =================
+
+    /**
+     * 在 (x, y) 处合成一个文字层 (超出图片的部分裁掉)
+     */
+    static void blend(int[] dst, int width, int height, Layer layer, int x, int y) {
+        int x0 = Math.max(0, x);
+        int y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + layer.width);
+        int y1 = Math.min(height, y + layer.height);
+        int[] src = layer.pixels;
+        for (int row = y0; row < y1; row++) {
+            int d = row * width + x0;
+            int s = (row - y) * layer.width + (x0 - x);
+            for (int col = x0; col < x1; col++, d++, s++) {
+                int sp = src[s];
+                if (sp != 0) {
+                    dst[d] = over(sp, dst[d]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 用同一块瓦片铺满整张图；stagger 为每行瓦片的水平错位 (斜向平铺错开排列)
+     */
+    static void blendTiled(int[] dst, int width, int height, Layer tile, int stagger) {
+        int[] src = tile.pixels;
+        int tw = tile.width;
+        int th = tile.height;
+        for (int row = 0; row < height; row++) {
+            int ty = row % th;
+            int srcRow = ty * tw;
+            int tx = (int) (((long) (row / th) * stagger) % tw);
+            int d = row * width;
+            int end = d + width;
+            while (d < end) {
+                // 一次处理到瓦片行末尾，避免逐像素取模
+                int run = Math.min(tw - tx, end - d);
+                int s = srcRow + tx;
+                for (int i = 0; i < run; i++, d++, s++) {
+                    int sp = src[s];
+                    if (sp != 0) {
+                        dst[d] = over(sp, dst[d]);
+                    }
+                }
+                tx = 0;
+            }
+        }
+    }
+
+    /**
+     * 预乘 alpha 的 SRC_OVER：out = src + dst * (255 - srcAlpha) / 255
+     * 两个通道并在一个 int 中同时计算；TYPE_INT_RGB 的最高字节被忽略，同一公式同样适用
+     */
+    static int over(int src, int dst) {
+        int inv = 255 - (src >>> 24);
+        if (inv == 0) {
+            return src;
+        }
+        int rb = (dst & 0x00ff00ff) * inv + 0x00800080;
+        rb = ((rb + ((rb >>> 8) & 0x00ff00ff)) >>> 8) & 0x00ff00ff;
+        int ag = ((dst >>> 8) & 0x00ff00ff) * inv + 0x00800080;
+        ag = (ag + ((ag >>> 8) & 0x00ff00ff)) & 0xff00ff00;
+        return src + (rb | ag);
+    }
+
+    // ================= 工具方法 =================
+
+    /**
+     * 转换为合成循环可直接写入的像素格式
+     */
+    private static BufferedImage compatible(BufferedImage image) {
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB_PRE) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = converted.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return converted;
+    }
+
+    private static int parseColor(String value) {
+        String hex = value.trim();
+        if (hex.startsWith("#")) {
+            hex = hex.substring(1);
+        }
+        if (hex.length() == 3) {
+            hex = "" + hex.charAt(0) + hex.charAt(0) + hex.charAt(1) + hex.charAt(1) + hex.charAt(2) + hex.charAt(2);
+        }
+        try {
+            return Integer.parseInt(hex.toLowerCase(Locale.ROOT), 16) & 0xffffff;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Color 格式错误: " + value);
+        }
+    }
+
+    private static int parseInt(Map<String, ?> params, String key) {
+        try {
+            return (int) Math.round(Double.parseDouble(params.get(key).toString()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " 不是数字: " + params.get(key));
+        }
+    }
+}
@@ -1,22 +1,17 @@
 package com.pictech;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PicTechWatermarkTest {
 
     // ================= 配置区域 =================
-    private static final String API_HOST = "https://www.pictech.top/pictech/commonapi";
+    private static final String API_HOST = System.getProperty("pictech.api.host", "https://www.pictech.top/pictech/commonapi");
     // 测试图片 URL
     private static final String TEST_IMAGE_URL = "https://pictech.top/pctccloud/pictechcc-translate/1769184000000/atlas50696a9ea89e4456898a0c6d3393792f/581f3966ef924b13b1c486d6d4d00197_source_Chinese.webp";
 
@@ -24,10 +19,16 @@ public class PicTechWatermarkTest {
     private static final String ACCOUNT_ID = "your_ACCOUNT_ID";
     private static final String SECRET_KEY = "your_SECRET_KEY";
     // ===========================================
-    // 全局 HTTP 客户端
-    private static final HttpClient client = HttpClient.newBuilder()
-            .connectTimeout(Duration.ofSeconds(10))
-            .build();
+    // 全局共享的 HTTP 引擎 (连接池 / HTTP/2 复用)
+    private static final PicTechHttpEngine engine = PicTechHttpEngine.shared();
+    private static final PicTechResilience resilience = PicTechResilience.defaults();
+    // 相同源图 + 参数的结果缓存 (-Dpictech.resultCache.enabled=false 关闭)
+    private static final PicTechResultCache resultCache = PicTechResultCache.shared();
+    // 模板水印的本地渲染 (近似实现，仅 -Dpictech.tools.mode=local 时开启)
+    private static final PicTechLocalTools localTools = PicTechLocalTools.shared();
+    // 批量测试的并发数与限流速率 (每秒请求数)，可通过系统属性调整
+    private static final int BATCH_CONCURRENCY = Integer.getInteger("pictech.batch.concurrency", 4);
+    private static final double BATCH_RATE = Double.parseDouble(System.getProperty("pictech.batch.rate", "5"));
 
     public static void main(String[] args) {
         // 1. 执行批量模板测试
@@ -55,20 +56,45 @@ public class PicTechWatermarkTest {
 
         System.out.println("🚀 开始批量测试 10 个水印模板...");
         System.out.println("API: " + API_HOST);
+        System.out.printf("并发: %d | 限流: %.1f req/s%n", BATCH_CONCURRENCY, BATCH_RATE);
 
+        // 有界并发 + 令牌桶限流，替代逐个执行 + 固定 sleep
+        List<PicTechBatchRunner.Job<Boolean>> jobs = new ArrayList<>();
         for (int i = 0; i < testCases.size(); i++) {
-            TestCase output = testCases.get(i);
-            runSingleTest(i + 1, output.key, output.text, output.desc);
+            TestCase testCase = testCases.get(i);
+            int caseIndex = i + 1;
+            jobs.add(new PicTechBatchRunner.Job<>(testCase.key, () -> {
+                if (!runSingleTest(caseIndex, testCase.key, testCase.text, testCase.desc)) {
+                    throw new IllegalStateException("模板 " + testCase.key + " 测试失败");
+                }
+                return true;
+            }));
+        }
 
-            // 稍微暂停一下，避免请求太快
-            try { Thread.sleep(500); } catch (InterruptedException e) { e.printStackTrace(); }
+        try {
+            PicTechBatchRunner runner = new PicTechBatchRunner(BATCH_CONCURRENCY, BATCH_RATE);
+            PicTechBatchRunner.Report report = runner.run(jobs, null);
+            report.print();
+            System.out.println("当前并发窗口: " + PicTechAdaptiveLimiter.limits());
+            System.out.print("接口指标:\n" + PicTechMetrics.snapshot());
+            System.out.println("重试 / 对冲: " + resilience);
+            if (resultCache != null) {
+                System.out.println("结果缓存: " + resultCache.stats());
+            }
+            System.out.println("请求合并: " + PicTechResultCache.inFlight());
+            System.out.println("本地执行: " + localTools + " | 文字层: " + PicTechWatermarkEngine.shared());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("❌ 批量测试被中断");
         }
     }
 
     /**
      * 执行单个水印测试
+     *
+     * @return 是否成功生成图片
      */
-    public static void runSingleTest(int caseIndex, String templateKey, String textContent, String description) {
+    public static boolean runSingleTest(int caseIndex, String templateKey, String textContent, String description) {
         System.out.printf("\n--- Case %d: %s [%s] ---%n", caseIndex, description, templateKey);
         String url = API_HOST + "/tools/watermark";
 
@@ -86,21 +112,18 @@ public class PicTechWatermarkTest {
         }
 
         try {
-            // 1. 生成签名
-            String signature = generateSignature(params, SECRET_KEY);
-            params.put("Signature", signature);
-
-            // 2. 发送请求
-            long startTime = System.currentTimeMillis();
-            String responseBody = sendPostRequest(url, params);
-            long cost = System.currentTimeMillis() - startTime;
-
-            // 3. 解析结果 (简单解析 Status Code，实际应用建议检查 JSON 中的 Code)
-            // 注意：这里为了简化没有完全解析 JSON 对象，而是直接处理字符串
-            if (responseBody != null && responseBody.contains("\"Code\":200") || responseBody.contains("\"Code\": 200")) {
+            // 1. 签名并发送请求 (每次尝试重新签名；Base64 图片在接收过程中直接解码写入文件)
+            String filename = String.format("test_%02d_%s.jpg", caseIndex, templateKey);
+            long startTime = System.nanoTime();
+            PicTechBase64FileHandler.Result result = sendPostRequest(url, params, filename);
+            long cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+            // 2. 解析结果 (检查 JSON 中的 Code)
+            String responseBody = result.envelope();
+            if (PicTechToolResult.parse(responseBody).success()) {
                 System.out.printf("   耗时: %dms | 状态码: 200 (Success)%n", cost);
-                String filename = String.format("test_%02d_%s.jpg", caseIndex, templateKey);
-                saveResultImage(responseBody, filename);
+                saveResultImage(result, filename);
+                return result.saved();
             } else {
                 System.out.println("❌ 请求失败: " + responseBody);
             }
@@ -109,6 +132,7 @@ public class PicTechWatermarkTest {
             System.out.println("❌ 网络或系统异常: " + e.getMessage());
             e.printStackTrace();
         }
+        return false;
     }
 
     /**
@@ -131,13 +155,11 @@ public class PicTechWatermarkTest {
             paramsCorners.put("OutputFormat", "JPEG");
             paramsCorners.put("Timestamp", String.valueOf(System.currentTimeMillis()));
 
-            paramsCorners.put("Signature", generateSignature(paramsCorners, SECRET_KEY));
-
-            String respA = sendPostRequest(url, paramsCorners);
-            if (respA.contains("\"Code\":200") || respA.contains("\"Code\": 200")) {
+            PicTechBase64FileHandler.Result respA = sendPostRequest(url, paramsCorners, "debug_multiple_corners_RED.jpg");
+            if (PicTechToolResult.parse(respA.envelope()).success()) {
                 saveResultImage(respA, "debug_multiple_corners_RED.jpg");
             } else {
-                System.out.println("Corners 失败: " + respA);
+                System.out.println("Corners 失败: " + respA.envelope());
             }
 
             // 测试 B: 四边 + 蓝色 + 100%不透明
@@ -150,13 +172,11 @@ public class PicTechWatermarkTest {
             paramsEdges.put("Opacity", 100);     // 【覆盖】完全不透明
             paramsEdges.put("OutputFormat", "JPEG");
 
-            paramsEdges.put("Signature", generateSignature(paramsEdges, SECRET_KEY));
-
-            String respB = sendPostRequest(url, paramsEdges);
-            if (respB.contains("\"Code\":200") || respB.contains("\"Code\": 200")) {
+            PicTechBase64FileHandler.Result respB = sendPostRequest(url, paramsEdges, "debug_multiple_edges_BLUE.jpg");
+            if (PicTechToolResult.parse(respB.envelope()).success()) {
                 saveResultImage(respB, "debug_multiple_edges_BLUE.jpg");
             } else {
-                System.out.println("Edges 失败: " + respB);
+                System.out.println("Edges 失败: " + respB.envelope());
             }
 
         } catch (Exception e) {
@@ -167,44 +187,44 @@ public class PicTechWatermarkTest {
     // ================= 辅助工具方法 =================
 
     /**
-     * 生成 API 请求签名 (HMAC-SHA256)
+     * 生成 API 请求签名 (HMAC-SHA256)，同时刷新 Timestamp
      */
-    private static String generateSignature(Map<String, Object> params, String secretKey) throws Exception {
-        // 1. 将参数按 Key 字典序排序，并拼接为 k=v&k=v 格式
-        // TreeMap 默认按 Key 升序排列
-        Map<String, Object> sortedParams = new TreeMap<>(params);
-
-        String paramString = sortedParams.entrySet().stream()
-                .filter(e -> e.getValue() != null && !e.getValue().toString().isEmpty())
-                .map(e -> e.getKey() + "=" + e.getValue())
-                .collect(Collectors.joining("&"));
-
-        // 2. 拼接 SecretKey
-        String signString = paramString + "&SecretKey=" + secretKey;
-
-        // 3. 计算 HMAC-SHA256
-        Mac hmacSha256 = Mac.getInstance("HmacSHA256");
-        hmacSha256.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
-        byte[] hash = hmacSha256.doFinal(signString.getBytes(StandardCharsets.UTF_8));
-
-        // 4. 返回 Base64 字符串
-        return Base64.getEncoder().encodeToString(hash);
+    private static void signRequest(Map<String, Object> params, String secretKey) {
+        PicTechSigner.forSecret(secretKey).refresh(params);
     }
 
     /**
-     * 发送 POST 请求
+     * 签名并发送 POST 请求，响应中的 Base64 图片边接收边写入 filename
+     * 水印接口是幂等的：失败按退避重试，慢请求可对冲 (-Dpictech.hedge.enabled=true)，每次尝试都重新签名
+     * 相同源图 + 参数的结果直接从本地结果缓存写出，不再请求接口；并发的相同请求只发送一次
+     * -Dpictech.tools.mode=local 时在本地渲染模板水印 (近似实现)
      */
-    private static String sendPostRequest(String url, Map<String, Object> params) throws Exception {
-        String jsonBody = buildJson(params);
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonBody, StandardCharsets.UTF_8))
-                .build();
+    private static PicTechBase64FileHandler.Result sendPostRequest(String url, Map<String, Object> params, String filename) throws Exception {
+        PicTechResultCache.Loader loader = () -> localTools.run("tools/watermark", params, Path.of(filename),
+                () -> callWatermark(url, params, filename));
+        if (resultCache == null) {
+            return PicTechResultCache.coalesce("tools/watermark", params, Path.of(filename), loader);
+        }
+        return resultCache.fetch("tools/watermark", params, Path.of(filename), loader);
+    }
 
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-        return response.body();
+    private static PicTechBase64FileHandler.Result callWatermark(String url, Map<String, Object> params, String filename) throws Exception {
+        // 每次尝试签名一份独立的参数副本 (对冲请求在调度线程上构造)；对冲时只有被采用的响应替换 filename
+        AtomicReference<Map<String, Object>> previous = new AtomicReference<>(params);
+        HttpResponse<PicTechBase64FileHandler.Pending> response = resilience.send("tools/watermark", PicTechResilience.Kind.HEDGEABLE,
+                attempt -> {
+                    Map<String, Object> signed = new TreeMap<>(previous.get());
+                    signRequest(signed, SECRET_KEY);
+                    previous.set(signed);
+                    return engine.newRequest(url)
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofString(buildJson(signed), StandardCharsets.UTF_8))
+                            .build();
+                },
+                PicTechBase64FileHandler.deferred(Path.of(filename)));
+        try (PicTechBase64FileHandler.Pending pending = response.body()) {
+            return pending.commit();
+        }
     }
 
     /**
@@ -241,55 +261,16 @@ public class PicTechWatermarkTest {
     }
 
     /**
-     * 解析 JSON 响应并保存 Base64 图片
-     * 注意：这里使用了简单的字符串查找来提取 Base64，生产环境请使用 JSON 库
+     * 输出图片保存结果
+     * Base64 已在接收响应时由 PicTechBase64FileHandler 解码并原子写入文件
      */
-    private static void saveResultImage(String jsonResponse, String filename) {
-        try {
-            // 1. 简单提取 Base64 字符串 (寻找 "Base64":"...")
-            String marker = "\"Base64\"";
-            int startIndex = jsonResponse.indexOf(marker);
-            if (startIndex == -1) {
-                System.out.println("❌ [" + filename + "] 保存失败: 返回数据中没有Base64");
-                return;
-            }
-
-            // 定位到值的开始引号
-            int valueStart = jsonResponse.indexOf("\"", startIndex + marker.length() + 1) + 1;
-            // 定位到值的结束引号
-            int valueEnd = jsonResponse.indexOf("\"", valueStart);
-
-            if (valueStart <= 0 || valueEnd <= 0) {
-                System.out.println("❌ [" + filename + "] 保存失败: 无法解析 Base64 字符串");
-                return;
-            }
-
-            String b64Str = jsonResponse.substring(valueStart, valueEnd);
-
-            // 2. 去掉 data:image/jpeg;base64, 前缀 (如果存在)
-            if (b64Str.contains(",")) {
-                b64Str = b64Str.split(",")[1];
-            }
-
-            // 3. 解码并保存
-            byte[] imgData = Base64.getDecoder().decode(b64Str);
-            try (FileOutputStream fos = new FileOutputStream(filename)) {
-                fos.write(imgData);
-            }
-
-            // 尝试获取宽高 (仅供显示，不影响保存)
-            String width = "unknown";
-            String height = "unknown";
-            if(jsonResponse.contains("\"Width\"")) {
-                // 极其简陋的提取，仅演示用
-                // 实际请务必使用 JSON 库
-            }
-
-            System.out.println("✅ [" + filename + "] 图片已保存");
-
-        } catch (IOException | IllegalArgumentException e) {
-            System.out.println("❌ [" + filename + "] 保存异常: " + e.getMessage());
+    private static void saveResultImage(PicTechBase64FileHandler.Result result, String filename) {
+        if (!result.saved()) {
+            System.out.println("❌ [" + filename + "] 保存失败: 返回数据中没有Base64");
+            return;
         }
+
+        System.out.println("✅ [" + filename + "] 图片已保存 (" + result.decodedBytes() + " bytes)");
     }
 
     /**